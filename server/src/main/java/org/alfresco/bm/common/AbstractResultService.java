@@ -27,14 +27,10 @@ package org.alfresco.bm.common;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Common implementation around event results.
@@ -46,8 +42,22 @@ public abstract class AbstractResultService implements ResultService
 {
     protected Log logger = LogFactory.getLog(this.getClass());
     
+    /** The number of results to fetch with each query */
+    private static final int RESULT_PAGE_SIZE = 10000;
+    /** The number of report periods to aggregate with each query */
+    private static final int AGGREGATE_PAGE_PERIODS = 1000;
+    
     /**
      * {@inheritDoc}
+     * <p/>
+     * Results are read once, in start time order, with each query continuing from the
+     * start time of the last result seen.  Each event name has a {@link ResultSketch sketch}
+     * for every report period in the window and the statistics reported are the merged
+     * sketches, so memory use depends on the number of event names and report periods
+     * rather than the number of results.
+     * <p/>
+     * An {@link AggregatingResultService} supplies statistics for each period directly so
+     * that the individual results are never retrieved.
      */
     @Override
     public void getResults(
@@ -57,12 +67,23 @@ public abstract class AbstractResultService implements ResultService
             long reportPeriod,
             boolean chartOnly)
     {
-        /*
-         * Keep track of all events' statistics.
-         * It is possible to report more frequently than the window size.
-         * For each report period in the reporting window, the statistics for the events need to be maintained.
-         */
-        
+        getResults(handler, startTime, windowSize, reportPeriod, chartOnly, false);
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @see #getResults(ResultHandler, long, long, long, boolean)
+     */
+    @Override
+    public void getResults(
+            ResultHandler handler,
+            long startTime,
+            long windowSize,
+            long reportPeriod,
+            boolean chartOnly,
+            boolean responseTime)
+    {
         if (handler == null)
         {
             throw new IllegalArgumentException("A result handler must be supplied.");
@@ -86,206 +107,311 @@ public abstract class AbstractResultService implements ResultService
         
         // We have to keep statistics for each reporting period
         int windowMultiple = (int) (windowSize / reportPeriod);
-        
-        // Build stats for reporting back
-        // Each LinkedList will have 'windowMultiple' entries.
-        // The newest statistics will be the last in the linked list; results will be reported from the first entry each time.
-        Map<String, LinkedList<DescriptiveStatistics>> statsByEventName = new HashMap<String, LinkedList<DescriptiveStatistics>>(13);
-        Map<String, LinkedList<AtomicInteger>> failuresByEventName = new HashMap<String, LinkedList<AtomicInteger>>(13);
-        
-        // Our even queries use separate windows
-        EventRecord firstResult = getFirstResult();
-        if (firstResult == null)
+        if (this instanceof AggregatingResultService)
         {
-            // There is nothing
-            return;
+            aggregateResults((AggregatingResultService) this, handler, startTime, windowSize, reportPeriod, windowMultiple, chartOnly, responseTime);
         }
-        long firstResultStartTime = firstResult.getStartTime();
-        EventRecord lastResult = getLastResult();
-        long lastResultStartTime = lastResult.getStartTime();
-
-        long queryWindowStartTime = Math.max(firstResultStartTime, startTime);                       // The start time is inclusive
-        long queryWindowSize = lastResult.getStartTime() - firstResult.getStartTime();
-        if (queryWindowSize < 60000L)
-        {
-            queryWindowSize = 60000L;                                           // Query window is at least a minute
-        }
-        else if (queryWindowSize > (60000L * 60L))
+        else
         {
-            queryWindowSize = 60000L * 60L;                                     // Query window is at most an hour
+            streamResults(handler, startTime, windowSize, reportPeriod, windowMultiple, chartOnly, responseTime);
         }
-        long queryWindowEndTime = queryWindowStartTime + queryWindowSize;
-
-        // Rebase the aggregation window to encompasse the first event
-        long currentWindowEndTime = (long) Math.floor((firstResultStartTime + reportPeriod) / reportPeriod) * reportPeriod;
-        long currentWindowStartTime = currentWindowEndTime - windowSize;
+    }
+    
+    /**
+     * Build the statistics for each window from individual results
+     */
+    private void streamResults(
+            ResultHandler handler,
+            long startTime,
+            long windowSize,
+            long reportPeriod,
+            int windowMultiple,
+            boolean chartOnly,
+            boolean responseTime)
+    {
+        Map<String, PeriodSketches> sketchesByEventName = new HashMap<String, PeriodSketches>(13);
+        // The report period that results are currently being added to
+        int period = 0;
+        long currentWindowStartTime = 0L;
+        long currentWindowEndTime = 0L;
+        boolean started = false;
+        boolean unreportedResults = false;
         
-        // Iterate over the results
+        // Continue each query from the start time of the last result, skipping any results with that start time already seen
+        long queryStartTime = startTime;
         int skip = 0;
-        int limit = 10000;
-        boolean stop = false;
-        boolean unreportedResults = false;
-breakStop:
-        while (!stop)
+        while (true)
         {
-            List<EventRecord> results = getResults(queryWindowStartTime, queryWindowEndTime, chartOnly, skip, limit);
-            if (results.size() == 0)
+            List<EventRecord> results = getResults(queryStartTime, Long.MAX_VALUE, chartOnly, skip, RESULT_PAGE_SIZE);
+            for (EventRecord eventRecord : results)
             {
-                if (queryWindowEndTime > lastResultStartTime)
+                long eventRecordStartTime = eventRecord.getStartTime();
+                // Keep track of where the next query starts
+                if (eventRecordStartTime == queryStartTime)
                 {
-                    // The query window has included the last event, so we have extracted all results
-                    if (unreportedResults)
-                    {
-                        // The query window ends in the future, so we are done
-                        reportAndCycleStats(statsByEventName, failuresByEventName, currentWindowStartTime, currentWindowEndTime, windowMultiple, handler);
-                        unreportedResults = false;
-                    }
-                    stop = true;
+                    skip++;
                 }
                 else
                 {
-                    // Move the query window up
-                    queryWindowStartTime = queryWindowEndTime;
-                    queryWindowEndTime+= queryWindowSize;
-                    // Reset the skip count as we are in a new query window
-                    skip = 0;
+                    queryStartTime = eventRecordStartTime;
+                    skip = 1;
                 }
-                // We continue
-                continue;
-            }
-            // Process each result found in the query window
-            for (EventRecord eventRecord : results)
-            {
-                String eventRecordName = eventRecord.getEvent().getName();
-                long eventRecordStartTime = eventRecord.getStartTime();
-                long eventRecordTime = eventRecord.getTime();
-                boolean eventRecordSuccess = eventRecord.isSuccess();
                 
-                // If the current event is past the reporting period, then report
-                if (eventRecordStartTime >= currentWindowEndTime)
+                if (!started)
+                {
+                    // Rebase the aggregation window to encompass the first event
+                    currentWindowEndTime = (long) Math.floor((eventRecordStartTime + reportPeriod) / reportPeriod) * reportPeriod;
+                    currentWindowStartTime = currentWindowEndTime - windowSize;
+                    started = true;
+                }
+                // Report every period that ended before this result
+                while (eventRecordStartTime >= currentWindowEndTime)
                 {
-                    // Report the current stats
-                    stop = reportAndCycleStats(statsByEventName, failuresByEventName, currentWindowStartTime, currentWindowEndTime, windowMultiple, handler);
+                    boolean stop = reportAndCycleStats(sketchesByEventName, period, currentWindowStartTime, currentWindowEndTime, windowMultiple, handler);
                     unreportedResults = false;
-                    // Shift the window up by one report period
-                    currentWindowStartTime += reportPeriod;
-                    currentWindowEndTime += reportPeriod;
-                    // Check for stop
                     if (stop)
                     {
-                        break breakStop;
+                        return;
                     }
+                    // Shift the window up by one report period
+                    period++;
+                    currentWindowStartTime += reportPeriod;
+                    currentWindowEndTime += reportPeriod;
                 }
-                // Increase the skip with each window result
-                skip++;
                 
                 // Ignore results we don't wish to chart
                 if (chartOnly && !eventRecord.isChart())
                 {
                     continue;
                 }
-
+                
                 // We have to report this result at some point
                 unreportedResults = true;
                 
-                // Get the linked list of stats for the event
-                LinkedList<DescriptiveStatistics> eventStatsLL = statsByEventName.get(eventRecordName);
-                if (eventStatsLL == null)
+                String eventRecordName = eventRecord.getEvent().getName();
+                PeriodSketches eventSketches = sketchesByEventName.get(eventRecordName);
+                if (eventSketches == null)
                 {
-                    // Create a LL for the event
-                    eventStatsLL = new LinkedList<DescriptiveStatistics>();
-                    statsByEventName.put(eventRecordName, eventStatsLL);
-                    // We need at least one entry in order to record stats
-                    eventStatsLL.add(new DescriptiveStatistics());
+                    eventSketches = new PeriodSketches(windowMultiple);
+                    sketchesByEventName.put(eventRecordName, eventSketches);
                 }
-                // Write the current event to all the stats for the event
-                for (DescriptiveStatistics eventStats : eventStatsLL)
+                long time = responseTime ? eventRecord.getResponseTime() : eventRecord.getTime();
+                eventSketches.add(period, time, eventRecord.isSuccess());
+            }
+            if (results.size() < RESULT_PAGE_SIZE)
+            {
+                // We have seen all the results
+                break;
+            }
+        }
+        if (unreportedResults)
+        {
+            reportAndCycleStats(sketchesByEventName, period, currentWindowStartTime, currentWindowEndTime, windowMultiple, handler);
+        }
+    }
+    
+    /**
+     * Build the statistics for each window from the statistics for each report period
+     */
+    private void aggregateResults(
+            AggregatingResultService aggregatingResultService,
+            ResultHandler handler,
+            long startTime,
+            long windowSize,
+            long reportPeriod,
+            int windowMultiple,
+            boolean chartOnly,
+            boolean responseTime)
+    {
+        Map<String, PeriodSketches> sketchesByEventName = new HashMap<String, PeriodSketches>(13);
+        int period = 0;
+        long currentWindowStartTime = 0L;
+        long currentWindowEndTime = 0L;
+        boolean started = false;
+        boolean unreportedResults = false;
+        
+        // Query whole periods
+        long queryStartTime = startTime - (startTime % reportPeriod);
+        long querySize = reportPeriod * AGGREGATE_PAGE_PERIODS;
+        while (true)
+        {
+            long queryEndTime = queryStartTime + querySize;
+            List<ResultAggregate> aggregates = aggregatingResultService.getResultAggregates(queryStartTime, queryEndTime, reportPeriod, chartOnly, responseTime);
+            if (aggregates.size() == 0)
+            {
+                // Skip over any gap to the period of the next result
+                List<EventRecord> nextResults = getResults(queryEndTime, Long.MAX_VALUE, chartOnly, 0, 1);
+                if (nextResults.size() == 0)
                 {
-                    eventStats.addValue(eventRecordTime);
+                    // We have seen all the results
+                    break;
                 }
-
-                // Get the linked list of failure counts for the event
-                LinkedList<AtomicInteger> eventFailuresLL = failuresByEventName.get(eventRecordName);
-                if (eventFailuresLL == null)
+                long nextResultStartTime = nextResults.get(0).getStartTime();
+                queryStartTime = nextResultStartTime - (nextResultStartTime % reportPeriod);
+                continue;
+            }
+            for (ResultAggregate aggregate : aggregates)
+            {
+                long periodStartTime = aggregate.getPeriodStartTime();
+                if (!started)
                 {
-                    // Create a LL for the event
-                    eventFailuresLL = new LinkedList<AtomicInteger>();
-                    failuresByEventName.put(eventRecordName, eventFailuresLL);
-                    // Need one entry to record failures
-                    eventFailuresLL.add(new AtomicInteger(0));
+                    // Rebase the aggregation window to encompass the first period
+                    currentWindowEndTime = periodStartTime + reportPeriod;
+                    currentWindowStartTime = currentWindowEndTime - windowSize;
+                    started = true;
                 }
-                // Write any failures to all counts for the event
-                if (!eventRecordSuccess)
+                // Report every period that ended before this one
+                while (periodStartTime >= currentWindowEndTime)
                 {
-                    for (AtomicInteger eventFailures : eventFailuresLL)
+                    boolean stop = reportAndCycleStats(sketchesByEventName, period, currentWindowStartTime, currentWindowEndTime, windowMultiple, handler);
+                    unreportedResults = false;
+                    if (stop)
                     {
-                        eventFailures.incrementAndGet();
+                        return;
                     }
+                    period++;
+                    currentWindowStartTime += reportPeriod;
+                    currentWindowEndTime += reportPeriod;
+                }
+                unreportedResults = true;
+                
+                String eventName = aggregate.getEventName();
+                PeriodSketches eventSketches = sketchesByEventName.get(eventName);
+                if (eventSketches == null)
+                {
+                    eventSketches = new PeriodSketches(windowMultiple);
+                    sketchesByEventName.put(eventName, eventSketches);
                 }
+                eventSketches.add(period, aggregate);
             }
+            queryStartTime = queryEndTime;
+        }
+        if (unreportedResults)
+        {
+            reportAndCycleStats(sketchesByEventName, period, currentWindowStartTime, currentWindowEndTime, windowMultiple, handler);
         }
     }
     
     /**
-     * Reports the oldest stats for the events and pops it off the list
+     * Statistics for one event name for each report period in the window, oldest first
      * 
-     * @param windowMultiple        the number of reporting entries to hold per event
-     * @return                      <tt>true</tt> to stop processing
+     * @author Derek Hulley
+     * @since 3.0
      */
-    private boolean reportAndCycleStats(
-            Map<String, LinkedList<DescriptiveStatistics>> statsByEventName,
-            Map<String, LinkedList<AtomicInteger>> failuresByEventName,
-            long currentWindowStartTime,
-            long currentWindowEndTime,
-            int windowMultiple,
-            ResultHandler handler)
+    private static class PeriodSketches
     {
-        // Handle stats
-        Map<String, DescriptiveStatistics> stats = new HashMap<String, DescriptiveStatistics>(statsByEventName.size() + 7);
-        for (Map.Entry<String, LinkedList<DescriptiveStatistics>> entry : statsByEventName.entrySet())
+        private final ResultSketch[] sketches;
+        private final int[] failures;
+        
+        private PeriodSketches(int windowMultiple)
         {
-            // Grab the OLDEST stats from the beginning of the list
-            String eventName = entry.getKey();
-            LinkedList<DescriptiveStatistics> ll = entry.getValue();
-            try
+            sketches = new ResultSketch[windowMultiple];
+            failures = new int[windowMultiple];
+        }
+        
+        private ResultSketch getSketch(int slot)
+        {
+            ResultSketch sketch = sketches[slot];
+            if (sketch == null)
             {
-                DescriptiveStatistics eventStats = ll.getFirst();
-                stats.put(eventName, eventStats);
-                if (ll.size() == windowMultiple)
-                {
-                    // We have enough reporting points for the window, so pop the first and add a new to the end
-                    ll.pop();
-                }
-                ll.add(new DescriptiveStatistics());
+                sketch = new ResultSketch();
+                sketches[slot] = sketch;
             }
-            catch (NoSuchElementException e)
+            return sketch;
+        }
+        
+        private void add(int period, long time, boolean success)
+        {
+            int slot = period % sketches.length;
+            getSketch(slot).add(time);
+            if (!success)
             {
-                throw new RuntimeException("An event name did not have a result for the reporting period: " + statsByEventName);
+                failures[slot]++;
             }
         }
         
-        // Handle failures
-        Map<String, Integer> failures = new HashMap<String, Integer>(statsByEventName.size() + 7);
-        for (Map.Entry<String, LinkedList<AtomicInteger>> entry : failuresByEventName.entrySet())
+        private void add(int period, ResultAggregate aggregate)
         {
-            // Grab the OLDEST stats from the beginning of the list
-            String eventName = entry.getKey();
-            LinkedList<AtomicInteger> ll = entry.getValue();
-            try
+            int slot = period % sketches.length;
+            getSketch(slot).merge(aggregate);
+            failures[slot] += (int) aggregate.getFailures();
+        }
+        
+        /**
+         * Combine the statistics for all periods in the window
+         */
+        private ResultSketch getWindowSketch()
+        {
+            ResultSketch windowSketch = new ResultSketch();
+            for (ResultSketch sketch : sketches)
             {
-                AtomicInteger eventFailures = ll.getFirst();
-                failures.put(eventName, Integer.valueOf(eventFailures.get()));
-                if (ll.size() == windowMultiple)
+                if (sketch != null)
                 {
-                    // We have enough reporting points for the window, so pop the first and add a new to the end
-                    ll.pop();
+                    windowSketch.merge(sketch);
                 }
-                ll.add(new AtomicInteger());
             }
-            catch (NoSuchElementException e)
+            return windowSketch;
+        }
+        
+        private int getWindowFailures()
+        {
+            int total = 0;
+            for (int periodFailures : failures)
+            {
+                total += periodFailures;
+            }
+            return total;
+        }
+        
+        /**
+         * Clear the period that is about to be reused so that it can hold the next period's results
+         */
+        private void cycle(int nextPeriod)
+        {
+            int slot = nextPeriod % sketches.length;
+            if (sketches[slot] != null)
+            {
+                sketches[slot].reset();
+            }
+            failures[slot] = 0;
+        }
+    }
+    
+    /**
+     * Reports the stats for the current window and clears the period that will drop out of the window next.
+     * Events without results in the window are left out and windows without any results are not reported.
+     * 
+     * @param period                the current report period
+     * @param windowMultiple        the number of report periods in the window
+     * @return                      <tt>true</tt> to stop processing
+     */
+    private boolean reportAndCycleStats(
+            Map<String, PeriodSketches> sketchesByEventName,
+            int period,
+            long currentWindowStartTime,
+            long currentWindowEndTime,
+            int windowMultiple,
+            ResultHandler handler)
+    {
+        Map<String, ResultSketch> stats = new HashMap<String, ResultSketch>(sketchesByEventName.size() + 7);
+        Map<String, Integer> failures = new HashMap<String, Integer>(sketchesByEventName.size() + 7);
+        for (Map.Entry<String, PeriodSketches> entry : sketchesByEventName.entrySet())
+        {
+            String eventName = entry.getKey();
+            PeriodSketches eventSketches = entry.getValue();
+            ResultSketch windowSketch = eventSketches.getWindowSketch();
+            if (windowSketch.getN() > 0L)
             {
-                throw new RuntimeException("An event name did not have a failure count for the reporting period: " + failuresByEventName);
+                // There are no statistics for an event that has dropped out of the window
+                stats.put(eventName, windowSketch);
+                failures.put(eventName, Integer.valueOf(eventSketches.getWindowFailures()));
             }
+            eventSketches.cycle(period + 1);
+        }
+        if (stats.isEmpty())
+        {
+            // Nothing happened in the window e.g. a gap between results
+            return false;
         }
         
         boolean stop = false;
@@ -0,0 +1,84 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.common;
+
+import java.util.List;
+
+/**
+ * A {@link ResultService} that can summarize results in the data store so that
+ * only the statistics, rather than every result, need to be retrieved.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public interface AggregatingResultService extends ResultService
+{
+    /**
+     * Get statistics for all results grouped by event name and success.
+     * 
+     * @param chartOnly         <tt>true</tt> if only {@link EventRecord#isChart() chartable} results must be included
+     * @return                  statistics ordered by event name, with one entry for each combination of
+     *                          event name and {@link ResultAggregate#getSuccess() success} that has results
+     */
+    List<ResultAggregate> getResultAggregates(boolean chartOnly);
+    
+    /**
+     * Get statistics for results grouped by report period and event name.
+     * Periods start on multiples of the period length.  Each aggregate includes a
+     * {@link ResultAggregate#getHistogram() histogram} so that percentiles can be estimated.
+     * 
+     * @param startTime         the first result start time (inclusive, milliseconds)
+     * @param endTime           the last result start time (exclusive, milliseconds)
+     * @param reportPeriod      the length of each period (milliseconds)
+     * @param chartOnly         <tt>true</tt> if only {@link EventRecord#isChart() chartable} results must be included
+     * @return                  statistics ordered by {@link ResultAggregate#getPeriodStartTime() period}
+     *                          for each event name that has results in the period
+     */
+    List<ResultAggregate> getResultAggregates(long startTime, long endTime, long reportPeriod, boolean chartOnly);
+    
+    /**
+     * Get statistics for results grouped by report period and event name, using either the service time
+     * or the response time.
+     * 
+     * @param responseTime      <tt>true</tt> to use the {@link EventRecord#getResponseTime() response time}
+     *                          or <tt>false</tt> to use the {@link EventRecord#getTime() service time}
+     * @see #getResultAggregates(long, long, long, boolean)
+     */
+    List<ResultAggregate> getResultAggregates(long startTime, long endTime, long reportPeriod, boolean chartOnly, boolean responseTime);
+    
+    /**
+     * Get statistics for the {@link EventRecord#getPhases() phases} of results grouped by report period,
+     * event name and phase.  Results without phase times are not included.
+     * 
+     * @param startTime         the first result start time (inclusive, milliseconds)
+     * @param endTime           the last result start time (exclusive, milliseconds)
+     * @param reportPeriod      the length of each period (milliseconds)
+     * @param chartOnly         <tt>true</tt> if only {@link EventRecord#isChart() chartable} results must be included
+     * @return                  statistics ordered by {@link PhaseAggregate#getPeriodStartTime() period},
+     *                          event name and phase
+     */
+    List<PhaseAggregate> getPhaseAggregates(long startTime, long endTime, long reportPeriod, boolean chartOnly);
+}
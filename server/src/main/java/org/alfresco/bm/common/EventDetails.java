@@ -189,6 +189,60 @@ public class EventDetails implements Serializable
         return this;
     }
 
+    /** Stores the time between the event's scheduled time and the start of processing or <tt>-1</tt> if not known */
+    private long eventStartDelay = -1L;
+
+    /**
+     * @return (long) the time between the event's scheduled time and the start of processing (milliseconds)
+     *         or <tt>-1</tt> if not known
+     * 
+     * @since 3.0
+     */
+    public long getEventStartDelay()
+    {
+        return eventStartDelay;
+    }
+
+    /**
+     * @param eventStartDelay
+     *            (long) the time between the event's scheduled time and the start of processing or <tt>-1</tt>
+     *            if not known
+     * 
+     * @since 3.0
+     */
+    public EventDetails setEventStartDelay(long eventStartDelay)
+    {
+        this.eventStartDelay = eventStartDelay;
+        return this;
+    }
+
+    /** Stores the time that the event waited for a processing thread after dispatch or <tt>-1</tt> if not known */
+    private long eventQueueTime = -1L;
+
+    /**
+     * @return (long) the time between the event being handed to the driver's processing threads and the
+     *         start of processing (milliseconds) or <tt>-1</tt> if not known
+     * 
+     * @since 3.0
+     */
+    public long getEventQueueTime()
+    {
+        return eventQueueTime;
+    }
+
+    /**
+     * @param eventQueueTime
+     *            (long) the time between the event being handed to the driver's processing threads and the
+     *            start of processing or <tt>-1</tt> if not known
+     * 
+     * @since 3.0
+     */
+    public EventDetails setEventQueueTime(long eventQueueTime)
+    {
+        this.eventQueueTime = eventQueueTime;
+        return this;
+    }
+
     /**
      * @return (String) JSON serialization of this class
      */
@@ -202,6 +256,8 @@ public class EventDetails implements Serializable
         builder.append(", eventSuccess=").append(eventSuccess);
         builder.append(", eventInputData=").append(eventInputData);
         builder.append(", eventResultData=").append(eventResultData);
+        builder.append(", eventStartDelay=").append(eventStartDelay);
+        builder.append(", eventQueueTime=").append(eventQueueTime);
         builder.append("]");
         return builder.toString();
     }
@@ -213,15 +269,22 @@ public class EventDetails implements Serializable
      */
     public DBObject toDBObject()
     {
-        DBObject eventObj = BasicDBObjectBuilder
+        BasicDBObjectBuilder eventObjBuilder = BasicDBObjectBuilder
                 .start()
                 .add("eventTime", eventTime)
                 .add("eventName", eventName)
                 .add("eventSuccess", eventSuccess)
                 .add("eventInputData", eventInputData)
-                .add("eventResultData", eventResultData)
-                .get();
-                
-        return eventObj;
+                .add("eventResultData", eventResultData);
+        // Results recorded by older drivers do not have the timings
+        if (eventStartDelay >= 0L)
+        {
+            eventObjBuilder.add("eventStartDelay", eventStartDelay);
+        }
+        if (eventQueueTime >= 0L)
+        {
+            eventObjBuilder.add("eventQueueTime", eventQueueTime);
+        }
+        return eventObjBuilder.get();
     }
 }
@@ -28,7 +28,10 @@ package org.alfresco.bm.common;
 import com.mongodb.DBObject;
 import org.alfresco.bm.driver.event.Event;
 
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * A representation of the data for an event result
@@ -44,11 +47,16 @@ public class EventRecord
     public static final String FIELD_START_TIME = "startTime";
     public static final String FIELD_START_DELAY = "startDelay";
     public static final String FIELD_TIME = "time";
+    public static final String FIELD_RESPONSE_TIME = "responseTime";
+    public static final String FIELD_DISPATCH_TIME = "dispatchTime";
     public static final String FIELD_DATA = "data";
     public static final String FIELD_VALUE = "value";
     public static final String FIELD_WARNING = "warning";
     public static final String FIELD_CHART = "chart";
     public static final String FIELD_PROCESSED_BY = "processedBy";
+    public static final String FIELD_PHASES = "phases";
+    public static final String FIELD_PHASE_NAME = "name";
+    public static final String FIELD_PHASE_TIME = "time";
     
     public static final String FIELD_EVENT = "event";
     public static final String FIELD_EVENT_DATA = "event." + Event.FIELD_DATA;
@@ -65,12 +73,14 @@ public class EventRecord
     private final boolean success;
     private final long startTime;
     private long startDelay;
+    private long dispatchTime;
     private final long time;
     private final Event event;
     private final Object data;
     private String warning;
     private boolean chart = true;
     private String processedBy = "unknown";
+    private Map<String, Long> phases;
 
     /**
      * @param driverId          the driver ID
@@ -126,7 +136,15 @@ public class EventRecord
         builder.append(", success=").append(success);
         builder.append(", startTime=").append(new Date(startTime));
         builder.append(", startDelay=").append(String.format("%.1fs", startDelay/1000.0));
+        if (dispatchTime > 0L)
+        {
+            builder.append(", dispatchTime=").append(new Date(dispatchTime));
+        }
         builder.append(", time=").append(time).append("ms");
+        if (phases != null)
+        {
+            builder.append(", phases=").append(phases);
+        }
         builder.append(", data=").append(data);
         builder.append(", event=").append(event);
         builder.append("]");
@@ -157,6 +175,10 @@ public class EventRecord
         return startTime;
     }
 
+    /**
+     * @return                  the time between the event's scheduled time and the start of processing
+     *                          (milliseconds)
+     */
     public long getStartDelay()
     {
         return startDelay;
@@ -166,11 +188,44 @@ public class EventRecord
         this.startDelay = startDelay;
     }
 
+    /**
+     * @return                  the time that the event was handed to the driver's processing threads
+     *                          or <tt>0</tt> if not known
+     * 
+     * @since 3.0
+     */
+    public long getDispatchTime()
+    {
+        return dispatchTime;
+    }
+    public void setDispatchTime(long dispatchTime)
+    {
+        this.dispatchTime = dispatchTime;
+    }
+
+    /**
+     * @return                  the time it took to process the event i.e. the service time
+     */
     public long getTime()
     {
         return time;
     }
 
+    /**
+     * Get the time from when the event was scheduled to when processing finished.  Unlike the
+     * {@link #getTime() service time}, this includes any time that the event waited because the
+     * drivers could not keep up with the schedule, so it does not flatter the system under test
+     * when the drivers are saturated.
+     * 
+     * @return                  the service time plus any {@link #getStartDelay() start delay} (milliseconds)
+     * 
+     * @since 3.0
+     */
+    public long getResponseTime()
+    {
+        return time + Math.max(0L, startDelay);
+    }
+
     public Event getEvent()
     {
         return event;
@@ -207,4 +262,26 @@ public class EventRecord
     {
         this.processedBy = processedBy;
     }
+
+    /**
+     * @return                  the time (milliseconds) spent in each phase of the processing
+     *                          e.g. waiting for an HTTP connection, or <tt>null</tt> if no phases were timed
+     * 
+     * @since 3.0
+     */
+    public Map<String, Long> getPhases()
+    {
+        return phases;
+    }
+    /**
+     * @param phases            the time (milliseconds) spent in each phase of the processing or <tt>null</tt>
+     * 
+     * @since 3.0
+     */
+    public void setPhases(Map<String, Long> phases)
+    {
+        this.phases = (phases == null || phases.isEmpty()) ?
+                null :
+                Collections.unmodifiableMap(new LinkedHashMap<String, Long>(phases));
+    }
 }
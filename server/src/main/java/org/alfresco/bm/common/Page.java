@@ -0,0 +1,77 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.common;
+
+import java.util.List;
+
+/**
+ * A page of items retrieved using keyset pagination.
+ * <p/>
+ * Rather than skipping over previous pages, the next page continues directly after the
+ * last item returned, so each page costs the same to retrieve no matter how deep it is.
+ * The {@link #getNext() continuation token} is opaque and is only meaningful to the
+ * service that handed it out.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class Page<T>
+{
+    private final List<T> items;
+    private final String next;
+    
+    /**
+     * @param items             the items in this page
+     * @param next              the token to continue from or <tt>null</tt> if there are no more items
+     */
+    public Page(List<T> items, String next)
+    {
+        this.items = items;
+        this.next = next;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Page [items=" + items.size() + ", next=" + next + "]";
+    }
+
+    /**
+     * @return                  the items in this page
+     */
+    public List<T> getItems()
+    {
+        return items;
+    }
+
+    /**
+     * @return                  the token to pass in to get the next page or <tt>null</tt> if this is the last page
+     */
+    public String getNext()
+    {
+        return next;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.common;
+
+/**
+ * Statistics for the time spent in one {@link EventRecord#getPhases() phase} of an event's
+ * processing, computed by the data store for a report period.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class PhaseAggregate
+{
+    private final String eventName;
+    private final String phase;
+    private final long periodStartTime;
+    private final long n;
+    private final long max;
+    private final double sum;
+    
+    /**
+     * @param eventName             the name of the event
+     * @param phase                 the name of the phase
+     * @param periodStartTime       the start of the period covered (inclusive, milliseconds)
+     * @param n                     the number of results that timed the phase
+     * @param max                   the longest time spent in the phase by a single result
+     * @param sum                   the sum of the phase times
+     */
+    public PhaseAggregate(String eventName, String phase, long periodStartTime, long n, long max, double sum)
+    {
+        this.eventName = eventName;
+        this.phase = phase;
+        this.periodStartTime = periodStartTime;
+        this.n = n;
+        this.max = max;
+        this.sum = sum;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PhaseAggregate [eventName=" + eventName + ", phase=" + phase + ", periodStartTime=" + periodStartTime
+                + ", n=" + n + ", max=" + max + ", mean=" + getMean() + "]";
+    }
+
+    public String getEventName()
+    {
+        return eventName;
+    }
+
+    public String getPhase()
+    {
+        return phase;
+    }
+
+    public long getPeriodStartTime()
+    {
+        return periodStartTime;
+    }
+
+    public long getN()
+    {
+        return n;
+    }
+
+    public long getMax()
+    {
+        return max;
+    }
+
+    public double getSum()
+    {
+        return sum;
+    }
+    
+    /**
+     * @return                      the mean time spent in the phase or <tt>NaN</tt> if there were no results
+     */
+    public double getMean()
+    {
+        return n == 0L ? Double.NaN : sum / n;
+    }
+}
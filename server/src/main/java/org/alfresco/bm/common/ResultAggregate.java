@@ -0,0 +1,192 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.common;
+
+import org.apache.commons.math3.stat.descriptive.StatisticalSummary;
+import org.apache.commons.math3.stat.descriptive.StatisticalSummaryValues;
+
+/**
+ * Statistics for a group of event results, computed by the data store.
+ * <p/>
+ * The sum and sum of squares are kept rather than the mean and standard deviation so that
+ * aggregates for different periods can be combined.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class ResultAggregate
+{
+    private final String eventName;
+    private final Boolean success;
+    private final long periodStartTime;
+    private final long n;
+    private final long failures;
+    private final long min;
+    private final long max;
+    private final double sum;
+    private final double sumsq;
+    private final long[] histogram;
+    
+    /**
+     * @param eventName             the name of the event
+     * @param success               <tt>true</tt> or <tt>false</tt> if the results were grouped by
+     *                              success or <tt>null</tt> if both are included
+     * @param periodStartTime       the start of the period covered (inclusive, milliseconds) or
+     *                              <tt>-1</tt> if the results were not grouped by period
+     * @param n                     the number of results
+     * @param failures              the number of failed results included
+     * @param min                   the shortest result time
+     * @param max                   the longest result time
+     * @param sum                   the sum of the result times
+     * @param sumsq                 the sum of the squares of the result times
+     */
+    public ResultAggregate(
+            String eventName, Boolean success, long periodStartTime,
+            long n, long failures, long min, long max, double sum, double sumsq)
+    {
+        this(eventName, success, periodStartTime, n, failures, min, max, sum, sumsq, null);
+    }
+    
+    /**
+     * @param histogram             the number of result times in each {@link ResultSketch#bucketIndex(long) sketch bucket}
+     *                              or <tt>null</tt> if not available
+     * @see #ResultAggregate(String, Boolean, long, long, long, long, long, double, double)
+     */
+    public ResultAggregate(
+            String eventName, Boolean success, long periodStartTime,
+            long n, long failures, long min, long max, double sum, double sumsq,
+            long[] histogram)
+    {
+        this.eventName = eventName;
+        this.success = success;
+        this.periodStartTime = periodStartTime;
+        this.n = n;
+        this.failures = failures;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.sumsq = sumsq;
+        this.histogram = histogram;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ResultAggregate [eventName=" + eventName + ", success=" + success + ", periodStartTime=" + periodStartTime
+                + ", n=" + n + ", failures=" + failures + ", min=" + min + ", max=" + max + ", mean=" + getMean() + "]";
+    }
+
+    public String getEventName()
+    {
+        return eventName;
+    }
+
+    public Boolean getSuccess()
+    {
+        return success;
+    }
+
+    public long getPeriodStartTime()
+    {
+        return periodStartTime;
+    }
+
+    public long getN()
+    {
+        return n;
+    }
+
+    public long getFailures()
+    {
+        return failures;
+    }
+
+    public long getMin()
+    {
+        return min;
+    }
+
+    public long getMax()
+    {
+        return max;
+    }
+
+    public double getSum()
+    {
+        return sum;
+    }
+
+    public double getSumsq()
+    {
+        return sumsq;
+    }
+
+    /**
+     * @return              the number of result times in each {@link ResultSketch#bucketIndex(long) sketch bucket}
+     *                      or <tt>null</tt> if not available
+     */
+    public long[] getHistogram()
+    {
+        return histogram;
+    }
+    
+    /**
+     * @return              the arithmetic mean or <tt>NaN</tt> if there are no results
+     */
+    public double getMean()
+    {
+        return n == 0L ? Double.NaN : sum / n;
+    }
+    
+    /**
+     * @return              the (bias-corrected) sample variance or <tt>NaN</tt> if there are no results
+     */
+    public double getVariance()
+    {
+        if (n == 0L)
+        {
+            return Double.NaN;
+        }
+        else if (n == 1L)
+        {
+            return 0.0;
+        }
+        return Math.max(0.0, (sumsq - (sum * sum) / n) / (n - 1L));
+    }
+    
+    public double getStandardDeviation()
+    {
+        return Math.sqrt(getVariance());
+    }
+    
+    /**
+     * @return              the statistics in a form used by reports
+     */
+    public StatisticalSummary toStatisticalSummary()
+    {
+        return new StatisticalSummaryValues(getMean(), getVariance(), n, max, min, sum);
+    }
+}
@@ -25,7 +25,6 @@
  */
 package org.alfresco.bm.common;
 
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
 import java.util.List;
 import java.util.Map;
@@ -74,6 +73,21 @@ public interface ResultService
      */
     List<EventRecord> getResults(String eventName, int skip, int limit);
     
+    /**
+     * Retrieve a page of event results by event name, continuing from a previous page.
+     * Results are ordered by start time and ID.
+     * 
+     * @param eventName         the name of the event as recorded or <tt>null</tt> for all events
+     * @param after             the {@link Page#getNext() continuation token} from the previous page
+     *                          or <tt>null</tt> to start with the first result
+     * @param limit             the number of results to retrieve
+     * @return                  Returns a page of recorded results with the given name
+     * @throws IllegalArgumentException if the continuation token is not valid
+     * 
+     * @since 3.0
+     */
+    Page<EventRecord> getResults(String eventName, String after, int limit);
+    
     /**
      * Retrieve a page of event results using a time window, filtering by chartability
      * 
@@ -102,7 +116,8 @@ public interface ResultService
          * 
          * @param fromTime      the start of the time window (inclusive)
          * @param toTime        the end of the time window (exclusive i.e. no result will have occured at this time)
-         * @param statsByEventName      statistics for the time window keyed by event name
+         * @param statsByEventName      statistics for the time window keyed by event name.  Only
+         *                              events with results in the window are present.
          * @param failuresByEventName   the number of failures in the time window keyed by event name
          * @return              <tt>true</tt> to continue processing otherwise <tt>false</tt>
          * @throws              all exceptions will be handled
@@ -110,7 +125,7 @@ public interface ResultService
         boolean processResult(
                 long fromTime,
                 long toTime,
-                Map<String, DescriptiveStatistics> statsByEventName,
+                Map<String, ResultSketch> statsByEventName,
                 Map<String, Integer> failuresByEventName) throws Throwable;
     }
     
@@ -134,6 +149,23 @@ public interface ResultService
             long windowSize,
             long reportPeriod,
             boolean chartOnly);
+    
+    /**
+     * Get result statistics for discrete time intervals, using either the service time or the response time.
+     * 
+     * @param responseTime      <tt>true</tt> to use the {@link EventRecord#getResponseTime() response time},
+     *                          which includes any delay from the scheduled time, or <tt>false</tt> to use the
+     *                          {@link EventRecord#getTime() service time}
+     * @see #getResults(ResultHandler, long, long, long, boolean)
+     * @since 3.0
+     */
+    void getResults(
+            ResultHandler handler,
+            long startTime,
+            long windowSize,
+            long reportPeriod,
+            boolean chartOnly,
+            boolean responseTime);
 
     /**
      * Query and returns event result details as requested.
@@ -156,6 +188,26 @@ public interface ResultService
             int limit
             );
     
+    /**
+     * Query event result details, newest first, continuing from a previous page.
+     * 
+     * @param filter            filter by fail / success / none
+     * @param filterEventName   (optional) if set only the results for the given event will be returned
+     * @param after             the {@link Page#getNext() continuation token} from the previous page
+     *                          or <tt>null</tt> to start with the newest result
+     * @param limit             max number of results to return
+     * @return                  a page of event details
+     * @throws IllegalArgumentException if the continuation token is not valid
+     * 
+     * @since 3.0
+     */
+    Page<EventDetails> getEventDetails(
+            EventResultFilter filter,
+            String filterEventName,
+            String after,
+            int limit
+            );
+    
     /**
      * Get a discrete list of event names from across all the results
      */
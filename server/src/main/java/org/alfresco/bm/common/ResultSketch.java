@@ -0,0 +1,322 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.common;
+
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.apache.commons.math3.stat.descriptive.StatisticalSummary;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable summary of event result times.
+ * <p/>
+ * The sketch keeps the count, minimum, maximum, sum and sum of squares of the values
+ * along with a fixed-size, log-linear histogram.  Values below 16 have their own bucket;
+ * above that, each power of two is split into 8 buckets, so percentiles are accurate to
+ * within about 6% regardless of the number of values.  Unlike {@link DescriptiveStatistics},
+ * the memory used does not grow with the number of values and sketches for different
+ * periods can be {@link #merge(ResultSketch) merged}.
+ * <p/>
+ * The sketch is handed to {@link ResultService.ResultHandler result handlers} as the statistics for
+ * each window.
+ * <p/>
+ * {@link ResultAggregate Aggregates} computed elsewhere can be merged as well but, unless they
+ * include a histogram, percentiles are not available once they are included.
+ * <p/>
+ * This class is not thread-safe.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class ResultSketch implements StatisticalSummary
+{
+    /** The number of bits below the highest one that select the bucket within each power of two */
+    public static final int SUB_BUCKET_BITS = 3;
+    /** The number of buckets for each power of two */
+    public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /** Enough buckets to hold {@link Long#MAX_VALUE} */
+    static final int BUCKET_COUNT = bucketIndex(Long.MAX_VALUE) + 1;
+    
+    private long n;
+    private long min;
+    private long max;
+    private double sum;
+    private double sumsq;
+    /** The number of values recorded in the histogram */
+    private long histogramN;
+    /** Created on the first value */
+    private long[] buckets;
+    /** The highest bucket with any values or -1 if there are no values */
+    private int maxBucket;
+    
+    public ResultSketch()
+    {
+        reset();
+    }
+    
+    /**
+     * Get the histogram bucket for a value
+     */
+    public static int bucketIndex(long value)
+    {
+        if (value < 0L)
+        {
+            value = 0L;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = Math.max(0, magnitude - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+    
+    /**
+     * Get the smallest value that falls into a histogram bucket
+     */
+    static long bucketLowerBound(int index)
+    {
+        int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+        return ((long) index - (shift << SUB_BUCKET_BITS)) << shift;
+    }
+    
+    /**
+     * Get the largest value that falls into a histogram bucket
+     */
+    static long bucketUpperBound(int index)
+    {
+        int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+        long lower = bucketLowerBound(index);
+        return lower + (1L << shift) - 1L;
+    }
+    
+    /**
+     * Discard all values
+     */
+    public void reset()
+    {
+        n = 0L;
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+        sum = 0.0;
+        sumsq = 0.0;
+        histogramN = 0L;
+        maxBucket = -1;
+        if (buckets != null)
+        {
+            Arrays.fill(buckets, 0L);
+        }
+    }
+    
+    /**
+     * Add a value to the sketch
+     */
+    public void add(long value)
+    {
+        n++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        sumsq += (double) value * (double) value;
+        if (buckets == null)
+        {
+            buckets = new long[BUCKET_COUNT];
+        }
+        int index = bucketIndex(value);
+        buckets[index]++;
+        histogramN++;
+        maxBucket = Math.max(maxBucket, index);
+    }
+    
+    /**
+     * Add all the values from another sketch to this one
+     */
+    public void merge(ResultSketch other)
+    {
+        if (other.n == 0L)
+        {
+            return;
+        }
+        n += other.n;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+        sumsq += other.sumsq;
+        histogramN += other.histogramN;
+        if (other.maxBucket < 0)
+        {
+            return;
+        }
+        if (buckets == null)
+        {
+            buckets = new long[BUCKET_COUNT];
+        }
+        for (int i = 0; i <= other.maxBucket; i++)
+        {
+            buckets[i] += other.buckets[i];
+        }
+        maxBucket = Math.max(maxBucket, other.maxBucket);
+    }
+    
+    /**
+     * Add the values summarized by an aggregate.  The histogram is only updated if the
+     * aggregate {@link ResultAggregate#getHistogram() has one}.
+     */
+    public void merge(ResultAggregate aggregate)
+    {
+        if (aggregate.getN() == 0L)
+        {
+            return;
+        }
+        n += aggregate.getN();
+        min = Math.min(min, aggregate.getMin());
+        max = Math.max(max, aggregate.getMax());
+        sum += aggregate.getSum();
+        sumsq += aggregate.getSumsq();
+        long[] histogram = aggregate.getHistogram();
+        if (histogram == null)
+        {
+            return;
+        }
+        if (buckets == null)
+        {
+            buckets = new long[BUCKET_COUNT];
+        }
+        for (int i = 0; i < histogram.length; i++)
+        {
+            if (histogram[i] > 0L)
+            {
+                buckets[i] += histogram[i];
+                histogramN += histogram[i];
+                maxBucket = Math.max(maxBucket, i);
+            }
+        }
+    }
+    
+    @Override
+    public long getN()
+    {
+        return n;
+    }
+    
+    /**
+     * @return          the smallest value or <tt>NaN</tt> if there are no values
+     */
+    @Override
+    public double getMin()
+    {
+        return n == 0L ? Double.NaN : min;
+    }
+    
+    /**
+     * @return          the largest value or <tt>NaN</tt> if there are no values
+     */
+    @Override
+    public double getMax()
+    {
+        return n == 0L ? Double.NaN : max;
+    }
+    
+    @Override
+    public double getSum()
+    {
+        return sum;
+    }
+    
+    public double getSumsq()
+    {
+        return sumsq;
+    }
+    
+    /**
+     * @return          the arithmetic mean or <tt>NaN</tt> if there are no values
+     */
+    @Override
+    public double getMean()
+    {
+        return n == 0L ? Double.NaN : sum / n;
+    }
+    
+    /**
+     * @return          the (bias-corrected) sample variance, matching {@link DescriptiveStatistics#getVariance()}
+     */
+    @Override
+    public double getVariance()
+    {
+        if (n == 0L)
+        {
+            return Double.NaN;
+        }
+        else if (n == 1L)
+        {
+            return 0.0;
+        }
+        double variance = (sumsq - (sum * sum) / n) / (n - 1L);
+        // Rounding can push a tiny variance below zero
+        return Math.max(0.0, variance);
+    }
+    
+    @Override
+    public double getStandardDeviation()
+    {
+        return Math.sqrt(getVariance());
+    }
+    
+    /**
+     * Estimate a percentile from the histogram
+     * 
+     * @param p         the percentile (0 exclusive to 100 inclusive)
+     * @return          the estimated value or <tt>NaN</tt> if there are no values or
+     *                  {@link #merge(ResultAggregate) aggregates} without histograms were included
+     */
+    public double getPercentile(double p)
+    {
+        if (p <= 0.0 || p > 100.0)
+        {
+            throw new IllegalArgumentException("Percentile must be greater than 0 and not more than 100: " + p);
+        }
+        if (n == 0L || histogramN != n)
+        {
+            return Double.NaN;
+        }
+        long rank = (long) Math.ceil(p / 100.0 * n);
+        long seen = 0L;
+        for (int i = 0; i <= maxBucket; i++)
+        {
+            seen += buckets[i];
+            if (seen >= rank)
+            {
+                // Use the middle of the bucket but keep within the known values
+                double mid = (bucketLowerBound(i) + bucketUpperBound(i)) / 2.0;
+                return Math.min(max, Math.max(min, mid));
+            }
+        }
+        return max;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "ResultSketch [n=" + n + ", min=" + getMin() + ", max=" + getMax() + ", mean=" + getMean() + "]";
+    }
+}
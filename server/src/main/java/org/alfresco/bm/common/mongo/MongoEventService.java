@@ -25,13 +25,18 @@
  */
 package org.alfresco.bm.common.mongo;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
 import com.mongodb.WriteResult;
+import org.alfresco.bm.common.Page;
 import org.alfresco.bm.common.spring.LifecycleListener;
 import org.alfresco.bm.driver.event.AbstractEventService;
 import org.alfresco.bm.driver.event.Event;
@@ -44,9 +49,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An {@link EventService} <b>MongoDB</b> collection
@@ -60,6 +68,8 @@ public class MongoEventService extends AbstractEventService implements Lifecycle
 
     private final DBCollection collection;
     private final String dataOwner;
+    /** The last lock time handed out, ensuring that each lock operation is uniquely identifiable */
+    private final AtomicLong lastLockTime = new AtomicLong(0L);
     /**
      * Data storage for events that are unable to serialize their data to MongoDB storage
      * <p/>
@@ -194,13 +204,19 @@ public class MongoEventService extends AbstractEventService implements Lifecycle
         return event;
     }
     
-    @Override
-    public String putEvent(Event event)
+    /**
+     * @return                  the ID used to lock events and to own in-memory data for this service
+     */
+    String getDataOwner()
+    {
+        return dataOwner;
+    }
+    
+    /**
+     * Convert the event for insertion, generating an ID and moving in-memory data into the local map as required
+     */
+    private DBObject prepareInsert(Event event)
     {
-        if (event == null)
-        {
-            throw new IllegalArgumentException("'event' may not be null.");
-        }
         DBObject insertObj = convertEvent(event);
 
         // Was the event's ID supplied to us
@@ -226,6 +242,18 @@ public class MongoEventService extends AbstractEventService implements Lifecycle
             // thread to pull the event before the local data is even in the map.
             runLocalData.put(eventId, data);
         }
+        return insertObj;
+    }
+    
+    @Override
+    public String putEvent(Event event)
+    {
+        if (event == null)
+        {
+            throw new IllegalArgumentException("'event' may not be null.");
+        }
+        DBObject insertObj = prepareInsert(event);
+        String eventId = insertObj.get(Event.FIELD_ID).toString();
         
         try
         {
@@ -291,11 +319,61 @@ public class MongoEventService extends AbstractEventService implements Lifecycle
 
     /**
      * {@inheritDoc}
+     * <p/>
+     * Events are paged on their IDs, which are always indexed.
      */
     @Override
-    public Event nextEvent(String driverId, long latestScheduledTime)
+    public Page<Event> getEvents(String after, int limit)
+    {
+        if (limit < 1)
+        {
+            throw new IllegalArgumentException("'limit' must be 1 or more.");
+        }
+        DBObject queryObj = new BasicDBObject();
+        if (after != null)
+        {
+            if (!ObjectId.isValid(after))
+            {
+                throw new IllegalArgumentException("Invalid continuation token: " + after);
+            }
+            queryObj.put(Event.FIELD_ID, new BasicDBObject("$gt", new ObjectId(after)));
+        }
+        // Fetch one more than required to find out if there is another page
+        DBCursor cursor = collection.find(queryObj)
+                .sort(new BasicDBObject(Event.FIELD_ID, Integer.valueOf(1)))
+                .limit(limit + 1);
+        List<Event> events = new ArrayList<Event>(Math.min(limit, 1000));
+        String next = null;
+        try
+        {
+            while (cursor.hasNext())
+            {
+                DBObject eventObj = cursor.next();
+                if (events.size() == limit)
+                {
+                    next = events.get(limit - 1).getId();
+                    break;
+                }
+                events.add(convertDBObject(eventObj));
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Fetched " + events.size() + " events after " + after + ".");
+        }
+        return new Page<Event>(events, next);
+    }
+
+    /**
+     * Build the query that selects events that are available for locking
+     */
+    private DBObject buildNextEventQuery(String driverId, long latestScheduledTime)
     {
-        // Build query
         BasicDBObjectBuilder qb = BasicDBObjectBuilder
                 .start()
                 .push(Event.FIELD_SCHEDULED_TIME)                   // Must be scheduled to execute
@@ -311,14 +389,42 @@ public class MongoEventService extends AbstractEventService implements Lifecycle
                 .add("$in", new String[] {driverId, null})
                 .pop();
         }
-        DBObject queryObj = qb.get();
+        return qb.get();
+    }
+    
+    /**
+     * Generate a lock time for this service that has not been handed out before.  The lock
+     * owner and lock time together identify the events locked by a single batch fetch.
+     */
+    private long nextLockTime()
+    {
+        while (true)
+        {
+            long now = System.currentTimeMillis();
+            long last = lastLockTime.get();
+            long lockTime = (now > last) ? now : last + 1L;
+            if (lastLockTime.compareAndSet(last, lockTime))
+            {
+                return lockTime;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Event nextEvent(String driverId, long latestScheduledTime)
+    {
+        // Build query
+        DBObject queryObj = buildNextEventQuery(driverId, latestScheduledTime);
         // Build sort
         DBObject sortObj = BasicDBObjectBuilder
                 .start()
                 .add(Event.FIELD_SCHEDULED_TIME, Integer.valueOf(1))
                 .get();
         // Build update
-        long now = System.currentTimeMillis();
+        long now = nextLockTime();
         DBObject updateObj = BasicDBObjectBuilder
                 .start()
                 .push("$set")
@@ -349,6 +455,196 @@ public class MongoEventService extends AbstractEventService implements Lifecycle
         return event;
     }
     
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * This reads the scheduled time of one event using the same index as the event searches.
+     */
+    @Override
+    public long getNextScheduledTime(String driverId)
+    {
+        DBObject queryObj = buildNextEventQuery(driverId, Long.MAX_VALUE);
+        DBObject fieldsObj = BasicDBObjectBuilder
+                .start()
+                .add(Event.FIELD_SCHEDULED_TIME, Boolean.TRUE)
+                .get();
+        DBObject sortObj = BasicDBObjectBuilder
+                .start()
+                .add(Event.FIELD_SCHEDULED_TIME, Integer.valueOf(1))
+                .get();
+        DBCursor cursor = collection.find(queryObj, fieldsObj).sort(sortObj).limit(1);
+        try
+        {
+            if (!cursor.hasNext())
+            {
+                return -1L;
+            }
+            Date scheduledTime = (Date) cursor.next().get(Event.FIELD_SCHEDULED_TIME);
+            return (scheduledTime == null) ? 0L : scheduledTime.getTime();
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The candidate events are read in one query and then locked together in a single multi-update.
+     * Only if another driver locked some of the candidates in between is a further query required
+     * to determine which events were actually locked by this call.
+     */
+    @Override
+    public List<Event> nextEvents(String driverId, long latestScheduledTime, int maxCount)
+    {
+        if (maxCount < 1)
+        {
+            throw new IllegalArgumentException("'maxCount' must be greater than zero.");
+        }
+        // Find the candidates
+        DBObject queryObj = buildNextEventQuery(driverId, latestScheduledTime);
+        DBObject sortObj = BasicDBObjectBuilder
+                .start()
+                .add(Event.FIELD_SCHEDULED_TIME, Integer.valueOf(1))
+                .get();
+        List<DBObject> candidateObjs = new ArrayList<DBObject>(maxCount);
+        List<ObjectId> candidateIds = new ArrayList<ObjectId>(maxCount);
+        DBCursor cursor = collection.find(queryObj).sort(sortObj).limit(maxCount);
+        try
+        {
+            while (cursor.hasNext())
+            {
+                DBObject candidateObj = cursor.next();
+                candidateObjs.add(candidateObj);
+                candidateIds.add((ObjectId) candidateObj.get(Event.FIELD_ID));
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        if (candidateIds.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+        
+        // Lock all the candidates that are still unlocked
+        long now = nextLockTime();
+        DBObject lockQueryObj = BasicDBObjectBuilder
+                .start()
+                .push(Event.FIELD_ID)
+                    .add("$in", candidateIds)
+                    .pop()
+                .add(Event.FIELD_LOCK_OWNER, null)
+                .get();
+        DBObject updateObj = BasicDBObjectBuilder
+                .start()
+                .push("$set")
+                    .add(Event.FIELD_LOCK_OWNER, dataOwner)
+                    .add(Event.FIELD_LOCK_TIME, new Date(now))
+                .pop()
+                .get();
+        WriteResult wr = collection.updateMulti(lockQueryObj, updateObj);
+        int lockedCount = wr.getN();
+        
+        Set<Object> lockedIds = null;
+        if (lockedCount == 0)
+        {
+            // Everything was taken by someone else
+            candidateObjs.clear();
+        }
+        else if (lockedCount < candidateIds.size())
+        {
+            // Some other driver got there first.  Find out which events we actually hold.
+            DBObject lockedQueryObj = BasicDBObjectBuilder
+                    .start()
+                    .push(Event.FIELD_ID)
+                        .add("$in", candidateIds)
+                        .pop()
+                    .add(Event.FIELD_LOCK_OWNER, dataOwner)
+                    .add(Event.FIELD_LOCK_TIME, new Date(now))
+                    .get();
+            DBObject fieldsObj = new BasicDBObject(Event.FIELD_ID, Boolean.TRUE);
+            lockedIds = new HashSet<Object>(lockedCount * 2);
+            DBCursor lockedCursor = collection.find(lockedQueryObj, fieldsObj);
+            try
+            {
+                while (lockedCursor.hasNext())
+                {
+                    lockedIds.add(lockedCursor.next().get(Event.FIELD_ID));
+                }
+            }
+            finally
+            {
+                lockedCursor.close();
+            }
+        }
+        
+        List<Event> events = new ArrayList<Event>(lockedCount);
+        for (DBObject candidateObj : candidateObjs)
+        {
+            if (lockedIds != null && !lockedIds.contains(candidateObj.get(Event.FIELD_ID)))
+            {
+                continue;
+            }
+            Event event = convertDBObject(candidateObj);
+            event.setLockOwner(dataOwner);
+            event.setLockTime(now);
+            events.add(event);
+        }
+        
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("\n" +
+                    "Fetched next events (no lock present): \n" +
+                    "   Latest scheduled time:  " + latestScheduledTime + "\n" +
+                    "   Driver ID:              " + driverId + "\n" +
+                    "   Candidates:             " + candidateIds.size() + "\n" +
+                    "   Locked:                 " + events.size());
+        }
+        return events;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The locks are removed in a single update, provided that this service still holds them.
+     */
+    @Override
+    public void releaseEvents(List<Event> events)
+    {
+        if (events.isEmpty())
+        {
+            return;
+        }
+        List<ObjectId> ids = new ArrayList<ObjectId>(events.size());
+        for (Event event : events)
+        {
+            ids.add(new ObjectId(event.getId()));
+        }
+        DBObject queryObj = BasicDBObjectBuilder
+                .start()
+                .push(Event.FIELD_ID)
+                    .add("$in", ids)
+                    .pop()
+                .add(Event.FIELD_LOCK_OWNER, dataOwner)
+                .get();
+        DBObject updateObj = BasicDBObjectBuilder
+                .start()
+                .push("$set")
+                    .add(Event.FIELD_LOCK_OWNER, null)
+                .pop()
+                .get();
+        WriteResult wr = collection.updateMulti(queryObj, updateObj);
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Released " + wr.getN() + " of " + events.size() + " locked events.");
+        }
+    }
+    
     @Override
     public boolean deleteEvent(Event event)
     {
@@ -384,6 +680,127 @@ public class MongoEventService extends AbstractEventService implements Lifecycle
         }
     }
     
+    /**
+     * Insert several events using a single unordered bulk write.  Events must already carry their IDs.
+     * 
+     * @param events            the events to insert
+     * @return                  the events that could <b>not</b> be inserted (never <tt>null</tt>)
+     */
+    List<Event> putEvents(List<Event> events)
+    {
+        if (events.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (Event event : events)
+        {
+            bulk.insert(prepareInsert(event));
+        }
+        List<Event> failed = Collections.emptyList();
+        try
+        {
+            bulk.execute();
+        }
+        catch (BulkWriteException e)
+        {
+            failed = new ArrayList<Event>(e.getWriteErrors().size());
+            for (BulkWriteError error : e.getWriteErrors())
+            {
+                Event event = events.get(error.getIndex());
+                runLocalData.remove(event.getId());
+                failed.add(event);
+            }
+            logger.warn("Failed to insert " + failed.size() + " of " + events.size() + " events: " + e.getMessage());
+        }
+        catch (MongoException e)
+        {
+            for (Event event : events)
+            {
+                runLocalData.remove(event.getId());
+            }
+            failed = events;
+            logger.warn("Failed to insert " + events.size() + " events.", e);
+        }
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Put " + (events.size() - failed.size()) + " events in bulk.");
+        }
+        return failed;
+    }
+    
+    /**
+     * Lock a specific event, provided that it is not already locked
+     * 
+     * @param id                the ID of the event
+     * @return                  the event, now locked, or <tt>null</tt> if it does not exist or is locked
+     */
+    Event lockEvent(String id)
+    {
+        DBObject queryObj = BasicDBObjectBuilder
+                .start()
+                .add(Event.FIELD_ID, new ObjectId(id))
+                .add(Event.FIELD_LOCK_OWNER, null)
+                .get();
+        long now = nextLockTime();
+        DBObject updateObj = BasicDBObjectBuilder
+                .start()
+                .push("$set")
+                    .add(Event.FIELD_LOCK_OWNER, dataOwner)
+                    .add(Event.FIELD_LOCK_TIME, new Date(now))
+                .pop()
+                .get();
+        DBObject oldObj = collection.findAndModify(queryObj, updateObj);
+        Event event = null;
+        if (oldObj != null)
+        {
+            event = convertDBObject(oldObj);
+            event.setLockOwner(dataOwner);
+            event.setLockTime(now);
+        }
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Locked event '" + id + "': " + event);
+        }
+        return event;
+    }
+    
+    /**
+     * Delete several events in a single operation, including any data held in memory
+     * 
+     * @param events            the events to delete
+     * @return                  the number of events deleted
+     */
+    int deleteEvents(List<Event> events)
+    {
+        if (events.isEmpty())
+        {
+            return 0;
+        }
+        List<ObjectId> ids = new ArrayList<ObjectId>(events.size());
+        for (Event event : events)
+        {
+            String id = event.getId();
+            runLocalData.remove(id);
+            ids.add(new ObjectId(id));
+        }
+        DBObject queryObj = BasicDBObjectBuilder
+                .start()
+                .push(Event.FIELD_ID)
+                    .add("$in", ids)
+                    .pop()
+                .get();
+        WriteResult wr = collection.remove(queryObj);
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Removed " + wr.getN() + " of " + events.size() + " events.");
+        }
+        return wr.getN();
+    }
+    
     @Override
     public boolean clear()
     {
@@ -0,0 +1,716 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.common.mongo;
+
+import org.alfresco.bm.common.Page;
+import org.alfresco.bm.common.spring.LifecycleListener;
+import org.alfresco.bm.driver.event.AbstractEventService;
+import org.alfresco.bm.driver.event.Event;
+import org.alfresco.bm.driver.event.EventService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link EventService} that keeps events assigned to the local driver in an in-memory,
+ * time-ordered queue and only writes them to the shared <b>MongoDB</b> event collection
+ * behind the scenes.
+ * <p/>
+ * Events are held locally if they are assigned to this driver or if they are not assigned to
+ * any driver but have their data bound in memory.  All other events go straight to the
+ * {@link MongoEventService shared queue}.
+ * <p/>
+ * Local events that are not picked up within the {@link #setJournalDelay(long) journal delay} are
+ * written to MongoDB, where they can be recovered or stolen by other drivers.  Once an event has been
+ * written, the shared queue is authoritative: the event must be locked there before it can be
+ * processed locally.  Events that are put, processed and deleted within the journal delay never
+ * touch MongoDB at all.  Local events that have not yet been written are lost if the driver dies.
+ * <p/>
+ * When {@link #setEnabled(boolean) disabled}, all calls pass straight to the shared queue.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class MongoLocalEventService extends AbstractEventService implements LifecycleListener
+{
+    private static final long DEFAULT_JOURNAL_DELAY = 1000L;
+    
+    private static Log logger = LogFactory.getLog(MongoLocalEventService.class);
+    
+    /** The journal state of a local event */
+    private enum JournalState
+    {
+        /** Held in memory only */
+        NONE,
+        /** Being written to MongoDB */
+        IN_PROGRESS,
+        /** Written to MongoDB, which is now authoritative */
+        DONE
+    }
+    
+    /**
+     * An event held in the local queue along with its journal state.  The state is guarded by the instance.
+     */
+    private static class LocalEvent
+    {
+        private final Event event;
+        private final long putTime;
+        private final long sequence;
+        private JournalState journalState;
+        private boolean claimed;
+        
+        private LocalEvent(Event event, long putTime, long sequence)
+        {
+            this.event = event;
+            this.putTime = putTime;
+            this.sequence = sequence;
+            this.journalState = JournalState.NONE;
+            this.claimed = false;
+        }
+    }
+    
+    /** Order by scheduled time and then by insertion order */
+    private static final Comparator<LocalEvent> SCHEDULE_COMPARATOR = new Comparator<LocalEvent>()
+    {
+        @Override
+        public int compare(LocalEvent o1, LocalEvent o2)
+        {
+            long t1 = o1.event.getScheduledTime();
+            long t2 = o2.event.getScheduledTime();
+            if (t1 != t2)
+            {
+                return (t1 < t2) ? -1 : 1;
+            }
+            return (o1.sequence < o2.sequence) ? -1 : ((o1.sequence == o2.sequence) ? 0 : 1);
+        }
+    };
+    
+    private final MongoEventService mongoEventService;
+    private final String driverId;
+    
+    /** Unclaimed local events in order of execution; guarded by itself */
+    private final PriorityQueue<LocalEvent> queue;
+    /** All local events that have not been deleted, by ID */
+    private final ConcurrentHashMap<String, LocalEvent> localEvents;
+    /** Local events in order of insertion, waiting to be written to MongoDB */
+    private final ConcurrentLinkedQueue<LocalEvent> journalQueue;
+    /** Events that have been processed but still need to be removed from MongoDB */
+    private final ConcurrentLinkedQueue<Event> deleteQueue;
+    /** The number of local events that have not been written to MongoDB */
+    private final AtomicLong unjournaledCount;
+    private final AtomicLong sequence;
+    /** Held while writing to the journal */
+    private final Object journalLock = new Object();
+    /** Runs the journal writes while started */
+    private Timer journalTimer;
+    
+    private boolean enabled = false;
+    private long journalDelay = DEFAULT_JOURNAL_DELAY;
+    private volatile boolean started = false;
+    
+    /**
+     * @param mongoEventService     the shared event queue
+     * @param driverId              the ID of the driver that owns the local events
+     */
+    public MongoLocalEventService(MongoEventService mongoEventService, String driverId)
+    {
+        if (mongoEventService == null || driverId == null)
+        {
+            throw new IllegalArgumentException("'mongoEventService' and 'driverId' must be supplied.");
+        }
+        this.mongoEventService = mongoEventService;
+        this.driverId = driverId;
+        this.queue = new PriorityQueue<LocalEvent>(1024, SCHEDULE_COMPARATOR);
+        this.localEvents = new ConcurrentHashMap<String, LocalEvent>(1024);
+        this.journalQueue = new ConcurrentLinkedQueue<LocalEvent>();
+        this.deleteQueue = new ConcurrentLinkedQueue<Event>();
+        this.unjournaledCount = new AtomicLong(0L);
+        this.sequence = new AtomicLong(0L);
+    }
+
+    /**
+     * Switch local queuing on or off (default: off).  This cannot be changed once the service has started.
+     */
+    public void setEnabled(boolean enabled)
+    {
+        if (started)
+        {
+            throw new IllegalStateException("The local event queue cannot be switched once started.");
+        }
+        this.enabled = enabled;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_JOURNAL_DELAY default} time that local events are kept in memory only
+     * before they are written to MongoDB.  This is also the period with which processed events are removed.
+     */
+    public void setJournalDelay(long journalDelay)
+    {
+        if (journalDelay < 1L)
+        {
+            throw new IllegalArgumentException("'journalDelay' must be greater than zero.");
+        }
+        this.journalDelay = journalDelay;
+    }
+
+    @Override
+    public synchronized void start()
+    {
+        if (!enabled || started)
+        {
+            return;
+        }
+        started = true;
+        journalTimer = new Timer("LocalEventJournal-" + driverId, true);
+        journalTimer.schedule(new JournalTask(), journalDelay, journalDelay);
+    }
+
+    /**
+     * Stops the journal and writes all local events to MongoDB.  Any further events
+     * are written directly to MongoDB.
+     */
+    @Override
+    public synchronized void stop()
+    {
+        if (!started)
+        {
+            return;
+        }
+        started = false;
+        // Stop the timer thread as well as the task
+        journalTimer.cancel();
+        journalTimer = null;
+        flushJournal(true);
+        if (localEvents.size() > 0)
+        {
+            logger.warn("Local event queue still has " + localEvents.size() + " events held in memory.");
+        }
+    }
+    
+    /**
+     * @return                  <tt>true</tt> if the event must be held in the local queue
+     */
+    private boolean isLocal(Event event)
+    {
+        String eventDriverId = event.getDriver();
+        if (eventDriverId == null)
+        {
+            return event.getDataInMemory();
+        }
+        return driverId.equals(eventDriverId);
+    }
+
+    @Override
+    public long count()
+    {
+        return mongoEventService.count() + unjournaledCount.get();
+    }
+
+    @Override
+    public String putEvent(Event event)
+    {
+        if (event == null)
+        {
+            throw new IllegalArgumentException("'event' may not be null.");
+        }
+        if (!started || !isLocal(event))
+        {
+            return mongoEventService.putEvent(event);
+        }
+        // Convert up front to catch invalid events
+        MongoEventService.convertEvent(event);
+        String eventId = event.getId();
+        if (eventId == null)
+        {
+            eventId = new ObjectId().toString();
+            event.setId(eventId);
+        }
+        LocalEvent localEvent = new LocalEvent(event, System.currentTimeMillis(), sequence.incrementAndGet());
+        if (localEvents.putIfAbsent(eventId, localEvent) != null)
+        {
+            throw new RuntimeException("Failed to insert event with duplicate ID: " + event);
+        }
+        unjournaledCount.incrementAndGet();
+        synchronized (queue)
+        {
+            queue.add(localEvent);
+        }
+        journalQueue.add(localEvent);
+        
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Put local event: " + event);
+        }
+        return eventId;
+    }
+
+    @Override
+    public Event getEvent(String id)
+    {
+        LocalEvent localEvent = localEvents.get(id);
+        if (localEvent != null)
+        {
+            return localEvent.event;
+        }
+        return mongoEventService.getEvent(id);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * All local events are written to MongoDB before the search.
+     */
+    @Override
+    public List<Event> getEvents(int skip, int limit)
+    {
+        flushJournal(true);
+        return mongoEventService.getEvents(skip, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * All local events are written to MongoDB before the search.
+     */
+    @Override
+    public Page<Event> getEvents(String after, int limit)
+    {
+        flushJournal(true);
+        return mongoEventService.getEvents(after, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Searches for this driver look in the local queue first.
+     */
+    @Override
+    public Event nextEvent(String driverId, long latestScheduledTime)
+    {
+        if (started && this.driverId.equals(driverId))
+        {
+            Event event = nextLocalEvent(latestScheduledTime);
+            if (event != null)
+            {
+                return event;
+            }
+        }
+        return mongoEventService.nextEvent(driverId, latestScheduledTime);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Searches for this driver look in the local queue first.
+     */
+    @Override
+    public List<Event> nextEvents(String driverId, long latestScheduledTime, int maxCount)
+    {
+        if (maxCount < 1)
+        {
+            throw new IllegalArgumentException("'maxCount' must be greater than zero.");
+        }
+        if (!started || !this.driverId.equals(driverId))
+        {
+            return mongoEventService.nextEvents(driverId, latestScheduledTime, maxCount);
+        }
+        List<Event> events = new ArrayList<Event>(maxCount);
+        while (events.size() < maxCount)
+        {
+            Event event = nextLocalEvent(latestScheduledTime);
+            if (event == null)
+            {
+                break;
+            }
+            events.add(event);
+        }
+        if (events.size() < maxCount)
+        {
+            events.addAll(mongoEventService.nextEvents(driverId, latestScheduledTime, maxCount - events.size()));
+        }
+        return events;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Searches for this driver include the local queue.
+     */
+    @Override
+    public long getNextScheduledTime(String driverId)
+    {
+        long nextTime = mongoEventService.getNextScheduledTime(driverId);
+        if (started && this.driverId.equals(driverId))
+        {
+            synchronized (queue)
+            {
+                LocalEvent localEvent = queue.peek();
+                if (localEvent != null)
+                {
+                    long localTime = localEvent.event.getScheduledTime();
+                    nextTime = (nextTime < 0L) ? localTime : Math.min(nextTime, localTime);
+                }
+            }
+        }
+        return nextTime;
+    }
+    
+    /**
+     * Claim the next due event from the local queue.  Events that have already been written to
+     * MongoDB are locked there first and are dropped if another driver has taken them.
+     * 
+     * @return                  the claimed event or <tt>null</tt> if no local events are due
+     */
+    private Event nextLocalEvent(long latestScheduledTime)
+    {
+        while (true)
+        {
+            LocalEvent localEvent;
+            synchronized (queue)
+            {
+                localEvent = queue.peek();
+                if (localEvent == null || localEvent.event.getScheduledTime() > latestScheduledTime)
+                {
+                    return null;
+                }
+                queue.poll();
+            }
+            Event event = localEvent.event;
+            synchronized (localEvent)
+            {
+                if (localEvent.journalState == JournalState.NONE)
+                {
+                    // Nobody else can see it
+                    localEvent.claimed = true;
+                    event.setLockOwner(mongoEventService.getDataOwner());
+                    event.setLockTime(System.currentTimeMillis());
+                    return event;
+                }
+            }
+            // Wait for any journal write in progress
+            synchronized (journalLock)
+            {
+                synchronized (localEvent)
+                {
+                    if (localEvent.journalState == JournalState.NONE && !localEvent.claimed)
+                    {
+                        // The write failed, so it is still ours alone
+                        localEvent.claimed = true;
+                        event.setLockOwner(mongoEventService.getDataOwner());
+                        event.setLockTime(System.currentTimeMillis());
+                        return event;
+                    }
+                }
+                // The event is now in MongoDB, which is authoritative
+            }
+            Event lockedEvent = mongoEventService.lockEvent(event.getId());
+            if (lockedEvent == null)
+            {
+                // Another driver took it
+                localEvents.remove(event.getId());
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Local event was taken by another driver: " + event);
+                }
+                continue;
+            }
+            synchronized (localEvent)
+            {
+                localEvent.claimed = true;
+                event.setLockOwner(lockedEvent.getLockOwner());
+                event.setLockTime(lockedEvent.getLockTime());
+            }
+            return event;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Local events that only exist in memory go back into the local queue.  All others are
+     * released in MongoDB, which is authoritative for them.
+     */
+    @Override
+    public void releaseEvents(List<Event> events)
+    {
+        List<Event> mongoEvents = new ArrayList<Event>(events.size());
+        for (Event event : events)
+        {
+            String id = event.getId();
+            LocalEvent localEvent = (id == null) ? null : localEvents.get(id);
+            if (localEvent == null)
+            {
+                mongoEvents.add(event);
+                continue;
+            }
+            boolean claimed;
+            boolean requeue = false;
+            synchronized (localEvent)
+            {
+                claimed = localEvent.claimed;
+                if (claimed && localEvent.journalState == JournalState.NONE)
+                {
+                    localEvent.claimed = false;
+                    event.setLockOwner(null);
+                    requeue = true;
+                }
+            }
+            if (!claimed)
+            {
+                // Not locked
+                continue;
+            }
+            else if (requeue)
+            {
+                synchronized (queue)
+                {
+                    queue.add(localEvent);
+                }
+                // It may have been skipped by a journal write while it was claimed
+                journalQueue.add(localEvent);
+            }
+            else
+            {
+                // Locked in MongoDB
+                localEvents.remove(id);
+                mongoEvents.add(event);
+            }
+        }
+        mongoEventService.releaseEvents(mongoEvents);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Removal of events that have been written to MongoDB is deferred to the next journal write.
+     */
+    @Override
+    public boolean deleteEvent(Event event)
+    {
+        String id = event.getId();
+        LocalEvent localEvent = (id == null) ? null : localEvents.remove(id);
+        if (localEvent == null)
+        {
+            return mongoEventService.deleteEvent(event);
+        }
+        boolean claimed;
+        JournalState journalState;
+        synchronized (localEvent)
+        {
+            claimed = localEvent.claimed;
+            journalState = localEvent.journalState;
+            // Make sure that the journal ignores it from now on
+            localEvent.claimed = true;
+        }
+        if (!claimed)
+        {
+            synchronized (queue)
+            {
+                queue.remove(localEvent);
+            }
+        }
+        switch (journalState)
+        {
+            case NONE:
+                unjournaledCount.decrementAndGet();
+                break;
+            case IN_PROGRESS:
+            case DONE:
+                // Wait for any write in progress to complete and then remove it
+                synchronized (journalLock)
+                {
+                    synchronized (localEvent)
+                    {
+                        journalState = localEvent.journalState;
+                    }
+                    if (journalState == JournalState.NONE)
+                    {
+                        // The write failed and the journal has already stopped counting it
+                    }
+                    else if (started)
+                    {
+                        deleteQueue.add(localEvent.event);
+                    }
+                    else
+                    {
+                        // There will be no further journal writes
+                        mongoEventService.deleteEvent(localEvent.event);
+                    }
+                }
+                break;
+        }
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Removed local event: " + event);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean clear()
+    {
+        synchronized (journalLock)
+        {
+            synchronized (queue)
+            {
+                queue.clear();
+            }
+            localEvents.clear();
+            journalQueue.clear();
+            deleteQueue.clear();
+            unjournaledCount.set(0L);
+        }
+        return mongoEventService.clear();
+    }
+    
+    /**
+     * Write local events that have been waiting for longer than the journal delay to MongoDB
+     * and remove processed events from MongoDB.
+     * 
+     * @param all               <tt>true</tt> to write all local events regardless of how long they have been waiting
+     */
+    private void flushJournal(boolean all)
+    {
+        synchronized (journalLock)
+        {
+            long cutoff = all ? Long.MAX_VALUE : System.currentTimeMillis() - journalDelay;
+            List<LocalEvent> toJournal = new ArrayList<LocalEvent>(64);
+            List<Event> toInsert = new ArrayList<Event>(64);
+            while (true)
+            {
+                LocalEvent localEvent = journalQueue.peek();
+                if (localEvent == null || localEvent.putTime > cutoff)
+                {
+                    break;
+                }
+                journalQueue.poll();
+                synchronized (localEvent)
+                {
+                    if (localEvent.claimed || localEvent.journalState != JournalState.NONE)
+                    {
+                        // Being processed locally or already deleted
+                        continue;
+                    }
+                    localEvent.journalState = JournalState.IN_PROGRESS;
+                }
+                toJournal.add(localEvent);
+                toInsert.add(localEvent.event);
+            }
+            
+            List<Event> failed = mongoEventService.putEvents(toInsert);
+            Set<String> failedIds = new HashSet<String>(failed.size() * 2);
+            for (Event failedEvent : failed)
+            {
+                failedIds.add(failedEvent.getId());
+            }
+            for (LocalEvent localEvent : toJournal)
+            {
+                synchronized (localEvent)
+                {
+                    if (failedIds.contains(localEvent.event.getId()))
+                    {
+                        // Keep it local
+                        localEvent.journalState = JournalState.NONE;
+                        if (localEvent.claimed)
+                        {
+                            // It was deleted during the write and will not be written now
+                            unjournaledCount.decrementAndGet();
+                        }
+                        else
+                        {
+                            // Try again with the next write
+                            journalQueue.add(localEvent);
+                        }
+                    }
+                    else
+                    {
+                        localEvent.journalState = JournalState.DONE;
+                        unjournaledCount.decrementAndGet();
+                    }
+                }
+            }
+            
+            List<Event> toDelete = new ArrayList<Event>(deleteQueue.size() + 16);
+            Event event;
+            while ((event = deleteQueue.poll()) != null)
+            {
+                toDelete.add(event);
+            }
+            try
+            {
+                mongoEventService.deleteEvents(toDelete);
+            }
+            catch (RuntimeException e)
+            {
+                // Try again next time
+                deleteQueue.addAll(toDelete);
+                logger.warn("Failed to remove " + toDelete.size() + " processed events from MongoDB.", e);
+            }
+            
+            // Done
+            if (logger.isDebugEnabled() && (toJournal.size() > 0 || toDelete.size() > 0))
+            {
+                logger.debug("Local event journal: wrote " + (toJournal.size() - failed.size()) + " and removed " + toDelete.size() + " events.");
+            }
+        }
+    }
+    
+    /**
+     * Timer callback that writes waiting local events to MongoDB
+     * 
+     * @author Derek Hulley
+     * @since 3.0
+     */
+    private class JournalTask extends TimerTask
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                flushJournal(false);
+            }
+            catch (Throwable e)
+            {
+                logger.error("Failed to write local events to MongoDB.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,562 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.common.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.QueryBuilder;
+import org.alfresco.bm.common.EventRecord;
+import org.alfresco.bm.common.ResultAggregate;
+import org.alfresco.bm.common.ResultSketch;
+import org.alfresco.bm.driver.event.Event;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per-second, per-minute and whole-run statistics for event results, kept up to date as
+ * results are recorded.
+ * <p/>
+ * Each rollup document holds the count, latency sum, sum of squares, minimum, maximum and
+ * {@link ResultSketch#bucketIndex(long) histogram} for results with the same event name,
+ * success and chart flag in one period.  Documents are upserted using <tt>$inc</tt>, <tt>$min</tt>
+ * and <tt>$max</tt> so that any number of drivers can add to them.  Queries against the rollups
+ * read a number of documents that depends on the number of periods requested rather than the
+ * number of results.
+ * <p/>
+ * Rollups are only used if they were being kept from the first result of the test run; the
+ * first service to find the results empty writes a marker document to say so.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class MongoResultRollups
+{
+    public static final String FIELD_ID = "_id";
+    public static final String FIELD_RESOLUTION = "res";
+    public static final String FIELD_TIME = "time";
+    public static final String FIELD_NAME = "name";
+    public static final String FIELD_SUCCESS = "success";
+    public static final String FIELD_CHART = "chart";
+    public static final String FIELD_N = "n";
+    public static final String FIELD_SUM = "sum";
+    public static final String FIELD_SUMSQ = "sumsq";
+    public static final String FIELD_MIN = "min";
+    public static final String FIELD_MAX = "max";
+    public static final String FIELD_HISTOGRAM = "h";
+    
+    public static final String RESOLUTION_SECOND = "s";
+    public static final String RESOLUTION_MINUTE = "m";
+    public static final String RESOLUTION_TOTAL = "t";
+    
+    private static final long SECOND = 1000L;
+    private static final long MINUTE = 60000L;
+    /** The ID of the document showing that rollups cover all results */
+    private static final String ID_MARKER = "complete";
+    
+    private static Log logger = LogFactory.getLog(MongoResultRollups.class);
+    
+    private final DBCollection collection;
+    private volatile boolean complete;
+    
+    /**
+     * @param collection            the collection to hold the rollups
+     */
+    public MongoResultRollups(DBCollection collection)
+    {
+        this.collection = collection;
+        this.complete = false;
+    }
+    
+    /**
+     * Get the name of the rollup collection for a results collection e.g. <tt>run.results</tt> becomes <tt>run.rollups</tt>
+     */
+    public static String getRollupCollectionName(String resultsCollectionName)
+    {
+        String suffix = ".results";
+        if (resultsCollectionName.endsWith(suffix))
+        {
+            return resultsCollectionName.substring(0, resultsCollectionName.length() - suffix.length()) + ".rollups";
+        }
+        return resultsCollectionName + ".rollups";
+    }
+    
+    /**
+     * Check whether the rollups cover all results and create indexes if they do.
+     * 
+     * @param results               the results collection
+     * @return                      <tt>true</tt> if the rollups cover all results and will be maintained
+     */
+    public boolean start(DBCollection results)
+    {
+        DBObject markerQueryObj = new BasicDBObject(FIELD_ID, ID_MARKER);
+        if (collection.findOne(markerQueryObj) != null)
+        {
+            complete = true;
+        }
+        else if (results.findOne() == null)
+        {
+            // There are no results yet, so the rollups can be kept from the start
+            DBObject markerObj = new BasicDBObject("$setOnInsert", new BasicDBObject(FIELD_TIME, new Date()));
+            collection.update(markerQueryObj, markerObj, true, false);
+            complete = true;
+        }
+        else
+        {
+            logger.info("Results in " + results.getName() + " were recorded without rollups; rollups will not be used.");
+            complete = false;
+        }
+        if (complete)
+        {
+            DBObject idx_RES_TIME = BasicDBObjectBuilder
+                    .start(FIELD_RESOLUTION, Integer.valueOf(1))
+                    .add(FIELD_TIME, Integer.valueOf(1))
+                    .get();
+            DBObject opt_RES_TIME = BasicDBObjectBuilder
+                    .start("name", "IDX_RES_TIME")
+                    .add("unique", Boolean.FALSE)
+                    .get();
+            collection.createIndex(idx_RES_TIME, opt_RES_TIME);
+        }
+        return complete;
+    }
+    
+    /**
+     * @return                      <tt>true</tt> if the rollups cover all results
+     */
+    public boolean isComplete()
+    {
+        return complete;
+    }
+    
+    /**
+     * Drop all rollups
+     */
+    public void clear()
+    {
+        collection.drop();
+        complete = false;
+    }
+    
+    /**
+     * Changes to one rollup document
+     */
+    private static class RollupDelta
+    {
+        private final String resolution;
+        private final Date time;
+        private final String name;
+        private final boolean success;
+        private final boolean chart;
+        private long n = 0L;
+        private long sum = 0L;
+        private long sumsq = 0L;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+        private final Map<Integer, Long> histogram = new TreeMap<Integer, Long>();
+        
+        private RollupDelta(String resolution, Date time, String name, boolean success, boolean chart)
+        {
+            this.resolution = resolution;
+            this.time = time;
+            this.name = name;
+            this.success = success;
+            this.chart = chart;
+        }
+        
+        private void add(long value)
+        {
+            n++;
+            sum += value;
+            sumsq += value * value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            Integer bucket = Integer.valueOf(ResultSketch.bucketIndex(value));
+            Long count = histogram.get(bucket);
+            histogram.put(bucket, Long.valueOf(count == null ? 1L : count.longValue() + 1L));
+        }
+        
+        private DBObject getQueryObj(String id)
+        {
+            return new BasicDBObject(FIELD_ID, id);
+        }
+        
+        private DBObject getUpdateObj()
+        {
+            BasicDBObjectBuilder incBuilder = BasicDBObjectBuilder
+                    .start(FIELD_N, Long.valueOf(n))
+                    .add(FIELD_SUM, Long.valueOf(sum))
+                    .add(FIELD_SUMSQ, Long.valueOf(sumsq));
+            for (Map.Entry<Integer, Long> entry : histogram.entrySet())
+            {
+                incBuilder.add(FIELD_HISTOGRAM + "." + entry.getKey(), entry.getValue());
+            }
+            return BasicDBObjectBuilder
+                    .start()
+                    .push("$setOnInsert")
+                        .add(FIELD_RESOLUTION, resolution)
+                        .add(FIELD_TIME, time)
+                        .add(FIELD_NAME, name)
+                        .add(FIELD_SUCCESS, Boolean.valueOf(success))
+                        .add(FIELD_CHART, Boolean.valueOf(chart))
+                        .pop()
+                    .add("$inc", incBuilder.get())
+                    .push("$min").add(FIELD_MIN, Long.valueOf(min)).pop()
+                    .push("$max").add(FIELD_MAX, Long.valueOf(max)).pop()
+                    .get();
+        }
+    }
+    
+    /**
+     * Get the change for a rollup document, creating it if necessary
+     */
+    private static RollupDelta getDelta(
+            Map<String, RollupDelta> deltas,
+            String resolution, Date time, String name, boolean success, boolean chart)
+    {
+        String id = resolution + ":" + (time == null ? "" : Long.toString(time.getTime())) + ":" + (success ? 1 : 0) + ":" + (chart ? 1 : 0) + ":" + name;
+        RollupDelta delta = deltas.get(id);
+        if (delta == null)
+        {
+            delta = new RollupDelta(resolution, time, name, success, chart);
+            deltas.put(id, delta);
+        }
+        return delta;
+    }
+    
+    /**
+     * Add recorded results to the rollups.  Nothing is done if the rollups are not {@link #isComplete() complete}.
+     * 
+     * @param resultObjs            the results as written to the results collection
+     */
+    public void record(List<DBObject> resultObjs)
+    {
+        if (!complete || resultObjs.isEmpty())
+        {
+            return;
+        }
+        // Combine the results into changes for each document
+        Map<String, RollupDelta> deltas = new LinkedHashMap<String, RollupDelta>(resultObjs.size() * 3);
+        for (DBObject resultObj : resultObjs)
+        {
+            DBObject eventObj = (DBObject) resultObj.get(EventRecord.FIELD_EVENT);
+            String name = (String) eventObj.get(Event.FIELD_NAME);
+            boolean success = (Boolean) resultObj.get(EventRecord.FIELD_SUCCESS);
+            boolean chart = (Boolean) resultObj.get(EventRecord.FIELD_CHART);
+            long startTime = ((Date) resultObj.get(EventRecord.FIELD_START_TIME)).getTime();
+            long time = ((Number) resultObj.get(EventRecord.FIELD_TIME)).longValue();
+            
+            Date second = new Date(startTime - (startTime % SECOND));
+            Date minute = new Date(startTime - (startTime % MINUTE));
+            getDelta(deltas, RESOLUTION_SECOND, second, name, success, chart).add(time);
+            getDelta(deltas, RESOLUTION_MINUTE, minute, name, success, chart).add(time);
+            getDelta(deltas, RESOLUTION_TOTAL, null, name, success, chart).add(time);
+        }
+        // Write the changes
+        List<String> ids = new ArrayList<String>(deltas.keySet());
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (String id : ids)
+        {
+            RollupDelta delta = deltas.get(id);
+            bulk.find(delta.getQueryObj(id)).upsert().updateOne(delta.getUpdateObj());
+        }
+        try
+        {
+            bulk.execute();
+        }
+        catch (BulkWriteException e)
+        {
+            for (BulkWriteError error : e.getWriteErrors())
+            {
+                String id = ids.get(error.getIndex());
+                RollupDelta delta = deltas.get(id);
+                if (error.getCode() == 11000)
+                {
+                    // Another driver created the document at the same time; it exists now
+                    collection.update(delta.getQueryObj(id), delta.getUpdateObj(), true, false);
+                }
+                else
+                {
+                    logger.error("Failed to update result rollup " + id + ": " + error.getMessage());
+                }
+            }
+        }
+        catch (MongoException e)
+        {
+            logger.error("Failed to update " + ids.size() + " result rollups.", e);
+        }
+    }
+    
+    /**
+     * Build an aggregate from the rollup documents that make it up
+     */
+    private static class AggregateBuilder
+    {
+        private final String name;
+        private final Boolean success;
+        private final long periodStartTime;
+        private long n = 0L;
+        private long failures = 0L;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+        private double sum = 0.0;
+        private double sumsq = 0.0;
+        private long[] histogram = new long[0];
+        
+        private AggregateBuilder(String name, Boolean success, long periodStartTime)
+        {
+            this.name = name;
+            this.success = success;
+            this.periodStartTime = periodStartTime;
+        }
+        
+        private void add(DBObject rollupObj)
+        {
+            long rollupN = ((Number) rollupObj.get(FIELD_N)).longValue();
+            n += rollupN;
+            if (!(Boolean) rollupObj.get(FIELD_SUCCESS))
+            {
+                failures += rollupN;
+            }
+            min = Math.min(min, ((Number) rollupObj.get(FIELD_MIN)).longValue());
+            max = Math.max(max, ((Number) rollupObj.get(FIELD_MAX)).longValue());
+            sum += ((Number) rollupObj.get(FIELD_SUM)).doubleValue();
+            sumsq += ((Number) rollupObj.get(FIELD_SUMSQ)).doubleValue();
+            DBObject histogramObj = (DBObject) rollupObj.get(FIELD_HISTOGRAM);
+            for (String key : histogramObj.keySet())
+            {
+                int bucket = Integer.parseInt(key);
+                if (bucket >= histogram.length)
+                {
+                    histogram = Arrays.copyOf(histogram, bucket + 1);
+                }
+                histogram[bucket] += ((Number) histogramObj.get(key)).longValue();
+            }
+        }
+        
+        private ResultAggregate build()
+        {
+            return new ResultAggregate(name, success, periodStartTime, n, failures, min, max, sum, sumsq, histogram);
+        }
+    }
+    
+    /**
+     * Get statistics for all results grouped by event name and success.
+     * 
+     * @return                      the statistics ordered by event name, successes first, or <tt>null</tt>
+     *                              if the rollups are not {@link #isComplete() complete}
+     */
+    public List<ResultAggregate> getTotals(boolean chartOnly)
+    {
+        if (!complete)
+        {
+            return null;
+        }
+        QueryBuilder queryBuilder = QueryBuilder
+                .start()
+                .and(FIELD_RESOLUTION).is(RESOLUTION_TOTAL);
+        if (chartOnly)
+        {
+            queryBuilder.and(FIELD_CHART).is(true);
+        }
+        // Event name then success (true before false)
+        Map<String, AggregateBuilder> builders = new TreeMap<String, AggregateBuilder>();
+        DBCursor cursor = collection.find(queryBuilder.get());
+        try
+        {
+            while (cursor.hasNext())
+            {
+                DBObject rollupObj = cursor.next();
+                String name = (String) rollupObj.get(FIELD_NAME);
+                Boolean success = (Boolean) rollupObj.get(FIELD_SUCCESS);
+                String key = name + (success ? "\u0000" : "\u0001");
+                AggregateBuilder builder = builders.get(key);
+                if (builder == null)
+                {
+                    builder = new AggregateBuilder(name, success, -1L);
+                    builders.put(key, builder);
+                }
+                builder.add(rollupObj);
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        List<ResultAggregate> results = new ArrayList<ResultAggregate>(builders.size());
+        for (AggregateBuilder builder : builders.values())
+        {
+            results.add(builder.build());
+        }
+        return results;
+    }
+    
+    /**
+     * Count results
+     * 
+     * @param name                  the event name or <tt>null</tt> for all events
+     * @param success               <tt>true</tt> or <tt>false</tt> to count successes or failures only,
+     *                              or <tt>null</tt> to count both
+     * @return                      the number of results or <tt>-1</tt> if the rollups are not
+     *                              {@link #isComplete() complete}
+     */
+    public long count(String name, Boolean success)
+    {
+        if (!complete)
+        {
+            return -1L;
+        }
+        QueryBuilder queryBuilder = QueryBuilder
+                .start()
+                .and(FIELD_RESOLUTION).is(RESOLUTION_TOTAL);
+        if (name != null)
+        {
+            queryBuilder.and(FIELD_NAME).is(name);
+        }
+        if (success != null)
+        {
+            queryBuilder.and(FIELD_SUCCESS).is(success);
+        }
+        long count = 0L;
+        DBCursor cursor = collection.find(queryBuilder.get(), new BasicDBObject(FIELD_N, Boolean.TRUE));
+        try
+        {
+            while (cursor.hasNext())
+            {
+                count += ((Number) cursor.next().get(FIELD_N)).longValue();
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        return count;
+    }
+    
+    /**
+     * Get statistics for results grouped by report period and event name.
+     * 
+     * @return                      the statistics ordered by period and event name or <tt>null</tt> if
+     *                              the rollups are not {@link #isComplete() complete} or the times do not
+     *                              fall on whole seconds
+     * @see org.alfresco.bm.common.AggregatingResultService#getResultAggregates(long, long, long, boolean)
+     */
+    public List<ResultAggregate> getAggregates(long startTime, long endTime, long reportPeriod, boolean chartOnly)
+    {
+        if (!complete)
+        {
+            return null;
+        }
+        String resolution;
+        if (reportPeriod % MINUTE == 0L && startTime % MINUTE == 0L && endTime % MINUTE == 0L)
+        {
+            resolution = RESOLUTION_MINUTE;
+        }
+        else if (reportPeriod % SECOND == 0L && startTime % SECOND == 0L && endTime % SECOND == 0L)
+        {
+            resolution = RESOLUTION_SECOND;
+        }
+        else
+        {
+            // The rollups are too coarse
+            return null;
+        }
+        QueryBuilder queryBuilder = QueryBuilder
+                .start()
+                .and(FIELD_RESOLUTION).is(resolution)
+                .and(FIELD_TIME).greaterThanEquals(new Date(startTime))
+                .and(FIELD_TIME).lessThan(new Date(endTime));
+        if (chartOnly)
+        {
+            queryBuilder.and(FIELD_CHART).is(true);
+        }
+        DBObject queryObj = queryBuilder.get();
+        // Period then event name
+        Map<Long, Map<String, AggregateBuilder>> buildersByPeriod = new TreeMap<Long, Map<String, AggregateBuilder>>();
+        int count = 0;
+        DBCursor cursor = collection.find(queryObj);
+        try
+        {
+            while (cursor.hasNext())
+            {
+                DBObject rollupObj = cursor.next();
+                count++;
+                long time = ((Date) rollupObj.get(FIELD_TIME)).getTime();
+                Long periodStartTime = Long.valueOf(time - (time % reportPeriod));
+                String name = (String) rollupObj.get(FIELD_NAME);
+                Map<String, AggregateBuilder> builders = buildersByPeriod.get(periodStartTime);
+                if (builders == null)
+                {
+                    builders = new TreeMap<String, AggregateBuilder>();
+                    buildersByPeriod.put(periodStartTime, builders);
+                }
+                AggregateBuilder builder = builders.get(name);
+                if (builder == null)
+                {
+                    builder = new AggregateBuilder(name, null, periodStartTime.longValue());
+                    builders.put(name, builder);
+                }
+                builder.add(rollupObj);
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        List<ResultAggregate> results = new ArrayList<ResultAggregate>(count);
+        for (Map<String, AggregateBuilder> builders : buildersByPeriod.values())
+        {
+            for (AggregateBuilder builder : builders.values())
+            {
+                results.add(builder.build());
+            }
+        }
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("\n" +
+                    "Found result rollups: \n" +
+                    "   Query:          " + queryObj + "\n" +
+                    "   Rollups:        " + count + "\n" +
+                    "   Results:        " + results.size());
+        }
+        return results;
+    }
+}
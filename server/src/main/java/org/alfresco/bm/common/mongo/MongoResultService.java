@@ -25,8 +25,15 @@
  */
 package org.alfresco.bm.common.mongo;
 
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.Cursor;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
@@ -35,30 +42,83 @@ import com.mongodb.MongoCommandException;
 import com.mongodb.MongoException;
 import com.mongodb.QueryBuilder;
 import org.alfresco.bm.common.AbstractResultService;
+import org.alfresco.bm.common.AggregatingResultService;
 import org.alfresco.bm.common.EventDetails;
 import org.alfresco.bm.common.EventRecord;
 import org.alfresco.bm.common.EventResultFilter;
+import org.alfresco.bm.common.Page;
+import org.alfresco.bm.common.PhaseAggregate;
+import org.alfresco.bm.common.ResultAggregate;
+import org.alfresco.bm.common.ResultSketch;
 import org.alfresco.bm.common.spring.LifecycleListener;
 import org.alfresco.bm.driver.event.Event;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.bson.types.ObjectId;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A Mongo-based implementation of the results for benchmark test runs.
+ * <p/>
+ * Results can optionally be {@link #setAsyncEnabled(boolean) recorded asynchronously}, in which case
+ * they are placed into a bounded buffer and written by a dedicated thread using unordered bulk inserts.
+ * Queries against asynchronously-recorded results may lag behind by up to the
+ * {@link #setAsyncFlushInterval(long) flush interval}.
+ * <p/>
+ * Result statistics are {@link AggregatingResultService aggregated} by MongoDB so that reports and
+ * charts do not need to retrieve every result.  If {@link #setRollupsEnabled(boolean) rollups} are
+ * enabled, statistics and counts are kept up to date as results are recorded and are read from the
+ * {@link MongoResultRollups rollups} instead.
  * 
  * @author Derek Hulley
  * @since 1.0
  */
-public class MongoResultService extends AbstractResultService implements LifecycleListener
+public class MongoResultService extends AbstractResultService implements AggregatingResultService, LifecycleListener
 {
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_ASYNC_BATCH_SIZE = 500;
+    private static final long DEFAULT_ASYNC_FLUSH_INTERVAL = 1000L;
+    private static final long DEFAULT_ASYNC_MAX_WAIT = 5000L;
+    /** Pages are not preallocated beyond this no matter how large the limit */
+    private static final int MAX_INITIAL_PAGE_CAPACITY = 1000;
+    
     private static Log logger = LogFactory.getLog(MongoResultService.class);
 
     private DBCollection collection;
     private boolean checkIndexes = false;
+    
+    private boolean asyncEnabled = false;
+    private int asyncQueueSize = DEFAULT_ASYNC_QUEUE_SIZE;
+    private int asyncBatchSize = DEFAULT_ASYNC_BATCH_SIZE;
+    private long asyncFlushInterval = DEFAULT_ASYNC_FLUSH_INTERVAL;
+    private long asyncMaxWait = DEFAULT_ASYNC_MAX_WAIT;
+    /** Results waiting to be written; <tt>null</tt> unless asynchronous recording is active */
+    private BlockingQueue<DBObject> asyncQueue;
+    /** Guards the switch between asynchronous and direct recording */
+    private final ReadWriteLock asyncLock = new ReentrantReadWriteLock();
+    private AsyncResultWriter asyncWriter;
+    private Thread asyncWriterThread;
+    private final AtomicLong asyncWrittenCount = new AtomicLong(0L);
+    private final AtomicLong asyncDroppedCount = new AtomicLong(0L);
+    private final AtomicLong asyncFailedCount = new AtomicLong(0L);
+    private boolean rollupsEnabled = false;
+    /** <tt>null</tt> unless rollups are enabled and cover all results */
+    private volatile MongoResultRollups rollups;
 
     /**
      * Construct a test result provider against a Mongo database and given collection name
@@ -83,48 +143,197 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         }
     }
     
+    /**
+     * Switch asynchronous result recording on or off (default: off)
+     */
+    public void setAsyncEnabled(boolean asyncEnabled)
+    {
+        this.asyncEnabled = asyncEnabled;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_ASYNC_QUEUE_SIZE maximum} number of results that can wait to be written
+     */
+    public void setAsyncQueueSize(int asyncQueueSize)
+    {
+        if (asyncQueueSize < 1)
+        {
+            throw new IllegalArgumentException("'asyncQueueSize' must be greater than zero.");
+        }
+        this.asyncQueueSize = asyncQueueSize;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_ASYNC_BATCH_SIZE maximum} number of results written in a single bulk insert
+     */
+    public void setAsyncBatchSize(int asyncBatchSize)
+    {
+        if (asyncBatchSize < 1)
+        {
+            throw new IllegalArgumentException("'asyncBatchSize' must be greater than zero.");
+        }
+        this.asyncBatchSize = asyncBatchSize;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_ASYNC_FLUSH_INTERVAL maximum} time (milliseconds) that a result waits
+     * for a batch to fill before it is written
+     */
+    public void setAsyncFlushInterval(long asyncFlushInterval)
+    {
+        if (asyncFlushInterval < 1L)
+        {
+            throw new IllegalArgumentException("'asyncFlushInterval' must be greater than zero.");
+        }
+        this.asyncFlushInterval = asyncFlushInterval;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_ASYNC_MAX_WAIT maximum} time (milliseconds) that a caller will wait
+     * for space in a full buffer.  Results that cannot be buffered in this time are dropped.
+     */
+    public void setAsyncMaxWait(long asyncMaxWait)
+    {
+        if (asyncMaxWait < 0L)
+        {
+            throw new IllegalArgumentException("'asyncMaxWait' may not be negative.");
+        }
+        this.asyncMaxWait = asyncMaxWait;
+    }
+
+    /**
+     * Switch the maintenance and use of {@link MongoResultRollups result rollups} on or off (default: off).
+     * Rollups are only used for test runs that have had them from the first result.  Each
+     * result recorded on its own costs three more upserts; {@link #setAsyncEnabled(boolean) buffered}
+     * results are combined into one set of changes per batch.  Periods that do not fall on whole
+     * seconds are always aggregated from the results.
+     */
+    public void setRollupsEnabled(boolean rollupsEnabled)
+    {
+        this.rollupsEnabled = rollupsEnabled;
+    }
+
+    /**
+     * @return                  the number of results waiting to be written asynchronously
+     */
+    public int getAsyncQueueDepth()
+    {
+        asyncLock.readLock().lock();
+        try
+        {
+            return (asyncQueue == null) ? 0 : asyncQueue.size();
+        }
+        finally
+        {
+            asyncLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return                  the number of results written asynchronously
+     */
+    public long getAsyncWrittenCount()
+    {
+        return asyncWrittenCount.get();
+    }
+
+    /**
+     * @return                  the number of results dropped because the buffer remained full
+     */
+    public long getAsyncDroppedCount()
+    {
+        return asyncDroppedCount.get();
+    }
+
+    /**
+     * @return                  the number of results that could not be written asynchronously
+     */
+    public long getAsyncFailedCount()
+    {
+        return asyncFailedCount.get();
+    }
+
     @Override
     public void start() throws Exception
     {
         checkIndexes();
+        if (rollupsEnabled)
+        {
+            String rollupCollectionName = MongoResultRollups.getRollupCollectionName(collection.getName());
+            MongoResultRollups newRollups = new MongoResultRollups(collection.getDB().getCollection(rollupCollectionName));
+            if (newRollups.start(collection))
+            {
+                rollups = newRollups;
+            }
+        }
+        if (asyncEnabled)
+        {
+            asyncLock.writeLock().lock();
+            try
+            {
+                asyncQueue = new ArrayBlockingQueue<DBObject>(asyncQueueSize);
+                asyncWriter = new AsyncResultWriter(asyncQueue);
+                asyncWriterThread = new Thread(asyncWriter, "ResultWriter-" + collection.getName());
+                asyncWriterThread.setDaemon(true);
+                asyncWriterThread.start();
+            }
+            finally
+            {
+                asyncLock.writeLock().unlock();
+            }
+        }
     }
     
     private void checkIndexes()
     {
-        if (!checkIndexes)
+        // Results are paged by start time and ID; these indexes replace the older ones without the ID.
+        // Collections created by earlier runs or by other servers are migrated too.
+        Set<String> oldIndexNames = new HashSet<String>(Arrays.asList("IDX_START", "IDX_EVENT_NAME_START", "IDX_SUCCESS_START"));
+        for (DBObject idxInfo : collection.getIndexInfo())
         {
-            return;
+            String idxName = (String) idxInfo.get("name");
+            if (oldIndexNames.contains(idxName))
+            {
+                collection.dropIndex(idxName);
+            }
         }
         
-        // Initialize indexes
-        DBObject idx_EVENT_NAME_START = BasicDBObjectBuilder
+        DBObject idx_EVENT_NAME_START_ID = BasicDBObjectBuilder
                 .start(EventRecord.FIELD_EVENT_NAME, Integer.valueOf(1))
                 .add(EventRecord.FIELD_START_TIME, Integer.valueOf(1))
+                .add(EventRecord.FIELD_ID, Integer.valueOf(1))
                 .get();
-        DBObject opt_EVENT_NAME_START = BasicDBObjectBuilder
-                .start("name", "IDX_EVENT_NAME_START")
+        DBObject opt_EVENT_NAME_START_ID = BasicDBObjectBuilder
+                .start("name", "IDX_EVENT_NAME_START_ID")
                 .add("unique", Boolean.FALSE)
                 .get();
-        collection.createIndex(idx_EVENT_NAME_START, opt_EVENT_NAME_START);
+        collection.createIndex(idx_EVENT_NAME_START_ID, opt_EVENT_NAME_START_ID);
         
-        DBObject idx_SUCCESS_START = BasicDBObjectBuilder
+        DBObject idx_SUCCESS_START_ID = BasicDBObjectBuilder
                 .start(EventRecord.FIELD_SUCCESS, Integer.valueOf(1))
                 .add(EventRecord.FIELD_START_TIME, Integer.valueOf(1))
+                .add(EventRecord.FIELD_ID, Integer.valueOf(1))
                 .get();
-        DBObject opt_SUCCESS_START = BasicDBObjectBuilder
-                .start("name", "IDX_SUCCESS_START")
+        DBObject opt_SUCCESS_START_ID = BasicDBObjectBuilder
+                .start("name", "IDX_SUCCESS_START_ID")
                 .add("unique", Boolean.FALSE)
                 .get();
-        collection.createIndex(idx_SUCCESS_START, opt_SUCCESS_START);
+        collection.createIndex(idx_SUCCESS_START_ID, opt_SUCCESS_START_ID);
         
-        DBObject idx_START = BasicDBObjectBuilder
+        DBObject idx_START_ID = BasicDBObjectBuilder
                 .start(EventRecord.FIELD_START_TIME, Integer.valueOf(1))
+                .add(EventRecord.FIELD_ID, Integer.valueOf(1))
                 .get();
-        DBObject opt_START = BasicDBObjectBuilder
-                .start("name", "IDX_START")
+        DBObject opt_START_ID = BasicDBObjectBuilder
+                .start("name", "IDX_START_ID")
                 .add("unique", Boolean.FALSE)
                 .get();
-        collection.createIndex(idx_START, opt_START);
+        collection.createIndex(idx_START_ID, opt_START_ID);
+        
+        if (!checkIndexes)
+        {
+            return;
+        }
         
         DBObject idx_SESSION_START = BasicDBObjectBuilder
                 .start(EventRecord.FIELD_EVENT_SESSION_ID, Integer.valueOf(1))
@@ -137,9 +346,55 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         collection.createIndex(idx_SESSION_START, opt_SESSION_START);
     }
 
+    /**
+     * Stops asynchronous recording, if active, and waits for all buffered results to be written.
+     * Results recorded after this are written directly.
+     */
     @Override
     public void stop()
     {
+        BlockingQueue<DBObject> queue;
+        asyncLock.writeLock().lock();
+        try
+        {
+            queue = asyncQueue;
+            if (queue == null)
+            {
+                return;
+            }
+            // New results go straight to the collection
+            asyncQueue = null;
+        }
+        finally
+        {
+            asyncLock.writeLock().unlock();
+        }
+        asyncWriter.stop();
+        try
+        {
+            asyncWriterThread.join(30000L);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        // Make sure nothing is left behind, even if the writer did not finish
+        List<DBObject> remaining = new ArrayList<DBObject>(queue.size());
+        queue.drainTo(remaining);
+        writeResults(remaining);
+        
+        String msg = "Asynchronous results for '" + collection.getName() + "': " +
+                asyncWrittenCount.get() + " written, " +
+                asyncFailedCount.get() + " failed, " +
+                asyncDroppedCount.get() + " dropped.";
+        if (asyncFailedCount.get() > 0L || asyncDroppedCount.get() > 0L)
+        {
+            logger.warn(msg);
+        }
+        else
+        {
+            logger.info(msg);
+        }
     }
 
     /**
@@ -178,7 +433,20 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         // get Event.Data
         Object inputData = event.getData();
         
-        return new EventDetails(startTime, name, success, inputData, eventData);
+        EventDetails eventDetails = new EventDetails(startTime, name, success, inputData, eventData);
+        
+        // get the time spent waiting before processing
+        if (eventDetailsObj.containsField(EventRecord.FIELD_START_DELAY))
+        {
+            eventDetails.setEventStartDelay(((Number) eventDetailsObj.get(EventRecord.FIELD_START_DELAY)).longValue());
+        }
+        if (eventDetailsObj.containsField(EventRecord.FIELD_DISPATCH_TIME))
+        {
+            long dispatchTime = ((Date) eventDetailsObj.get(EventRecord.FIELD_DISPATCH_TIME)).getTime();
+            eventDetails.setEventQueueTime(Math.max(0L, startTime.getTime() - dispatchTime));
+        }
+        
+        return eventDetails;
     }
     
     /**
@@ -231,6 +499,11 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         eventRecord.setWarning(warning);
         eventRecord.setChart(chart);
         eventRecord.setStartDelay(startDelay);
+        if (eventRecordObj.containsField(EventRecord.FIELD_DISPATCH_TIME))
+        {
+            eventRecord.setDispatchTime(((Date) eventRecordObj.get(EventRecord.FIELD_DISPATCH_TIME)).getTime());
+        }
+        eventRecord.setPhases(convertToPhases((List<?>) eventRecordObj.get(EventRecord.FIELD_PHASES)));
         // Done
         if (logger.isTraceEnabled())
         {
@@ -241,6 +514,28 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         return eventRecord;
     }
     
+    /**
+     * Helper to convert Mongo-persisted phase times to a map of time by phase name
+     * 
+     * @param phasesList        the list of phase times as persisted or <tt>null</tt>
+     */
+    private static Map<String, Long> convertToPhases(List<?> phasesList)
+    {
+        if (phasesList == null || phasesList.isEmpty())
+        {
+            return null;
+        }
+        Map<String, Long> phases = new LinkedHashMap<String, Long>(phasesList.size() * 2);
+        for (Object phaseObj : phasesList)
+        {
+            DBObject phase = (DBObject) phaseObj;
+            String name = (String) phase.get(EventRecord.FIELD_PHASE_NAME);
+            Number time = (Number) phase.get(EventRecord.FIELD_PHASE_TIME);
+            phases.put(name, Long.valueOf(time.longValue()));
+        }
+        return phases;
+    }
+    
     /**
      * Helper to convert Mongo-persisted object to a client-visible {@link Event}
      */
@@ -267,8 +562,10 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         return event;
     }
 
-    @Override
-    public void recordResult(EventRecord result)
+    /**
+     * Helper to convert a client-visible {@link EventRecord} to a Mongo-persistable object
+     */
+    private DBObject convertEventRecord(EventRecord result)
     {
         if (result == null)
         {
@@ -304,12 +601,61 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
                 .add(EventRecord.FIELD_START_TIME, new Date(result.getStartTime()))
                 .add(EventRecord.FIELD_SUCCESS, result.isSuccess())
                 .add(EventRecord.FIELD_TIME, result.getTime())
+                .add(EventRecord.FIELD_RESPONSE_TIME, result.getResponseTime())
                 .add(EventRecord.FIELD_EVENT, eventObj);
+        if (result.getDispatchTime() > 0L)
+        {
+            insertObjBuilder.add(EventRecord.FIELD_DISPATCH_TIME, new Date(result.getDispatchTime()));
+        }
         if (result.getWarning() != null)
         {
             insertObjBuilder.add(EventRecord.FIELD_WARNING, result.getWarning());
         }
-        DBObject insertObj = insertObjBuilder.get();
+        // Phases are kept as a list so that they can be aggregated by name
+        Map<String, Long> phases = result.getPhases();
+        if (phases != null)
+        {
+            BasicDBList phasesList = new BasicDBList();
+            for (Map.Entry<String, Long> entry : phases.entrySet())
+            {
+                phasesList.add(BasicDBObjectBuilder
+                        .start(EventRecord.FIELD_PHASE_NAME, entry.getKey())
+                        .add(EventRecord.FIELD_PHASE_TIME, entry.getValue())
+                        .get());
+            }
+            insertObjBuilder.add(EventRecord.FIELD_PHASES, phasesList);
+        }
+        return insertObjBuilder.get();
+    }
+
+    @Override
+    public void recordResult(EventRecord result)
+    {
+        DBObject insertObj = convertEventRecord(result);
+        
+        BlockingQueue<DBObject> queue;
+        asyncLock.readLock().lock();
+        try
+        {
+            queue = asyncQueue;
+            if (queue != null && queue.offer(insertObj))
+            {
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Queued result: " + insertObj);
+                }
+                return;
+            }
+        }
+        finally
+        {
+            asyncLock.readLock().unlock();
+        }
+        // Wait for space without holding up a stop
+        if (queue != null && recordResultAsync(queue, insertObj))
+        {
+            return;
+        }
         
         try
         {
@@ -322,6 +668,11 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
                     "   Result: " + insertObj,
                     e);
         }
+        MongoResultRollups rollups = this.rollups;
+        if (rollups != null)
+        {
+            rollups.record(Collections.singletonList(insertObj));
+        }
         // Done
         if (logger.isDebugEnabled())
         {
@@ -329,6 +680,189 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         }
     }
     
+    /**
+     * Place the result in a full buffer, waiting for space.  The lock must <b>not</b> be held so that
+     * {@link #stop()} is not held up by callers waiting here.
+     * 
+     * @return                  <tt>true</tt> if the result was handled or <tt>false</tt> if the buffer
+     *                          was removed meanwhile and the result must be written directly
+     */
+    private boolean recordResultAsync(BlockingQueue<DBObject> queue, DBObject insertObj)
+    {
+        boolean queued = false;
+        try
+        {
+            queued = queue.offer(insertObj, asyncMaxWait, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        boolean current;
+        asyncLock.readLock().lock();
+        try
+        {
+            current = (asyncQueue == queue);
+        }
+        finally
+        {
+            asyncLock.readLock().unlock();
+        }
+        if (!current)
+        {
+            // Stopped meanwhile.  Write it directly unless the buffer has already been drained.
+            return queued && !queue.remove(insertObj);
+        }
+        if (!queued)
+        {
+            long dropped = asyncDroppedCount.incrementAndGet();
+            if (dropped == 1L || dropped % 1000L == 0L)
+            {
+                logger.warn("Result buffer for '" + collection.getName() + "' is full; " + dropped + " results dropped so far.");
+            }
+        }
+        else if (logger.isDebugEnabled())
+        {
+            logger.debug("Queued result: " + insertObj);
+        }
+        return true;
+    }
+    
+    /**
+     * Write results using an unordered bulk insert, recording the outcome against the asynchronous counts
+     */
+    private void writeResults(List<DBObject> insertObjs)
+    {
+        if (insertObjs.isEmpty())
+        {
+            return;
+        }
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (DBObject insertObj : insertObjs)
+        {
+            bulk.insert(insertObj);
+        }
+        List<DBObject> writtenObjs = insertObjs;
+        try
+        {
+            BulkWriteResult wr = bulk.execute();
+            asyncWrittenCount.addAndGet(wr.getInsertedCount());
+        }
+        catch (BulkWriteException e)
+        {
+            int failed = e.getWriteErrors().size();
+            asyncWrittenCount.addAndGet(insertObjs.size() - failed);
+            asyncFailedCount.addAndGet(failed);
+            logger.error("Failed to insert " + failed + " of " + insertObjs.size() + " event results: " + e.getMessage());
+            // Only the results that were written go into the rollups
+            Set<Integer> failedIndexes = new HashSet<Integer>(failed * 2);
+            for (BulkWriteError error : e.getWriteErrors())
+            {
+                failedIndexes.add(Integer.valueOf(error.getIndex()));
+            }
+            writtenObjs = new ArrayList<DBObject>(insertObjs.size() - failed);
+            for (int i = 0; i < insertObjs.size(); i++)
+            {
+                if (!failedIndexes.contains(Integer.valueOf(i)))
+                {
+                    writtenObjs.add(insertObjs.get(i));
+                }
+            }
+        }
+        catch (MongoException e)
+        {
+            asyncFailedCount.addAndGet(insertObjs.size());
+            logger.error("Failed to insert " + insertObjs.size() + " event results.", e);
+            writtenObjs = Collections.emptyList();
+        }
+        MongoResultRollups rollups = this.rollups;
+        if (rollups != null)
+        {
+            rollups.record(writtenObjs);
+        }
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Recorded " + insertObjs.size() + " results in bulk.");
+        }
+    }
+    
+    /**
+     * Drains the result buffer, writing when a batch is full or the flush interval has passed
+     * 
+     * @author Derek Hulley
+     * @since 3.0
+     */
+    private class AsyncResultWriter implements Runnable
+    {
+        private final BlockingQueue<DBObject> queue;
+        private volatile boolean stopped = false;
+        
+        private AsyncResultWriter(BlockingQueue<DBObject> queue)
+        {
+            this.queue = queue;
+        }
+        
+        /**
+         * Finish writing everything in the buffer and then stop.  No thread interruption is used
+         * as this would abort any write in progress.
+         */
+        private void stop()
+        {
+            stopped = true;
+        }
+        
+        @Override
+        public void run()
+        {
+            List<DBObject> batch = new ArrayList<DBObject>(asyncBatchSize);
+            while (!stopped || !queue.isEmpty())
+            {
+                try
+                {
+                    DBObject first = queue.poll(stopped ? 0L : asyncFlushInterval, TimeUnit.MILLISECONDS);
+                    if (first == null)
+                    {
+                        continue;
+                    }
+                    batch.add(first);
+                    // Fill the batch until it is full or it is time to write it
+                    long flushTime = System.currentTimeMillis() + asyncFlushInterval;
+                    while (batch.size() < asyncBatchSize)
+                    {
+                        queue.drainTo(batch, asyncBatchSize - batch.size());
+                        long wait = flushTime - System.currentTimeMillis();
+                        if (batch.size() >= asyncBatchSize || wait <= 0L || stopped)
+                        {
+                            break;
+                        }
+                        DBObject next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                        if (next == null)
+                        {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    // Not expected, but write what we have and carry on until stopped
+                    queue.drainTo(batch, asyncBatchSize - batch.size());
+                }
+                try
+                {
+                    writeResults(batch);
+                }
+                catch (Throwable e)
+                {
+                    asyncFailedCount.addAndGet(batch.size());
+                    logger.error("Failed to write event results.", e);
+                }
+                batch.clear();
+            }
+        }
+    }
+    
     @Override
     public String getDataLocation()
     {
@@ -390,8 +924,7 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         cursor.limit(limit);
         
         // Get all the results and convert them
-        int size = cursor.size();
-        List<EventRecord> results = new ArrayList<EventRecord>(size);
+        List<EventRecord> results = new ArrayList<EventRecord>(Math.min(limit, MAX_INITIAL_PAGE_CAPACITY));
         try
         {
             while (cursor.hasNext())
@@ -413,7 +946,7 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
                     "   Query:          " + queryObj + "\n" +
                     "   Skip:           " + skip + "\n" +
                     "   Limit:          " + limit + "\n" +
-                    "   Results:        " + size);
+                    "   Results:        " + results.size());
         }
         return results;
     }
@@ -434,9 +967,11 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
             queryBuilder.and(EventRecord.FIELD_CHART).is(true);
         }
         DBObject queryObj = queryBuilder.get();
+        // Sort on the ID as well so that results with the same start time are always in the same order
         DBObject sortObj = BasicDBObjectBuilder
                 .start()
                 .add(EventRecord.FIELD_START_TIME, Integer.valueOf(1))
+                .add(EventRecord.FIELD_ID, Integer.valueOf(1))
                 .get();
         
         DBCursor cursor = collection.find(queryObj);
@@ -445,8 +980,7 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         cursor.limit(limit);
         
         // Get all the results and convert them
-        int size = cursor.size();
-        List<EventRecord> results = new ArrayList<EventRecord>(size);
+        List<EventRecord> results = new ArrayList<EventRecord>(Math.min(limit, MAX_INITIAL_PAGE_CAPACITY));
         try
         {
             while (cursor.hasNext())
@@ -468,7 +1002,486 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
                     "   Query:          " + queryObj + "\n" +
                     "   Skip:           " + skip + "\n" +
                     "   Limit:          " + limit + "\n" +
-                    "   Results:        " + size);
+                    "   Results:        " + results.size());
+        }
+        return results;
+    }
+
+    /**
+     * Create the continuation token that will start the next page after the given result
+     */
+    private static String toPageToken(DBObject obj)
+    {
+        Date startTime = (Date) obj.get(EventRecord.FIELD_START_TIME);
+        ObjectId id = (ObjectId) obj.get(EventRecord.FIELD_ID);
+        return startTime.getTime() + "." + id.toHexString();
+    }
+    
+    /**
+     * Restrict a query to results after (or before, when descending) the result identified by a
+     * continuation token.  The start time and ID together give a total ordering of results.
+     * 
+     * @param queryObj          the query to restrict
+     * @param after             the continuation token or <tt>null</tt> to leave the query as it is
+     * @param ascending         <tt>true</tt> if results are ordered by ascending start time and ID
+     * @throws IllegalArgumentException if the token is not valid
+     */
+    private static void applyPageToken(DBObject queryObj, String after, boolean ascending)
+    {
+        if (after == null)
+        {
+            return;
+        }
+        int dot = after.indexOf('.');
+        Date startTime;
+        ObjectId id;
+        try
+        {
+            startTime = new Date(Long.parseLong(after.substring(0, dot)));
+            id = new ObjectId(after.substring(dot + 1));
+        }
+        catch (RuntimeException e)
+        {
+            throw new IllegalArgumentException("Invalid continuation token: " + after);
+        }
+        String op = ascending ? "$gt" : "$lt";
+        DBObject laterTimeObj = BasicDBObjectBuilder
+                .start()
+                .push(EventRecord.FIELD_START_TIME).add(op, startTime).pop()
+                .get();
+        DBObject sameTimeObj = BasicDBObjectBuilder
+                .start()
+                .add(EventRecord.FIELD_START_TIME, startTime)
+                .push(EventRecord.FIELD_ID).add(op, id).pop()
+                .get();
+        queryObj.put("$or", Arrays.asList(laterTimeObj, sameTimeObj));
+    }
+    
+    /**
+     * Fetch a page of raw results ordered by start time and ID
+     * 
+     * @param queryObj          the query, which will be restricted by the continuation token
+     * @param after             the continuation token or <tt>null</tt> to start at the beginning
+     * @param ascending         <tt>true</tt> for oldest results first or <tt>false</tt> for newest first
+     * @param limit             the maximum number of results to fetch
+     */
+    private Page<DBObject> findPage(DBObject queryObj, String after, boolean ascending, int limit)
+    {
+        if (limit < 1)
+        {
+            throw new IllegalArgumentException("'limit' must be 1 or more.");
+        }
+        applyPageToken(queryObj, after, ascending);
+        Integer direction = Integer.valueOf(ascending ? 1 : -1);
+        DBObject sortObj = BasicDBObjectBuilder
+                .start()
+                .add(EventRecord.FIELD_START_TIME, direction)
+                .add(EventRecord.FIELD_ID, direction)
+                .get();
+        // Fetch one more than required to find out if there is another page
+        DBCursor cursor = collection.find(queryObj).sort(sortObj).limit(limit + 1);
+        
+        List<DBObject> objs = new ArrayList<DBObject>(Math.min(limit, MAX_INITIAL_PAGE_CAPACITY));
+        String next = null;
+        try
+        {
+            while (cursor.hasNext())
+            {
+                DBObject obj = cursor.next();
+                if (objs.size() == limit)
+                {
+                    next = toPageToken(objs.get(limit - 1));
+                    break;
+                }
+                objs.add(obj);
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("\n" +
+                    "Found page of results: \n" +
+                    "   Query:          " + queryObj + "\n" +
+                    "   Limit:          " + limit + "\n" +
+                    "   Results:        " + objs.size() + "\n" +
+                    "   Next:           " + next);
+        }
+        return new Page<DBObject>(objs, next);
+    }
+    
+    @Override
+    public Page<EventRecord> getResults(String eventName, String after, int limit)
+    {
+        DBObject queryObj = new BasicDBObject();
+        if (eventName != null)
+        {
+            queryObj.put(EventRecord.FIELD_EVENT_NAME, eventName);
+        }
+        Page<DBObject> page = findPage(queryObj, after, true, limit);
+        List<EventRecord> results = new ArrayList<EventRecord>(page.getItems().size());
+        for (DBObject obj : page.getItems())
+        {
+            results.add(convertToEventRecord(obj));
+        }
+        return new Page<EventRecord>(results, page.getNext());
+    }
+
+    /**
+     * Build the expression giving the {@link ResultSketch#bucketIndex(long) histogram bucket} for a result time.
+     * The power of two at or below the time comes from its logarithm, corrected by one either way for
+     * rounding, and the top bits below that select the bucket.  This matches the sketch exactly for
+     * any time that a double can hold, i.e. below 2<sup>53</sup>ms.
+     * 
+     * @param time              the expression giving the result time
+     */
+    private static DBObject buildBucketIndex(Object time)
+    {
+        // m: the power of two at or below the time
+        DBObject log = new BasicDBObject("$floor", new BasicDBObject("$log", Arrays.asList("$$t", Integer.valueOf(2))));
+        DBObject tooHigh = new BasicDBObject("$gt", Arrays.asList(
+                new BasicDBObject("$pow", Arrays.asList(Integer.valueOf(2), "$$log")),
+                "$$t"));
+        DBObject tooLow = new BasicDBObject("$lte", Arrays.asList(
+                new BasicDBObject("$pow", Arrays.asList(Integer.valueOf(2), new BasicDBObject("$add", Arrays.asList("$$log", Integer.valueOf(1))))),
+                "$$t"));
+        DBObject magnitude = buildLet("log", log, new BasicDBObject("$cond", Arrays.asList(
+                tooHigh,
+                new BasicDBObject("$subtract", Arrays.asList("$$log", Integer.valueOf(1))),
+                new BasicDBObject("$cond", Arrays.asList(
+                        tooLow,
+                        new BasicDBObject("$add", Arrays.asList("$$log", Integer.valueOf(1))),
+                        "$$log")))));
+        // s: the bits dropped from the time, leaving the top bits as the bucket within the power of two
+        DBObject shift = new BasicDBObject("$max", Arrays.asList(
+                Integer.valueOf(0),
+                new BasicDBObject("$subtract", Arrays.asList("$$m", Integer.valueOf(ResultSketch.SUB_BUCKET_BITS)))));
+        DBObject index = new BasicDBObject("$add", Arrays.asList(
+                new BasicDBObject("$multiply", Arrays.asList("$$s", Integer.valueOf(ResultSketch.SUB_BUCKET_COUNT))),
+                new BasicDBObject("$floor", new BasicDBObject("$divide", Arrays.asList(
+                        "$$t",
+                        new BasicDBObject("$pow", Arrays.asList(Integer.valueOf(2), "$$s")))))));
+        DBObject positiveIndex = buildLet("m", magnitude, buildLet("s", shift, index));
+        // Times below 1 have no logarithm and go into the first bucket
+        return buildLet("t", time, new BasicDBObject("$cond", Arrays.asList(
+                new BasicDBObject("$lt", Arrays.asList("$$t", Integer.valueOf(1))),
+                Integer.valueOf(0),
+                positiveIndex)));
+    }
+    
+    private static DBObject buildLet(String var, Object value, Object in)
+    {
+        DBObject letObj = BasicDBObjectBuilder
+                .start("vars", new BasicDBObject(var, value))
+                .add("in", in)
+                .get();
+        return new BasicDBObject("$let", letObj);
+    }
+    
+    /**
+     * Build the stages that summarize the results in each {@link ResultSketch#bucketIndex(long) histogram bucket}.
+     * At most one document is produced per bucket, i.e. a few hundred, for each distinct group.
+     * 
+     * @param id                the fields to group by, which will be extended with the <tt>bucket</tt>
+     * @param time              the expression giving the result time
+     */
+    private static List<DBObject> buildBucketGroup(DBObject id, Object time)
+    {
+        // Work out the time once and then its bucket
+        DBObject projectObj = new BasicDBObject(id.toMap());
+        projectObj.put("failed", new BasicDBObject("$cond", Arrays.asList("$" + EventRecord.FIELD_SUCCESS, Integer.valueOf(0), Integer.valueOf(1))));
+        projectObj.put("time", time);
+        DBObject bucketProjectObj = new BasicDBObject();
+        DBObject groupIdObj = new BasicDBObject();
+        for (String key : id.keySet())
+        {
+            bucketProjectObj.put(key, Integer.valueOf(1));
+            groupIdObj.put(key, "$" + key);
+        }
+        bucketProjectObj.put("failed", Integer.valueOf(1));
+        bucketProjectObj.put("time", Integer.valueOf(1));
+        bucketProjectObj.put("bucket", buildBucketIndex("$time"));
+        groupIdObj.put("bucket", "$bucket");
+        DBObject groupObj = BasicDBObjectBuilder
+                .start("_id", groupIdObj)
+                .push("n").add("$sum", Integer.valueOf(1)).pop()
+                .push("failures").add("$sum", "$failed").pop()
+                .push("min").add("$min", "$time").pop()
+                .push("max").add("$max", "$time").pop()
+                .push("sum").add("$sum", "$time").pop()
+                .push("sumsq").add("$sum", new BasicDBObject("$multiply", Arrays.asList("$time", "$time"))).pop()
+                .get();
+        
+        List<DBObject> stages = new ArrayList<DBObject>(3);
+        stages.add(new BasicDBObject("$project", projectObj));
+        stages.add(new BasicDBObject("$project", bucketProjectObj));
+        stages.add(new BasicDBObject("$group", groupObj));
+        return stages;
+    }
+    
+    /**
+     * Run an aggregation pipeline that ends with the {@link #buildBucketGroup(DBObject, Object) bucket group}
+     * and fold the buckets into aggregates.  Only the summary of each histogram bucket is returned, so the
+     * aggregates carry the histogram needed for percentiles without the individual result times.
+     * 
+     * @param pipeline          the pipeline to run, which must be sorted so that the buckets for each aggregate
+     *                          are together
+     * @param grouped           <tt>true</tt> if the results were grouped by success
+     * @param periodKey         the key within the group ID holding the period start or <tt>null</tt> if not grouped by period
+     */
+    private List<ResultAggregate> aggregate(List<DBObject> pipeline, boolean grouped, String periodKey)
+    {
+        AggregationOptions options = AggregationOptions.builder()
+                .allowDiskUse(Boolean.TRUE)
+                .outputMode(AggregationOptions.OutputMode.CURSOR)
+                .build();
+        List<ResultAggregate> results = new ArrayList<ResultAggregate>(64);
+        Cursor cursor = collection.aggregate(pipeline, options);
+        try
+        {
+            String eventName = null;
+            Boolean success = null;
+            long periodStartTime = -1L;
+            long n = 0L;
+            long failures = 0L;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            double sum = 0.0;
+            double sumsq = 0.0;
+            long[] histogram = new long[0];
+            while (cursor.hasNext())
+            {
+                DBObject obj = cursor.next();
+                DBObject idObj = (DBObject) obj.get("_id");
+                String nextEventName = (String) idObj.get("name");
+                Boolean nextSuccess = grouped ? (Boolean) idObj.get("success") : null;
+                long nextPeriodStartTime = (periodKey == null) ? -1L : ((Number) idObj.get(periodKey)).longValue();
+                if (n > 0L && (
+                        !nextEventName.equals(eventName) ||
+                        (grouped && !nextSuccess.equals(success)) ||
+                        nextPeriodStartTime != periodStartTime))
+                {
+                    results.add(new ResultAggregate(eventName, success, periodStartTime, n, failures, min, max, sum, sumsq, histogram));
+                    n = 0L;
+                    failures = 0L;
+                    min = Long.MAX_VALUE;
+                    max = Long.MIN_VALUE;
+                    sum = 0.0;
+                    sumsq = 0.0;
+                    histogram = new long[0];
+                }
+                eventName = nextEventName;
+                success = nextSuccess;
+                periodStartTime = nextPeriodStartTime;
+                int bucket = ((Number) idObj.get("bucket")).intValue();
+                long count = ((Number) obj.get("n")).longValue();
+                n += count;
+                failures += ((Number) obj.get("failures")).longValue();
+                min = Math.min(min, ((Number) obj.get("min")).longValue());
+                max = Math.max(max, ((Number) obj.get("max")).longValue());
+                sum += ((Number) obj.get("sum")).doubleValue();
+                sumsq += ((Number) obj.get("sumsq")).doubleValue();
+                if (bucket >= histogram.length)
+                {
+                    histogram = Arrays.copyOf(histogram, bucket + 1);
+                }
+                histogram[bucket] += count;
+            }
+            if (n > 0L)
+            {
+                results.add(new ResultAggregate(eventName, success, periodStartTime, n, failures, min, max, sum, sumsq, histogram));
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("\n" +
+                    "Aggregated results: \n" +
+                    "   Pipeline:       " + pipeline + "\n" +
+                    "   Results:        " + results.size());
+        }
+        return results;
+    }
+    
+    @Override
+    public List<ResultAggregate> getResultAggregates(boolean chartOnly)
+    {
+        MongoResultRollups rollups = this.rollups;
+        if (rollups != null)
+        {
+            return rollups.getTotals(chartOnly);
+        }
+        List<DBObject> pipeline = new ArrayList<DBObject>(3);
+        if (chartOnly)
+        {
+            pipeline.add(new BasicDBObject("$match", new BasicDBObject(EventRecord.FIELD_CHART, Boolean.TRUE)));
+        }
+        DBObject idObj = BasicDBObjectBuilder
+                .start("name", "$" + EventRecord.FIELD_EVENT_NAME)
+                .add("success", "$" + EventRecord.FIELD_SUCCESS)
+                .get();
+        pipeline.addAll(buildBucketGroup(idObj, "$" + EventRecord.FIELD_TIME));
+        DBObject sortObj = BasicDBObjectBuilder
+                .start("_id.name", Integer.valueOf(1))
+                .add("_id.success", Integer.valueOf(-1))
+                .get();
+        pipeline.add(new BasicDBObject("$sort", sortObj));
+        
+        return aggregate(pipeline, true, null);
+    }
+    
+    @Override
+    public List<ResultAggregate> getResultAggregates(long startTime, long endTime, long reportPeriod, boolean chartOnly)
+    {
+        return getResultAggregates(startTime, endTime, reportPeriod, chartOnly, false);
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The rollups only hold service times, so response times are always aggregated directly.
+     * Results recorded before response times were stored fall back to their service time.
+     */
+    @Override
+    public List<ResultAggregate> getResultAggregates(long startTime, long endTime, long reportPeriod, boolean chartOnly, boolean responseTime)
+    {
+        if (reportPeriod <= 0L)
+        {
+            throw new IllegalArgumentException("'reportPeriod' must be a non-zero, positive number.");
+        }
+        MongoResultRollups rollups = this.rollups;
+        if (rollups != null && !responseTime)
+        {
+            List<ResultAggregate> results = rollups.getAggregates(startTime, endTime, reportPeriod, chartOnly);
+            if (results != null)
+            {
+                return results;
+            }
+            // The report period is not a whole number of seconds
+        }
+        QueryBuilder queryBuilder = QueryBuilder
+                .start()
+                .and(EventRecord.FIELD_START_TIME).greaterThanEquals(new Date(startTime))
+                .and(EventRecord.FIELD_START_TIME).lessThan(new Date(endTime));
+        if (chartOnly)
+        {
+            queryBuilder.and(EventRecord.FIELD_CHART).is(true);
+        }
+        List<DBObject> pipeline = new ArrayList<DBObject>(3);
+        pipeline.add(new BasicDBObject("$match", queryBuilder.get()));
+        DBObject idObj = BasicDBObjectBuilder
+                .start("period", buildPeriodStart(reportPeriod))
+                .add("name", "$" + EventRecord.FIELD_EVENT_NAME)
+                .get();
+        Object time = responseTime ?
+                new BasicDBObject("$ifNull", Arrays.asList("$" + EventRecord.FIELD_RESPONSE_TIME, "$" + EventRecord.FIELD_TIME)) :
+                "$" + EventRecord.FIELD_TIME;
+        pipeline.addAll(buildBucketGroup(idObj, time));
+        DBObject sortObj = BasicDBObjectBuilder
+                .start("_id.period", Integer.valueOf(1))
+                .add("_id.name", Integer.valueOf(1))
+                .get();
+        pipeline.add(new BasicDBObject("$sort", sortObj));
+        
+        return aggregate(pipeline, false, "period");
+    }
+    
+    /**
+     * Build the expression giving the start of the report period containing a result.
+     * Subtracting dates gives milliseconds; the period starts on a multiple of the report period.
+     */
+    private static DBObject buildPeriodStart(long reportPeriod)
+    {
+        DBObject startTimeMs = new BasicDBObject("$subtract", Arrays.asList("$" + EventRecord.FIELD_START_TIME, new Date(0L)));
+        DBObject periodOffset = new BasicDBObject("$mod", Arrays.asList(startTimeMs, Long.valueOf(reportPeriod)));
+        return new BasicDBObject("$subtract", Arrays.asList(startTimeMs, periodOffset));
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Phases are not held in the rollups, so the results are always aggregated directly.
+     */
+    @Override
+    public List<PhaseAggregate> getPhaseAggregates(long startTime, long endTime, long reportPeriod, boolean chartOnly)
+    {
+        if (reportPeriod <= 0L)
+        {
+            throw new IllegalArgumentException("'reportPeriod' must be a non-zero, positive number.");
+        }
+        QueryBuilder queryBuilder = QueryBuilder
+                .start()
+                .and(EventRecord.FIELD_START_TIME).greaterThanEquals(new Date(startTime))
+                .and(EventRecord.FIELD_START_TIME).lessThan(new Date(endTime))
+                .and(EventRecord.FIELD_PHASES).exists(true);
+        if (chartOnly)
+        {
+            queryBuilder.and(EventRecord.FIELD_CHART).is(true);
+        }
+        String phaseName = "$" + EventRecord.FIELD_PHASES + "." + EventRecord.FIELD_PHASE_NAME;
+        String phaseTime = "$" + EventRecord.FIELD_PHASES + "." + EventRecord.FIELD_PHASE_TIME;
+        List<DBObject> pipeline = new ArrayList<DBObject>(4);
+        pipeline.add(new BasicDBObject("$match", queryBuilder.get()));
+        pipeline.add(new BasicDBObject("$unwind", "$" + EventRecord.FIELD_PHASES));
+        DBObject idObj = BasicDBObjectBuilder
+                .start("period", buildPeriodStart(reportPeriod))
+                .add("name", "$" + EventRecord.FIELD_EVENT_NAME)
+                .add("phase", phaseName)
+                .get();
+        DBObject groupObj = BasicDBObjectBuilder
+                .start("_id", idObj)
+                .push("n").add("$sum", Integer.valueOf(1)).pop()
+                .push("max").add("$max", phaseTime).pop()
+                .push("sum").add("$sum", phaseTime).pop()
+                .get();
+        pipeline.add(new BasicDBObject("$group", groupObj));
+        DBObject sortObj = BasicDBObjectBuilder
+                .start("_id.period", Integer.valueOf(1))
+                .add("_id.name", Integer.valueOf(1))
+                .add("_id.phase", Integer.valueOf(1))
+                .get();
+        pipeline.add(new BasicDBObject("$sort", sortObj));
+        
+        AggregationOptions options = AggregationOptions.builder()
+                .allowDiskUse(Boolean.TRUE)
+                .outputMode(AggregationOptions.OutputMode.CURSOR)
+                .build();
+        List<PhaseAggregate> results = new ArrayList<PhaseAggregate>(64);
+        Cursor cursor = collection.aggregate(pipeline, options);
+        try
+        {
+            while (cursor.hasNext())
+            {
+                DBObject obj = cursor.next();
+                DBObject resultIdObj = (DBObject) obj.get("_id");
+                PhaseAggregate aggregate = new PhaseAggregate(
+                        (String) resultIdObj.get("name"),
+                        (String) resultIdObj.get("phase"),
+                        ((Number) resultIdObj.get("period")).longValue(),
+                        ((Number) obj.get("n")).longValue(),
+                        ((Number) obj.get("max")).longValue(),
+                        ((Number) obj.get("sum")).doubleValue());
+                results.add(aggregate);
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("\n" +
+                    "Aggregated phases: \n" +
+                    "   Pipeline:       " + pipeline + "\n" +
+                    "   Results:        " + results.size());
         }
         return results;
     }
@@ -505,6 +1518,12 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
     @Override
     public long countResultsByEventName(String name)
     {
+        MongoResultRollups rollups = this.rollups;
+        if (rollups != null)
+        {
+            return rollups.count(name, null);
+        }
+        
         DBObject queryObj = QueryBuilder
                 .start()
                 .and(EventRecord.FIELD_EVENT_NAME).is(name)
@@ -523,6 +1542,12 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
     @Override
     public long countResultsBySuccess()
     {
+        MongoResultRollups rollups = this.rollups;
+        if (rollups != null)
+        {
+            return rollups.count(null, Boolean.TRUE);
+        }
+        
         DBObject queryObj = QueryBuilder
                 .start()
                 .and(EventRecord.FIELD_SUCCESS).is(true)
@@ -541,6 +1566,12 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
     @Override
     public long countResultsByFailure()
     {
+        MongoResultRollups rollups = this.rollups;
+        if (rollups != null)
+        {
+            return rollups.count(null, Boolean.FALSE);
+        }
+        
         DBObject queryObj = QueryBuilder
                 .start()
                 .and(EventRecord.FIELD_SUCCESS).is(false)
@@ -556,8 +1587,10 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         return count;
     }
 
-    @Override
-    public List<EventDetails> getEventDetails(EventResultFilter filter, String filterEventName, int skip, int limit)
+    /**
+     * Build the query for event details
+     */
+    private DBObject buildEventDetailsQuery(EventResultFilter filter, String filterEventName)
     {
         QueryBuilder queryBuilder = QueryBuilder.start();
         
@@ -581,7 +1614,13 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
             queryBuilder.and(EventRecord.FIELD_EVENT_NAME).is(filterEventName);
         }
         
-        DBObject queryObj = queryBuilder.get();
+        return queryBuilder.get();
+    }
+    
+    @Override
+    public List<EventDetails> getEventDetails(EventResultFilter filter, String filterEventName, int skip, int limit)
+    {
+        DBObject queryObj = buildEventDetailsQuery(filter, filterEventName);
         // sort descending to get the newest values first
         DBObject sortObj = BasicDBObjectBuilder
                 .start()
@@ -593,8 +1632,7 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         cursor.limit(limit);
         
         // Get all the results and convert them
-        int size = cursor.size();
-        List<EventDetails> results = new ArrayList<EventDetails>(size);
+        List<EventDetails> results = new ArrayList<EventDetails>(Math.min(limit, MAX_INITIAL_PAGE_CAPACITY));
         try
         {
             while (cursor.hasNext())
@@ -612,12 +1650,34 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         return results;
     }
     
+    @Override
+    public Page<EventDetails> getEventDetails(EventResultFilter filter, String filterEventName, String after, int limit)
+    {
+        DBObject queryObj = buildEventDetailsQuery(filter, filterEventName);
+        // Newest values first
+        Page<DBObject> page = findPage(queryObj, after, false, limit);
+        List<EventDetails> results = new ArrayList<EventDetails>(page.getItems().size());
+        for (DBObject obj : page.getItems())
+        {
+            results.add(convertToEventDetails(obj));
+        }
+        return new Page<EventDetails>(results, page.getNext());
+    }
+    
     @Override
     public boolean clear()
     {
         try
         {
             this.collection.drop();
+            if (rollupsEnabled)
+            {
+                String rollupCollectionName = MongoResultRollups.getRollupCollectionName(collection.getName());
+                MongoResultRollups newRollups = new MongoResultRollups(collection.getDB().getCollection(rollupCollectionName));
+                newRollups.clear();
+                // There are no results now so the rollups can start again
+                rollups = newRollups.start(collection) ? newRollups : null;
+            }
             return true;
         }
         catch(MongoException mex)
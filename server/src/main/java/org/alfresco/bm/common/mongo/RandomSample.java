@@ -0,0 +1,330 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.common.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Documents matching some criteria, held locally so that random documents can be picked
+ * without querying.  A sample either holds every matching document or, if there are too many,
+ * a run of matching documents starting at a random point of the randomizer index.
+ * <p/>
+ * A sample is kept up to date as documents are written through the service that holds it:
+ * documents that no longer match are removed and documents that now match are added to samples
+ * that hold every match.
+ * 
+ * @see RandomSampleCache
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class RandomSample
+{
+    private final Map<String, Collection<String>> criteria;
+    private final String[] idFields;
+    private final boolean complete;
+    private final long expiry;
+    private final int loadedSize;
+    private final List<DBObject> docs;
+    /** The position of each document in the list, keyed by ID */
+    private final Map<String, Integer> positions;
+    /** Set while a replacement for this sample is being loaded */
+    private final AtomicBoolean reloading;
+    
+    /**
+     * @param criteria          the values allowed for each field; fields not given can have any value
+     * @param idFields          the fields that together identify a document
+     * @param docs              the matching documents; repeated documents are only held once
+     * @param complete          <tt>true</tt> if the documents are all the documents that match
+     * @param expiry            the time after which the sample must be reloaded
+     */
+    public RandomSample(Map<String, Collection<String>> criteria, String[] idFields, List<DBObject> docs, boolean complete, long expiry)
+    {
+        this.criteria = criteria;
+        this.idFields = idFields;
+        this.complete = complete;
+        this.expiry = expiry;
+        this.docs = new ArrayList<DBObject>(docs.size());
+        this.positions = new HashMap<String, Integer>(docs.size() * 2);
+        for (DBObject doc : docs)
+        {
+            String id = getId(doc);
+            if (!positions.containsKey(id))
+            {
+                positions.put(id, this.docs.size());
+                this.docs.add(doc);
+            }
+        }
+        this.loadedSize = this.docs.size();
+        this.reloading = new AtomicBoolean(false);
+    }
+    
+    /**
+     * Build the query for documents matching the criteria
+     */
+    public static BasicDBObject toQuery(Map<String, Collection<String>> criteria)
+    {
+        BasicDBObject query = new BasicDBObject();
+        for (Map.Entry<String, Collection<String>> entry : criteria.entrySet())
+        {
+            Collection<String> values = entry.getValue();
+            if (values.size() == 1)
+            {
+                query.put(entry.getKey(), values.iterator().next());
+            }
+            else
+            {
+                query.put(entry.getKey(), new BasicDBObject("$in", values));
+            }
+        }
+        return query;
+    }
+    
+    /**
+     * Read a run of matching documents in randomizer order, starting at a random point and wrapping
+     * around to the lowest values if there are not enough after it
+     * 
+     * @param query             the documents to read (not changed)
+     * @param fields            the fields to read or <tt>null</tt> for all fields
+     * @param randomizerField   the indexed field holding a random value for each document
+     * @param start             the randomizer value to start from
+     * @param limit             the largest number of documents to read
+     * @param maxScan           the largest number of index entries to examine in each query or <tt>0</tt> for no limit
+     * @param docs              the list to add the documents to
+     */
+    public static void readRun(
+            DBCollection collection,
+            DBObject query,
+            DBObject fields,
+            String randomizerField,
+            int start,
+            int limit,
+            int maxScan,
+            List<DBObject> docs)
+    {
+        int size = docs.size();
+        BasicDBObject runQuery = new BasicDBObject(query.toMap());
+        runQuery.put(randomizerField, new BasicDBObject("$gte", start));
+        readDocs(collection, runQuery, fields, randomizerField, limit, maxScan, docs);
+        int count = docs.size() - size;
+        if (count < limit)
+        {
+            runQuery.put(randomizerField, new BasicDBObject("$lt", start));
+            readDocs(collection, runQuery, fields, randomizerField, limit - count, maxScan, docs);
+        }
+    }
+    
+    private static void readDocs(
+            DBCollection collection,
+            DBObject query,
+            DBObject fields,
+            String randomizerField,
+            int limit,
+            int maxScan,
+            List<DBObject> docs)
+    {
+        DBCursor cursor = collection.find(query, fields).sort(new BasicDBObject(randomizerField, 1)).limit(limit);
+        if (maxScan > 0)
+        {
+            cursor.maxScan(maxScan);
+        }
+        try
+        {
+            while (cursor.hasNext())
+            {
+                docs.add(cursor.next());
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+    
+    private String getId(DBObject doc)
+    {
+        StringBuilder sb = new StringBuilder(64);
+        for (String idField : idFields)
+        {
+            sb.append(doc.get(idField)).append('\u0000');
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * @return                  <tt>true</tt> if the document has the values required by the criteria
+     */
+    public boolean matches(DBObject doc)
+    {
+        for (Map.Entry<String, Collection<String>> entry : criteria.entrySet())
+        {
+            Object value = doc.get(entry.getKey());
+            if (value == null || !entry.getValue().contains(value.toString()))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public boolean isComplete()
+    {
+        return complete;
+    }
+    
+    public boolean isExpired(long now)
+    {
+        return now >= expiry;
+    }
+    
+    /**
+     * A sample must be reloaded once it has expired.  A sample that does not hold every match
+     * is also reloaded once it has lost half of its documents, as it is then drawn from too few.
+     */
+    public synchronized boolean isStale(long now)
+    {
+        return isExpired(now) || (!complete && docs.size() * 2 <= loadedSize);
+    }
+    
+    /**
+     * @return                  the number of documents held when the sample was loaded
+     */
+    public int getLoadedSize()
+    {
+        return loadedSize;
+    }
+    
+    public synchronized int size()
+    {
+        return docs.size();
+    }
+    
+    /**
+     * @param doc               a document holding at least the ID fields
+     * @return                  <tt>true</tt> if the sample holds the document
+     */
+    public synchronized boolean contains(DBObject doc)
+    {
+        return positions.containsKey(getId(doc));
+    }
+    
+    /**
+     * @return                  a random document or <tt>null</tt> if there are none
+     */
+    public synchronized DBObject pick(Random random)
+    {
+        int size = docs.size();
+        return size == 0 ? null : docs.get(random.nextInt(size));
+    }
+    
+    /**
+     * Bring the sample up to date with a document that has been written
+     * 
+     * @param doc               the document as it is now stored
+     * @param maxSize           the largest number of documents to hold
+     * @return                  <tt>false</tt> if the sample can no longer be used and must be reloaded
+     */
+    public synchronized boolean update(DBObject doc, int maxSize)
+    {
+        String id = getId(doc);
+        Integer position = positions.get(id);
+        if (matches(doc))
+        {
+            if (position != null)
+            {
+                docs.set(position, doc);
+            }
+            else if (complete)
+            {
+                if (docs.size() >= maxSize)
+                {
+                    // Too many to hold every match
+                    return false;
+                }
+                positions.put(id, docs.size());
+                docs.add(doc);
+            }
+        }
+        else if (position != null)
+        {
+            removeAt(id, position);
+        }
+        return true;
+    }
+    
+    /**
+     * Remove a document that has been deleted or no longer matches
+     * 
+     * @param doc               a document holding at least the ID fields
+     */
+    public synchronized void remove(DBObject doc)
+    {
+        String id = getId(doc);
+        Integer position = positions.get(id);
+        if (position != null)
+        {
+            removeAt(id, position);
+        }
+    }
+    
+    private void removeAt(String id, int position)
+    {
+        // Move the last document into the gap
+        int last = docs.size() - 1;
+        DBObject lastDoc = docs.remove(last);
+        positions.remove(id);
+        if (position != last)
+        {
+            docs.set(position, lastDoc);
+            positions.put(getId(lastDoc), position);
+        }
+    }
+    
+    /**
+     * @return                  <tt>true</tt> if the caller must load the replacement sample or
+     *                          <tt>false</tt> if another thread is already doing so
+     */
+    boolean startReload()
+    {
+        return reloading.compareAndSet(false, true);
+    }
+    
+    void endReload()
+    {
+        reloading.set(false);
+    }
+}
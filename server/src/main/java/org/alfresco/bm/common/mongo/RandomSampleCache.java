@@ -0,0 +1,216 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.common.mongo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.mongodb.DBObject;
+
+/**
+ * {@link RandomSample Samples} keyed by their criteria and held in least recently used order.
+ * The least recently used samples are dropped when too many samples are held or when the samples
+ * hold too many documents between them.  An empty sample counts as one document.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class RandomSampleCache
+{
+    /**
+     * Loads a sample that is not held or must be replaced
+     */
+    public interface SampleLoader
+    {
+        /**
+         * @param now           the time from which the new sample's TTL runs
+         */
+        RandomSample load(long now);
+    }
+    
+
+    private final int maxSamples;
+    private final LinkedHashMap<String, RandomSample> samples;
+    private int maxDocuments;
+    /** The number of documents held by all the samples when they were loaded */
+    private long documents;
+    
+    /**
+     * @param maxSamples        the largest number of samples to hold
+     * @param maxDocuments      the largest number of documents to hold in all samples
+     */
+    public RandomSampleCache(int maxSamples, int maxDocuments)
+    {
+        this.maxSamples = maxSamples;
+        this.maxDocuments = maxDocuments;
+        this.samples = new LinkedHashMap<String, RandomSample>(64, 0.75f, true);
+    }
+    
+    private static long getWeight(RandomSample sample)
+    {
+        return Math.max(1, sample.getLoadedSize());
+    }
+    
+    public synchronized void setMaxDocuments(int maxDocuments)
+    {
+        this.maxDocuments = maxDocuments;
+        evict();
+    }
+    
+    /**
+     * @return                  the sample, which becomes the most recently used, or <tt>null</tt>
+     */
+    public synchronized RandomSample get(String key)
+    {
+        return samples.get(key);
+    }
+    
+    /**
+     * Get the sample, loading it if it is not held or is {@link RandomSample#isStale(long) stale}.
+     * Only one thread replaces a stale sample; other threads keep picking from it until the new
+     * sample is held, unless it is empty.  The sample is loaded without holding any lock.
+     * 
+     * @param loader            loads the sample when needed
+     */
+    public RandomSample getSample(String key, SampleLoader loader)
+    {
+        long now = System.currentTimeMillis();
+        RandomSample sample = get(key);
+        if (sample != null && !sample.isStale(now))
+        {
+            return sample;
+        }
+        boolean reloading = sample != null && sample.startReload();
+        if (sample != null && !reloading && sample.size() > 0)
+        {
+            // Another thread is loading the replacement
+            return sample;
+        }
+        try
+        {
+            RandomSample newSample = loader.load(now);
+            put(key, newSample);
+            return newSample;
+        }
+        finally
+        {
+            if (reloading)
+            {
+                sample.endReload();
+            }
+        }
+    }
+    
+    /**
+     * Hold a sample, dropping the least recently used samples if there are too many
+     */
+    public synchronized void put(String key, RandomSample sample)
+    {
+        RandomSample old = samples.put(key, sample);
+        if (old != null)
+        {
+            documents -= getWeight(old);
+        }
+        documents += getWeight(sample);
+        evict();
+    }
+    
+    /**
+     * Drop the least recently used samples, keeping at least the most recent one
+     */
+    private void evict()
+    {
+        Iterator<RandomSample> iterator = samples.values().iterator();
+        while (samples.size() > 1 && (samples.size() > maxSamples || documents > maxDocuments))
+        {
+            RandomSample eldest = iterator.next();
+            iterator.remove();
+            documents -= getWeight(eldest);
+        }
+    }
+    
+    /**
+     * Bring the samples up to date with a document that has been written, dropping samples that can
+     * no longer be used.  The order of use is not changed.
+     * 
+     * @see RandomSample#update(DBObject, int)
+     */
+    public synchronized void update(DBObject doc, int maxSize)
+    {
+        Iterator<Map.Entry<String, RandomSample>> iterator = samples.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            RandomSample sample = iterator.next().getValue();
+            if (!sample.update(doc, maxSize))
+            {
+                iterator.remove();
+                documents -= getWeight(sample);
+            }
+        }
+    }
+    
+    /**
+     * Remove a document that has been deleted from all samples.  The order of use is not changed.
+     * 
+     * @see RandomSample#remove(DBObject)
+     */
+    public synchronized void remove(DBObject doc)
+    {
+        for (RandomSample sample : samples.values())
+        {
+            sample.remove(doc);
+        }
+    }
+    
+    /**
+     * @param doc               a document holding at least the ID fields
+     * @return                  <tt>true</tt> if a change to the document could affect any sample, i.e.
+     *                          a sample holds it or holds every match
+     */
+    public synchronized boolean isAffectedBy(DBObject doc)
+    {
+        for (RandomSample sample : samples.values())
+        {
+            if (sample.isComplete() || sample.contains(doc))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public synchronized void clear()
+    {
+        samples.clear();
+        documents = 0L;
+    }
+    
+    public synchronized int size()
+    {
+        return samples.size();
+    }
+}
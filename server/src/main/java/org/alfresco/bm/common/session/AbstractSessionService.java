@@ -25,6 +25,8 @@
  */
 package org.alfresco.bm.common.session;
 
+import java.util.Collection;
+
 import com.mongodb.DBObject;
 
 /**
@@ -59,6 +61,117 @@ public abstract class AbstractSessionService implements SessionService
      */
     protected abstract boolean updateSessionData(String sessionId, DBObject data);
     
+    /**
+     * Apply changes to a number of sessions.  The default implementation updates each session in turn.
+     * 
+     * @since 3.0
+     */
+    protected void updateSessions(Collection<SessionUpdate> updates)
+    {
+        for (SessionUpdate update : updates)
+        {
+            if (update.isEndTimeSet())
+            {
+                updateSessionEndTime(update.getSessionId(), update.getEndTime());
+            }
+            if (update.isDataSet())
+            {
+                updateSessionData(update.getSessionId(), update.getData());
+            }
+        }
+    }
+    
+    /**
+     * Changes to the end time and/or data of a session
+     * 
+     * @author Derek Hulley
+     * @since 3.0
+     */
+    protected static class SessionUpdate
+    {
+        private final String sessionId;
+        private boolean endTimeSet;
+        private long endTime;
+        private boolean dataSet;
+        private DBObject data;
+        
+        public SessionUpdate(String sessionId)
+        {
+            this.sessionId = sessionId;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "SessionUpdate [sessionId=" + sessionId +
+                    (endTimeSet ? ", endTime=" + endTime : "") +
+                    (dataSet ? ", data=" + data : "") + "]";
+        }
+
+        public String getSessionId()
+        {
+            return sessionId;
+        }
+        
+        public boolean isEndTimeSet()
+        {
+            return endTimeSet;
+        }
+        public long getEndTime()
+        {
+            return endTime;
+        }
+        public void setEndTime(long endTime)
+        {
+            this.endTime = endTime;
+            this.endTimeSet = true;
+        }
+        
+        public boolean isDataSet()
+        {
+            return dataSet;
+        }
+        public DBObject getData()
+        {
+            return data;
+        }
+        public void setData(DBObject data)
+        {
+            this.data = data;
+            this.dataSet = true;
+        }
+        
+        /**
+         * Take any changes from an older update that have not been superseded by this one
+         */
+        public void mergeOlder(SessionUpdate older)
+        {
+            if (!endTimeSet && older.endTimeSet)
+            {
+                setEndTime(older.endTime);
+            }
+            if (!dataSet && older.dataSet)
+            {
+                setData(older.data);
+            }
+        }
+        
+        /**
+         * Apply the changes to the given session data
+         */
+        public void applyTo(SessionData sessionData)
+        {
+            if (endTimeSet)
+            {
+                sessionData.setEndTime(endTime);
+            }
+            if (dataSet)
+            {
+                sessionData.setData(data);
+            }
+        }
+    }
+    
     @Override
     public String startSession(DBObject data)
     {
@@ -0,0 +1,467 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.common.session;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.bm.common.spring.LifecycleListener;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Session service that keeps recently-used sessions in memory in front of another session service.
+ * <p/>
+ * Event processors look up a session's start time, end time and data for almost every event; without
+ * the cache, each lookup is a separate query.  When {@link #setCacheEnabled(boolean) enabled}:
+ * <ul>
+ *   <li>New sessions are written through immediately and cached.</li>
+ *   <li>Session end times and data are cached immediately and written behind, in bulk, after up to
+ *       the {@link #setFlushInterval(long) flush interval}.  Several changes to one session are
+ *       combined into one write.</li>
+ *   <li>Cached sessions are read again after the {@link #setCacheTTL(long) TTL}, so sessions changed by
+ *       other drivers are at most <tt>flushInterval + cacheTTL</tt> out of date.</li>
+ *   <li>No more than {@link #setCacheSize(int) cacheSize} sessions are held; the least recently used
+ *       sessions are dropped first.</li>
+ * </ul>
+ * When disabled (the default), all calls go directly to the underlying service.
+ *
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class CachingSessionService extends AbstractSessionService implements LifecycleListener
+{
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+    public static final long DEFAULT_CACHE_TTL = 10000L;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000L;
+    
+    private static Log logger = LogFactory.getLog(CachingSessionService.class);
+
+    private final AbstractSessionService sessionService;
+    private boolean cacheEnabled;
+    private int cacheSize;
+    private long cacheTTL;
+    private long flushInterval;
+    /** Cached sessions in order of use; guarded by itself */
+    private final Map<String, CachedSession> cache;
+    /** Guards the pending and flushing changes */
+    private final Object pendingLock = new Object();
+    /** Changes not yet picked up by a flush */
+    private Map<String, SessionUpdate> pending;
+    /** Changes being written by the current flush */
+    private Map<String, SessionUpdate> flushing;
+    /** Only one flush may run at a time */
+    private final Object flushLock = new Object();
+    /** Writes the pending changes; <tt>null</tt> when caching is not active */
+    private volatile ScheduledExecutorService flusher;
+    
+    /**
+     * @param sessionService        the service that stores the sessions
+     */
+    public CachingSessionService(AbstractSessionService sessionService)
+    {
+        this.sessionService = sessionService;
+        this.cacheEnabled = false;
+        this.cacheSize = DEFAULT_CACHE_SIZE;
+        this.cacheTTL = DEFAULT_CACHE_TTL;
+        this.flushInterval = DEFAULT_FLUSH_INTERVAL;
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<String, CachedSession>(128, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedSession> eldest)
+            {
+                return size() > CachingSessionService.this.cacheSize;
+            }
+        });
+        this.pending = new LinkedHashMap<String, SessionUpdate>();
+        this.flushing = Collections.emptyMap();
+    }
+    
+    /**
+     * Switch session caching on or off (default: off).  This must be set before the service is started.
+     */
+    public void setCacheEnabled(boolean cacheEnabled)
+    {
+        this.cacheEnabled = cacheEnabled;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_CACHE_SIZE default} maximum number of sessions held in memory
+     */
+    public void setCacheSize(int cacheSize)
+    {
+        if (cacheSize < 1)
+        {
+            throw new IllegalArgumentException("'cacheSize' must be greater than zero.");
+        }
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_CACHE_TTL default} time (milliseconds) after which a cached session
+     * is read again.  This bounds how out of date a session changed by another driver can be.
+     */
+    public void setCacheTTL(long cacheTTL)
+    {
+        if (cacheTTL < 0L)
+        {
+            throw new IllegalArgumentException("'cacheTTL' may not be negative.");
+        }
+        this.cacheTTL = cacheTTL;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_FLUSH_INTERVAL default} time (milliseconds) between bulk writes of
+     * session end times and data
+     */
+    public void setFlushInterval(long flushInterval)
+    {
+        if (flushInterval < 1L)
+        {
+            throw new IllegalArgumentException("'flushInterval' must be greater than zero.");
+        }
+        this.flushInterval = flushInterval;
+    }
+
+    @Override
+    public synchronized void start()
+    {
+        if (!cacheEnabled || flusher != null)
+        {
+            return;
+        }
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("SessionWriter-");
+        threadFactory.setDaemon(true);
+        ScheduledExecutorService newFlusher = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        newFlusher.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    flush();
+                }
+                catch (Throwable e)
+                {
+                    // The changes are kept and tried again
+                    logger.error("Failed to write session changes.", e);
+                }
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        flusher = newFlusher;
+    }
+
+    /**
+     * Stops caching and writes any changes that are still pending
+     */
+    @Override
+    public synchronized void stop() throws InterruptedException
+    {
+        ScheduledExecutorService oldFlusher = flusher;
+        if (oldFlusher == null)
+        {
+            return;
+        }
+        // Further calls go directly to the underlying service
+        flusher = null;
+        oldFlusher.shutdown();
+        oldFlusher.awaitTermination(flushInterval, TimeUnit.MILLISECONDS);
+        flush();
+        cache.clear();
+    }
+    
+    /**
+     * Write all pending session end times and data as a single bulk update
+     */
+    public void flush()
+    {
+        synchronized (flushLock)
+        {
+            Map<String, SessionUpdate> updates;
+            synchronized (pendingLock)
+            {
+                if (pending.isEmpty())
+                {
+                    return;
+                }
+                // Keep the changes visible to reloads until they have been written
+                updates = pending;
+                flushing = updates;
+                pending = new LinkedHashMap<String, SessionUpdate>();
+            }
+            boolean written = false;
+            try
+            {
+                sessionService.updateSessions(updates.values());
+                written = true;
+            }
+            finally
+            {
+                synchronized (pendingLock)
+                {
+                    if (!written)
+                    {
+                        // Put the changes back, behind any newer ones, to be tried again
+                        for (SessionUpdate update : updates.values())
+                        {
+                            SessionUpdate newer = pending.get(update.getSessionId());
+                            if (newer == null)
+                            {
+                                pending.put(update.getSessionId(), update);
+                            }
+                            else
+                            {
+                                newer.mergeOlder(update);
+                            }
+                        }
+                    }
+                    flushing = Collections.emptyMap();
+                }
+            }
+            // Done
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Wrote changes for " + updates.size() + " sessions.");
+            }
+        }
+    }
+    
+    /**
+     * Copy session data so that callers cannot change what is cached
+     */
+    private static DBObject copy(DBObject data)
+    {
+        return (data instanceof BasicDBObject) ? (DBObject) ((BasicDBObject) data).copy() : data;
+    }
+    
+    private static SessionData copy(SessionData sessionData)
+    {
+        SessionData copy = new SessionData(copy(sessionData.getData()));
+        copy.setId(sessionData.getId());
+        copy.setStartTime(sessionData.getStartTime());
+        copy.setEndTime(sessionData.getEndTime());
+        return copy;
+    }
+    
+    /**
+     * Add a session to the cache, dropping the least recently used session if necessary
+     */
+    private CachedSession cache(String sessionId, SessionData sessionData, long now)
+    {
+        CachedSession cached = new CachedSession(sessionData, now + cacheTTL);
+        cache.put(sessionId, cached);
+        return cached;
+    }
+
+    @Override
+    protected String newSession(SessionData sessionData)
+    {
+        String sessionId = sessionService.newSession(sessionData);
+        if (flusher != null)
+        {
+            SessionData cachedData = copy(sessionData);
+            cachedData.setId(sessionId);
+            cache(sessionId, cachedData, System.currentTimeMillis());
+        }
+        return sessionId;
+    }
+
+    @Override
+    protected SessionData findSessionData(String sessionId)
+    {
+        if (flusher == null)
+        {
+            return sessionService.findSessionData(sessionId);
+        }
+        long now = System.currentTimeMillis();
+        CachedSession cached = cache.get(sessionId);
+        if (cached == null || cached.expiryTime < now)
+        {
+            SessionData sessionData = sessionService.findSessionData(sessionId);
+            if (sessionData == null)
+            {
+                cache.remove(sessionId);
+                return null;
+            }
+            // Changes that have not been written yet take precedence
+            synchronized (pendingLock)
+            {
+                SessionUpdate update = flushing.get(sessionId);
+                if (update != null)
+                {
+                    update.applyTo(sessionData);
+                }
+                update = pending.get(sessionId);
+                if (update != null)
+                {
+                    update.applyTo(sessionData);
+                }
+            }
+            cached = cache(sessionId, sessionData, now);
+        }
+        return copy(cached.sessionData);
+    }
+    
+    /**
+     * Record a change to be written later and apply it to the cached session, if there is one
+     */
+    private void addPendingUpdate(SessionUpdate change)
+    {
+        String sessionId = change.getSessionId();
+        synchronized (pendingLock)
+        {
+            SessionUpdate update = pending.get(sessionId);
+            if (update == null)
+            {
+                pending.put(sessionId, change);
+            }
+            else
+            {
+                change.mergeOlder(update);
+                pending.put(sessionId, change);
+            }
+        }
+        synchronized (cache)
+        {
+            CachedSession cached = cache.get(sessionId);
+            if (cached != null)
+            {
+                SessionData sessionData = copy(cached.sessionData);
+                change.applyTo(sessionData);
+                cache.put(sessionId, new CachedSession(sessionData, cached.expiryTime));
+            }
+        }
+    }
+
+    @Override
+    protected void updateSessionEndTime(String sessionId, long endTime)
+    {
+        if (flusher == null)
+        {
+            sessionService.updateSessionEndTime(sessionId, endTime);
+            return;
+        }
+        SessionUpdate change = new SessionUpdate(sessionId);
+        change.setEndTime(endTime);
+        addPendingUpdate(change);
+    }
+
+    /**
+     * @return              <tt>true</tt> if the session exists; when caching, the change is only written later
+     */
+    @Override
+    protected boolean updateSessionData(String sessionId, DBObject data)
+    {
+        if (flusher == null)
+        {
+            return sessionService.updateSessionData(sessionId, data);
+        }
+        // Sessions are not deleted, so a cached session is known to exist
+        if (!cache.containsKey(sessionId) && findSessionData(sessionId) == null)
+        {
+            return false;
+        }
+        SessionUpdate change = new SessionUpdate(sessionId);
+        change.setData(copy(data));
+        addPendingUpdate(change);
+        return true;
+    }
+
+    /**
+     * Pending session changes are written first
+     */
+    @Override
+    public long getActiveSessionsCount()
+    {
+        flush();
+        return sessionService.getActiveSessionsCount();
+    }
+
+    /**
+     * Pending session changes are written first
+     */
+    @Override
+    public long getCompletedSessionsCount()
+    {
+        flush();
+        return sessionService.getCompletedSessionsCount();
+    }
+
+    /**
+     * Pending session changes are written first
+     */
+    @Override
+    public long getAllSessionsCount()
+    {
+        flush();
+        return sessionService.getAllSessionsCount();
+    }
+
+    /**
+     * Discards all cached sessions and pending changes
+     */
+    @Override
+    public boolean clear()
+    {
+        // Wait for any write in progress so that it cannot put its changes back
+        synchronized (flushLock)
+        {
+            synchronized (pendingLock)
+            {
+                pending.clear();
+                flushing = Collections.emptyMap();
+            }
+            cache.clear();
+            return sessionService.clear();
+        }
+    }
+    
+    /**
+     * A session held in memory until it expires
+     */
+    private static class CachedSession
+    {
+        private final SessionData sessionData;
+        private final long expiryTime;
+        
+        private CachedSession(SessionData sessionData, long expiryTime)
+        {
+            this.sessionData = sessionData;
+            this.expiryTime = expiryTime;
+        }
+    }
+}
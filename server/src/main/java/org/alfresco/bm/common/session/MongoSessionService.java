@@ -25,7 +25,9 @@
  */
 package org.alfresco.bm.common.session;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
@@ -37,6 +39,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bson.types.ObjectId;
 
+import java.util.Collection;
+
 /**
  * Mongo implementation of service providing access and management of {@link SessionData}.
  *
@@ -207,6 +211,58 @@ public class MongoSessionService extends AbstractSessionService implements Lifec
         }
     }
     
+    /**
+     * Writes all the changes as a single unordered bulk update
+     */
+    @Override
+    protected void updateSessions(Collection<SessionUpdate> updates)
+    {
+        if (updates.isEmpty())
+        {
+            return;
+        }
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        int count = 0;
+        for (SessionUpdate update : updates)
+        {
+            if (!ObjectId.isValid(update.getSessionId()))
+            {
+                // Don't let one bad ID fail the other updates
+                logger.error("Ignoring update for invalid session ID: " + update);
+                continue;
+            }
+            DBObject queryObj = BasicDBObjectBuilder.start()
+                    .add(FIELD_ID, new ObjectId(update.getSessionId()))
+                    .get();
+            BasicDBObject setObj = new BasicDBObject();
+            if (update.isEndTimeSet())
+            {
+                setObj.put(FIELD_END_TIME, update.getEndTime());
+            }
+            if (update.isDataSet())
+            {
+                setObj.put(FIELD_DATA, update.getData());
+            }
+            bulk.find(queryObj).updateOne(new BasicDBObject("$set", setObj));
+            count++;
+        }
+        if (count == 0)
+        {
+            return;
+        }
+        try
+        {
+            bulk.execute();
+        }
+        catch (MongoException e)
+        {
+            throw new RuntimeException(
+                    "Failed to update sessions: \n" +
+                    "   Sessions:     " + count,
+                    e);
+        }
+    }
+    
     @Override
     public long getActiveSessionsCount()
     {
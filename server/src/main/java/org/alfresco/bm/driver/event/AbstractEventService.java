@@ -25,6 +25,10 @@
  */
 package org.alfresco.bm.driver.event;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Services for {@link EventService} implementations.
  * 
@@ -33,4 +37,47 @@ package org.alfresco.bm.driver.event;
  */
 public abstract class AbstractEventService implements EventService
 {
+    /**
+     * Fallback implementation that repeatedly calls {@link #nextEvent(String, long)}.
+     * Implementations should override this if the underlying storage can lock several
+     * events in fewer operations.
+     */
+    @Override
+    public List<Event> nextEvents(String driverId, long latestScheduledTime, int maxCount)
+    {
+        if (maxCount < 1)
+        {
+            throw new IllegalArgumentException("'maxCount' must be greater than zero.");
+        }
+        List<Event> events = null;
+        for (int i = 0; i < maxCount; i++)
+        {
+            Event event = nextEvent(driverId, latestScheduledTime);
+            if (event == null)
+            {
+                break;
+            }
+            if (events == null)
+            {
+                events = new ArrayList<Event>(maxCount);
+            }
+            events.add(event);
+        }
+        // Done
+        if (events == null)
+        {
+            return Collections.emptyList();
+        }
+        return events;
+    }
+    
+    /**
+     * Fallback implementation that knows nothing about waiting events.  Callers will poll the queue
+     * instead.
+     */
+    @Override
+    public long getNextScheduledTime(String driverId)
+    {
+        return -1L;
+    }
 }
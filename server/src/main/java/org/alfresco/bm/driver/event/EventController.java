@@ -26,6 +26,7 @@
 package org.alfresco.bm.driver.event;
 
 import org.alfresco.bm.common.EventRecord;
+import org.alfresco.bm.common.Page;
 import org.alfresco.bm.common.ResultService;
 import org.alfresco.bm.common.spring.LifecycleListener;
 import org.alfresco.bm.common.util.log.LogService.LogLevel;
@@ -41,15 +42,13 @@ import org.springframework.context.ApplicationContextAware;
 import org.springframework.context.event.ContextStoppedEvent;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.RejectedExecutionHandler;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -72,16 +71,29 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
     private static final int DEFAULT_EVENTS_PER_SECOND_PER_THREAD = 2;
     /** How long a driver has to grab assigned events */
     private static final long DEFAULT_ASSIGNED_EVENT_GRACE_PERIOD = 5000L;
+    /** How many events are locked per search of the queue */
+    private static final int DEFAULT_EVENT_FETCH_BATCH_SIZE = 1;
+    /** How many events can wait for a free thread */
+    private static final int DEFAULT_DISPATCH_QUEUE_SIZE = 0;
+    /** How long to wait for a free thread before checking the run state again */
+    private static final long DISPATCH_WAIT = 1000L;
+    /** The longest time between searches of an empty queue */
+    private static final long DEFAULT_MAX_IDLE_BACKOFF = 250L;
+    /** How long to wait for permission to search before checking the run state again */
+    private static final long RATE_WAIT = 1000L;
     
     private static final Log logger = LogFactory.getLog(EventController.class);
     
     private final String driverId;
     private final String testRunFqn;
     private final EventService eventService;
+    /** Event service given to the event processing work so that new events wake the controller up */
+    private final EventService workEventService;
     private final EventProducerRegistry eventProducers;
     private final EventProcessorRegistry eventProcessors;
     private final Thread thread;
-    private final ExecutorService executor;
+    private final CustomizableThreadFactory threadFactory;
+    private EventDispatcher dispatcher;
     private final ResultService resultService;
     private final SessionService sessionService;
     private final TestRunLogService logService;
@@ -89,6 +101,14 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
 
     private int eventsPerSecondPerThread = DEFAULT_EVENTS_PER_SECOND_PER_THREAD;
     private long assignedEventGracePeriod = DEFAULT_ASSIGNED_EVENT_GRACE_PERIOD;
+    private int eventFetchBatchSize = DEFAULT_EVENT_FETCH_BATCH_SIZE;
+    private int dispatchQueueSize = DEFAULT_DISPATCH_QUEUE_SIZE;
+    private boolean virtualThreads = false;
+    private int eventBurst = 0;
+    private long maxIdleBackoff = DEFAULT_MAX_IDLE_BACKOFF;
+    private EventRateLimiter rateLimiter;
+    /** Events already locked by a batch fetch and waiting for dispatch (controller thread only) */
+    private final LinkedList<Event> readyEvents = new LinkedList<Event>();
 
     private volatile String[] driverIds = new String[0];
     private ApplicationContext ctx;
@@ -127,6 +147,7 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
         this.driverId = driverId;
         this.testRunFqn = testRunFqn;
         this.eventService = eventService;
+        this.workEventService = new SignallingEventService(eventService);
         this.eventProducers = eventProducers;
         this.eventProcessors = eventProcessors;
         this.resultService = resultService;
@@ -134,16 +155,9 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
         this.logService = logService;
         this.threadCount = threadCount;
         // Configure threads
-        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(testRunFqn + "-");
+        threadFactory = new CustomizableThreadFactory(testRunFqn + "-");
         threadFactory.setThreadGroup(thread.getThreadGroup());
         threadFactory.setDaemon(true);
-        // Configure work queue
-        SynchronousQueue<Runnable> queue = new SynchronousQueue<Runnable>(true);
-        // Configure executor
-        RejectedExecutionHandler abortPolicy = new ThreadPoolExecutor.CallerRunsPolicy();
-        executor = new ThreadPoolExecutor(
-                threadCount, threadCount, 60, TimeUnit.SECONDS,
-                queue, threadFactory, abortPolicy);
         
         setRunning(true);
     }
@@ -163,6 +177,43 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
         this.eventsPerSecondPerThread = eventsPerSecondPerThread;
     }
 
+    /**
+     * Set the number of events that can be processed in quick succession after a quiet period
+     * before the {@link #setEventsPerSecondPerThread(int) event rate} applies.  The default (zero)
+     * allows one second's worth of events.
+     */
+    public void setEventBurst(int eventBurst)
+    {
+        if (eventBurst < 0)
+        {
+            throw new IllegalArgumentException("eventBurst may not be negative.");
+        }
+        this.eventBurst = eventBurst;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MAX_IDLE_BACKOFF default} maximum time between searches
+     * when the event queue is empty.  Events added by this driver and events already waiting in the queue
+     * end the wait early.
+     */
+    public void setMaxIdleBackoff(long maxIdleBackoff)
+    {
+        if (maxIdleBackoff < TokenBucketRateLimiter.MIN_BACKOFF)
+        {
+            throw new IllegalArgumentException("maxIdleBackoff must be at least " + TokenBucketRateLimiter.MIN_BACKOFF + "ms.");
+        }
+        this.maxIdleBackoff = maxIdleBackoff;
+    }
+
+    /**
+     * Replace the default {@link TokenBucketRateLimiter token bucket} that controls the rate
+     * of event searches
+     */
+    public void setRateLimiter(EventRateLimiter rateLimiter)
+    {
+        this.rateLimiter = rateLimiter;
+    }
+
     /**
      * Override the {@link #DEFAULT_ASSIGNED_EVENT_GRACE_PERIOD default} time that an event can
      * be available on the queue for a specific driver before any other driver can pick it up.
@@ -172,6 +223,56 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
         this.assignedEventGracePeriod = assignedEventGracePeriod;
     }
 
+    /**
+     * Override the {@link #DEFAULT_EVENT_FETCH_BATCH_SIZE default} number of events that are
+     * locked with each search of the event queue.  Values greater than one cause the controller
+     * to keep a local buffer of locked events that is refilled only once it has been drained,
+     * which removes a queue round-trip for most dispatched events.
+     * <p/>
+     * Events held in the buffer are locked to this driver and cannot be picked up by other drivers;
+     * keep the value in proportion to the number of events this driver can process per second.
+     */
+    public void setEventFetchBatchSize(int eventFetchBatchSize)
+    {
+        if (eventFetchBatchSize < 1)
+        {
+            throw new IllegalArgumentException("eventFetchBatchSize must be greater than zero.");
+        }
+        this.eventFetchBatchSize = eventFetchBatchSize;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_DISPATCH_QUEUE_SIZE default} number of events that can be waiting
+     * for a free thread.  When all threads are busy and the queue is full, the controller stops fetching
+     * events until capacity is available.
+     */
+    public void setDispatchQueueSize(int dispatchQueueSize)
+    {
+        if (dispatchQueueSize < 0)
+        {
+            throw new IllegalArgumentException("dispatchQueueSize may not be negative.");
+        }
+        this.dispatchQueueSize = dispatchQueueSize;
+    }
+
+    /**
+     * Run each event on its own virtual thread, if supported by the JVM.  The thread count then limits
+     * the number of events in progress rather than the number of threads.
+     */
+    public void setVirtualThreads(boolean virtualThreads)
+    {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * @return              the dispatcher used to hand events to processing threads, giving access to
+     *                      saturation metrics, or <tt>null</tt> if the controller has not been started
+     */
+    public EventDispatcher getDispatcher()
+    {
+        return dispatcher;
+    }
+
     /**
      * Update the list of driver IDs in use.  This list can change at run time.
      */
@@ -215,6 +316,13 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
     @Override
     public void start()
     {
+        dispatcher = new EventDispatcher(threadFactory, threadCount, dispatchQueueSize, virtualThreads);
+        if (rateLimiter == null)
+        {
+            int eventsPerSecond = threadCount * eventsPerSecondPerThread;
+            int burst = (eventBurst > 0) ? eventBurst : eventsPerSecond;
+            rateLimiter = new TokenBucketRateLimiter(eventsPerSecond, burst, maxIdleBackoff);
+        }
         thread.start();
     }
     
@@ -222,8 +330,13 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
     public void stop()
     {
         setRunning(false);
+        if (dispatcher == null)
+        {
+            // Never started
+            return;
+        }
         // Stop the event processors
-        this.executor.shutdown();
+        dispatcher.shutdown();
         // If another thread is making this call then make sure we wait for the thread to kill itself
         if (!Thread.currentThread().equals(thread))
         {
@@ -232,20 +345,25 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
                 // Wake the EventController thread up
                 this.notify();
             }
+            rateLimiter.wakeUp();
             // Wait for the EventController thread to stop
             try { thread.join(); } catch (InterruptedException e) {}
         }
         // Now wait for the executing threads
-        try { executor.awaitTermination(30L, TimeUnit.SECONDS); } catch (InterruptedException e) {}
+        try { dispatcher.awaitTermination(30L, TimeUnit.SECONDS); } catch (InterruptedException e) {}
         // And finally, force the threads to die
-        if (!executor.isTerminated())
+        if (!dispatcher.isTerminated())
         {
-            List<Runnable> runnables = executor.shutdownNow();
+            List<Runnable> runnables = dispatcher.shutdownNow();
             if (runnables.size() > 0)
             {
                 logger.warn(testRunFqn + ": " + runnables.size() + " event processor threads did not stop within 30s.");
             }
         }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(testRunFqn + ": " + dispatcher);
+        }
     }
     
     @Override
@@ -288,68 +406,72 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
         Set<String> staleDrivers = new HashSet<String>(3);              // Keep track of any stale drivers
         
         int eventsPerSecond = (threadCount * eventsPerSecondPerThread);
-        String msgStarted = "Event processing started: " + testRunFqn + " (" + eventsPerSecond + " events per second using " + threadCount + " threads)";
+        String msgStarted = "Event processing started: " + testRunFqn + " (" + eventsPerSecond + " events per second using " + threadCount + " threads";
+        if (dispatcher.isVirtualThreads())
+        {
+            msgStarted += " as virtual threads";
+        }
+        if (eventFetchBatchSize > 1)
+        {
+            msgStarted += " and fetching up to " + eventFetchBatchSize + " events per search";
+        }
+        msgStarted += ")";
         logger.info("\t" + msgStarted);
         logService.log(LogLevel.INFO, msgStarted);
 
-        // Keep details on when we started looking for events
-        long eventProcessStartTime = System.currentTimeMillis();
-        int eventSearchesPerformed = 0;
+        // Events that were locked but could not be handed over for processing
+        List<Event> undispatchedEvents = new ArrayList<Event>(eventFetchBatchSize);
+        boolean saturationWarned = false;
+        long lastWakeTime = -1L;
         
 runStateChanged:
         while (isRunning())
         {
-            long eventProcessSearchTime = System.currentTimeMillis();
-            // Make sure we don't look for events too frequently
-            while (true)
+            // Events left from the last batch were paid for when the batch was found
+            boolean search = readyEvents.isEmpty();
+            if (search)
             {
-                if (!isRunning())
+                // Make sure we don't look for events too frequently
+                try
                 {
-                    break runStateChanged;
+                    if (!rateLimiter.acquire(RATE_WAIT))
+                    {
+                        // Check the run state and try again
+                        continue;
+                    }
                 }
-                // Calculate how many searches we are allowed to have performed
-                long eventProcessElapsedTime = eventProcessSearchTime - eventProcessStartTime;
-                int eventSearchesAllowed = (int) Math.floor((eventProcessElapsedTime/1000.0) * eventsPerSecond);
-                if (eventSearchesPerformed < eventSearchesAllowed)
+                catch (InterruptedException e)
                 {
-                    // Yield to other threads
-                    Thread.yield();
-                    // We are allowed to do more
-                    break;
+                    continue;
                 }
-                // We need to wait and allow enough time to elapse.
-                // We cut the mean time between checks in half
-                long toSleep = 1000L / eventsPerSecond / 2;
-                toSleep = (toSleep < 10L) ? 10L : toSleep;
-                synchronized (this)
+                if (!isRunning())
                 {
-                    try { this.wait(toSleep); } catch (InterruptedException e) {}
+                    break;
                 }
-                // Now go back around the see if we are allowed to proceed
-                eventProcessSearchTime = System.currentTimeMillis();
             }
-            // We record the event search regardless of missing or hit in the queue
-            eventSearchesPerformed++;
+            long eventProcessSearchTime = System.currentTimeMillis();
             // Grab an event
-            // First look for events specific to this driver
-            Event event = eventService.nextEvent(driverId, eventProcessSearchTime);
-            if (event == null)
+            Event event = (eventFetchBatchSize > 1) ?
+                    nextBufferedEvent(eventProcessSearchTime, staleDrivers) :
+                    nextEvent(eventProcessSearchTime, staleDrivers);
+            if (search)
             {
-                // Nothing found for the driver.
-                // Look for events from other drivers, giving them a grace period
-                event = eventService.nextEvent(null, eventProcessSearchTime - assignedEventGracePeriod);
-                if (event != null)
-                {
-                    String driver = event.getDriver();
-                    if (staleDrivers.add(driver))
-                    {
-                        logger.error("Driver " + driver + " is leaving stale events.  Check server load.");
-                    }
-                }
+                // Every event in a batch counts against the rate.
+                // Misses do not count against the rate but cause the controller to back off.
+                rateLimiter.searched((event == null) ? 0 : readyEvents.size() + 1);
             }
             // Do we have an event to process?
             if (event == null)
             {
+                // Wake up when the next waiting event is due, even if another driver or the server added it.
+                // An event that was already due but still not found must wait for the normal back-off.
+                long nextScheduledTime = eventService.getNextScheduledTime(driverId);
+                if (nextScheduledTime >= 0L &&
+                        (nextScheduledTime > eventProcessSearchTime || nextScheduledTime != lastWakeTime))
+                {
+                    lastWakeTime = nextScheduledTime;
+                    rateLimiter.eventAdded(nextScheduledTime);
+                }
                 long count = eventService.count();
                 if (count == 0)
                 {
@@ -393,36 +515,209 @@ runStateChanged:
                     event,
                     driverIds,
                     processor, eventProducers,
-                    eventService, resultService, sessionService,
+                    workEventService, resultService, sessionService,
                     logService);
             try
             {
                 // Grabbing an event automatically applies a short-lived lock to prevent
                 // any other drivers from grabbing the same event before the event is locked
                 // for execution.
-                executor.execute(work);
+                // Wait for capacity; we do not fetch any more events until the work is accepted
+                while (!dispatcher.dispatch(work, DISPATCH_WAIT))
+                {
+                    if (!isRunning())
+                    {
+                        undispatchedEvents.add(event);
+                        break runStateChanged;
+                    }
+                    if (!saturationWarned)
+                    {
+                        saturationWarned = true;
+                        logService.log(
+                                LogLevel.WARN, "EventController is waiting for free event processing threads.  "
+                                + "Are there enough drivers to handle the event load?");
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // Go around and check the run state
+                logger.debug("Interrupted while waiting to dispatch event: " + event);
             }
             catch (RejectedExecutionException e)
             {
-                // Should not occur as the caller executes
-                eventSearchesPerformed += threadCount;
-                // Log it
-                logService.log(
-                        LogLevel.WARN, "EventController's execution of an event was rejected.  "
-                        + "Are there enough drivers to handle the event load?");
+                // The dispatcher has been shut down
+                logger.debug("Execution of an event was rejected: " + event);
+                undispatchedEvents.add(event);
+            }
+        }
+        
+        // Let other drivers have the events that this driver locked but will not process
+        undispatchedEvents.addAll(readyEvents);
+        readyEvents.clear();
+        if (undispatchedEvents.size() > 0)
+        {
+            logger.warn(testRunFqn + ": " + undispatchedEvents.size() + " locked events were not dispatched before the controller stopped and will be released.");
+            try
+            {
+                eventService.releaseEvents(undispatchedEvents);
             }
             catch (RuntimeException e)
             {
-                // Put here in case a CallerRunsPolicy is used
-                logger.error("execute failed (pool or CallerRunsPolicy)", e);
+                logger.error(testRunFqn + ": Failed to release " + undispatchedEvents.size() + " locked events.", e);
             }
         }
-        
         String msgStopped = "Event processing stopped: " + testRunFqn;
         logger.info("\t" + msgStopped);
         logService.log(LogLevel.INFO, msgStopped);
     }
     
+    /**
+     * Lock the next event from the queue, looking first for events assigned to this driver
+     * and then for events left by other drivers.
+     */
+    private Event nextEvent(long eventProcessSearchTime, Set<String> staleDrivers)
+    {
+        // First look for events specific to this driver
+        Event event = eventService.nextEvent(driverId, eventProcessSearchTime);
+        if (event == null)
+        {
+            // Nothing found for the driver.
+            // Look for events from other drivers, giving them a grace period
+            event = eventService.nextEvent(null, eventProcessSearchTime - assignedEventGracePeriod);
+            if (event != null)
+            {
+                checkStaleDriver(event, staleDrivers);
+            }
+        }
+        return event;
+    }
+    
+    /**
+     * Take the next event from the local buffer, refilling the buffer with a batch fetch if it is empty.
+     * The same driver preference and grace period applies as for {@link #nextEvent(long, Set)}.
+     */
+    private Event nextBufferedEvent(long eventProcessSearchTime, Set<String> staleDrivers)
+    {
+        if (readyEvents.isEmpty())
+        {
+            // First look for events specific to this driver
+            List<Event> events = eventService.nextEvents(driverId, eventProcessSearchTime, eventFetchBatchSize);
+            if (events.isEmpty())
+            {
+                // Look for events from other drivers, giving them a grace period
+                events = eventService.nextEvents(null, eventProcessSearchTime - assignedEventGracePeriod, eventFetchBatchSize);
+                for (Event event : events)
+                {
+                    checkStaleDriver(event, staleDrivers);
+                }
+            }
+            readyEvents.addAll(events);
+        }
+        return readyEvents.poll();
+    }
+    
+    /**
+     * Log an error the first time that an event from another driver has to be picked up
+     */
+    private void checkStaleDriver(Event event, Set<String> staleDrivers)
+    {
+        String driver = event.getDriver();
+        if (staleDrivers.add(driver))
+        {
+            logger.error("Driver " + driver + " is leaving stale events.  Check server load.");
+        }
+    }
+    
+    /**
+     * Passes calls through to the event service, notifying the rate limiter of any new events
+     * that this driver can process.
+     * 
+     * @author Derek Hulley
+     * @since 3.0
+     */
+    private class SignallingEventService extends AbstractEventService
+    {
+        private final EventService eventService;
+        
+        private SignallingEventService(EventService eventService)
+        {
+            this.eventService = eventService;
+        }
+        
+        @Override
+        public String putEvent(Event event)
+        {
+            String id = eventService.putEvent(event);
+            String eventDriverId = event.getDriver();
+            if (rateLimiter != null && (eventDriverId == null || eventDriverId.equals(driverId)))
+            {
+                rateLimiter.eventAdded(event.getScheduledTime());
+            }
+            return id;
+        }
+        
+        @Override
+        public long count()
+        {
+            return eventService.count();
+        }
+        
+        @Override
+        public Event getEvent(String id)
+        {
+            return eventService.getEvent(id);
+        }
+        
+        @Override
+        public List<Event> getEvents(int skip, int limit)
+        {
+            return eventService.getEvents(skip, limit);
+        }
+        
+        @Override
+        public Page<Event> getEvents(String after, int limit)
+        {
+            return eventService.getEvents(after, limit);
+        }
+        
+        @Override
+        public Event nextEvent(String driverId, long latestScheduledTime)
+        {
+            return eventService.nextEvent(driverId, latestScheduledTime);
+        }
+        
+        @Override
+        public List<Event> nextEvents(String driverId, long latestScheduledTime, int maxCount)
+        {
+            return eventService.nextEvents(driverId, latestScheduledTime, maxCount);
+        }
+        
+        @Override
+        public void releaseEvents(List<Event> events)
+        {
+            eventService.releaseEvents(events);
+        }
+        
+        @Override
+        public long getNextScheduledTime(String driverId)
+        {
+            return eventService.getNextScheduledTime(driverId);
+        }
+        
+        @Override
+        public boolean deleteEvent(Event event)
+        {
+            return eventService.deleteEvent(event);
+        }
+        
+        @Override
+        public boolean clear()
+        {
+            return eventService.clear();
+        }
+    }
+    
     /** Keep track of event names that have been warned about w.r.t. missing event processors. */
     private Set<String> nullEventProcessorWarnings = Collections.synchronizedSet(new HashSet<String>());
     /**
@@ -0,0 +1,290 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.driver.event;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands events over to processing threads, applying backpressure to the caller when all
+ * threads are busy and the bounded hand-off queue is full.
+ * <p/>
+ * Unlike a <tt>CallerRunsPolicy</tt>, the caller is never used to process work itself; it
+ * {@link #dispatch(Runnable, long) waits} for capacity instead.  The number of events accepted but
+ * not yet completed never exceeds <tt>threadCount + queueSize</tt>.
+ * <p/>
+ * Optionally, each event can be run on its own virtual thread when the JVM supports it (Java 21+).
+ * In this mode the <tt>threadCount</tt> limits the number of events in progress rather than the
+ * number of platform threads, so it can be raised considerably for I/O-bound event processors.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class EventDispatcher
+{
+    private static final Log logger = LogFactory.getLog(EventDispatcher.class);
+    
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor threadPool;
+    private final boolean virtualThreads;
+    private final int capacity;
+    /** Permits for work that has been accepted but not completed */
+    private final Semaphore permits;
+    
+    private final AtomicInteger activeCount = new AtomicInteger(0);
+    private final AtomicLong dispatchedCount = new AtomicLong(0L);
+    private final AtomicLong saturatedCount = new AtomicLong(0L);
+    private final AtomicLong blockedTime = new AtomicLong(0L);
+    
+    /**
+     * @param threadFactory         the factory for the processing threads
+     * @param threadCount           the number of threads (or concurrent virtual threads) processing work
+     * @param queueSize             the number of items of work that may wait for a thread (zero for direct hand-off)
+     * @param virtualThreads        <tt>true</tt> to use a virtual thread per item of work, if supported
+     */
+    public EventDispatcher(CustomizableThreadFactory threadFactory, int threadCount, int queueSize, boolean virtualThreads)
+    {
+        if (threadCount < 1)
+        {
+            throw new IllegalArgumentException("'threadCount' must be greater than zero.");
+        }
+        if (queueSize < 0)
+        {
+            throw new IllegalArgumentException("'queueSize' may not be negative.");
+        }
+        ExecutorService virtualExecutor = virtualThreads ? createVirtualThreadExecutor() : null;
+        if (virtualExecutor != null)
+        {
+            this.executor = virtualExecutor;
+            this.threadPool = null;
+            this.virtualThreads = true;
+            this.capacity = threadCount;
+        }
+        else
+        {
+            // The queue is bounded by the permits
+            this.threadPool = new ThreadPoolExecutor(
+                    threadCount, threadCount, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+            this.executor = threadPool;
+            this.virtualThreads = false;
+            this.capacity = threadCount + queueSize;
+        }
+        this.permits = new Semaphore(capacity);
+    }
+    
+    /**
+     * Create an executor that starts a new virtual thread for each task.  Reflection is used
+     * to allow the code to compile and run on versions of Java that do not have virtual threads.
+     * 
+     * @return                      the executor or <tt>null</tt> if virtual threads are not available
+     */
+    private static ExecutorService createVirtualThreadExecutor()
+    {
+        try
+        {
+            Method method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        }
+        catch (Exception e)
+        {
+            logger.warn("Virtual threads are not supported by this JVM (" + System.getProperty("java.version") + "); using a thread pool.");
+            return null;
+        }
+    }
+    
+    /**
+     * Hand work over for processing, waiting for capacity if necessary.
+     * 
+     * @param work                  the work to execute
+     * @param timeout               the maximum time (milliseconds) to wait for capacity
+     * @return                      <tt>true</tt> if the work was accepted or <tt>false</tt> if there
+     *                              was no capacity within the given time
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     * @throws RejectedExecutionException if the dispatcher has been shut down
+     */
+    public boolean dispatch(final Runnable work, long timeout) throws InterruptedException
+    {
+        if (!permits.tryAcquire())
+        {
+            // We have to wait
+            saturatedCount.incrementAndGet();
+            long waitStart = System.nanoTime();
+            boolean acquired = permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+            blockedTime.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStart));
+            if (!acquired)
+            {
+                return false;
+            }
+        }
+        Runnable wrapper = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                activeCount.incrementAndGet();
+                try
+                {
+                    work.run();
+                }
+                finally
+                {
+                    activeCount.decrementAndGet();
+                    permits.release();
+                }
+            }
+        };
+        try
+        {
+            executor.execute(wrapper);
+        }
+        catch (RuntimeException e)
+        {
+            permits.release();
+            throw e;
+        }
+        dispatchedCount.incrementAndGet();
+        return true;
+    }
+    
+    /**
+     * @return                      <tt>true</tt> if each item of work runs on its own virtual thread
+     */
+    public boolean isVirtualThreads()
+    {
+        return virtualThreads;
+    }
+    
+    /**
+     * @return                      the maximum number of items of work accepted but not completed
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+    
+    /**
+     * @return                      the number of items of work currently being processed
+     */
+    public int getActiveCount()
+    {
+        return activeCount.get();
+    }
+    
+    /**
+     * @return                      the number of items of work waiting for a thread
+     */
+    public int getQueueDepth()
+    {
+        return (threadPool == null) ? 0 : threadPool.getQueue().size();
+    }
+    
+    /**
+     * @return                      the number of items of work accepted since the dispatcher was created
+     */
+    public long getDispatchedCount()
+    {
+        return dispatchedCount.get();
+    }
+    
+    /**
+     * @return                      the number of times that a caller had to wait for capacity
+     */
+    public long getSaturatedCount()
+    {
+        return saturatedCount.get();
+    }
+    
+    /**
+     * @return                      the total time (milliseconds) callers have spent waiting for capacity
+     */
+    public long getBlockedTime()
+    {
+        return blockedTime.get();
+    }
+    
+    /**
+     * Accept no further work but complete work already accepted
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+    
+    /**
+     * @see ExecutorService#awaitTermination(long, TimeUnit)
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return executor.awaitTermination(timeout, unit);
+    }
+    
+    /**
+     * @see ExecutorService#isTerminated()
+     */
+    public boolean isTerminated()
+    {
+        return executor.isTerminated();
+    }
+    
+    /**
+     * Attempt to stop all work in progress
+     * 
+     * @return                      the work that was never started
+     */
+    public List<Runnable> shutdownNow()
+    {
+        List<Runnable> runnables = executor.shutdownNow();
+        return (runnables == null) ? Collections.<Runnable>emptyList() : runnables;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "EventDispatcher " +
+                "[virtualThreads=" + virtualThreads +
+                ", capacity=" + capacity +
+                ", active=" + getActiveCount() +
+                ", queued=" + getQueueDepth() +
+                ", dispatched=" + getDispatchedCount() +
+                ", saturated=" + getSaturatedCount() +
+                ", blockedTime=" + getBlockedTime() +
+                "]";
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.driver.event;
+
+/**
+ * Controls how often the {@link EventController} may search for and dispatch events.
+ * <p/>
+ * The controller {@link #acquire(long) acquires} permission before every search of the event queue
+ * and reports back how many events the search {@link #searched(int) found}.  A search that locks a
+ * batch of events is permitted once; the other events in the batch are charged when the search
+ * reports them, so the rate is kept without a call to the limiter for every event.  Implementations
+ * can use the outcome to back off when the queue is empty; they are told when new events are
+ * {@link #eventAdded(long) added} so that the back-off can be cut short.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public interface EventRateLimiter
+{
+    /**
+     * Wait for permission to search for the next event.
+     * 
+     * @param timeout               the maximum time to wait (milliseconds)
+     * @return                      <tt>true</tt> if the search may proceed or <tt>false</tt> if
+     *                              permission was not given within the time allowed
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    boolean acquire(long timeout) throws InterruptedException;
+    
+    /**
+     * Record the outcome of a search that was {@link #acquire(long) permitted}
+     * 
+     * @param found                 the number of events found; any events beyond the first count
+     *                              against the rate as if they had been permitted separately
+     */
+    void searched(int found);
+    
+    /**
+     * Notification that an event that this driver can process has been added to the queue
+     * 
+     * @param scheduledTime         the time that the event is scheduled for
+     */
+    void eventAdded(long scheduledTime);
+    
+    /**
+     * Release any threads waiting to {@link #acquire(long) acquire} permission e.g. during shutdown
+     */
+    void wakeUp();
+}
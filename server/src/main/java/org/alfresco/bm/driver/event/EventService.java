@@ -25,6 +25,8 @@
  */
 package org.alfresco.bm.driver.event;
 
+import org.alfresco.bm.common.Page;
+
 import java.util.List;
 
 
@@ -67,6 +69,19 @@ public interface EventService
      */
     List<Event> getEvents(int skip, int limit);
     
+    /**
+     * Retrieve a page of events in the order in which they were created, continuing from a previous page
+     * 
+     * @param after                 the {@link Page#getNext() continuation token} from the previous page
+     *                              or <tt>null</tt> to start with the first event
+     * @param limit                 the maximum number of events to retrieve
+     * @return                      a page of events
+     * @throws IllegalArgumentException if the continuation token is not valid
+     * 
+     * @since 3.0
+     */
+    Page<Event> getEvents(String after, int limit);
+    
     /**
      * Retrieve the next event in the queue.  If the driver assignment is ignored, then the
      * scheduled time should be adjusted so that events for other drivers are only picked up
@@ -86,6 +101,49 @@ public interface EventService
      */
     Event nextEvent(String driverId, long latestScheduledTime);
     
+    /**
+     * Retrieve and lock a batch of events that are due for processing.  The semantics are the same
+     * as for {@link #nextEvent(String, long)} but up to <tt>maxCount</tt> events are locked in a
+     * single operation, which allows the caller to amortize the cost of the queue search over
+     * several events.
+     * <p/>
+     * Events are returned in order of scheduled time.  All returned events are locked
+     * to this service and must be processed or deleted by the caller.
+     * 
+     * @param driverId              the ID of the driver performing the search or <tt>null</tt>
+     *                              to fetch events assigned to any driver
+     * @param latestScheduledTime   the maximum scheduled time for events
+     * @param maxCount              the maximum number of events to lock and return (at least 1)
+     * @return                      Returns the locked events (never <tt>null</tt> but possibly empty)
+     * 
+     * @since 3.0
+     */
+    List<Event> nextEvents(String driverId, long latestScheduledTime, int maxCount);
+    
+    /**
+     * Give up events that were locked by {@link #nextEvent(String, long)} or
+     * {@link #nextEvents(String, long, int)} but that will not be processed, so that
+     * they can be picked up again straight away.
+     * 
+     * @param events                the locked events to release
+     * 
+     * @since 3.0
+     */
+    void releaseEvents(List<Event> events);
+    
+    /**
+     * Find the scheduled time of the earliest event that is available to a driver, without locking it.
+     * Idle drivers use this to wait for the next event rather than polling the queue.
+     * 
+     * @param driverId              the ID of the driver performing the search, as for
+     *                              {@link #nextEvent(String, long)}
+     * @return                      the scheduled time (milliseconds) of the earliest available event
+     *                              or <tt>-1</tt> if it is not known
+     * 
+     * @since 3.0
+     */
+    long getNextScheduledTime(String driverId);
+    
     /**
      * Delete an event from the provider.  This can be done after the event has
      * been fully processed and there is no further requirement for it.
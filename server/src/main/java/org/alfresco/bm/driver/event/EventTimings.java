@@ -0,0 +1,123 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.driver.event;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the time spent in named phases of an event's processing e.g. waiting for a
+ * connection or for the first byte of a response.  Collection happens on the processing
+ * thread between {@link #start()} and {@link #stop()}, which the driver calls around each
+ * event; times added on any other thread, or outside of event processing, are ignored.
+ * <p/>
+ * Times are accumulated in nanoseconds so that phases that occur several times within
+ * one event do not lose precision before they are reported.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public final class EventTimings
+{
+    private static final ThreadLocal<Map<String, long[]>> phasesThreadLocal = new ThreadLocal<Map<String, long[]>>();
+    
+    private EventTimings()
+    {
+    }
+    
+    /**
+     * Start collecting phase times for the current thread, discarding any times already collected
+     */
+    public static void start()
+    {
+        phasesThreadLocal.set(new LinkedHashMap<String, long[]>(8));
+    }
+    
+    /**
+     * @return                  <tt>true</tt> if phase times are being collected for the current thread
+     */
+    public static boolean isStarted()
+    {
+        return phasesThreadLocal.get() != null;
+    }
+    
+    /**
+     * Add time to a phase.  Nothing is recorded if collection has not been {@link #start() started}.
+     * 
+     * @param phase             the name of the phase
+     * @param nanos             the time spent in the phase (nanoseconds)
+     */
+    public static void add(String phase, long nanos)
+    {
+        Map<String, long[]> phases = phasesThreadLocal.get();
+        if (phases == null || nanos < 0L)
+        {
+            return;
+        }
+        long[] total = phases.get(phase);
+        if (total == null)
+        {
+            total = new long[1];
+            phases.put(phase, total);
+        }
+        total[0] += nanos;
+    }
+    
+    /**
+     * @param phase             the name of the phase
+     * @return                  the time collected for the phase so far (nanoseconds)
+     */
+    public static long get(String phase)
+    {
+        Map<String, long[]> phases = phasesThreadLocal.get();
+        long[] total = (phases == null) ? null : phases.get(phase);
+        return (total == null) ? 0L : total[0];
+    }
+    
+    /**
+     * Stop collecting phase times for the current thread
+     * 
+     * @return                  the time spent in each phase in the order first seen (milliseconds, rounded)
+     *                          or <tt>null</tt> if no phases were timed
+     */
+    public static Map<String, Long> stop()
+    {
+        Map<String, long[]> phases = phasesThreadLocal.get();
+        phasesThreadLocal.remove();
+        if (phases == null || phases.isEmpty())
+        {
+            return null;
+        }
+        Map<String, Long> phaseTimes = new LinkedHashMap<String, Long>(phases.size() * 2);
+        for (Map.Entry<String, long[]> entry : phases.entrySet())
+        {
+            long nanos = entry.getValue()[0];
+            phaseTimes.put(entry.getKey(), Long.valueOf((nanos + 500000L) / 1000000L));
+        }
+        return Collections.unmodifiableMap(phaseTimes);
+    }
+}
@@ -43,6 +43,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -68,6 +69,8 @@ public class EventWork implements Runnable
     private final ResultService resultService;
     private final SessionService sessionService;
     private final TestRunLogService logService;
+    /** When the work was created, which is just before it is handed to the processing threads */
+    private final long dispatchTime;
     
     /**
      * Construct work to be executed by a thread
@@ -91,6 +94,7 @@ public class EventWork implements Runnable
             EventService eventService, ResultService resultService, SessionService sessionService,
             TestRunLogService logService)
     {
+        this.dispatchTime = System.currentTimeMillis();
         this.driverId = driverId;
         this.testRunFqn = testRunFqn;
         this.event = event;
@@ -112,6 +116,8 @@ public class EventWork implements Runnable
 
         EventResult result = null;
         StopWatch stopWatch = new StopWatch();
+        // Collect the time spent in any phases timed by the processor e.g. HTTP connection lease
+        EventTimings.start();
         try
         {
             // Process the event
@@ -139,6 +145,7 @@ public class EventWork implements Runnable
         // See how long it took
         long before = stopWatch.getStartTime();
         long time = stopWatch.getTime();
+        Map<String, Long> phases = EventTimings.stop();
         
         // Get any supplemental data to be recorded
         Object data = result.getData();
@@ -150,6 +157,9 @@ public class EventWork implements Runnable
         EventRecord recordedEvent = new EventRecord(driverId, wasSuccess, before, time, data, event);
         recordedEvent.setChart(chart);
         recordedEvent.setProcessedBy(processor.getName());
+        recordedEvent.setPhases(phases);
+        // The start delay (from the scheduled time) is split into the time before and after dispatch
+        recordedEvent.setDispatchTime(dispatchTime);
         
         // Check the time taken against the time allowed
         if (time > warnDelay)
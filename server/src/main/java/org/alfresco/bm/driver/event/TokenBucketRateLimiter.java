@@ -0,0 +1,216 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.driver.event;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A token bucket {@link EventRateLimiter rate limiter}.
+ * <p/>
+ * Tokens accumulate at the required rate up to a maximum burst size and each search consumes one.
+ * Every further event found by a search consumes another token, which may leave the bucket in debt
+ * until enough tokens have accumulated again.
+ * Searches that find nothing return their token but put the limiter into an exponential back-off,
+ * starting at {@link #MIN_BACKOFF} and doubling up to the maximum back-off.  Adding an event that
+ * is due before the back-off ends brings the next search forward, so idle drivers neither poll
+ * continuously nor wait unnecessarily when new work arrives.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class TokenBucketRateLimiter implements EventRateLimiter
+{
+    /** The first back-off (milliseconds) after a search finds nothing */
+    public static final long MIN_BACKOFF = 5L;
+    
+    private final double tokensPerNano;
+    private final double burst;
+    private final long maxBackoff;
+    private final ReentrantLock lock;
+    private final Condition changed;
+    
+    private double tokens;
+    private long lastRefill;
+    /** Current back-off (milliseconds) or zero if the last search found something */
+    private long backoff;
+    /** No searches are permitted before this time (nanoseconds) */
+    private long backoffUntil;
+    
+    /**
+     * @param eventsPerSecond       the maximum sustained rate of searches
+     * @param burst                 the maximum number of searches that can be performed in quick
+     *                              succession after a quiet period (at least 1)
+     * @param maxBackoff            the maximum time (milliseconds) between searches when no events are found
+     */
+    public TokenBucketRateLimiter(double eventsPerSecond, int burst, long maxBackoff)
+    {
+        if (eventsPerSecond <= 0.0)
+        {
+            throw new IllegalArgumentException("'eventsPerSecond' must be greater than zero.");
+        }
+        if (burst < 1)
+        {
+            throw new IllegalArgumentException("'burst' must be at least 1.");
+        }
+        if (maxBackoff < MIN_BACKOFF)
+        {
+            throw new IllegalArgumentException("'maxBackoff' must be at least " + MIN_BACKOFF + "ms.");
+        }
+        this.tokensPerNano = eventsPerSecond / TimeUnit.SECONDS.toNanos(1L);
+        this.burst = burst;
+        this.maxBackoff = maxBackoff;
+        this.lock = new ReentrantLock();
+        this.changed = lock.newCondition();
+        // Allow the first search immediately
+        this.tokens = 1.0;
+        this.lastRefill = System.nanoTime();
+        this.backoff = 0L;
+        this.backoffUntil = lastRefill;
+    }
+    
+    /**
+     * Add tokens for the time elapsed.  The lock must be held.
+     */
+    private void refill(long now)
+    {
+        if (now > lastRefill)
+        {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+        }
+    }
+
+    @Override
+    public boolean acquire(long timeout) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try
+        {
+            while (true)
+            {
+                long now = System.nanoTime();
+                refill(now);
+                long waitNanos;
+                if (now - backoffUntil < 0L)
+                {
+                    // Still backing off from an empty queue
+                    waitNanos = backoffUntil - now;
+                }
+                else if (tokens >= 1.0)
+                {
+                    tokens -= 1.0;
+                    return true;
+                }
+                else
+                {
+                    // Wait for the next token
+                    waitNanos = (long) Math.ceil((1.0 - tokens) / tokensPerNano);
+                }
+                long remaining = deadline - now;
+                if (remaining <= 0L)
+                {
+                    return false;
+                }
+                changed.awaitNanos(Math.min(waitNanos, remaining));
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void searched(int found)
+    {
+        lock.lock();
+        try
+        {
+            if (found > 0)
+            {
+                // The first event was paid for on acquire
+                tokens -= (found - 1);
+                backoff = 0L;
+            }
+            else
+            {
+                // Misses do not count against the rate
+                tokens = Math.min(burst, tokens + 1.0);
+                backoff = (backoff == 0L) ? MIN_BACKOFF : Math.min(maxBackoff, backoff * 2L);
+                backoffUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void eventAdded(long scheduledTime)
+    {
+        lock.lock();
+        try
+        {
+            long now = System.nanoTime();
+            if (backoff == 0L || now - backoffUntil >= 0L)
+            {
+                // Not backing off
+                return;
+            }
+            long delay = Math.max(0L, scheduledTime - System.currentTimeMillis());
+            long dueTime = now + TimeUnit.MILLISECONDS.toNanos(delay);
+            if (dueTime - backoffUntil < 0L)
+            {
+                backoffUntil = dueTime;
+                backoff = 0L;
+                changed.signalAll();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void wakeUp()
+    {
+        lock.lock();
+        try
+        {
+            backoffUntil = System.nanoTime();
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
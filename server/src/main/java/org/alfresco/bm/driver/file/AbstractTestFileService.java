@@ -27,39 +27,161 @@ package org.alfresco.bm.driver.file;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Abstract service implementation of {@link FileDataService} based on MongoDB.
+ * <p/>
+ * Once the files have been indexed, lookups do not lock.  Each missing file is downloaded
+ * by one thread only; other threads asking for the same file wait for that download.
+ * All files can optionally be {@link #setPrefetchThreads(int) downloaded in the background}
+ * as soon as they have been indexed.
+ * <p/>
+ * The local mirror can be limited to a {@link #setCacheQuota(long) number of bytes}, in which case the
+ * {@link #setCacheEvictionPolicy(EvictionPolicy) least recently or least frequently} used files are deleted
+ * to make space.  Files handed out within the {@link #setCacheEvictionGracePeriod(long) grace period} are
+ * not deleted as the callers may still be using them.  Sizes and access statistics of the local files are kept
+ * in a {@link #CACHE_INDEX_FILE cache index} so that a restart does not need to check every local file.
  *
  * @author Derek Hulley
  * @since 1.4
  */
-public abstract class AbstractTestFileService implements TestFileService, InitializingBean
+public abstract class AbstractTestFileService implements TestFileService, TestContentService, InitializingBean, DisposableBean
 {
     private static final String PROPERTIES_FILE = "TestFileService.properties";
+    private static final String MANIFEST_FILE = "TestFileService.manifest";
+    private static final String CACHE_INDEX_FILE = "TestFileService.cache";
     private static final String PROPERTY_FILESET = "fileset";
+    /** The minimum time between writes of the cache index */
+    private static final long CACHE_INDEX_WRITE_INTERVAL = 10000L;
+    /** Eviction frees space down to this fraction of the quota so that it does not happen for every download */
+    private static final double CACHE_EVICTION_TARGET = 0.9;
+
+    public static final long DEFAULT_CACHE_EVICTION_GRACE_PERIOD = 60000L;
+
+    /**
+     * Choice of local files to delete when the {@link AbstractTestFileService#setCacheQuota(long) quota} is exceeded
+     *
+     * @since 3.0
+     */
+    public enum EvictionPolicy
+    {
+        /** Delete the least recently used files first */
+        LRU,
+        /** Delete the least frequently used files first */
+        LFU
+    }
 
     private static Log logger = LogFactory.getLog(AbstractTestFileService.class);
 
     private final FileDataService fileDataService;
     private final String localDir;
+    /** Downloads in progress keyed by local file name */
+    private final ConcurrentMap<String, FutureTask<File>> downloads;
 
+    /** Set once the files have been indexed; the fileset is always set first */
     volatile private File mirrorDir;
-    private String fileset;
+    volatile private String fileset;
+    private int prefetchThreads;
+    private long cacheQuota;
+    private EvictionPolicy cacheEvictionPolicy;
+    private long cacheEvictionGracePeriod;
+    /** Local files keyed by local file name */
+    private final ConcurrentMap<String, CachedFile> cachedFiles;
+    private final AtomicLong cachedBytes;
+    private final AtomicLong cacheIndexWriteTime;
+    volatile private boolean cacheIndexDirty;
+    private final Object evictionLock = new Object();
 
     public AbstractTestFileService(FileDataService fileDataService, String localDir)
     {
         this.fileDataService = fileDataService;
         this.localDir = localDir;
+        this.downloads = new ConcurrentHashMap<String, FutureTask<File>>();
+        this.prefetchThreads = 0;
+        this.cacheQuota = 0L;
+        this.cacheEvictionPolicy = EvictionPolicy.LRU;
+        this.cacheEvictionGracePeriod = DEFAULT_CACHE_EVICTION_GRACE_PERIOD;
+        this.cachedFiles = new ConcurrentHashMap<String, CachedFile>();
+        this.cachedBytes = new AtomicLong();
+        this.cacheIndexWriteTime = new AtomicLong();
+    }
+
+    /**
+     * Limit the number of bytes held in the local mirror.  When a download takes the mirror over
+     * the quota, other local files are deleted according to the {@link #setCacheEvictionPolicy(EvictionPolicy) eviction policy}.
+     * Deleted files are downloaded again when they are next used.
+     *
+     * @param cacheQuota            the maximum number of bytes or <tt>0</tt> (default) for no limit
+     * @since 3.0
+     */
+    public void setCacheQuota(long cacheQuota)
+    {
+        this.cacheQuota = cacheQuota;
+    }
+
+    /**
+     * @param cacheEvictionPolicy   the choice of files to delete when the quota is exceeded (default {@link EvictionPolicy#LRU LRU})
+     * @since 3.0
+     */
+    public void setCacheEvictionPolicy(EvictionPolicy cacheEvictionPolicy)
+    {
+        this.cacheEvictionPolicy = cacheEvictionPolicy;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_CACHE_EVICTION_GRACE_PERIOD default} time (milliseconds) after a file
+     * was last handed out during which it will not be deleted to make space.  The mirror can go over its
+     * quota if all the files are in use.
+     *
+     * @param cacheEvictionGracePeriod  the time that callers are expected to use a file for
+     * @since 3.0
+     */
+    public void setCacheEvictionGracePeriod(long cacheEvictionGracePeriod)
+    {
+        if (cacheEvictionGracePeriod < 0L)
+        {
+            throw new IllegalArgumentException("The cache eviction grace period cannot be negative.");
+        }
+        this.cacheEvictionGracePeriod = cacheEvictionGracePeriod;
+    }
+
+    /**
+     * Set the number of threads used to download all the files as soon as they have been indexed.
+     * The prefetch happens in the background and does not hold up the callers.
+     *
+     * @param prefetchThreads       the number of parallel downloads or <tt>0</tt> (default)
+     *                              to only download files when they are first requested
+     * @since 3.0
+     */
+    public void setPrefetchThreads(int prefetchThreads)
+    {
+        this.prefetchThreads = prefetchThreads;
     }
 
     @Override
@@ -78,6 +200,19 @@ public abstract class AbstractTestFileService implements TestFileService, Initia
         }
     }
 
+    /**
+     * Save the latest access statistics to the cache index
+     */
+    @Override
+    public void destroy()
+    {
+        File mirrorDir = this.mirrorDir;
+        if (mirrorDir != null && cacheIndexDirty)
+        {
+            writeCacheIndex(mirrorDir);
+        }
+    }
+
     /**
      * Get the data mirror path (relative to the root location).  This is implementation-specific
      * as it depends on the way in which data is stored in the remote location.
@@ -219,10 +354,14 @@ public abstract class AbstractTestFileService implements TestFileService, Initia
         // Get the local path (implementation-specific)
         String mirrorPath = getMirrorPath();
         // Make sure that the mirror directory is present
-        mirrorDir = initMirrorDir(localDir, mirrorPath);
+        File mirrorDir = initMirrorDir(localDir, mirrorPath);
 
         // Get the fileset
-        fileset = getFileset(mirrorDir);
+        String fileset = getFileset(mirrorDir);
+        // Get what was known about the local files
+        Map<String, CachedFile> cacheIndex = readCacheIndex(mirrorDir);
+        cachedFiles.clear();
+        cachedBytes.set(0L);
 
         // Get a listing of the files
         List<FileData> remoteFileDatas = listRemoteFiles();
@@ -232,6 +371,7 @@ public abstract class AbstractTestFileService implements TestFileService, Initia
         }
 
         // Index each of the files
+        List<FileData> fileDatas = new ArrayList<FileData>(remoteFileDatas.size());
         for (FileData remoteFileData : remoteFileDatas)
         {
             if (logger.isDebugEnabled())
@@ -260,6 +400,15 @@ public abstract class AbstractTestFileService implements TestFileService, Initia
                     {
                         localFile.delete();
                     }
+                    continue;
+                }
+                CachedFile cachedFile = cacheIndex.get(localName);
+                if (cachedFile != null && cachedFile.size == fileData.getSize())
+                {
+                    // The local file was complete when it was last seen
+                    addCachedFile(localName, cachedFile);
+                    fileDatas.add(fileData);
+                    continue;
                 }
                 // Check that the local file, if it exists, is of the correct size
                 File localFile = new File(mirrorDir, localName);
@@ -268,6 +417,11 @@ public abstract class AbstractTestFileService implements TestFileService, Initia
                     // Local file is incorrect
                     localFile.delete();
                 }
+                else if (localFile.exists())
+                {
+                    addCachedFile(localName, new CachedFile(localFile.length(), System.currentTimeMillis(), 0L));
+                }
+                fileDatas.add(fileData);
             }
             else
             {
@@ -281,11 +435,378 @@ public abstract class AbstractTestFileService implements TestFileService, Initia
                 fileData.setSize(remoteSize);
                 // Create the index data
                 fileDataService.createNewFileData(fileData);
+                fileDatas.add(fileData);
             }
         }
+        // Publish: the mirror directory must be set last as it marks the files as indexed
+        this.fileset = fileset;
+        this.mirrorDir = mirrorDir;
+        evictCachedFiles(mirrorDir, null);
+        writeCacheIndex(mirrorDir);
+        
+        if (prefetchThreads > 0)
+        {
+            prefetchFiles(mirrorDir, fileDatas);
+        }
         // Done
     }
 
+    /**
+     * Download the given files in the background using a bounded number of threads.
+     * Files that are already present locally are skipped.  Once all files have been
+     * processed, a {@link #MANIFEST_FILE manifest} of the verified local files is written.
+     */
+    private void prefetchFiles(final File mirrorDir, final List<FileData> fileDatas)
+    {
+        final AtomicInteger remaining = new AtomicInteger(fileDatas.size());
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("TestFileService-prefetch-");
+        threadFactory.setDaemon(true);
+        ExecutorService executor = new ThreadPoolExecutor(
+                prefetchThreads, prefetchThreads,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                threadFactory);
+        for (final FileData fileData : fileDatas)
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        // Do not fill the cache beyond its quota
+                        if (cacheQuota <= 0L || cachedBytes.get() + fileData.getSize() <= cacheQuota)
+                        {
+                            getFile(fileData);
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        logger.warn("Failed to prefetch file " + fileData.getRemoteName() + ": " + e.getMessage());
+                    }
+                    finally
+                    {
+                        if (remaining.decrementAndGet() == 0)
+                        {
+                            writeManifest(mirrorDir, fileDatas);
+                        }
+                    }
+                }
+            });
+        }
+        // Let the queued downloads complete and then release the threads
+        executor.shutdown();
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Prefetching " + fileDatas.size() + " files using " + prefetchThreads + " threads: " + this);
+        }
+    }
+
+    /**
+     * Write a {@link #MANIFEST_FILE manifest} of the local files that match their remote sizes.
+     * Each entry maps the remote name to the local name.
+     */
+    private void writeManifest(File mirrorDir, List<FileData> fileDatas)
+    {
+        Properties manifest = new Properties();
+        for (FileData fileData : fileDatas)
+        {
+            File localFile = new File(mirrorDir, fileData.getLocalName());
+            if (localFile.exists() && localFile.length() == fileData.getSize())
+            {
+                manifest.put(fileData.getRemoteName(), fileData.getLocalName());
+            }
+        }
+        storeProperties(
+                mirrorDir, MANIFEST_FILE, manifest,
+                "Verified local copies of fileset " + fileset + ": " + manifest.size() + " of " + fileDatas.size());
+        logger.info("Mirrored " + manifest.size() + " of " + fileDatas.size() + " files: " + this);
+    }
+
+    /**
+     * Write properties to a file in the mirror directory.  A temporary file is written first
+     * so that the file is never seen partially written.
+     */
+    private void storeProperties(File mirrorDir, String filename, Properties properties, String comments)
+    {
+        File file = new File(mirrorDir, filename);
+        File tempFile = new File(mirrorDir, filename + ".part");
+        FileWriter writer = null;
+        try
+        {
+            writer = new FileWriter(tempFile);
+            properties.store(writer, comments);
+            writer.close();
+            writer = null;
+            file.delete();
+            if (!tempFile.renameTo(file))
+            {
+                throw new IOException("Failed to move file into place.");
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to write file: " + file, e);
+        }
+        finally
+        {
+            if (writer != null)
+            {
+                try
+                {
+                    writer.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the {@link #CACHE_INDEX_FILE cache index} written by a previous run
+     *
+     * @return the size and access statistics of local files keyed by local file name
+     */
+    private Map<String, CachedFile> readCacheIndex(File mirrorDir)
+    {
+        Map<String, CachedFile> cacheIndex = new ConcurrentHashMap<String, CachedFile>();
+        File cacheIndexFile = new File(mirrorDir, CACHE_INDEX_FILE);
+        if (!cacheIndexFile.exists())
+        {
+            return cacheIndex;
+        }
+        Properties properties = new Properties();
+        FileReader reader = null;
+        try
+        {
+            reader = new FileReader(cacheIndexFile);
+            properties.load(reader);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Ignoring unreadable cache index: " + cacheIndexFile, e);
+            return cacheIndex;
+        }
+        finally
+        {
+            if (reader != null)
+            {
+                try
+                {
+                    reader.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+        for (String localName : properties.stringPropertyNames())
+        {
+            String[] values = properties.getProperty(localName).split(",");
+            try
+            {
+                long size = Long.parseLong(values[0]);
+                long lastAccess = Long.parseLong(values[1]);
+                long accessCount = Long.parseLong(values[2]);
+                cacheIndex.put(localName, new CachedFile(size, lastAccess, accessCount));
+            }
+            catch (RuntimeException e)
+            {
+                // Ignore the entry; the local file will be checked
+            }
+        }
+        return cacheIndex;
+    }
+
+    /**
+     * Write the {@link #CACHE_INDEX_FILE cache index} for use by the next run
+     */
+    private void writeCacheIndex(File mirrorDir)
+    {
+        cacheIndexDirty = false;
+        cacheIndexWriteTime.set(System.currentTimeMillis());
+        Properties properties = new Properties();
+        for (Map.Entry<String, CachedFile> entry : cachedFiles.entrySet())
+        {
+            CachedFile cachedFile = entry.getValue();
+            properties.put(
+                    entry.getKey(),
+                    cachedFile.size + "," + cachedFile.lastAccess + "," + cachedFile.accessCount.get());
+        }
+        storeProperties(
+                mirrorDir, CACHE_INDEX_FILE, properties,
+                "Local files of fileset " + fileset + ": size,lastAccess,accessCount");
+    }
+
+    /**
+     * Write the {@link #CACHE_INDEX_FILE cache index} if it has changed and has not been written recently
+     */
+    private void writeCacheIndexIfRequired(File mirrorDir)
+    {
+        long lastWriteTime = cacheIndexWriteTime.get();
+        long now = System.currentTimeMillis();
+        if (cacheIndexDirty && now - lastWriteTime >= CACHE_INDEX_WRITE_INTERVAL && cacheIndexWriteTime.compareAndSet(lastWriteTime, now))
+        {
+            writeCacheIndex(mirrorDir);
+        }
+    }
+
+    private void addCachedFile(String localName, CachedFile cachedFile)
+    {
+        if (cachedFiles.putIfAbsent(localName, cachedFile) == null)
+        {
+            cachedBytes.addAndGet(cachedFile.size);
+            cacheIndexDirty = true;
+        }
+    }
+
+    /**
+     * Record the use of a local file
+     *
+     * @return                      <tt>true</tt> if the file can be used or <tt>false</tt> if it is being evicted
+     */
+    private boolean touchCachedFile(String localName, File localFile)
+    {
+        CachedFile cachedFile = cachedFiles.get(localName);
+        if (cachedFile == null)
+        {
+            addCachedFile(localName, new CachedFile(localFile.length(), System.currentTimeMillis(), 1L));
+            return true;
+        }
+        synchronized (cachedFile)
+        {
+            if (cachedFile.evicted)
+            {
+                return false;
+            }
+            cachedFile.lastAccess = System.currentTimeMillis();
+            cachedFile.accessCount.incrementAndGet();
+        }
+        cacheIndexDirty = true;
+        return true;
+    }
+
+    /**
+     * Delete local files if the mirror is over its {@link #setCacheQuota(long) quota}.
+     * Files being downloaded and files handed out within the {@link #setCacheEvictionGracePeriod(long) grace period}
+     * are never deleted.
+     *
+     * @param keepLocalName         the name of a local file that must not be deleted (may be <tt>null</tt>)
+     */
+    private void evictCachedFiles(File mirrorDir, String keepLocalName)
+    {
+        if (cacheQuota <= 0L || cachedBytes.get() <= cacheQuota)
+        {
+            return;
+        }
+        synchronized (evictionLock)
+        {
+            if (cachedBytes.get() <= cacheQuota)
+            {
+                // Another thread has made space
+                return;
+            }
+            // Order the files so that the first ones are deleted first
+            List<Map.Entry<String, CachedFile>> entries = new ArrayList<Map.Entry<String, CachedFile>>(cachedFiles.entrySet());
+            final EvictionPolicy evictionPolicy = cacheEvictionPolicy;
+            Collections.sort(entries, new Comparator<Map.Entry<String, CachedFile>>()
+            {
+                @Override
+                public int compare(Map.Entry<String, CachedFile> entry1, Map.Entry<String, CachedFile> entry2)
+                {
+                    CachedFile cachedFile1 = entry1.getValue();
+                    CachedFile cachedFile2 = entry2.getValue();
+                    if (evictionPolicy == EvictionPolicy.LFU)
+                    {
+                        int result = Long.compare(cachedFile1.accessCount.get(), cachedFile2.accessCount.get());
+                        if (result != 0)
+                        {
+                            return result;
+                        }
+                    }
+                    return Long.compare(cachedFile1.lastAccess, cachedFile2.lastAccess);
+                }
+            });
+            long target = (long) (cacheQuota * CACHE_EVICTION_TARGET);
+            long inUseTime = System.currentTimeMillis() - cacheEvictionGracePeriod;
+            int evicted = 0;
+            for (Map.Entry<String, CachedFile> entry : entries)
+            {
+                if (cachedBytes.get() <= target)
+                {
+                    break;
+                }
+                String localName = entry.getKey();
+                if (localName.equals(keepLocalName) || downloads.containsKey(localName))
+                {
+                    continue;
+                }
+                CachedFile cachedFile = entry.getValue();
+                // Check the access time again while holding off other threads that want the file
+                synchronized (cachedFile)
+                {
+                    if (cachedFile.lastAccess > inUseTime)
+                    {
+                        continue;
+                    }
+                    cachedFile.evicted = true;
+                    new File(mirrorDir, localName).delete();
+                }
+                if (cachedFiles.remove(localName, cachedFile))
+                {
+                    cachedBytes.addAndGet(-cachedFile.size);
+                    evicted++;
+                }
+            }
+            cacheIndexDirty = true;
+            if (cachedBytes.get() > cacheQuota)
+            {
+                logger.warn("Files in use are holding " + cachedBytes.get() + " bytes in " + mirrorDir + ", which is over the quota of " + cacheQuota);
+            }
+            else if (logger.isDebugEnabled())
+            {
+                logger.debug("Evicted " + evicted + " files leaving " + cachedBytes.get() + " bytes in " + mirrorDir);
+            }
+        }
+    }
+
+    /**
+     * Size and access statistics of a local file
+     */
+    private static class CachedFile
+    {
+        private final long size;
+        volatile private long lastAccess;
+        private final AtomicLong accessCount;
+        /** Set while synchronized on this instance when the local file is deleted */
+        private boolean evicted;
+
+        private CachedFile(long size, long lastAccess, long accessCount)
+        {
+            this.size = size;
+            this.lastAccess = lastAccess;
+            this.accessCount = new AtomicLong(accessCount);
+        }
+    }
+
+    /**
+     * Ensure that the files have been indexed without locking if they already have been
+     *
+     * @return the directory where files are mirrored
+     */
+    private File getMirrorDir()
+    {
+        File mirrorDir = this.mirrorDir;
+        if (mirrorDir == null)
+        {
+            indexFileData(false);
+            mirrorDir = this.mirrorDir;
+        }
+        return mirrorDir;
+    }
+
     /**
      * Download the file represented from the remote location to the local file.
      * Note that all stream closures must be handled internally but IO errors
@@ -300,7 +821,7 @@ public abstract class AbstractTestFileService implements TestFileService, Initia
     @Override
     public File getFileByName(String filename)
     {
-        indexFileData(false);
+        getMirrorDir();
         FileData fileData = fileDataService.findFile(fileset, filename);
         return getFile(fileData);
     }
@@ -308,7 +829,7 @@ public abstract class AbstractTestFileService implements TestFileService, Initia
     @Override
     public File getFile()
     {
-        indexFileData(false);
+        getMirrorDir();
         FileData fileData = fileDataService.getRandomFile(fileset);
         return getFile(fileData);
     }
@@ -316,46 +837,146 @@ public abstract class AbstractTestFileService implements TestFileService, Initia
     @Override
     public File getFile(String extension)
     {
-        indexFileData(false);
+        getMirrorDir();
         FileData fileData = fileDataService.getRandomFile(fileset, extension);
         return getFile(fileData);
     }
 
+    @Override
+    public TestContent getContentByName(String name)
+    {
+        return toContent(getFileByName(name));
+    }
+
+    @Override
+    public TestContent getContent()
+    {
+        return toContent(getFile());
+    }
+
+    @Override
+    public TestContent getContent(String extension)
+    {
+        return toContent(getFile(extension));
+    }
+
+    private TestContent toContent(File file)
+    {
+        return file == null ? null : new FileTestContent(file);
+    }
+
     /**
      * Resolve the given file data into a real file
      */
-    private File getFile(FileData fileData)
+    private File getFile(final FileData fileData)
     {
         if (fileData == null)
         {
             return null;
         }
-        indexFileData(false);
+        final File mirrorDir = getMirrorDir();
         // We have some data.
         // Do we already have it locally?
-        File localFile = new File(mirrorDir, fileData.getLocalName());
-        // Download the file, if required
-        if (!localFile.exists())
+        String localName = fileData.getLocalName();
+        final File localFile = new File(mirrorDir, localName);
+        if (localFile.exists() && touchCachedFile(localName, localFile))
+        {
+            writeCacheIndexIfRequired(mirrorDir);
+            return localFile;
+        }
+        // Download the file, unless another thread is already doing so
+        FutureTask<File> download = new FutureTask<File>(new Callable<File>()
+        {
+            @Override
+            public File call() throws Exception
+            {
+                return downloadFile(fileData, mirrorDir, localFile);
+            }
+        });
+        FutureTask<File> existingDownload = downloads.putIfAbsent(localName, download);
+        if (existingDownload == null)
         {
             try
             {
-                downloadRemoteFile(fileData, localFile);
+                download.run();
             }
-            catch (Exception e)
+            finally
             {
-                // Unable to get the remote file
-                String remoteName = fileData.getRemoteName();
-                fileDataService.removeFile(fileset, remoteName);
-                try
-                {
-                    localFile.delete();
-                }
-                catch (Exception ee)
-                {
-                }
-                throw new RuntimeException("Failed to download file from remote server: " + this, e);
+                downloads.remove(localName, download);
+            }
+        }
+        else
+        {
+            download = existingDownload;
+        }
+        // Wait for the download
+        try
+        {
+            return download.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for file download: " + this, e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException("Failed to download file from remote server: " + this, cause);
+        }
+    }
+
+    /**
+     * Download a file into the mirror.  The file is written to a temporary file first so that
+     * other threads never see a partial file.
+     */
+    private File downloadFile(FileData fileData, File mirrorDir, File localFile)
+    {
+        // Check again as another download might have completed just before this one started
+        if (localFile.exists() && touchCachedFile(fileData.getLocalName(), localFile))
+        {
+            return localFile;
+        }
+        File tempFile = new File(mirrorDir, fileData.getLocalName() + ".part");
+        try
+        {
+            downloadRemoteFile(fileData, tempFile);
+            if (!tempFile.renameTo(localFile))
+            {
+                throw new IOException("Failed to move downloaded file into place: " + localFile);
+            }
+        }
+        catch (Exception e)
+        {
+            // Unable to get the remote file
+            String remoteName = fileData.getRemoteName();
+            fileDataService.removeFile(fileset, remoteName);
+            try
+            {
+                tempFile.delete();
+            }
+            catch (Exception ee)
+            {
+            }
+            throw new RuntimeException("Failed to download file from remote server: " + this, e);
+        }
+        // Make space for it
+        String localName = fileData.getLocalName();
+        while (!touchCachedFile(localName, localFile))
+        {
+            // The previous copy of the file is still being evicted
+            CachedFile evictedFile = cachedFiles.get(localName);
+            if (evictedFile != null && cachedFiles.remove(localName, evictedFile))
+            {
+                cachedBytes.addAndGet(-evictedFile.size);
             }
         }
+        evictCachedFiles(mirrorDir, localName);
+        writeCacheIndexIfRequired(mirrorDir);
         // Done
         return localFile;
     }
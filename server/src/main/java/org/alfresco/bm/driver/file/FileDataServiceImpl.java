@@ -25,6 +25,7 @@
  */
 package org.alfresco.bm.driver.file;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
@@ -32,10 +33,21 @@ import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
+import org.alfresco.bm.common.mongo.RandomSample;
+import org.alfresco.bm.common.mongo.RandomSampleCache;
+import org.alfresco.bm.common.mongo.RandomSampleCache.SampleLoader;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.InitializingBean;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
 /**
  * Concrete service implementation of {@link FileDataService} based on MongoDB.
  *
@@ -53,13 +65,56 @@ public class FileDataServiceImpl implements FileDataService, InitializingBean
     public static final String FIELD_SIZE = "size";
     public static final String FIELD_RANDOMIZER = "randomizer";
     
+    public static final long DEFAULT_FILESET_INDEX_TTL = 60000L;
+    public static final int DEFAULT_FILESET_INDEX_MAX_SIZE = 100000;
+    
+    /** Limit the number of filesets, and filesets with an extension, that are sampled */
+    private static final int MAX_SAMPLES = 1000;
+    private static final String[] FILE_ID_FIELDS = new String[] {FIELD_FILESET, FIELD_REMOTE_NAME};
+    
     private static final Log logger = LogFactory.getLog(FileDataServiceImpl.class);
     
     private DBCollection collection;
+    private long filesetIndexTTL;
+    private int filesetIndexMaxSize;
+    /** Files held locally for random selection, keyed by fileset and extension */
+    private final RandomSampleCache fileSamples;
     
     public FileDataServiceImpl(DB db, String collection)
     {
         this.collection = db.getCollection(collection);
+        this.filesetIndexTTL = DEFAULT_FILESET_INDEX_TTL;
+        this.filesetIndexMaxSize = DEFAULT_FILESET_INDEX_MAX_SIZE;
+        this.fileSamples = new RandomSampleCache(MAX_SAMPLES, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Override the {@link #DEFAULT_FILESET_INDEX_TTL default} time (milliseconds) for which the
+     * files of a fileset are held locally for random selection.  Changes made through this
+     * service are seen immediately; changes made elsewhere are seen once the files are reloaded.
+     * 
+     * @since 3.0
+     */
+    public void setFilesetIndexTTL(long filesetIndexTTL)
+    {
+        this.filesetIndexTTL = filesetIndexTTL;
+        fileSamples.clear();
+    }
+    
+    /**
+     * Override the {@link #DEFAULT_FILESET_INDEX_MAX_SIZE default} number of files held locally for
+     * each fileset, or fileset and extension.  Larger filesets are sampled: a run of this many files,
+     * starting at a random point of the {@link #FIELD_RANDOMIZER randomizer} index, is held until
+     * it is reloaded.
+     * 
+     * @param filesetIndexMaxSize       the maximum number of files held or <tt>0</tt> to never hold files locally
+     * 
+     * @since 3.0
+     */
+    public void setFilesetIndexMaxSize(int filesetIndexMaxSize)
+    {
+        this.filesetIndexMaxSize = filesetIndexMaxSize;
+        fileSamples.clear();
     }
     
     @Override
@@ -149,6 +204,7 @@ public class FileDataServiceImpl implements FileDataService, InitializingBean
                 .add(FIELD_RANDOMIZER, fileData.getRandomizer())
                 .get();
         WriteResult result = collection.insert(fileDataObj);
+        fileSamples.update(fileDataObj, filesetIndexMaxSize);
         
         if (logger.isDebugEnabled())
         {
@@ -168,18 +224,6 @@ public class FileDataServiceImpl implements FileDataService, InitializingBean
         return collection.count(queryObj);
     }
 
-    /**
-     * Count the number of files of the given type in a fileset
-     */
-    private long fileCount(String fileset, String extension)
-    {
-        DBObject queryObj = BasicDBObjectBuilder.start()
-                .add(FIELD_FILESET, fileset)
-                .add(FIELD_EXTENSION, extension)
-                .get();
-        return collection.count(queryObj);
-    }
-
     @Override
     public FileData findFile(String fileset, String remoteName)
     {
@@ -214,6 +258,7 @@ public class FileDataServiceImpl implements FileDataService, InitializingBean
                 .add(FIELD_REMOTE_NAME, remoteName)
                 .get();
         WriteResult result = collection.remove(queryObj);
+        fileSamples.remove(queryObj);
         
         if (logger.isDebugEnabled())
         {
@@ -224,57 +269,91 @@ public class FileDataServiceImpl implements FileDataService, InitializingBean
     @Override
     public FileData getRandomFile(String fileset)
     {
-        long count = fileCount(fileset);
-        if (count == 0L)
+        Map<String, Collection<String>> criteria = new LinkedHashMap<String, Collection<String>>(3);
+        criteria.put(FIELD_FILESET, Collections.singleton(fileset));
+        return getRandomFile(criteria);
+    }
+
+    @Override
+    public FileData getRandomFile(String fileset, String extension)
+    {
+        Map<String, Collection<String>> criteria = new LinkedHashMap<String, Collection<String>>(3);
+        criteria.put(FIELD_FILESET, Collections.singleton(fileset));
+        criteria.put(FIELD_EXTENSION, Collections.singleton(extension));
+        return getRandomFile(criteria);
+    }
+    
+    private FileData getRandomFile(final Map<String, Collection<String>> criteria)
+    {
+        if (filesetIndexMaxSize <= 0)
         {
-            // There is nothing to choose from
-            return null;
+            return findRandomFile(RandomSample.toQuery(criteria));
         }
-        // Use a random number from 0 (inclusive) to 'count' (exclusive)
-        int skip = (int) (Math.random() * (double) count);
-        
-        DBObject queryObj = BasicDBObjectBuilder.start()
-                .add(FIELD_FILESET, fileset)
-                .get();
-        DBCursor results = collection.find(queryObj).skip(skip).limit(1);
-        if (results.size() == 0)
+        RandomSample sample = fileSamples.getSample(criteria.toString(), new SampleLoader()
         {
-            // No results
-            return null;
-        }
-        else
+            @Override
+            public RandomSample load(long now)
+            {
+                return loadFiles(criteria, now);
+            }
+        });
+        DBObject fileDataObj = sample.pick(ThreadLocalRandom.current());
+        return fileDataObj == null ? null : fromDBObject(fileDataObj);
+    }
+    
+    /**
+     * Find a random file using the {@link #FIELD_RANDOMIZER randomizer} index: the first file at or
+     * after a random value is chosen, wrapping around to the first file overall if there is none.
+     * This costs one or two indexed lookups regardless of the number of files but is not uniform:
+     * a file is chosen in proportion to the gap between its randomizer value and the one before it.
+     */
+    private FileData findRandomFile(DBObject queryObj)
+    {
+        int random = ThreadLocalRandom.current().nextInt(1000000);
+        DBObject sortObj = BasicDBObjectBuilder.start()
+                .add(FIELD_RANDOMIZER, 1)
+                .get();
+        DBObject randomQueryObj = new BasicDBObject(queryObj.toMap());
+        randomQueryObj.put(FIELD_RANDOMIZER, new BasicDBObject("$gte", random));
+        DBObject fileDataObj = findFirst(randomQueryObj, sortObj);
+        if (fileDataObj == null)
         {
-            DBObject fileDataObj = results.next();
-            return fromDBObject(fileDataObj);
+            fileDataObj = findFirst(queryObj, sortObj);
         }
+        return fileDataObj == null ? null : fromDBObject(fileDataObj);
     }
-
-    @Override
-    public FileData getRandomFile(String fileset, String extension)
+    
+    private DBObject findFirst(DBObject queryObj, DBObject sortObj)
     {
-        long count = fileCount(fileset, extension);
-        if (count == 0L)
+        DBCursor cursor = collection.find(queryObj).sort(sortObj).limit(1);
+        try
         {
-            // There is nothing to choose from
-            return null;
+            return cursor.hasNext() ? cursor.next() : null;
         }
-        // Use a random number from 0 (inclusive) to 'count' (exclusive)
-        int skip = (int) (Math.random() * (double) count);
-        
-        DBObject queryObj = BasicDBObjectBuilder.start()
-                .add(FIELD_FILESET, fileset)
-                .add(FIELD_EXTENSION, extension)
-                .get();
-        DBCursor results = collection.find(queryObj).skip(skip).limit(1);
-        if (results.size() == 0)
+        finally
         {
-            // No results
-            return null;
+            cursor.close();
         }
-        else
+    }
+    
+    /**
+     * Load the files matching the criteria.  If there are more than can be held, a run of them starting
+     * at a random point of the {@link #FIELD_RANDOMIZER randomizer} index is held instead; the randomizer
+     * values are randomly assigned, so the run is a random selection of the files.
+     */
+    private RandomSample loadFiles(Map<String, Collection<String>> criteria, long now)
+    {
+        int maxSize = filesetIndexMaxSize;
+        int start = ThreadLocalRandom.current().nextInt(1000000);
+        List<DBObject> files = new ArrayList<DBObject>(Math.min(maxSize, 1024));
+        RandomSample.readRun(collection, RandomSample.toQuery(criteria), null, FIELD_RANDOMIZER, start, maxSize, 0, files);
+        // We have seen every match if we could have read more
+        boolean complete = files.size() < maxSize;
+        // Done
+        if (logger.isDebugEnabled())
         {
-            DBObject fileDataObj = results.next();
-            return fromDBObject(fileDataObj);
+            logger.debug("Loaded " + files.size() + " files matching " + criteria + " (complete: " + complete + ")");
         }
+        return new RandomSample(criteria, FILE_ID_FIELDS, files, complete, now + filesetIndexTTL);
     }
 }
@@ -0,0 +1,214 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.driver.file;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Test content held in a file or in a range of a file.
+ * <p/>
+ * Writing to a channel uses {@link FileChannel#transferTo(long, long, WritableByteChannel)} so that the
+ * operating system can move the bytes without copying them into the Java heap.  Writing to a stream
+ * reuses a buffer per thread so that no garbage is created for each write.
+ *
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class FileTestContent implements TestContent
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>()
+    {
+        @Override
+        protected byte[] initialValue()
+        {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+    
+    private final File file;
+    private final long offset;
+    private final long length;
+    
+    /**
+     * Content covering the whole file
+     */
+    public FileTestContent(File file)
+    {
+        this(file, 0L, file.length());
+    }
+    
+    private FileTestContent(File file, long offset, long length)
+    {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FileTestContent [file=" + file + ", offset=" + offset + ", length=" + length + "]";
+    }
+
+    /**
+     * @return              the file holding the content
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    @Override
+    public String getName()
+    {
+        return file.getName();
+    }
+
+    @Override
+    public long getLength()
+    {
+        return length;
+    }
+
+    @Override
+    public TestContent slice(long offset, long length)
+    {
+        if (offset < 0L || length < 0L || offset + length > this.length)
+        {
+            throw new IllegalArgumentException("Range " + offset + "+" + length + " is not within " + this);
+        }
+        return new FileTestContent(file, this.offset + offset, length);
+    }
+
+    @Override
+    public void writeTo(WritableByteChannel target) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try
+        {
+            long position = offset;
+            long end = offset + length;
+            while (position < end)
+            {
+                long transferred = channel.transferTo(position, end - position, target);
+                if (transferred <= 0L && position >= channel.size())
+                {
+                    throw new EOFException("File is shorter than expected: " + this);
+                }
+                position += transferred;
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream target) throws IOException
+    {
+        byte[] buffer = buffers.get();
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try
+        {
+            long position = offset;
+            long end = offset + length;
+            while (position < end)
+            {
+                byteBuffer.clear();
+                byteBuffer.limit((int) Math.min(buffer.length, end - position));
+                int read = channel.read(byteBuffer, position);
+                if (read < 0)
+                {
+                    throw new EOFException("File is shorter than expected: " + this);
+                }
+                target.write(buffer, 0, read);
+                position += read;
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        return new InputStream()
+        {
+            private long position = offset;
+            private final long end = offset + length;
+            
+            @Override
+            public int read() throws IOException
+            {
+                byte[] single = new byte[1];
+                int read = read(single, 0, 1);
+                return read < 0 ? -1 : (single[0] & 0xFF);
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                if (position >= end)
+                {
+                    return -1;
+                }
+                int toRead = (int) Math.min(len, end - position);
+                int read = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+                if (read > 0)
+                {
+                    position += read;
+                }
+                return read;
+            }
+            
+            @Override
+            public int available()
+            {
+                return (int) Math.min(Integer.MAX_VALUE, end - position);
+            }
+            
+            @Override
+            public void close() throws IOException
+            {
+                channel.close();
+            }
+        };
+    }
+}
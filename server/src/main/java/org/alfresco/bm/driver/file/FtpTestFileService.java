@@ -36,18 +36,29 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
 /**
  * FTP-based implementation of {@link AbstractTestFileService}.
+ * <p/>
+ * Logged-in FTP connections are pooled and reused; no more than {@link #setMaxConnections(int) maxConnections}
+ * are open at any time.  Interrupted downloads are resumed from where they stopped using the FTP
+ * <tt>REST</tt> command, both when retrying and when a partial file is left over from a previous run.
  *
  * @author Derek Hulley
  * @since 1.4
  */
 public class FtpTestFileService extends AbstractTestFileService
 {
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    public static final int DEFAULT_DOWNLOAD_RETRIES = 3;
+    
     private static Log logger = LogFactory.getLog(FtpTestFileService.class);
     
     private final String ftpHost;
@@ -56,6 +67,10 @@ public class FtpTestFileService extends AbstractTestFileService
     private final String ftpPassword;
     private final String ftpPath;
     private boolean ftpLocalPassiveMode = true;
+    private int downloadRetries = DEFAULT_DOWNLOAD_RETRIES;
+    /** Limits the number of connections open at any time */
+    private Semaphore connectionPermits = new Semaphore(DEFAULT_MAX_CONNECTIONS);
+    private final BlockingQueue<FTPClient> idleClients = new LinkedBlockingQueue<FTPClient>();
     
     public FtpTestFileService(
             FileDataService fileDataService,
@@ -98,13 +113,57 @@ public class FtpTestFileService extends AbstractTestFileService
         this.ftpLocalPassiveMode = ftpLocalPassiveMode;
     }
 
+    /**
+     * Override the {@link #DEFAULT_MAX_CONNECTIONS default} number of FTP connections that may be open at once.
+     * Callers wait for a connection when all are in use.
+     * 
+     * @since 3.0
+     */
+    public void setMaxConnections(int maxConnections)
+    {
+        this.connectionPermits = new Semaphore(maxConnections);
+    }
+
+    /**
+     * Override the {@link #DEFAULT_DOWNLOAD_RETRIES default} number of times that a failed download is
+     * resumed before giving up.
+     * 
+     * @since 3.0
+     */
+    public void setDownloadRetries(int downloadRetries)
+    {
+        this.downloadRetries = downloadRetries;
+    }
+
+    /**
+     * Close all idle FTP connections
+     */
+    @Override
+    public void destroy()
+    {
+        super.destroy();
+        FTPClient ftp = null;
+        while ((ftp = idleClients.poll()) != null)
+        {
+            closeFTPClient(ftp);
+        }
+    }
+
+    /**
+     * Create an unconnected FTP client
+     */
+    protected FTPClient createFTPClient()
+    {
+        return new FTPClient();
+    }
+
     /**
      * Provides a safe (connected) FTP client
      */
-    private FTPClient getFTPClient() throws IOException
+    private FTPClient connectFTPClient() throws IOException
     {
         // Connect to the FTP server
-         FTPClient ftp = new FTPClient();
+         FTPClient ftp = createFTPClient();
         
          // Connect and login 
         ftp.connect(ftpHost, ftpPort);
@@ -133,6 +192,95 @@ public class FtpTestFileService extends AbstractTestFileService
         return ftp;
     }
     
+    /**
+     * Get a connected FTP client from the pool, connecting a new one if none are idle.
+     * Every client borrowed must be {@link #returnFTPClient(FTPClient, boolean) returned}.
+     */
+    private FTPClient borrowFTPClient() throws IOException
+    {
+        try
+        {
+            connectionPermits.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an FTP connection: " + this);
+        }
+        try
+        {
+            FTPClient ftp = null;
+            while ((ftp = idleClients.poll()) != null)
+            {
+                // Check that the connection is still alive
+                try
+                {
+                    if (ftp.isConnected() && ftp.sendNoOp())
+                    {
+                        return ftp;
+                    }
+                }
+                catch (IOException e)
+                {
+                    // Discard it
+                }
+                closeFTPClient(ftp);
+            }
+            return connectFTPClient();
+        }
+        catch (IOException e)
+        {
+            connectionPermits.release();
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            connectionPermits.release();
+            throw e;
+        }
+    }
+    
+    /**
+     * Return a borrowed FTP client to the pool
+     * 
+     * @param reusable          <tt>true</tt> if the client is in a good state and can be reused
+     *                          or <tt>false</tt> to disconnect it
+     */
+    private void returnFTPClient(FTPClient ftp, boolean reusable)
+    {
+        try
+        {
+            if (reusable)
+            {
+                idleClients.offer(ftp);
+            }
+            else
+            {
+                closeFTPClient(ftp);
+            }
+        }
+        finally
+        {
+            connectionPermits.release();
+        }
+    }
+    
+    private void closeFTPClient(FTPClient ftp)
+    {
+        try
+        {
+            if (ftp.isConnected())
+            {
+                ftp.logout();
+                ftp.disconnect();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to close FTP connection: " + e.getMessage());
+        }
+    }
+    
     /**
      * Combines the {@link #ftpHost} and {@link #ftpPath} into a relative path.
      */
@@ -150,15 +298,19 @@ public class FtpTestFileService extends AbstractTestFileService
     {
         // Get a list of files from the FTP server
         FTPClient ftp = null;
+        boolean reusable = false;
         FTPFile[] ftpFiles = new FTPFile[0];
         try
         {
-            ftp = getFTPClient();
+            ftp = borrowFTPClient();
+            String workingDirectory = ftp.printWorkingDirectory();
             if (!ftp.changeWorkingDirectory(ftpPath))
             {
                 throw new IOException("Failed to change directory (leading '/' could be a problem): " + ftpPath);
             }
             ftpFiles = ftp.listFiles();
+            // Go back so that the connection can be reused for downloads
+            reusable = workingDirectory != null && ftp.changeWorkingDirectory(workingDirectory);
         }
         catch (IOException e)
         {
@@ -166,17 +318,9 @@ public class FtpTestFileService extends AbstractTestFileService
         }
         finally
         {
-            try
-            {
-                if (null != ftp)
-                {
-                    ftp.logout();
-                    ftp.disconnect();
-                }
-            }
-            catch (IOException e)
+            if (null != ftp)
             {
-                logger.warn("Failed to close FTP connection: " + e.getMessage());
+                returnFTPClient(ftp, reusable);
             }
         }
         // Index each of the files
@@ -203,46 +347,94 @@ public class FtpTestFileService extends AbstractTestFileService
         return remoteFileDatas;
     }
     
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * If the local file already holds part of the remote file, the download continues from the end
+     * of the local file.  A failed download is resumed up to {@link #setDownloadRetries(int) downloadRetries}
+     * times.  The download is only successful if the local file is the same size as the remote file.
+     */
     @Override
     protected void downloadRemoteFile(FileData fileData, File localFile) throws IOException
     {
         String remoteName = ftpPath + "/" + fileData.getRemoteName();
-        FTPClient ftp = null;
-        FileOutputStream fos = new FileOutputStream(localFile);
-        OutputStream bos = null;
-        try
+        long remoteSize = fileData.getSize();
+        if (localFile.length() > remoteSize)
         {
-            bos = new BufferedOutputStream(fos);
-            // It does not exist locally, so go and retrieve it
-            ftp = getFTPClient();
-            boolean success = ftp.retrieveFile(remoteName, bos);
-            if (!success)
-            {
-                throw new IOException("Failed to complete download of file: " + fileData + " by " + this);
-            }
+            // Not a partial copy of this file
+            localFile.delete();
         }
-        finally
+        IOException failure = null;
+        for (int attempt = 0; attempt <= downloadRetries; attempt++)
         {
-            if (bos != null)
+            long offset = localFile.exists() ? localFile.length() : 0L;
+            if (offset > 0L && offset == remoteSize)
             {
-                try { bos.close(); } catch (Throwable e) {}
+                // Already complete
+                return;
             }
-            if (fos != null)
+            try
             {
-                try { fos.close(); } catch (Throwable e) {}
+                retrieveFile(remoteName, localFile, offset);
             }
-            try
+            catch (IOException e)
             {
-                if (null != ftp)
+                failure = e;
+                if (logger.isDebugEnabled())
                 {
-                    ftp.logout();
-                    ftp.disconnect();
+                    logger.debug("Download attempt " + (attempt + 1) + " failed at offset " + offset + " for " + fileData + ": " + e.getMessage());
                 }
+                continue;
             }
-            catch (IOException e)
+            // Verify the download
+            long localSize = localFile.length();
+            if (localSize == remoteSize)
+            {
+                return;
+            }
+            failure = new IOException("Downloaded " + localSize + " bytes but expected " + remoteSize + " for file: " + fileData + " by " + this);
+            if (localSize > remoteSize)
+            {
+                localFile.delete();
+            }
+        }
+        throw failure;
+    }
+    
+    /**
+     * Retrieve a remote file using a pooled connection, appending to the local file from the given offset
+     */
+    private void retrieveFile(String remoteName, File localFile, long offset) throws IOException
+    {
+        FTPClient ftp = borrowFTPClient();
+        boolean reusable = false;
+        OutputStream os = null;
+        try
+        {
+            os = new BufferedOutputStream(new FileOutputStream(localFile, offset > 0L));
+            ftp.setRestartOffset(offset);
+            boolean success = ftp.retrieveFile(remoteName, os);
+            if (!success)
+            {
+                if (offset > 0L)
+                {
+                    // The server might not support resuming so start from the beginning next time
+                    os.close();
+                    os = null;
+                    localFile.delete();
+                }
+                throw new IOException("Failed to complete download of file: " + remoteName + " by " + this);
+            }
+            reusable = true;
+        }
+        finally
+        {
+            ftp.setRestartOffset(0L);
+            if (os != null)
             {
-                logger.warn("Failed to close FTP connection: " + e.getMessage());
+                try { os.close(); } catch (Throwable e) {}
             }
+            returnFTPClient(ftp, reusable);
         }
     }
 }
@@ -0,0 +1,183 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.driver.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+/**
+ * Test content generated from a seed without touching the disk.
+ * <p/>
+ * A block of pseudo-random bytes is generated once from the seed and the content repeats that block
+ * for as long as required.  The same seed always gives the same content, so uploads can be verified,
+ * and writing the content costs no more than copying the block to the target.
+ *
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class SyntheticTestContent implements TestContent
+{
+    /** The size of the repeating block of bytes */
+    public static final int BLOCK_SIZE = 64 * 1024;
+    
+    private final String name;
+    private final byte[] block;
+    private final long offset;
+    private final long length;
+    
+    /**
+     * @param name          the name of the content, including any extension
+     * @param seed          the seed from which content is generated
+     * @param length        the number of bytes of content
+     */
+    public SyntheticTestContent(String name, long seed, long length)
+    {
+        this(name, generateBlock(seed), 0L, length);
+    }
+    
+    private SyntheticTestContent(String name, byte[] block, long offset, long length)
+    {
+        if (length < 0L)
+        {
+            throw new IllegalArgumentException("Length cannot be negative: " + length);
+        }
+        this.name = name;
+        this.block = block;
+        this.offset = offset;
+        this.length = length;
+    }
+    
+    private static byte[] generateBlock(long seed)
+    {
+        byte[] block = new byte[BLOCK_SIZE];
+        new Random(seed).nextBytes(block);
+        return block;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SyntheticTestContent [name=" + name + ", offset=" + offset + ", length=" + length + "]";
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    @Override
+    public long getLength()
+    {
+        return length;
+    }
+
+    @Override
+    public TestContent slice(long offset, long length)
+    {
+        if (offset < 0L || length < 0L || offset + length > this.length)
+        {
+            throw new IllegalArgumentException("Range " + offset + "+" + length + " is not within " + this);
+        }
+        return new SyntheticTestContent(name, block, this.offset + offset, length);
+    }
+
+    @Override
+    public void writeTo(WritableByteChannel target) throws IOException
+    {
+        long position = offset;
+        long end = offset + length;
+        while (position < end)
+        {
+            int blockOffset = (int) (position % BLOCK_SIZE);
+            int count = (int) Math.min(BLOCK_SIZE - blockOffset, end - position);
+            ByteBuffer buffer = ByteBuffer.wrap(block, blockOffset, count);
+            while (buffer.hasRemaining())
+            {
+                target.write(buffer);
+            }
+            position += count;
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream target) throws IOException
+    {
+        long position = offset;
+        long end = offset + length;
+        while (position < end)
+        {
+            int blockOffset = (int) (position % BLOCK_SIZE);
+            int count = (int) Math.min(BLOCK_SIZE - blockOffset, end - position);
+            target.write(block, blockOffset, count);
+            position += count;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream()
+    {
+        return new InputStream()
+        {
+            private long position = offset;
+            private final long end = offset + length;
+            
+            @Override
+            public int read()
+            {
+                if (position >= end)
+                {
+                    return -1;
+                }
+                return block[(int) (position++ % BLOCK_SIZE)] & 0xFF;
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len)
+            {
+                if (position >= end)
+                {
+                    return -1;
+                }
+                int blockOffset = (int) (position % BLOCK_SIZE);
+                int count = (int) Math.min(Math.min(len, BLOCK_SIZE - blockOffset), end - position);
+                System.arraycopy(block, blockOffset, b, off, count);
+                position += count;
+                return count;
+            }
+            
+            @Override
+            public int available()
+            {
+                return (int) Math.min(Integer.MAX_VALUE, end - position);
+            }
+        };
+    }
+}
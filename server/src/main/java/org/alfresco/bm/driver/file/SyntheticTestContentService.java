@@ -0,0 +1,77 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.driver.file;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Hands out {@link SyntheticTestContent synthetic content} of a fixed size so that uploads can
+ * be tested without any test files.  Named content is always generated from the same seed.
+ *
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class SyntheticTestContentService implements TestContentService
+{
+    private final long contentLength;
+    private final String defaultExtension;
+    
+    /**
+     * @param contentLength         the number of bytes of each content
+     * @param defaultExtension      the extension given to content when none is requested
+     */
+    public SyntheticTestContentService(long contentLength, String defaultExtension)
+    {
+        this.contentLength = contentLength;
+        this.defaultExtension = defaultExtension;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SyntheticTestContentService [contentLength=" + contentLength + ", defaultExtension=" + defaultExtension + "]";
+    }
+
+    @Override
+    public TestContent getContentByName(String name)
+    {
+        return new SyntheticTestContent(name, name.hashCode(), contentLength);
+    }
+
+    @Override
+    public TestContent getContent()
+    {
+        return getContent(defaultExtension);
+    }
+
+    @Override
+    public TestContent getContent(String extension)
+    {
+        long seed = ThreadLocalRandom.current().nextLong();
+        String name = "synthetic-" + Long.toHexString(seed) + "." + extension;
+        return new SyntheticTestContent(name, seed, contentLength);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.driver.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Test content that can be written out repeatedly without being read into memory first.
+ * Implementations are immutable and can be written by many threads at once.
+ *
+ * @see TestContentService
+ *
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public interface TestContent
+{
+    /**
+     * @return              a name for the content, including an extension where there is one
+     */
+    String getName();
+    
+    /**
+     * @return              the number of bytes of content
+     */
+    long getLength();
+    
+    /**
+     * Get a range of this content.  No content is copied.
+     * 
+     * @param offset        the first byte of the range
+     * @param length        the number of bytes in the range
+     * @return              content covering the range
+     * @throws IllegalArgumentException if the range is not within this content
+     */
+    TestContent slice(long offset, long length);
+    
+    /**
+     * Write all the content to a channel.  This is where content can be transferred
+     * without passing through the Java heap e.g. from a file to a socket.
+     */
+    void writeTo(WritableByteChannel target) throws IOException;
+    
+    /**
+     * Write all the content to a stream.  The stream is not closed.
+     */
+    void writeTo(OutputStream target) throws IOException;
+    
+    /**
+     * @return              a new stream over the content, which the caller must close
+     */
+    InputStream getInputStream() throws IOException;
+}
@@ -0,0 +1,59 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.driver.file;
+
+/**
+ * Provides access to test content for upload.  Unlike {@link TestFileService}, the content
+ * need not exist as a file.
+ *
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public interface TestContentService
+{
+    /**
+     * Find specific content by name
+     * 
+     * @param name          the name of the content to find
+     * @return              the content or <tt>null</tt> if there is no content with that name
+     */
+    TestContent getContentByName(String name);
+    
+    /**
+     * Get random content of any description
+     * 
+     * @return              the content or <tt>null</tt> if there is no content
+     */
+    TestContent getContent();
+    
+    /**
+     * Get random content with the given extension
+     * 
+     * @param extension     the file extension, which is no guarantee of mimetype
+     * @return              the content or <tt>null</tt> if there is no such content
+     */
+    TestContent getContent(String extension);
+}
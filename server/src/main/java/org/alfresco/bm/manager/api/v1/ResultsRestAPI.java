@@ -26,34 +26,39 @@
 package org.alfresco.bm.manager.api.v1;
 
 import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBObject;
 import com.mongodb.util.JSON;
+import org.alfresco.bm.common.AggregatingResultService;
 import org.alfresco.bm.common.EventDetails;
 import org.alfresco.bm.common.EventResultFilter;
+import org.alfresco.bm.common.Page;
+import org.alfresco.bm.common.PhaseAggregate;
 import org.alfresco.bm.common.ResultService;
-import org.alfresco.bm.common.ResultService.ResultHandler;
 import org.alfresco.bm.common.spring.TestRunServicesCache;
 import org.alfresco.bm.common.util.exception.NotFoundException;
 import org.alfresco.bm.manager.api.AbstractRestResource;
 import org.alfresco.bm.manager.report.CSVReporter;
+import org.alfresco.bm.manager.report.TimeSeriesHandler;
+import org.alfresco.bm.manager.report.TimeSeriesStreams;
 import org.alfresco.bm.manager.report.XLSXReporter;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -80,18 +85,28 @@ public class ResultsRestAPI extends AbstractRestResource
      * states not to filter by event names when query event results
      */
     public static final String ALL_EVENT_NAMES = "(All Events)"; 
+    /**
+     * report the time taken to process each event
+     */
+    public static final String LATENCY_SERVICE = "service";
+    /**
+     * report the time from when each event was scheduled to when it was processed
+     */
+    public static final String LATENCY_RESPONSE = "response";
     
     @Autowired
     private final TestRunServicesCache services;
+    @Autowired
+    private final TimeSeriesStreams streams;
     
     /**
      * @param services object providing access to necessary test run services
-     * @param test     the name of the test
-     * @param run      the name of the run
+     * @param streams  shared streams of time series results
      */
-    public ResultsRestAPI(TestRunServicesCache services)
+    public ResultsRestAPI(TestRunServicesCache services, TimeSeriesStreams streams)
     {
         this.services = services;
+        this.streams = streams;
     }
 
     /**
@@ -219,8 +234,11 @@ public class ResultsRestAPI extends AbstractRestResource
      * @param reportPeriod how often a result should be output.  This is expressed as a multiple of the 'timeUnit'.
      * @param smoothing    the number of results to include in the Simple Moving Average calculations
      * @param chartOnly    <tt>true</tt> to filter out results that are not of interest in performance charts
+     * @param latency      <tt>service</tt> (default) to use the time taken to process each event or <tt>response</tt>
+     *                     to measure from when each event was scheduled.  Response times include any time that
+     *                     events waited because the drivers were saturated i.e. they are corrected for coordinated omission.
      * @return JSON representing the event start time (x-axis) and the smoothed average execution time
-     * along with data such as the events per second, failures per second, etc.
+     * along with data such as the events per second, failures per second, percentiles (p50, p90, p95, p99, p999), etc.
      */
     @GetMapping(path="/ts",produces = {"application/json"})
     public String getTimeSeriesResults(@PathVariable("test") String test, @PathVariable("run") String run, 
@@ -228,13 +246,14 @@ public class ResultsRestAPI extends AbstractRestResource
             @RequestParam(value="timeUnit", defaultValue="SECONDS") String timeUnit,
             @RequestParam(value="reportPeriod", defaultValue="1") long reportPeriod,
             @RequestParam(value="smoothing", defaultValue="1") int smoothing,
-            @RequestParam(value="chartOnly", defaultValue="true") boolean chartOnly)
+            @RequestParam(value="chartOnly", defaultValue="true") boolean chartOnly,
+            @RequestParam(value="latency", defaultValue=LATENCY_SERVICE) String latency)
     {
         if (logger.isDebugEnabled())
         {
             logger.debug(
                 "Inbound: " + "[test:" + test + ",fromTime:" + fromTime + ",timeUnit:" + timeUnit + ",reportPeriod:" + reportPeriod + ",smoothing:" + smoothing
-                    + ",chartOnly:" + chartOnly + "]");
+                    + ",chartOnly:" + chartOnly + ",latency:" + latency + "]");
         }
         if (reportPeriod < 1)
         {
@@ -244,66 +263,21 @@ public class ResultsRestAPI extends AbstractRestResource
         {
             throw new HttpClientErrorException(HttpStatus.BAD_REQUEST, "'smoothing' must be 1 or more.");
         }
-        TimeUnit timeUnitEnum = null;
-        try
-        {
-            timeUnitEnum = TimeUnit.valueOf(timeUnit.toUpperCase());
-        }
-        catch (HttpClientErrorException e)
-        {
-            throw e;
-        }
-        catch (Exception e)
-        {
-            // Invalid time unit
-            throw new HttpClientErrorException(HttpStatus.BAD_REQUEST, e.getMessage());
-        }
+        boolean responseTime = isResponseTime(latency);
+        long reportPeriodMs = getReportPeriodMs(timeUnit, reportPeriod);
         
         final ResultService resultService = getResultService(test, run);
 
         // Calculate the window size
-        long reportPeriodMs = timeUnitEnum.toMillis(reportPeriod);
         long windowSize = reportPeriodMs * smoothing;
 
-        // This is just too convenient an API
-        final BasicDBList events = new BasicDBList();
-        ResultHandler handler = new ResultHandler()
-        {
-            @Override
-            public boolean processResult(long fromTime, long toTime, Map<String, DescriptiveStatistics> statsByEventName,
-                Map<String, Integer> failuresByEventName)
-            {
-                for (Map.Entry<String, DescriptiveStatistics> entry : statsByEventName.entrySet())
-                {
-                    String eventName = entry.getKey();
-                    DescriptiveStatistics stats = entry.getValue();
-                    Integer failures = failuresByEventName.get(eventName);
-                    if (failures == null)
-                    {
-                        logger.error("Found null failure count: " + entry);
-                        // Do nothing with it and stop
-                        return false;
-                    }
-                    // Per second
-                    double numPerSec = (double) stats.getN() / ((double) (toTime - fromTime) / 1000.0);
-                    double failuresPerSec = (double) failures / ((double) (toTime - fromTime) / 1000.0);
-                    // Push into an object
-                    DBObject eventObj = BasicDBObjectBuilder.start().add("time", toTime).add("name", eventName).add("mean", stats.getMean())
-                        .add("min", stats.getMin()).add("max", stats.getMax()).add("stdDev", stats.getStandardDeviation()).add("num", stats.getN())
-                        .add("numPerSec", numPerSec).add("fail", failures).add("failPerSec", failuresPerSec).get();
-                    // Add the object to the list of events
-                    events.add(eventObj);
-                }
-                // Go for the next result
-                return true;
-            }
-        };
+        TimeSeriesHandler handler = new TimeSeriesHandler();
         try
         {
             // Get all the results
-            resultService.getResults(handler, fromTime, windowSize, reportPeriodMs, chartOnly);
+            resultService.getResults(handler, fromTime, windowSize, reportPeriodMs, chartOnly, responseTime);
             // Muster into JSON
-            String json = events.toString();
+            String json = handler.getEvents().toString();
 
             // Done
             if (logger.isDebugEnabled())
@@ -331,6 +305,156 @@ public class ResultsRestAPI extends AbstractRestResource
         }
     }
     
+    /**
+     * @return                  <tt>true</tt> if the 'latency' parameter asks for response times
+     */
+    private static boolean isResponseTime(String latency)
+    {
+        if (LATENCY_SERVICE.equalsIgnoreCase(latency))
+        {
+            return false;
+        }
+        else if (LATENCY_RESPONSE.equalsIgnoreCase(latency))
+        {
+            return true;
+        }
+        else
+        {
+            throw new HttpClientErrorException(HttpStatus.BAD_REQUEST, "'latency' must be '" + LATENCY_SERVICE + "' or '" + LATENCY_RESPONSE + "'.");
+        }
+    }
+    
+    /**
+     * @return                  the report period in milliseconds
+     */
+    private static long getReportPeriodMs(String timeUnit, long reportPeriod)
+    {
+        TimeUnit timeUnitEnum = null;
+        try
+        {
+            timeUnitEnum = TimeUnit.valueOf(timeUnit.toUpperCase());
+        }
+        catch (Exception e)
+        {
+            // Invalid time unit
+            throw new HttpClientErrorException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        return timeUnitEnum.toMillis(reportPeriod);
+    }
+    
+    /**
+     * Stream time series results as <a href="https://www.w3.org/TR/eventsource/">server-sent events</a>.
+     * The results from the 'fromTime' are sent first; after that, only the windows ending in newly-closed
+     * report periods are pushed, along with regular updates of the test run summary.
+     * <p/>
+     * All clients watching a run with the same parameters share the server-side calculations, so the
+     * load on the server does not grow with the number of clients.  Reconnecting clients continue from the
+     * last results they received.
+     *
+     * @param lastEventId  the ID of the last results event received (sent automatically by reconnecting clients)
+     * @see #getTimeSeriesResults(String, String, long, String, long, int, boolean, String)
+     * @see TimeSeriesStreams
+     */
+    @GetMapping(path="/ts/stream",produces = {"text/event-stream"})
+    public SseEmitter getTimeSeriesStream(@PathVariable("test") String test, @PathVariable("run") String run, 
+            @RequestParam(value= "fromTime",defaultValue="0") long fromTime,
+            @RequestParam(value="timeUnit", defaultValue="SECONDS") String timeUnit,
+            @RequestParam(value="reportPeriod", defaultValue="1") long reportPeriod,
+            @RequestParam(value="smoothing", defaultValue="1") int smoothing,
+            @RequestParam(value="chartOnly", defaultValue="true") boolean chartOnly,
+            @RequestParam(value="latency", defaultValue=LATENCY_SERVICE) String latency,
+            @RequestHeader(value="Last-Event-ID", required=false) Long lastEventId)
+    {
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(
+                "Inbound: " + "[test:" + test + ",fromTime:" + fromTime + ",timeUnit:" + timeUnit + ",reportPeriod:" + reportPeriod + ",smoothing:" + smoothing
+                    + ",chartOnly:" + chartOnly + ",latency:" + latency + ",lastEventId:" + lastEventId + "]");
+        }
+        if (reportPeriod < 1)
+        {
+            throw new HttpClientErrorException(HttpStatus.BAD_REQUEST, "'reportPeriod' must be 1 or more.");
+        }
+        if (smoothing < 1)
+        {
+            throw new HttpClientErrorException(HttpStatus.BAD_REQUEST, "'smoothing' must be 1 or more.");
+        }
+        boolean responseTime = isResponseTime(latency);
+        long reportPeriodMs = getReportPeriodMs(timeUnit, reportPeriod);
+        
+        ResultService resultService = getResultService(test, run);
+
+        try
+        {
+            return streams.subscribe(test, run, resultService, fromTime, lastEventId, reportPeriodMs * smoothing, reportPeriodMs, chartOnly, responseTime);
+        }
+        catch (Exception e)
+        {
+            throw new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+    
+    /**
+     * Retrieve the mean time spent in each timed phase of event processing e.g. waiting for an HTTP
+     * connection, connecting or waiting for the first byte of a response.  Each report period is
+     * given separately.
+     *
+     * @param fromTime     the time to start from
+     * @param timeUnit     the units of the 'reportPeriod' (default SECONDS).  See {@link TimeUnit}.
+     * @param reportPeriod how often a result should be output.  This is expressed as a multiple of the 'timeUnit'.
+     * @param chartOnly    <tt>true</tt> to filter out results that are not of interest in performance charts
+     * @return JSON representing the end of each period (x-axis) and, for each event name, the mean, max and
+     * number of results for each phase
+     */
+    @GetMapping(path="/ts/phases",produces = {"application/json"})
+    public String getTimeSeriesPhases(@PathVariable("test") String test, @PathVariable("run") String run, 
+            @RequestParam(value= "fromTime",defaultValue="0") long fromTime,
+            @RequestParam(value="timeUnit", defaultValue="SECONDS") String timeUnit,
+            @RequestParam(value="reportPeriod", defaultValue="1") long reportPeriod,
+            @RequestParam(value="chartOnly", defaultValue="true") boolean chartOnly)
+    {
+        if (reportPeriod < 1)
+        {
+            throw new HttpClientErrorException(HttpStatus.BAD_REQUEST, "'reportPeriod' must be 1 or more.");
+        }
+        long reportPeriodMs = getReportPeriodMs(timeUnit, reportPeriod);
+        
+        final ResultService resultService = getResultService(test, run);
+        BasicDBList events = new BasicDBList();
+        if (!(resultService instanceof AggregatingResultService))
+        {
+            // Phases can only be summarized by the data store
+            return events.toString();
+        }
+        try
+        {
+            List<PhaseAggregate> aggregates = ((AggregatingResultService) resultService).getPhaseAggregates(
+                    fromTime, Long.MAX_VALUE, reportPeriodMs, chartOnly);
+            // The aggregates are ordered by period and event name, so collect the phases for each in turn
+            DBObject eventObj = null;
+            DBObject phasesObj = null;
+            for (PhaseAggregate aggregate : aggregates)
+            {
+                long toTime = aggregate.getPeriodStartTime() + reportPeriodMs;
+                String eventName = aggregate.getEventName();
+                if (eventObj == null || !eventObj.get("time").equals(toTime) || !eventObj.get("name").equals(eventName))
+                {
+                    phasesObj = new BasicDBObject();
+                    eventObj = BasicDBObjectBuilder.start().add("time", toTime).add("name", eventName).add("phases", phasesObj).get();
+                    events.add(eventObj);
+                }
+                DBObject phaseObj = BasicDBObjectBuilder.start().add("mean", aggregate.getMean())
+                    .add("max", aggregate.getMax()).add("num", aggregate.getN()).get();
+                phasesObj.put(aggregate.getPhase(), phaseObj);
+            }
+            return events.toString();
+        }
+        catch (Exception e)
+        {
+            throw new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+    
     @GetMapping(path="/eventResults", produces = {"application/json"})
     public String getEventResults(@PathVariable("test") String test, @PathVariable("run") String run, 
             @RequestParam(value="filterEventName", defaultValue=ALL_EVENT_NAMES) String filterEventName,
@@ -355,6 +479,54 @@ public class ResultsRestAPI extends AbstractRestResource
         return JSON.serialize(retList);
     }
 
+    /**
+     * Retrieve a page of event results, newest first, continuing from a previous page.
+     * Unlike {@link #getEventResults(String, String, String, String, int, int) skipping},
+     * deep pages cost no more to retrieve than the first page.
+     *
+     * @param after             the <tt>next</tt> value returned with the previous page or empty to start with the newest result
+     * @param numberOfResults   the maximum number of results in the page
+     * @return JSON object with the <tt>results</tt> and the <tt>next</tt> token, which is <tt>null</tt> on the last page
+     */
+    @GetMapping(path="/eventResults/page", produces = {"application/json"})
+    public String getEventResultsPage(@PathVariable("test") String test, @PathVariable("run") String run, 
+            @RequestParam(value="filterEventName", defaultValue=ALL_EVENT_NAMES) String filterEventName,
+            @RequestParam(value="filterSuccess", defaultValue="All") String filterSuccess,
+            @RequestParam(value="after", defaultValue="") String after,
+            @RequestParam(value="numberOfResults", defaultValue="10") int numberOfResults)
+    {
+        if (numberOfResults < 1)
+        {
+            throw new HttpClientErrorException(HttpStatus.BAD_REQUEST, "'numberOfResults' must be 1 or more.");
+        }
+        EventResultFilter filter = getFilter(filterSuccess);
+        final ResultService resultService = getResultService(test, run);
+        String nameFilterString = filterEventName.equals(ALL_EVENT_NAMES) ? "" : filterEventName;
+
+        // get event details
+        Page<EventDetails> page;
+        try
+        {
+            page = resultService.getEventDetails(filter, nameFilterString, after.isEmpty() ? null : after, numberOfResults);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new HttpClientErrorException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+
+        // serialize back ....
+        BasicDBList retList = new BasicDBList();
+        for (EventDetails detail : page.getItems())
+        {
+            retList.add(detail.toDBObject());
+        }
+        DBObject pageObj = BasicDBObjectBuilder
+                .start("results", retList)
+                .add("next", page.getNext())
+                .get();
+        return JSON.serialize(pageObj);
+    }
+
     /**
      * Returns the enum for a given string or the default value.
      *
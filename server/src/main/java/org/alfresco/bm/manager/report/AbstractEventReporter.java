@@ -25,15 +25,21 @@
  */
 package org.alfresco.bm.manager.report;
 
+import org.alfresco.bm.common.AggregatingResultService;
 import org.alfresco.bm.common.EventRecord;
+import org.alfresco.bm.common.PhaseAggregate;
+import org.alfresco.bm.common.ResultAggregate;
 import org.alfresco.bm.common.ResultService;
+import org.alfresco.bm.common.ResultSketch;
 import org.alfresco.bm.common.TestService;
 import org.alfresco.bm.common.mongo.MongoTestDAO;
 import org.alfresco.bm.common.spring.TestRunServicesCache;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
@@ -94,6 +100,10 @@ public abstract class AbstractEventReporter implements ReportGenerator
     protected TreeMap<String, ResultSummary> collateResults(boolean chartOnly)
     {
         ResultService resultService = getResultService();
+        if (resultService instanceof AggregatingResultService)
+        {
+            return collateResults((AggregatingResultService) resultService, chartOnly);
+        }
         // Do a quick check to see if there are results
         EventRecord firstEvent = resultService.getFirstResult();
         if (firstEvent == null)
@@ -151,6 +161,73 @@ public abstract class AbstractEventReporter implements ReportGenerator
         return results;
     }
     
+    /**
+     * Build the result summaries from statistics calculated by the result service
+     */
+    private TreeMap<String, ResultSummary> collateResults(AggregatingResultService resultService, boolean chartOnly)
+    {
+        // Pair up the success and failure statistics for each event
+        TreeMap<String, ResultSummary> results = new TreeMap<String, ResultSummary>();
+        Map<String, ResultSketch[]> sketchesByEventName = new HashMap<String, ResultSketch[]>();
+        for (ResultAggregate aggregate : resultService.getResultAggregates(chartOnly))
+        {
+            String eventName = aggregate.getEventName();
+            ResultSketch[] sketches = sketchesByEventName.get(eventName);
+            if (sketches == null)
+            {
+                sketches = new ResultSketch[] {new ResultSketch(), new ResultSketch()};
+                sketchesByEventName.put(eventName, sketches);
+                results.put(eventName, new ResultSummary(eventName, sketches[0], sketches[1]));
+            }
+            int index = Boolean.TRUE.equals(aggregate.getSuccess()) ? 0 : 1;
+            sketches[index].merge(aggregate);
+        }
+        // Done
+        return results;
+    }
+    
+    /**
+     * Summarize the time spent in each phase of each event, e.g. waiting for an HTTP connection,
+     * across the whole run.  Phases are only summarized by result services that
+     * {@link AggregatingResultService aggregate} results.
+     * 
+     * @return              the phase summaries by event name and then by phase name
+     */
+    protected TreeMap<String, TreeMap<String, PhaseAggregate>> collatePhases(boolean chartOnly)
+    {
+        TreeMap<String, TreeMap<String, PhaseAggregate>> results = new TreeMap<String, TreeMap<String, PhaseAggregate>>();
+        ResultService resultService = getResultService();
+        if (!(resultService instanceof AggregatingResultService))
+        {
+            return results;
+        }
+        List<PhaseAggregate> aggregates = ((AggregatingResultService) resultService).getPhaseAggregates(
+                0L, Long.MAX_VALUE, TimeUnit.DAYS.toMillis(1L), chartOnly);
+        // Combine the periods
+        for (PhaseAggregate aggregate : aggregates)
+        {
+            String eventName = aggregate.getEventName();
+            TreeMap<String, PhaseAggregate> phases = results.get(eventName);
+            if (phases == null)
+            {
+                phases = new TreeMap<String, PhaseAggregate>();
+                results.put(eventName, phases);
+            }
+            PhaseAggregate total = phases.get(aggregate.getPhase());
+            if (total != null)
+            {
+                aggregate = new PhaseAggregate(
+                        eventName, aggregate.getPhase(), total.getPeriodStartTime(),
+                        total.getN() + aggregate.getN(),
+                        Math.max(total.getMax(), aggregate.getMax()),
+                        total.getSum() + aggregate.getSum());
+            }
+            phases.put(aggregate.getPhase(), aggregate);
+        }
+        // Done
+        return results;
+    }
+    
     /**
      * Stardard window sizes
      */
@@ -27,10 +27,11 @@ package org.alfresco.bm.manager.report;
 
 import com.mongodb.DBObject;
 import org.alfresco.bm.common.EventRecord;
+import org.alfresco.bm.common.PhaseAggregate;
 import org.alfresco.bm.common.ResultService;
 import org.alfresco.bm.common.spring.TestRunServicesCache;
 import org.apache.commons.lang3.time.DurationFormatUtils;
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.apache.commons.math3.stat.descriptive.StatisticalSummary;
 
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -57,7 +58,11 @@ import static org.alfresco.bm.common.TestConstants.FIELD_DESCRIPTION;
  *   <li><b>Max (ms):</b> Maximum event time (successes only).</li>
  *   <li><b>Arithmetic Mean (ms):</b> The arithmetic mean of all successful event times.</li>
  *   <li><b>Standard Deviation:</b> The standard deviation of all successful event times.</li>
+ *   <li><b>P50, P90, P95, P99, P99.9 (ms):</b> Estimated percentiles of all successful event times.
+ *       These are left empty if they are not available.</li>
  * </ul>
+ * If any phases of the events were timed, e.g. waiting for an HTTP connection, a table of phases follows
+ * giving the event name, phase, count, arithmetic mean (ms) and max (ms) of each.
  * 
  * @author Derek Hulley
  * @since 1.2
@@ -149,6 +154,10 @@ public class CSVReporter extends AbstractEventReporter
         writer.write(
                 "Event Name,Total Count,Success Count,Failure Count,Success Rate (%)," +
                 "Min (ms), Max (ms), Arithmetic Mean (ms), Standard Deviation (ms)");
+        for (double percentile : ResultSummary.PERCENTILES)
+        {
+            writer.write(", " + ResultSummary.getPercentileTitle(percentile) + " (ms)");
+        }
         writer.write(NEW_LINE);
         TreeMap<String, ResultSummary> summaries = collateResults(true);
         for (Map.Entry<String, ResultSummary> entry : summaries.entrySet())
@@ -156,8 +165,8 @@ public class CSVReporter extends AbstractEventReporter
             writer.write(",,");
             String eventName = entry.getKey();
             ResultSummary summary = entry.getValue();
-            SummaryStatistics statsSuccess = summary.getStats(true);
-            SummaryStatistics statsFail = summary.getStats(false);
+            StatisticalSummary statsSuccess = summary.getStats(true);
+            StatisticalSummary statsFail = summary.getStats(false);
             DecimalFormatSymbols formatSymbols = new DecimalFormatSymbols();
             formatSymbols.setDecimalSeparator('.');
             formatSymbols.setGroupingSeparator(' ');
@@ -181,7 +190,35 @@ public class CSVReporter extends AbstractEventReporter
             // Arithmetic Mean (ms)
             writer.write(String.format("%10d,", (long)statsSuccess.getMean()));
             // Standard Deviation (ms)
-            writer.write(String.format("%10d%s", (long)statsSuccess.getStandardDeviation(), NEW_LINE));
+            writer.write(String.format("%10d", (long)statsSuccess.getStandardDeviation()));
+            // Percentiles (ms)
+            for (double percentile : ResultSummary.PERCENTILES)
+            {
+                double value = summary.getPercentile(true, percentile);
+                writer.write(Double.isNaN(value) ? "," : String.format(",%10d", (long)value));
+            }
+            writer.write(NEW_LINE);
+        }
+        
+        TreeMap<String, TreeMap<String, PhaseAggregate>> phases = collatePhases(true);
+        if (!phases.isEmpty())
+        {
+            writer.write(NEW_LINE);
+            writer.write(",,");
+            writer.write("Event Name,Phase,Count,Arithmetic Mean (ms),Max (ms)");
+            writer.write(NEW_LINE);
+            for (Map.Entry<String, TreeMap<String, PhaseAggregate>> entry : phases.entrySet())
+            {
+                for (PhaseAggregate phase : entry.getValue().values())
+                {
+                    writer.write(",,");
+                    writer.write(String.format("%s,%s,", entry.getKey(), phase.getPhase()));
+                    writer.write(String.format("%6d,", phase.getN()));
+                    writer.write(String.format("%10d,", (long) phase.getMean()));
+                    writer.write(String.format("%10d", phase.getMax()));
+                    writer.write(NEW_LINE);
+                }
+            }
         }
         // Done
         
@@ -25,7 +25,9 @@
  */
 package org.alfresco.bm.manager.report;
 
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.alfresco.bm.common.ResultSketch;
+import org.apache.commons.math3.stat.descriptive.StatisticalSummary;
+import org.apache.commons.math3.stat.descriptive.StatisticalSummaryValues;
 
 /**
  * Class assisting with the gathering of statistics for an event
@@ -35,15 +37,39 @@ import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
  */
 public class ResultSummary
 {
+    /** The percentiles given in reports */
+    public static final double[] PERCENTILES = new double[] {50.0, 90.0, 95.0, 99.0, 99.9};
+    
     private final String name;
-    private SummaryStatistics statsSuccess;
-    private SummaryStatistics statsFailure;
+    private final ResultSketch sketchSuccess;
+    private final ResultSketch sketchFailure;
 
+    /**
+     * Get the column title used for a percentile, e.g. <tt>P99.9</tt>
+     * 
+     * @since 3.0
+     */
+    public static String getPercentileTitle(double percentile)
+    {
+        long whole = (long) percentile;
+        return "P" + (whole == percentile ? Long.toString(whole) : Double.toString(percentile));
+    }
+    
     public ResultSummary(String name)
+    {
+        this(name, new ResultSketch(), new ResultSketch());
+    }
+    
+    /**
+     * Construct with statistics that have already been gathered
+     * 
+     * @since 3.0
+     */
+    public ResultSummary(String name, ResultSketch sketchSuccess, ResultSketch sketchFailure)
     {
         this.name = name;
-        this.statsSuccess = new SummaryStatistics();
-        this.statsFailure = new SummaryStatistics();
+        this.sketchSuccess = sketchSuccess;
+        this.sketchFailure = sketchFailure;
     }
     
     /**
@@ -57,11 +83,11 @@ public class ResultSummary
         }
         if (success)
         {
-            statsSuccess.addValue(time);
+            sketchSuccess.add(time);
         }
         else
         {
-            statsFailure.addValue(time);
+            sketchFailure.add(time);
         }
     }
     
@@ -77,16 +103,26 @@ public class ResultSummary
      *                          <tt>false</tt> to return failure statistics
      * @return                  the statics for success or failure
      */
-    public SummaryStatistics getStats(boolean success)
+    public StatisticalSummary getStats(boolean success)
     {
-        if (success)
-        {
-            return statsSuccess;
-        }
-        else
-        {
-            return statsFailure;
-        }
+        ResultSketch sketch = success ? sketchSuccess : sketchFailure;
+        return new StatisticalSummaryValues(
+                sketch.getMean(), sketch.getVariance(), sketch.getN(),
+                sketch.getMax(), sketch.getMin(), sketch.getSum());
+    }
+    
+    /**
+     * Get an estimated percentile of the result times
+     * 
+     * @param success           <tt>true</tt> for successful results or <tt>false</tt> for failures
+     * @param percentile        the percentile e.g. <tt>99.9</tt>
+     * @return                  the estimated time or {@link Double#NaN NaN} if it is not available
+     * 
+     * @since 3.0
+     */
+    public double getPercentile(boolean success, double percentile)
+    {
+        return success ? sketchSuccess.getPercentile(percentile) : sketchFailure.getPercentile(percentile);
     }
     
     /**
@@ -94,7 +130,7 @@ public class ResultSummary
      */
     public long getTotalResults()
     {
-        return statsSuccess.getN() + statsFailure.getN();
+        return sketchSuccess.getN() + sketchFailure.getN();
     }
     
     /**
@@ -103,7 +139,7 @@ public class ResultSummary
      */
     public double getSuccessPercentage()
     {
-        long successes = statsSuccess.getN();
+        long successes = sketchSuccess.getN();
         long total = getTotalResults();
         if (total == 0)
         {
@@ -115,4 +151,4 @@ public class ResultSummary
             return percent;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,145 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.manager.report;
+
+import java.util.Map;
+
+import org.alfresco.bm.common.ResultService.ResultHandler;
+import org.alfresco.bm.common.ResultSketch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+
+/**
+ * Collects time series results into JSON-friendly objects, one per event name and window.
+ * <p/>
+ * Only windows ending after a given time and up to a given time are collected, which allows
+ * results to be gathered incrementally as report periods close.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class TimeSeriesHandler implements ResultHandler
+{
+    private static Log logger = LogFactory.getLog(TimeSeriesHandler.class);
+    
+    private final long afterTime;
+    private final long untilTime;
+    private final BasicDBList events;
+    private long lastTime;
+    
+    /**
+     * Collect all windows
+     */
+    public TimeSeriesHandler()
+    {
+        this(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+    
+    /**
+     * @param afterTime         only collect windows ending after this time (exclusive)
+     * @param untilTime         stop at the first window ending after this time
+     */
+    public TimeSeriesHandler(long afterTime, long untilTime)
+    {
+        this.afterTime = afterTime;
+        this.untilTime = untilTime;
+        this.events = new BasicDBList();
+        this.lastTime = afterTime;
+    }
+    
+    /**
+     * @return                  the results collected so far, one object per event name and window
+     */
+    public BasicDBList getEvents()
+    {
+        return events;
+    }
+    
+    /**
+     * @return                  the end time of the last window collected or the <tt>afterTime</tt> if there were none
+     */
+    public long getLastTime()
+    {
+        return lastTime;
+    }
+
+    @Override
+    public boolean processResult(
+            long fromTime,
+            long toTime,
+            Map<String, ResultSketch> statsByEventName,
+            Map<String, Integer> failuresByEventName)
+    {
+        if (toTime > untilTime)
+        {
+            // The window is still open
+            return false;
+        }
+        if (toTime <= afterTime)
+        {
+            // Already collected
+            return true;
+        }
+        for (Map.Entry<String, ResultSketch> entry : statsByEventName.entrySet())
+        {
+            String eventName = entry.getKey();
+            ResultSketch stats = entry.getValue();
+            Integer failures = failuresByEventName.get(eventName);
+            if (failures == null)
+            {
+                logger.error("Found null failure count: " + entry);
+                // Do nothing with it and stop
+                return false;
+            }
+            // Per second
+            double numPerSec = (double) stats.getN() / ((double) (toTime - fromTime) / 1000.0);
+            double failuresPerSec = (double) failures / ((double) (toTime - fromTime) / 1000.0);
+            // Push into an object
+            DBObject eventObj = BasicDBObjectBuilder.start().add("time", toTime).add("name", eventName).add("mean", stats.getMean())
+                .add("min", stats.getMin()).add("max", stats.getMax()).add("stdDev", stats.getStandardDeviation()).add("num", stats.getN())
+                .add("numPerSec", numPerSec).add("fail", failures).add("failPerSec", failuresPerSec).get();
+            // Percentiles are only present when the window's histogram is complete e.g. "p50", "p99", "p999"
+            for (double percentile : ResultSummary.PERCENTILES)
+            {
+                double value = stats.getPercentile(percentile);
+                if (!Double.isNaN(value))
+                {
+                    String key = ResultSummary.getPercentileTitle(percentile).replace(".", "").toLowerCase();
+                    eventObj.put(key, value);
+                }
+            }
+            // Add the object to the list of events
+            events.add(eventObj);
+        }
+        lastTime = toTime;
+        // Go for the next result
+        return true;
+    }
+}
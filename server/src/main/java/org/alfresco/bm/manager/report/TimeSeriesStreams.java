@@ -0,0 +1,461 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.manager.report;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.alfresco.bm.common.ResultService;
+import org.alfresco.bm.common.spring.LifecycleListener;
+import org.alfresco.bm.common.spring.TestRunServicesCache;
+import org.alfresco.bm.common.util.exception.ObjectNotFoundException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Pushes time series results to subscribed clients as each report period closes.
+ * <p/>
+ * Clients watching the same test run with the same report parameters share one stream.  The stream
+ * keeps track of the last report period pushed, so each period is calculated once no matter how many
+ * clients are watching.  A client joining a stream is sent the results up to that point first.
+ * The streams are updated in parallel by a small pool of threads; a stream that is still busy
+ * with its last update is skipped until the next tick.
+ * <p/>
+ * Two types of <a href="https://www.w3.org/TR/eventsource/">server-sent events</a> are pushed:
+ * <ul>
+ *   <li><b>results:</b> an array of time series results in the same form as the <tt>/ts</tt> API.
+ *       The event ID is the end of the last report period included.</li>
+ *   <li><b>stats:</b> the test run summary e.g. progress and result counts</li>
+ * </ul>
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class TimeSeriesStreams implements LifecycleListener
+{
+    public static final String EVENT_RESULTS = "results";
+    public static final String EVENT_STATS = "stats";
+    
+    /** How often the streams check for closed report periods */
+    public static final long DEFAULT_TICK = 1000L;
+    /** Report periods are held back this long so that results for events still in progress are included */
+    public static final long DEFAULT_CLOSE_DELAY = 5000L;
+    /** How often the test run summary is pushed */
+    public static final long DEFAULT_STATS_INTERVAL = 2500L;
+    /** Clients are disconnected after this time and must reconnect */
+    public static final long DEFAULT_STREAM_TIMEOUT = 1800000L;
+    /** The number of streams updated at the same time */
+    public static final int DEFAULT_TICK_THREADS = 4;
+    
+    private static Log logger = LogFactory.getLog(TimeSeriesStreams.class);
+    
+    private final TestRunServicesCache services;
+    /** Streams keyed by test run and report parameters; guarded by itself */
+    private final Map<String, Stream> streams;
+    private int tickThreads;
+    private ScheduledExecutorService ticker;
+    /** Updates the streams */
+    private volatile ExecutorService tickWorkers;
+    
+    /**
+     * @param services          provides access to the test run services
+     */
+    public TimeSeriesStreams(TestRunServicesCache services)
+    {
+        this.services = services;
+        this.streams = new HashMap<String, Stream>(13);
+        this.tickThreads = DEFAULT_TICK_THREADS;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_TICK_THREADS default} number of streams updated at the same time.
+     * This must be set before the streams are started.
+     */
+    public void setTickThreads(int tickThreads)
+    {
+        if (tickThreads < 1)
+        {
+            throw new IllegalArgumentException("'tickThreads' must be 1 or more.");
+        }
+        this.tickThreads = tickThreads;
+    }
+
+    @Override
+    public synchronized void start() throws Exception
+    {
+        CustomizableThreadFactory workerThreadFactory = new CustomizableThreadFactory("TimeSeriesStreams-worker-");
+        workerThreadFactory.setDaemon(true);
+        tickWorkers = Executors.newFixedThreadPool(tickThreads, workerThreadFactory);
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("TimeSeriesStreams-");
+        threadFactory.setDaemon(true);
+        ticker = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        ticker.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                tick();
+            }
+        }, DEFAULT_TICK, DEFAULT_TICK, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void stop() throws Exception
+    {
+        if (ticker != null)
+        {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+        if (tickWorkers != null)
+        {
+            tickWorkers.shutdownNow();
+            tickWorkers = null;
+        }
+        List<Stream> current;
+        synchronized (streams)
+        {
+            current = new ArrayList<Stream>(streams.values());
+            streams.clear();
+        }
+        for (Stream stream : current)
+        {
+            stream.close();
+        }
+    }
+    
+    /**
+     * Subscribe to time series results for a test run.
+     * 
+     * @param resultService     the results for the test run
+     * @param fromTime          the time to send results from
+     * @param lastEventTime     the ID of the last results event received by a reconnecting client or
+     *                          <tt>null</tt> to send all results from the <tt>fromTime</tt>
+     * @param windowSize        the length (milliseconds) of a time window
+     * @param reportPeriod      the result time report period (milliseconds)
+     * @param chartOnly         <tt>true</tt> if only chartable results must be included
+     * @param responseTime      <tt>true</tt> to use the response time instead of the service time
+     * @return                  the emitter that pushes events to the client
+     * 
+     * @see ResultService#getResults(org.alfresco.bm.common.ResultService.ResultHandler, long, long, long, boolean, boolean)
+     */
+    public SseEmitter subscribe(
+            String test, String run,
+            ResultService resultService,
+            long fromTime, Long lastEventTime,
+            long windowSize, long reportPeriod,
+            boolean chartOnly, boolean responseTime) throws IOException
+    {
+        String key = test + "." + run + "/" + windowSize + "/" + reportPeriod + "/" + chartOnly + "/" + responseTime;
+        Stream stream;
+        synchronized (streams)
+        {
+            stream = streams.get(key);
+            if (stream == null)
+            {
+                stream = new Stream(key, test, run, windowSize, reportPeriod, chartOnly, responseTime);
+                streams.put(key, stream);
+            }
+            // Keep the stream until the client has been added to it
+            stream.subscribing++;
+        }
+        SseEmitter emitter = new SseEmitter(DEFAULT_STREAM_TIMEOUT);
+        try
+        {
+            stream.subscribe(emitter, resultService, fromTime, lastEventTime);
+        }
+        finally
+        {
+            synchronized (streams)
+            {
+                stream.subscribing--;
+            }
+            // The client may have failed to subscribe
+            removeIfUnused(stream);
+        }
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Subscribed to time series stream " + key);
+        }
+        return emitter;
+    }
+    
+    /**
+     * Push newly-closed report periods and run summaries for all streams, each stream on a worker thread
+     */
+    private void tick()
+    {
+        ExecutorService workers = tickWorkers;
+        if (workers == null)
+        {
+            return;
+        }
+        List<Stream> current;
+        synchronized (streams)
+        {
+            current = new ArrayList<Stream>(streams.values());
+        }
+        final long now = System.currentTimeMillis();
+        for (final Stream stream : current)
+        {
+            if (!stream.ticking.compareAndSet(false, true))
+            {
+                // Still busy with the last tick
+                continue;
+            }
+            try
+            {
+                workers.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            stream.tick(now);
+                        }
+                        catch (Throwable e)
+                        {
+                            // Keep the stream going
+                            logger.error("Failed to update time series stream " + stream.key, e);
+                        }
+                        finally
+                        {
+                            stream.ticking.set(false);
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                // Stopping
+                stream.ticking.set(false);
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Remove a stream that has no more clients and none on the way
+     */
+    private void removeIfUnused(Stream stream)
+    {
+        synchronized (streams)
+        {
+            if (stream.emitters.isEmpty() && stream.subscribing == 0 && streams.get(stream.key) == stream)
+            {
+                streams.remove(stream.key);
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Removed unused time series stream " + stream.key);
+                }
+            }
+        }
+    }
+    
+    /**
+     * The shared window state for all clients watching a test run with the same report parameters
+     */
+    private class Stream
+    {
+        private final String key;
+        private final String test;
+        private final String run;
+        private final long windowSize;
+        private final long reportPeriod;
+        private final boolean chartOnly;
+        private final boolean responseTime;
+        private final List<SseEmitter> emitters;
+        /** Clients being added to the stream; guarded by the map of streams */
+        private int subscribing;
+        /** Set while a worker is updating the stream */
+        private final AtomicBoolean ticking;
+        /** The end of the last report period pushed to clients */
+        private long reportedTime;
+        private long statsTime;
+        
+        private Stream(
+                String key, String test, String run,
+                long windowSize, long reportPeriod,
+                boolean chartOnly, boolean responseTime)
+        {
+            this.key = key;
+            this.test = test;
+            this.run = run;
+            this.windowSize = windowSize;
+            this.reportPeriod = reportPeriod;
+            this.chartOnly = chartOnly;
+            this.responseTime = responseTime;
+            this.emitters = new CopyOnWriteArrayList<SseEmitter>();
+            this.subscribing = 0;
+            this.ticking = new AtomicBoolean(false);
+            this.reportedTime = getClosedTime(System.currentTimeMillis());
+            this.statsTime = 0L;
+        }
+        
+        /**
+         * @return          the end of the last report period that can be pushed
+         */
+        private long getClosedTime(long now)
+        {
+            long closedTime = now - DEFAULT_CLOSE_DELAY;
+            return closedTime - (closedTime % reportPeriod);
+        }
+        
+        /**
+         * Send the results up to the last report period pushed and then add the client to the stream
+         */
+        private synchronized void subscribe(
+                final SseEmitter emitter,
+                ResultService resultService,
+                long fromTime, Long lastEventTime) throws IOException
+        {
+            long afterTime = Long.MIN_VALUE;
+            long startTime = fromTime;
+            if (lastEventTime != null)
+            {
+                // Continue from the last results the client received
+                afterTime = lastEventTime;
+                startTime = lastEventTime + reportPeriod - windowSize;
+            }
+            TimeSeriesHandler handler = new TimeSeriesHandler(afterTime, reportedTime);
+            resultService.getResults(handler, startTime, windowSize, reportPeriod, chartOnly, responseTime);
+            emitter.send(buildEvent(EVENT_RESULTS, reportedTime, handler.getEvents().toString()));
+            
+            Runnable remove = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    emitters.remove(emitter);
+                    removeIfUnused(Stream.this);
+                }
+            };
+            emitter.onCompletion(remove);
+            emitter.onTimeout(remove);
+            emitters.add(emitter);
+        }
+        
+        private synchronized void tick(long now)
+        {
+            ResultService resultService = services.getResultService(test, run);
+            if (resultService == null)
+            {
+                // The test run has gone
+                close();
+                return;
+            }
+            long closedTime = getClosedTime(now);
+            if (closedTime > reportedTime)
+            {
+                // Only the windows ending in newly-closed periods are calculated
+                TimeSeriesHandler handler = new TimeSeriesHandler(reportedTime, closedTime);
+                resultService.getResults(handler, reportedTime + reportPeriod - windowSize, windowSize, reportPeriod, chartOnly, responseTime);
+                reportedTime = closedTime;
+                if (handler.getEvents().size() > 0)
+                {
+                    send(EVENT_RESULTS, reportedTime, handler.getEvents().toString());
+                }
+            }
+            if (now >= statsTime + DEFAULT_STATS_INTERVAL)
+            {
+                statsTime = now;
+                DBObject runObj;
+                try
+                {
+                    runObj = services.getTestDAO().getTestRun(test, run, false);
+                }
+                catch (ObjectNotFoundException e)
+                {
+                    // The test run has gone
+                    close();
+                    return;
+                }
+                send(EVENT_STATS, null, JSON.serialize(runObj));
+            }
+        }
+        
+        /**
+         * Build an event for one client; builders cannot be shared
+         * 
+         * @param id        the event ID or <tt>null</tt> to leave the client's last event ID unchanged
+         */
+        private SseEmitter.SseEventBuilder buildEvent(String name, Long id, String json)
+        {
+            SseEmitter.SseEventBuilder event = SseEmitter.event().name(name);
+            if (id != null)
+            {
+                event.id(id.toString());
+            }
+            return event.data(json, MediaType.APPLICATION_JSON);
+        }
+        
+        private void send(String name, Long id, String json)
+        {
+            for (SseEmitter emitter : emitters)
+            {
+                try
+                {
+                    emitter.send(buildEvent(name, id, json));
+                }
+                catch (Throwable e)
+                {
+                    // The client has gone away
+                    emitters.remove(emitter);
+                    emitter.completeWithError(e);
+                }
+            }
+            removeIfUnused(this);
+        }
+        
+        private void close()
+        {
+            for (SseEmitter emitter : emitters)
+            {
+                emitter.complete();
+            }
+            emitters.clear();
+            removeIfUnused(this);
+        }
+    }
+}
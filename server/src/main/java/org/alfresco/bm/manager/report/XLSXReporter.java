@@ -29,7 +29,9 @@ import com.mongodb.BasicDBList;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import org.alfresco.bm.common.EventRecord;
+import org.alfresco.bm.common.PhaseAggregate;
 import org.alfresco.bm.common.ResultService;
+import org.alfresco.bm.common.ResultSketch;
 import org.alfresco.bm.common.ResultService.ResultHandler;
 import org.alfresco.bm.common.TestService;
 import org.alfresco.bm.common.spring.TestRunServicesCache;
@@ -40,8 +42,7 @@ import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.apache.commons.lang3.time.FastDateFormat;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.apache.commons.math3.stat.descriptive.StatisticalSummary;
 import org.apache.poi.POIXMLProperties.CoreProperties;
 import org.apache.poi.openxml4j.util.Nullable;
 import org.apache.poi.ss.usermodel.Cell;
@@ -140,6 +141,7 @@ public class XLSXReporter extends AbstractEventReporter
     {
         writeMetadata(workbook);
         createSummarySheet(workbook);
+        createPhasesSheet(workbook);
         createPropertiesSheet(workbook);
         createEventSheets(workbook);
         createExtraDataSheet(workbook);
@@ -451,6 +453,12 @@ public class XLSXReporter extends AbstractEventReporter
             cell.setCellStyle(headerStyle);
             cell.setCellValue(header);
         }
+        for (double percentile : ResultSummary.PERCENTILES)
+        {
+            XSSFCell cell = row.getCell(columnCount++);
+            cell.setCellStyle(headerStyle);
+            cell.setCellValue(ResultSummary.getPercentileTitle(percentile) + " (ms)");
+        }
         // Grab results and output them
         columnCount = 0;
         TreeMap<String, ResultSummary> summaries = collateResults(true);
@@ -462,8 +470,8 @@ public class XLSXReporter extends AbstractEventReporter
             row = sheet.createRow(rowCount++);
             String eventName = entry.getKey();
             ResultSummary summary = entry.getValue();
-            SummaryStatistics statsSuccess = summary.getStats(true);
-            SummaryStatistics statsFail = summary.getStats(false);
+            StatisticalSummary statsSuccess = summary.getStats(true);
+            StatisticalSummary statsFail = summary.getStats(false);
             // Event Name
             row.getCell(columnCount++).setCellValue(eventName);
             // Total Count
@@ -482,10 +490,20 @@ public class XLSXReporter extends AbstractEventReporter
             row.getCell(columnCount++).setCellValue((long) statsSuccess.getMean());
             // Standard Deviation (ms)
             row.getCell(columnCount++).setCellValue((long) statsSuccess.getStandardDeviation());
+            // Percentiles (ms), left blank if not available
+            for (double percentile : ResultSummary.PERCENTILES)
+            {
+                double value = summary.getPercentile(true, percentile);
+                XSSFCell cell = row.getCell(columnCount++);
+                if (!Double.isNaN(value))
+                {
+                    cell.setCellValue((long) value);
+                }
+            }
         }
 
         // Auto-size the columns
-        for (int i = 0; i < 10; i++)
+        for (int i = 0; i < headers.length + ResultSummary.PERCENTILES.length; i++)
         {
             sheet.autoSizeColumn(i);
         }
@@ -501,6 +519,70 @@ public class XLSXReporter extends AbstractEventReporter
         sheet.getHeader().setCenter(title);
     }
 
+    /**
+     * Create a 'Phases' sheet giving the time spent in each timed phase of the events,
+     * e.g. waiting for an HTTP connection, if any phases were timed.
+     * 
+     * @since 3.0
+     */
+    private void createPhasesSheet(XSSFWorkbook workbook)
+    {
+        TreeMap<String, TreeMap<String, PhaseAggregate>> phases = collatePhases(true);
+        if (phases.isEmpty())
+        {
+            return;
+        }
+        XSSFSheet sheet = workbook.createSheet("Phases");
+
+        // Create the fonts we need
+        Font fontBold = workbook.createFont();
+        fontBold.setBoldweight(Font.BOLDWEIGHT_BOLD);
+
+        // Create the styles we need
+        XSSFCellStyle headerStyle = sheet.getWorkbook().createCellStyle();
+        headerStyle.setAlignment(HorizontalAlignment.RIGHT);
+        headerStyle.setFont(fontBold);
+
+        int rowCount = 0;
+        XSSFRow row = sheet.createRow(rowCount++);
+        String[] headers = new String[] { "Event Name", "Phase", "Count", "Arithmetic Mean (ms)", "Max (ms)" };
+        int columnCount = 0;
+        for (String header : headers)
+        {
+            XSSFCell cell = row.getCell(columnCount++);
+            cell.setCellStyle(headerStyle);
+            cell.setCellValue(header);
+        }
+        for (Map.Entry<String, TreeMap<String, PhaseAggregate>> entry : phases.entrySet())
+        {
+            for (PhaseAggregate phase : entry.getValue().values())
+            {
+                columnCount = 0;
+                row = sheet.createRow(rowCount++);
+                row.getCell(columnCount++).setCellValue(entry.getKey());
+                row.getCell(columnCount++).setCellValue(phase.getPhase());
+                row.getCell(columnCount++).setCellValue(phase.getN());
+                row.getCell(columnCount++).setCellValue((long) phase.getMean());
+                row.getCell(columnCount++).setCellValue(phase.getMax());
+            }
+        }
+
+        // Auto-size the columns
+        for (int i = 0; i < headers.length; i++)
+        {
+            sheet.autoSizeColumn(i);
+        }
+
+        // Printing
+        PrintSetup ps = sheet.getPrintSetup();
+        sheet.setAutobreaks(true);
+        ps.setFitWidth((short) 1);
+        ps.setLandscape(true);
+
+        // Header and footer
+        sheet.getHeader().setCenter(title);
+    }
+
     private void createPropertiesSheet(XSSFWorkbook workbook)
     {
         DBObject testRunObj;
@@ -648,7 +730,7 @@ public class XLSXReporter extends AbstractEventReporter
         {
             @Override
             public boolean processResult(long fromTime, long toTime,
-                    Map<String, DescriptiveStatistics> statsByEventName, Map<String, Integer> failuresByEventName)
+                    Map<String, ResultSketch> statsByEventName, Map<String, Integer> failuresByEventName)
             {
                 // Get or create a sheet for each event
                 for (String eventName : statsByEventName.keySet())
@@ -748,7 +830,7 @@ public class XLSXReporter extends AbstractEventReporter
                         rowNums.put(eventName, rowNum);
                     }
 
-                    DescriptiveStatistics stats = statsByEventName.get(eventName);
+                    ResultSketch stats = statsByEventName.get(eventName);
                     Integer failures = failuresByEventName.get(eventName);
 
                     double numPerSec = (double) stats.getN() / ((double) (toTime - fromTime) / 1000.0);
@@ -0,0 +1,116 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.common;
+
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @see ResultSketch
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class ResultSketchTest
+{
+    @Test
+    public void buckets()
+    {
+        for (long v = 0L; v < 100000L; v++)
+        {
+            int index = ResultSketch.bucketIndex(v);
+            assertTrue("Lower bound for " + v, ResultSketch.bucketLowerBound(index) <= v);
+            assertTrue("Upper bound for " + v, ResultSketch.bucketUpperBound(index) >= v);
+        }
+        assertEquals(ResultSketch.BUCKET_COUNT - 1, ResultSketch.bucketIndex(Long.MAX_VALUE));
+        assertEquals(0, ResultSketch.bucketIndex(-5L));
+    }
+    
+    @Test
+    public void empty()
+    {
+        ResultSketch stats = new ResultSketch();
+        assertEquals(0L, stats.getN());
+        assertTrue(Double.isNaN(stats.getMean()));
+        assertTrue(Double.isNaN(stats.getMin()));
+        assertTrue(Double.isNaN(stats.getMax()));
+        assertTrue(Double.isNaN(stats.getPercentile(50.0)));
+    }
+    
+    /**
+     * Merged sketches must give the same results as exact statistics
+     */
+    @Test
+    public void mergeMatchesExact()
+    {
+        Random random = new Random(42L);
+        DescriptiveStatistics exact = new DescriptiveStatistics();
+        ResultSketch merged = new ResultSketch();
+        for (int i = 0; i < 10; i++)
+        {
+            ResultSketch period = new ResultSketch();
+            for (int j = 0; j < 1000; j++)
+            {
+                long value = (long) (Math.abs(random.nextGaussian()) * 500.0);
+                exact.addValue(value);
+                period.add(value);
+            }
+            merged.merge(period);
+        }
+        ResultSketch stats = merged;
+        assertEquals(exact.getN(), stats.getN());
+        assertEquals(exact.getMin(), stats.getMin(), 0.0);
+        assertEquals(exact.getMax(), stats.getMax(), 0.0);
+        assertEquals(exact.getMean(), stats.getMean(), 1E-9);
+        assertEquals(exact.getStandardDeviation(), stats.getStandardDeviation(), 1E-6);
+        for (double p : new double[] {50.0, 90.0, 99.0})
+        {
+            double expected = exact.getPercentile(p);
+            assertEquals("Percentile " + p, expected, stats.getPercentile(p), expected * 0.07 + 1.0);
+        }
+    }
+    
+    @Test
+    public void reset()
+    {
+        ResultSketch sketch = new ResultSketch();
+        sketch.add(1000L);
+        sketch.add(2000L);
+        sketch.reset();
+        sketch.add(5L);
+        assertEquals(1L, sketch.getN());
+        assertEquals(5.0, sketch.getMax(), 0.0);
+        assertEquals(5.0, sketch.getPercentile(100.0), 0.0);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.common.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.bm.common.mongo.RandomSampleCache.SampleLoader;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * @see RandomSampleCache
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class RandomSampleCacheTest
+{
+    private static final String[] ID_FIELDS = new String[] {"id"};
+    
+    private static RandomSample createSample(String domain, int size)
+    {
+        Map<String, Collection<String>> criteria = Collections.<String, Collection<String>>singletonMap("domain", Collections.singleton(domain));
+        List<DBObject> docs = new ArrayList<DBObject>(size);
+        for (int i = 0; i < size; i++)
+        {
+            docs.add(new BasicDBObject("id", domain + i).append("domain", domain));
+        }
+        return new RandomSample(criteria, ID_FIELDS, docs, true, Long.MAX_VALUE);
+    }
+    
+    @Test
+    public void leastRecentlyUsedDroppedWhenTooManyDocuments()
+    {
+        RandomSampleCache cache = new RandomSampleCache(100, 10);
+        cache.put("a", createSample("a", 4));
+        cache.put("b", createSample("b", 4));
+        assertNotNull(cache.get("a"));
+        cache.put("c", createSample("c", 4));
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        
+        // Replacing a sample releases its documents
+        cache.put("c", createSample("c", 6));
+        assertEquals(2, cache.size());
+        cache.put("c", createSample("c", 7));
+        assertEquals(1, cache.size());
+        assertNull(cache.get("a"));
+    }
+    
+    @Test
+    public void leastRecentlyUsedDroppedWhenTooManySamples()
+    {
+        RandomSampleCache cache = new RandomSampleCache(3, 1000);
+        for (int i = 0; i < 10; i++)
+        {
+            cache.put("s" + i, createSample("s" + i, 0));
+            // Keep the first sample in use
+            assertNotNull(cache.get("s0"));
+        }
+        assertEquals(3, cache.size());
+        assertNotNull(cache.get("s0"));
+        assertNotNull(cache.get("s8"));
+        assertNotNull(cache.get("s9"));
+    }
+    
+    @Test
+    public void mostRecentSampleKeptWhenTooLarge()
+    {
+        RandomSampleCache cache = new RandomSampleCache(10, 5);
+        cache.put("a", createSample("a", 2));
+        cache.put("b", createSample("b", 20));
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get("b"));
+        // Lowering the limit drops samples straight away
+        cache.put("c", createSample("c", 1));
+        cache.setMaxDocuments(1);
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get("c"));
+    }
+    
+    @Test
+    public void updatesDropUnusableSamples()
+    {
+        RandomSampleCache cache = new RandomSampleCache(10, 100);
+        cache.put("a", createSample("a", 2));
+        cache.put("b", createSample("b", 2));
+        // Too many matches to hold them all
+        cache.update(new BasicDBObject("id", "a9").append("domain", "a"), 2);
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        // Added as there is space
+        cache.update(new BasicDBObject("id", "b9").append("domain", "b"), 10);
+        assertEquals(3, cache.get("b").size());
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+    
+    @Test
+    public void removedDocumentsAreNoLongerPicked()
+    {
+        RandomSampleCache cache = new RandomSampleCache(10, 100);
+        cache.put("a", createSample("a", 2));
+        DBObject idObj = new BasicDBObject("id", "a0");
+        assertTrue(cache.isAffectedBy(idObj));
+        cache.remove(idObj);
+        RandomSample sample = cache.get("a");
+        assertEquals(1, sample.size());
+        for (int i = 0; i < 20; i++)
+        {
+            assertEquals("a1", sample.pick(new Random()).get("id"));
+        }
+        assertFalse(sample.contains(idObj));
+    }
+    
+    @Test
+    public void staleSamplesAreReloaded()
+    {
+        final Map<String, Collection<String>> criteria = Collections.<String, Collection<String>>singletonMap("domain", Collections.singleton("a"));
+        final AtomicInteger loads = new AtomicInteger(0);
+        SampleLoader loader = new SampleLoader()
+        {
+            @Override
+            public RandomSample load(long now)
+            {
+                loads.incrementAndGet();
+                List<DBObject> docs = new ArrayList<DBObject>(4);
+                for (int i = 0; i < 4; i++)
+                {
+                    docs.add(new BasicDBObject("id", "a" + i).append("domain", "a"));
+                }
+                // A partial sample that never expires
+                return new RandomSample(criteria, ID_FIELDS, docs, false, Long.MAX_VALUE);
+            }
+        };
+        RandomSampleCache cache = new RandomSampleCache(10, 100);
+        RandomSample sample = cache.getSample("a", loader);
+        assertSame(sample, cache.getSample("a", loader));
+        assertEquals(1, loads.get());
+        
+        // A partial sample is reloaded once it has lost half of its documents
+        sample.remove(new BasicDBObject("id", "a0"));
+        assertSame(sample, cache.getSample("a", loader));
+        sample.remove(new BasicDBObject("id", "a1"));
+        RandomSample newSample = cache.getSample("a", loader);
+        assertNotSame(sample, newSample);
+        assertEquals(2, loads.get());
+        assertEquals(4, newSample.size());
+        
+        // Expired samples are reloaded
+        cache.put("a", new RandomSample(criteria, ID_FIELDS, Collections.<DBObject>emptyList(), true, 0L));
+        cache.getSample("a", loader);
+        assertEquals(3, loads.get());
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.common.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * @see CachingSessionService
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class CachingSessionServiceTest
+{
+    private InMemorySessionService store;
+    private CachingSessionService sessionService;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        store = new InMemorySessionService();
+        sessionService = new CachingSessionService(store);
+        sessionService.setCacheEnabled(true);
+        sessionService.setCacheTTL(60000L);
+        sessionService.setFlushInterval(60000L);
+        sessionService.start();
+    }
+    
+    @After
+    public void tearDown() throws Exception
+    {
+        sessionService.stop();
+    }
+    
+    @Test
+    public void readsAreCached()
+    {
+        String sessionId = sessionService.startSession(new BasicDBObject("key", "abc"));
+        for (int i = 0; i < 10; i++)
+        {
+            assertTrue(sessionService.getSessionStartTime(sessionId) > 0L);
+            assertEquals(-1L, sessionService.getSessionEndTime(sessionId));
+            assertEquals("abc", sessionService.getSessionData(sessionId).get("key"));
+        }
+        assertEquals("Sessions started here should not be read back. ", 0, store.finds);
+        
+        // Callers cannot change the cached data
+        sessionService.getSessionData(sessionId).put("key", "xyz");
+        assertEquals("abc", sessionService.getSessionData(sessionId).get("key"));
+    }
+    
+    @Test
+    public void writeBehind()
+    {
+        String sessionId = sessionService.startSession(null);
+        sessionService.setSessionData(sessionId, new BasicDBObject("key", "abc"));
+        sessionService.setSessionData(sessionId, new BasicDBObject("key", "def"));
+        sessionService.endSession(sessionId);
+        // Visible immediately ...
+        assertEquals("def", sessionService.getSessionData(sessionId).get("key"));
+        assertTrue(sessionService.getSessionEndTime(sessionId) > 0L);
+        // ... but not written
+        assertNull(store.sessions.get(sessionId).getData());
+        assertEquals(-1L, store.sessions.get(sessionId).getEndTime());
+        
+        // All changes are written together
+        sessionService.flush();
+        assertEquals(1, store.bulkUpdates);
+        assertEquals("def", store.sessions.get(sessionId).getData().get("key"));
+        assertTrue(store.sessions.get(sessionId).getEndTime() > 0L);
+        
+        // Nothing to write
+        sessionService.flush();
+        assertEquals(1, store.bulkUpdates);
+    }
+    
+    @Test
+    public void countsIncludePendingChanges()
+    {
+        String sessionId = sessionService.startSession(null);
+        sessionService.endSession(sessionId);
+        assertEquals(0L, sessionService.getActiveSessionsCount());
+        assertEquals(1L, sessionService.getCompletedSessionsCount());
+    }
+    
+    @Test
+    public void staleSessionsAreReread() throws Exception
+    {
+        sessionService.stop();
+        sessionService = new CachingSessionService(store);
+        sessionService.setCacheEnabled(true);
+        sessionService.setCacheTTL(0L);
+        sessionService.setFlushInterval(60000L);
+        sessionService.start();
+        
+        String sessionId = sessionService.startSession(null);
+        // Another driver changes the session
+        store.updateSessionData(sessionId, new BasicDBObject("key", "other"));
+        Thread.sleep(5L);
+        assertEquals("other", sessionService.getSessionData(sessionId).get("key"));
+        assertEquals(1, store.finds);
+        
+        // Our own pending changes win over what is read back
+        sessionService.setSessionData(sessionId, new BasicDBObject("key", "mine"));
+        Thread.sleep(5L);
+        assertEquals("mine", sessionService.getSessionData(sessionId).get("key"));
+        assertEquals(2, store.finds);
+    }
+    
+    @Test
+    public void cacheSize() throws Exception
+    {
+        sessionService.setCacheSize(5);
+        for (int i = 0; i < 20; i++)
+        {
+            sessionService.startSession(null);
+        }
+        String sessionId = sessionService.startSession(null);
+        sessionService.getSessionStartTime(sessionId);
+        assertEquals(0, store.finds);
+        // Earlier sessions were dropped from the cache and are read again
+        for (String otherId : store.sessions.keySet())
+        {
+            sessionService.getSessionStartTime(otherId);
+        }
+        assertTrue(store.finds >= 15);
+    }
+    
+    @Test
+    public void leastRecentlyUsedSessionsAreKept() throws Exception
+    {
+        sessionService.setCacheSize(5);
+        String sessionId = sessionService.startSession(null);
+        for (int i = 0; i < 20; i++)
+        {
+            sessionService.startSession(null);
+            sessionService.getSessionStartTime(sessionId);
+        }
+        assertEquals("The session in use should have stayed in the cache. ", 0, store.finds);
+    }
+    
+    @Test
+    public void unknownSessionsAreNotUpdated()
+    {
+        String sessionId = sessionService.startSession(null);
+        assertTrue(sessionService.updateSessionData(sessionId, new BasicDBObject("key", "abc")));
+        assertFalse(sessionService.updateSessionData("missing", new BasicDBObject("key", "abc")));
+        assertEquals(1, store.finds);
+        sessionService.flush();
+        assertEquals("abc", store.sessions.get(sessionId).getData().get("key"));
+        assertFalse(store.sessions.containsKey("missing"));
+    }
+    
+    @Test
+    public void clearDiscardsPendingChanges()
+    {
+        String sessionId = sessionService.startSession(null);
+        sessionService.endSession(sessionId);
+        assertTrue(sessionService.clear());
+        sessionService.flush();
+        assertEquals(0, store.bulkUpdates);
+        assertEquals(0L, sessionService.getAllSessionsCount());
+    }
+    
+    @Test
+    public void failedWritesAreRetried()
+    {
+        String sessionId = sessionService.startSession(null);
+        sessionService.endSession(sessionId);
+        store.failUpdates = true;
+        try
+        {
+            sessionService.flush();
+            fail("Expected the write to fail.");
+        }
+        catch (RuntimeException e)
+        {
+            // Expected
+        }
+        sessionService.setSessionData(sessionId, new BasicDBObject("key", "abc"));
+        store.failUpdates = false;
+        sessionService.flush();
+        assertTrue(store.sessions.get(sessionId).getEndTime() > 0L);
+        assertEquals("abc", store.sessions.get(sessionId).getData().get("key"));
+    }
+    
+    @Test
+    public void disabled() throws Exception
+    {
+        sessionService.stop();
+        sessionService = new CachingSessionService(store);
+        sessionService.start();
+        
+        String sessionId = sessionService.startSession(null);
+        sessionService.endSession(sessionId);
+        assertTrue(store.sessions.get(sessionId).getEndTime() > 0L);
+        assertTrue(sessionService.getSessionEndTime(sessionId) > 0L);
+        assertEquals(1, store.finds);
+        assertEquals(0, store.bulkUpdates);
+    }
+    
+    /**
+     * Keeps sessions in memory and counts the calls made
+     */
+    private static class InMemorySessionService extends AbstractSessionService
+    {
+        private final Map<String, SessionData> sessions = new HashMap<String, SessionData>();
+        private int finds;
+        private int bulkUpdates;
+        private boolean failUpdates;
+        
+        @Override
+        protected synchronized String newSession(SessionData sessionData)
+        {
+            String sessionId = "S" + sessions.size();
+            SessionData stored = new SessionData(sessionData.getData());
+            stored.setId(sessionId);
+            stored.setStartTime(sessionData.getStartTime());
+            sessions.put(sessionId, stored);
+            return sessionId;
+        }
+
+        @Override
+        protected synchronized SessionData findSessionData(String sessionId)
+        {
+            finds++;
+            SessionData stored = sessions.get(sessionId);
+            if (stored == null)
+            {
+                return null;
+            }
+            SessionData sessionData = new SessionData(stored.getData());
+            sessionData.setId(sessionId);
+            sessionData.setStartTime(stored.getStartTime());
+            sessionData.setEndTime(stored.getEndTime());
+            return sessionData;
+        }
+
+        @Override
+        protected synchronized void updateSessionEndTime(String sessionId, long endTime)
+        {
+            sessions.get(sessionId).setEndTime(endTime);
+        }
+
+        @Override
+        protected synchronized boolean updateSessionData(String sessionId, DBObject data)
+        {
+            sessions.get(sessionId).setData(data);
+            return true;
+        }
+        
+        @Override
+        protected synchronized void updateSessions(Collection<SessionUpdate> updates)
+        {
+            if (failUpdates)
+            {
+                throw new RuntimeException("Failing as requested.");
+            }
+            bulkUpdates++;
+            super.updateSessions(updates);
+        }
+
+        @Override
+        public synchronized long getActiveSessionsCount()
+        {
+            long count = 0L;
+            for (SessionData sessionData : sessions.values())
+            {
+                count += (sessionData.getEndTime() < 0L) ? 1L : 0L;
+            }
+            return count;
+        }
+
+        @Override
+        public synchronized long getCompletedSessionsCount()
+        {
+            return sessions.size() - getActiveSessionsCount();
+        }
+
+        @Override
+        public synchronized long getAllSessionsCount()
+        {
+            return sessions.size();
+        }
+
+        @Override
+        public synchronized boolean clear()
+        {
+            sessions.clear();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.driver.event;
+
+import com.mongodb.DB;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.common.mongo.MongoEventService;
+import org.alfresco.bm.common.mongo.MongoResultService;
+import org.alfresco.bm.common.session.MongoSessionService;
+import org.alfresco.bm.common.util.junit.tools.MongoDBForTestsFactory;
+import org.alfresco.bm.common.util.log.LogService;
+import org.alfresco.bm.common.util.log.MongoLogService;
+import org.alfresco.bm.common.util.log.TestRunLogService;
+import org.alfresco.bm.driver.event.producer.EventProducerRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @see EventController
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class EventControllerTest
+{
+    private static final String DRIVER_ID = "testdriver";
+    private static final String TEST_NAME = "EventControllerTest";
+    private static final String TEST_RUN_NAME = "X";
+    private static final String TEST_RUN_FQN = TEST_NAME + "." + TEST_RUN_NAME;
+    private static final String EVENT_NAME = "external";
+    
+    private static MongoDBForTestsFactory mongoFactory;
+    private DB db;
+    private MongoEventService eventService;
+    private MongoResultService resultService;
+    private MongoSessionService sessionService;
+    private EventProcessorRegistry eventProcessors;
+    private EventController eventController;
+    private CountDownLatch processed;
+    private AtomicLong processedTime;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        mongoFactory = new MongoDBForTestsFactory();
+        db = mongoFactory.getObject();
+        eventService = new MongoEventService(db, "es");
+        eventService.start();
+        resultService = new MongoResultService(db, "rs");
+        resultService.start();
+        sessionService = new MongoSessionService(db, "ss");
+        sessionService.start();
+        LogService mongoLogService = new MongoLogService(db, Integer.MAX_VALUE, 1000, 0);
+        TestRunLogService logService = new TestRunLogService(mongoLogService, DRIVER_ID, TEST_NAME, TEST_RUN_NAME);
+        
+        processed = new CountDownLatch(1);
+        processedTime = new AtomicLong();
+        eventProcessors = new EventProcessorRegistry();
+        eventProcessors.register(EVENT_NAME, new AbstractEventProcessor()
+        {
+            @Override
+            protected EventResult processEvent(Event event) throws Exception
+            {
+                processedTime.set(System.currentTimeMillis());
+                processed.countDown();
+                return new EventResult(Collections.<Event>emptyList());
+            }
+        });
+        eventController = new EventController(
+                DRIVER_ID, TEST_RUN_FQN,
+                eventService, new EventProducerRegistry(), eventProcessors,
+                resultService, sessionService, logService,
+                2);
+        eventController.setMaxIdleBackoff(1000L);
+    }
+    
+    @After
+    public void tearDown() throws Exception
+    {
+        eventController.stop();
+        eventService.stop();
+        resultService.stop();
+        sessionService.stop();
+        mongoFactory.destroy();
+    }
+    
+    /**
+     * Events put by other drivers or by the server do not pass through the controller but must
+     * still be picked up when they are due rather than at the end of the idle back-off.
+     */
+    @Test
+    public void externalEventsAreProcessedOnTime() throws Exception
+    {
+        eventController.start();
+        // Let the controller process the start event and back off as far as it can
+        Thread.sleep(3000L);
+        
+        // Another driver adds an event through its own service
+        MongoEventService otherEventService = new MongoEventService(db, "es");
+        long scheduledTime = System.currentTimeMillis() + 1500L;
+        otherEventService.putEvent(new Event(EVENT_NAME, scheduledTime, null));
+        
+        assertTrue("Event was not processed.", processed.await(5L, TimeUnit.SECONDS));
+        long delay = processedTime.get() - scheduledTime;
+        assertTrue("Event was processed too early: " + delay, delay >= 0L);
+        assertTrue("Event was processed long after it was due: " + delay, delay < 250L);
+    }
+}
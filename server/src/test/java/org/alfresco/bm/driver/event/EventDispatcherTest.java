@@ -0,0 +1,119 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.driver.event;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @see EventDispatcher
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class EventDispatcherTest
+{
+    private CountDownLatch release;
+    private CountDownLatch started;
+    private Runnable blockingWork;
+    
+    @Before
+    public void setUp()
+    {
+        release = new CountDownLatch(1);
+        started = new CountDownLatch(2);
+        blockingWork = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                started.countDown();
+                try { release.await(); } catch (InterruptedException e) {}
+            }
+        };
+    }
+    
+    @After
+    public void tearDown()
+    {
+        release.countDown();
+    }
+    
+    @Test
+    public void backpressure() throws Exception
+    {
+        EventDispatcher dispatcher = new EventDispatcher(new CustomizableThreadFactory("EventDispatcherTest-"), 2, 1, false);
+        assertEquals(3, dispatcher.getCapacity());
+        
+        // Two threads and one queue slot
+        assertTrue(dispatcher.dispatch(blockingWork, 0L));
+        assertTrue(dispatcher.dispatch(blockingWork, 0L));
+        assertTrue(dispatcher.dispatch(blockingWork, 0L));
+        assertTrue(started.await(5L, TimeUnit.SECONDS));
+        assertEquals(2, dispatcher.getActiveCount());
+        assertEquals(1, dispatcher.getQueueDepth());
+        
+        // The caller must wait and must not run the work itself
+        long before = System.currentTimeMillis();
+        assertFalse(dispatcher.dispatch(blockingWork, 50L));
+        assertTrue(System.currentTimeMillis() - before >= 50L);
+        assertEquals(1L, dispatcher.getSaturatedCount());
+        assertEquals(3L, dispatcher.getDispatchedCount());
+        
+        // Free the threads and capacity becomes available again
+        release.countDown();
+        assertTrue(dispatcher.dispatch(blockingWork, 5000L));
+        dispatcher.shutdown();
+        assertTrue(dispatcher.awaitTermination(5L, TimeUnit.SECONDS));
+        assertEquals(0, dispatcher.getActiveCount());
+    }
+    
+    @Test
+    public void virtualThreadsFallBack() throws Exception
+    {
+        // Virtual threads are used if available; otherwise a thread pool is used
+        EventDispatcher dispatcher = new EventDispatcher(new CustomizableThreadFactory("EventDispatcherTest-"), 2, 5, true);
+        assertEquals(dispatcher.isVirtualThreads() ? 2 : 7, dispatcher.getCapacity());
+        assertTrue(dispatcher.dispatch(blockingWork, 0L));
+        assertTrue(dispatcher.dispatch(blockingWork, 0L));
+        assertTrue(started.await(5L, TimeUnit.SECONDS));
+        release.countDown();
+        dispatcher.shutdown();
+        assertTrue(dispatcher.awaitTermination(5L, TimeUnit.SECONDS));
+    }
+}
@@ -32,8 +32,13 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -139,4 +144,44 @@ public class EventRecordTest
             // Expected
         }
     }
+    
+    @Test
+    public void phases()
+    {
+        EventRecord eventRecord = new EventRecord("A", true, 0L, 0L, null, event);
+        assertNull(eventRecord.getPhases());
+        
+        Map<String, Long> phases = new LinkedHashMap<String, Long>();
+        phases.put("lease", 5L);
+        phases.put("ttfb", 20L);
+        eventRecord.setPhases(phases);
+        // The phases are copied
+        phases.put("transfer", 3L);
+        assertEquals(2, eventRecord.getPhases().size());
+        assertEquals(Long.valueOf(5L), eventRecord.getPhases().get("lease"));
+        assertEquals("lease", eventRecord.getPhases().keySet().iterator().next());
+        assertTrue(eventRecord.toString().contains("phases="));
+        
+        eventRecord.setPhases(Collections.<String, Long>emptyMap());
+        assertNull(eventRecord.getPhases());
+    }
+    
+    @Test
+    public void responseTime()
+    {
+        // Scheduled at 1000 but only started at 1500
+        Event scheduledEvent = new Event("A", 1000L, null);
+        EventRecord eventRecord = new EventRecord("A", true, 1500L, 20L, null, scheduledEvent);
+        assertEquals(500L, eventRecord.getStartDelay());
+        assertEquals(20L, eventRecord.getTime());
+        assertEquals(520L, eventRecord.getResponseTime());
+        
+        // Starting early does not reduce the response time
+        eventRecord.setStartDelay(-10L);
+        assertEquals(20L, eventRecord.getResponseTime());
+        
+        // No schedule
+        eventRecord = new EventRecord("A", true, 1500L, 20L, null, new Event("A", 0L, null));
+        assertEquals(20L, eventRecord.getResponseTime());
+    }
 }
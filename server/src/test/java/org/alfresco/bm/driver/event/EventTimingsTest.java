@@ -0,0 +1,122 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.driver.event;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @see EventTimings
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class EventTimingsTest
+{
+    @After
+    public void tearDown()
+    {
+        EventTimings.stop();
+    }
+    
+    @Test
+    public void notStarted()
+    {
+        assertFalse(EventTimings.isStarted());
+        EventTimings.add("lease", TimeUnit.MILLISECONDS.toNanos(10L));
+        assertEquals(0L, EventTimings.get("lease"));
+        assertNull(EventTimings.stop());
+    }
+    
+    @Test
+    public void nothingTimed()
+    {
+        EventTimings.start();
+        assertTrue(EventTimings.isStarted());
+        assertNull(EventTimings.stop());
+        assertFalse(EventTimings.isStarted());
+    }
+    
+    @Test
+    public void phasesAccumulate()
+    {
+        EventTimings.start();
+        EventTimings.add("ttfb", TimeUnit.MICROSECONDS.toNanos(1200L));
+        EventTimings.add("lease", TimeUnit.MICROSECONDS.toNanos(300L));
+        // A second request within the same event
+        EventTimings.add("ttfb", TimeUnit.MICROSECONDS.toNanos(1400L));
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(2600L), EventTimings.get("ttfb"));
+        
+        Map<String, Long> phases = EventTimings.stop();
+        // Phases are given in the order they were first seen and rounded only once
+        Iterator<Map.Entry<String, Long>> iterator = phases.entrySet().iterator();
+        Map.Entry<String, Long> entry = iterator.next();
+        assertEquals("ttfb", entry.getKey());
+        assertEquals(Long.valueOf(3L), entry.getValue());
+        entry = iterator.next();
+        assertEquals("lease", entry.getKey());
+        assertEquals(Long.valueOf(0L), entry.getValue());
+        assertFalse(iterator.hasNext());
+    }
+    
+    @Test
+    public void restartDiscardsTimes()
+    {
+        EventTimings.start();
+        EventTimings.add("connect", TimeUnit.MILLISECONDS.toNanos(7L));
+        EventTimings.start();
+        assertEquals(0L, EventTimings.get("connect"));
+    }
+    
+    @Test
+    public void otherThreadsNotTimed() throws Exception
+    {
+        EventTimings.start();
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                EventTimings.add("transfer", TimeUnit.MILLISECONDS.toNanos(5L));
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNull(EventTimings.stop());
+    }
+}
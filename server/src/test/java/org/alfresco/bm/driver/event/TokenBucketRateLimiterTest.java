@@ -0,0 +1,138 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.driver.event;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @see TokenBucketRateLimiter
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class TokenBucketRateLimiterTest
+{
+    @Test(expected=IllegalArgumentException.class)
+    public void badBurst()
+    {
+        new TokenBucketRateLimiter(10.0, 0, 100L);
+    }
+    
+    @Test
+    public void burstThenRate() throws Exception
+    {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(10.0, 5, 100L);
+        // Let the bucket fill
+        Thread.sleep(600L);
+        long before = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++)
+        {
+            assertTrue(limiter.acquire(10L));
+            limiter.searched(1);
+        }
+        assertTrue("Burst should not have been throttled", System.currentTimeMillis() - before < 100L);
+        // The bucket is empty so the next search waits for a token (100ms)
+        assertFalse(limiter.acquire(20L));
+        assertTrue(limiter.acquire(200L));
+    }
+    
+    @Test
+    public void missesBackOff() throws Exception
+    {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1000.0, 1000, 1000L);
+        Thread.sleep(100L);
+        // Each miss doubles the back-off: 5, 10, 20, 40, 80 ...
+        for (int i = 0; i < 8; i++)
+        {
+            assertTrue(limiter.acquire(2000L));
+            limiter.searched(0);
+        }
+        // Now backing off by more than half a second
+        assertFalse(limiter.acquire(100L));
+        // A hit resets the back-off once the current wait is over
+        assertTrue(limiter.acquire(2000L));
+        limiter.searched(1);
+        assertTrue(limiter.acquire(10L));
+    }
+    
+    @Test
+    public void eventAddedEndsBackOff() throws Exception
+    {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1000.0, 1000, 60000L);
+        Thread.sleep(100L);
+        for (int i = 0; i < 9; i++)
+        {
+            assertTrue(limiter.acquire(2000L));
+            limiter.searched(0);
+        }
+        // Backing off for more than a second
+        assertFalse(limiter.acquire(50L));
+        // An event due later than the back-off changes nothing
+        limiter.eventAdded(System.currentTimeMillis() + 3600000L);
+        assertFalse(limiter.acquire(50L));
+        // An event that is due now allows an immediate search
+        limiter.eventAdded(System.currentTimeMillis());
+        assertTrue(limiter.acquire(50L));
+    }
+    
+    @Test
+    public void wakeUp() throws Exception
+    {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1000.0, 1000, 60000L);
+        Thread.sleep(100L);
+        for (int i = 0; i < 9; i++)
+        {
+            assertTrue(limiter.acquire(2000L));
+            limiter.searched(0);
+        }
+        assertFalse(limiter.acquire(50L));
+        limiter.wakeUp();
+        assertTrue(limiter.acquire(50L));
+    }
+    
+    @Test
+    public void batchesUseTokensForEveryEvent() throws Exception
+    {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(10.0, 5, 100L);
+        Thread.sleep(600L);
+        // One search locks five events
+        assertTrue(limiter.acquire(10L));
+        limiter.searched(5);
+        // The bucket is empty so the next search waits for a token (100ms)
+        assertFalse(limiter.acquire(20L));
+        assertTrue(limiter.acquire(200L));
+        // A batch larger than the bucket leaves it in debt: the next search waits for ten tokens (1s)
+        limiter.searched(10);
+        assertFalse(limiter.acquire(500L));
+        assertTrue(limiter.acquire(1000L));
+    }
+}
@@ -30,6 +30,7 @@ import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import org.alfresco.bm.common.Page;
 import org.alfresco.bm.driver.event.Event;
 import org.alfresco.bm.common.ResultService;
 import org.alfresco.bm.common.util.junit.tools.MongoDBForTestsFactory;
@@ -40,9 +41,12 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -171,6 +175,25 @@ public class MongoEventServiceTest
         assertEquals(100, eventService.count());
     }
     
+    @Test
+    public void getEventsPaged()
+    {
+        pumpEvents(100);
+        Set<String> ids = new HashSet<String>();
+        String after = null;
+        do
+        {
+            Page<Event> page = eventService.getEvents(after, 7);
+            for (Event event : page.getItems())
+            {
+                assertTrue("Event repeated: " + event, ids.add(event.getId()));
+            }
+            after = page.getNext();
+        }
+        while (after != null);
+        assertEquals(100, ids.size());
+    }
+    
     @Test
     public void nextEventAnyDriver()
     {
@@ -209,6 +232,61 @@ public class MongoEventServiceTest
         assertNull(event66);
     }
     
+    @Test
+    public void nextEventsBatch()
+    {
+        pumpEvents(100);
+        long now = System.currentTimeMillis();
+        
+        // Only the events for the driver and no others
+        List<Event> events = eventService.nextEvents("DRIVER-66", now, 10);
+        assertEquals(1, events.size());
+        assertEquals("DRIVER-66", events.get(0).getDriver());
+        assertEquals(0, eventService.nextEvents("DRIVER-66", now, 10).size());
+        
+        // Events for any driver, in batches
+        long lastScheduledTime = 0L;
+        int fetched = 0;
+        while (true)
+        {
+            events = eventService.nextEvents(null, now, 30);
+            if (events.isEmpty())
+            {
+                break;
+            }
+            assertTrue("Batch too large: " + events.size(), events.size() <= 30);
+            for (Event event : events)
+            {
+                assertNotNull("Lock owner should be supplied. ", event.getLockOwner());
+                assertTrue("Scheduled time must be increasing. ", event.getScheduledTime() >= lastScheduledTime);
+                lastScheduledTime = event.getScheduledTime();
+                assertTrue("Failed to delete event: " + event, eventService.deleteEvent(event));
+                fetched++;
+            }
+        }
+        assertEquals(99, fetched);
+        assertEquals(0, eventService.count());
+    }
+    
+    @Test
+    public void nextEventsBatchContended()
+    {
+        pumpEvents(50);
+        long now = System.currentTimeMillis();
+        // Another driver gets to some of the events first
+        MongoEventService anotherEventService = new MongoEventService(db, "es");
+        List<Event> otherEvents = anotherEventService.nextEvents(null, now, 20);
+        assertEquals(20, otherEvents.size());
+        // We must only ever get the remaining events
+        List<Event> events = eventService.nextEvents(null, now, 100);
+        assertEquals(30, events.size());
+        for (Event event : events)
+        {
+            assertFalse("Event was locked twice: " + event, otherEvents.contains(event));
+        }
+        assertNull(eventService.nextEvent(null, now));
+    }
+    
     @Test
     public void nextEventUnassignedEvent()
     {
@@ -0,0 +1,257 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.driver.event.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import org.alfresco.bm.common.mongo.MongoEventService;
+import org.alfresco.bm.common.mongo.MongoLocalEventService;
+import org.alfresco.bm.common.util.junit.tools.MongoDBForTestsFactory;
+import org.alfresco.bm.driver.event.Event;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @see MongoLocalEventService
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class MongoLocalEventServiceTest
+{
+    private static final String DRIVER_ID = "D01";
+    
+    private static MongoDBForTestsFactory mongoFactory;
+    private MongoEventService mongoEventService;
+    private MongoLocalEventService eventService;
+    private DB db;
+    private DBCollection es;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        mongoFactory = new MongoDBForTestsFactory();
+        db = mongoFactory.getObject();
+        mongoEventService = new MongoEventService(db, "es");
+        mongoEventService.start();
+        eventService = new MongoLocalEventService(mongoEventService, DRIVER_ID);
+        eventService.setEnabled(true);
+        eventService.setJournalDelay(60000L);
+        eventService.start();
+        es = db.getCollection("es");
+    }
+    
+    @After
+    public void tearDown() throws Exception
+    {
+        eventService.stop();
+        mongoEventService.stop();
+        mongoFactory.destroy();
+    }
+    
+    @Test
+    public void localEventsStayInMemory()
+    {
+        long now = System.currentTimeMillis();
+        Event event = new Event("local", now, "DATA");
+        event.setDriver(DRIVER_ID);
+        String id = eventService.putEvent(event);
+        assertNotNull(id);
+        assertEquals(1L, eventService.count());
+        assertEquals("Local event must not be written immediately", 0L, es.count());
+        assertEquals(event, eventService.getEvent(id));
+        
+        // Other drivers cannot see it
+        assertNull(eventService.nextEvent(null, now));
+        // But we can
+        Event next = eventService.nextEvent(DRIVER_ID, now);
+        assertEquals(event, next);
+        assertNotNull(next.getLockOwner());
+        assertTrue(eventService.deleteEvent(next));
+        assertEquals(0L, eventService.count());
+        
+        // Nothing should ever reach MongoDB
+        eventService.stop();
+        assertEquals(0L, es.count());
+    }
+    
+    @Test
+    public void otherDriverEventsGoToMongo()
+    {
+        Event event = new Event("remote", System.currentTimeMillis(), "DATA");
+        event.setDriver("D02");
+        eventService.putEvent(event);
+        assertEquals(1L, es.count());
+        assertEquals(1L, eventService.count());
+    }
+    
+    @Test
+    public void localEventsInTimeOrder()
+    {
+        long now = System.currentTimeMillis();
+        for (int i = 9; i >= 0; i--)
+        {
+            Event event = new Event("local-" + i, now - i, "DATA");
+            event.setDriver(DRIVER_ID);
+            eventService.putEvent(event);
+        }
+        // Not yet due
+        Event future = new Event("future", now + 60000L, "DATA");
+        future.setDriver(DRIVER_ID);
+        eventService.putEvent(future);
+        
+        List<Event> events = eventService.nextEvents(DRIVER_ID, now, 100);
+        assertEquals(10, events.size());
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals("local-" + (9 - i), events.get(i).getName());
+        }
+        assertNull(eventService.nextEvent(DRIVER_ID, now));
+    }
+    
+    @Test
+    public void journaledEventsCanBeStolen()
+    {
+        long now = System.currentTimeMillis();
+        Event event = new Event("local", now, "DATA");
+        event.setDriver(DRIVER_ID);
+        eventService.putEvent(event);
+        // Stopping writes everything to MongoDB
+        eventService.stop();
+        assertEquals(1L, es.count());
+        
+        // Another driver's service takes it
+        MongoEventService anotherEventService = new MongoEventService(db, "es");
+        Event stolen = anotherEventService.nextEvent(null, now);
+        assertEquals(event, stolen);
+        // So we must not get it
+        assertNull(eventService.nextEvent(DRIVER_ID, now));
+    }
+    
+    @Test
+    public void releasedEventsCanBeTakenAgain()
+    {
+        long now = System.currentTimeMillis();
+        Event local = new Event("local", now, "DATA");
+        local.setDriver(DRIVER_ID);
+        eventService.putEvent(local);
+        Event remote = new Event("remote", now, "DATA");
+        remote.setDriver("D02");
+        eventService.putEvent(remote);
+        
+        List<Event> events = eventService.nextEvents(DRIVER_ID, now, 10);
+        assertEquals(1, events.size());
+        List<Event> remoteEvents = eventService.nextEvents(null, now, 10);
+        assertEquals(1, remoteEvents.size());
+        events.addAll(remoteEvents);
+        assertNull(eventService.nextEvent(null, now));
+        
+        eventService.releaseEvents(events);
+        // The local event is back in the local queue and the other is back in MongoDB
+        assertEquals(local, eventService.nextEvent(DRIVER_ID, now));
+        MongoEventService anotherEventService = new MongoEventService(db, "es");
+        assertEquals(remote, anotherEventService.nextEvent(null, now));
+    }
+    
+    @Test
+    public void failedJournalWritesAreRetried()
+    {
+        long now = System.currentTimeMillis();
+        Event event = new Event("local", now, "DATA");
+        event.setDriver(DRIVER_ID);
+        String id = eventService.putEvent(event);
+        // Block the write
+        BasicDBObject blocker = new BasicDBObject("_id", new ObjectId(id));
+        es.insert(blocker);
+        eventService.getEvents(0, 10);
+        assertEquals("The blocker and the local event must be counted", 2L, eventService.count());
+        
+        // The next write succeeds
+        es.remove(blocker);
+        eventService.getEvents(0, 10);
+        assertEquals(1L, es.count());
+        assertEquals(1L, eventService.count());
+        assertEquals("local", es.findOne().get(Event.FIELD_NAME));
+    }
+    
+    @Test
+    public void failedJournalWritesAreNotCountedOnceDeleted()
+    {
+        long now = System.currentTimeMillis();
+        Event event = new Event("local", now, "DATA");
+        event.setDriver(DRIVER_ID);
+        String id = eventService.putEvent(event);
+        es.insert(new BasicDBObject("_id", new ObjectId(id)));
+        eventService.getEvents(0, 10);
+        
+        // Still ours to process
+        Event next = eventService.nextEvent(DRIVER_ID, now);
+        assertEquals(event, next);
+        assertTrue(eventService.deleteEvent(next));
+        assertEquals("Only the blocker remains", 1L, eventService.count());
+    }
+    
+    @Test
+    public void restartDoesNotLeakJournalThreads() throws Exception
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            eventService.stop();
+            eventService.start();
+        }
+        eventService.stop();
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.getName().equals("LocalEventJournal-" + DRIVER_ID))
+            {
+                thread.join(5000L);
+                assertFalse("Journal thread still running: " + thread, thread.isAlive());
+            }
+        }
+        
+        // Local events are still written once restarted
+        eventService.start();
+        Event event = new Event("local", System.currentTimeMillis(), "DATA");
+        event.setDriver(DRIVER_ID);
+        eventService.putEvent(event);
+        eventService.getEvents(0, 10);
+        assertEquals(1L, es.count());
+    }
+}
@@ -31,20 +31,32 @@ import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import org.alfresco.bm.driver.event.Event;
+import org.alfresco.bm.common.EventDetails;
 import org.alfresco.bm.common.EventRecord;
+import org.alfresco.bm.common.EventResultFilter;
+import org.alfresco.bm.common.Page;
+import org.alfresco.bm.common.PhaseAggregate;
+import org.alfresco.bm.common.ResultAggregate;
 import org.alfresco.bm.common.ResultService;
 import org.alfresco.bm.common.ResultService.ResultHandler;
+import org.alfresco.bm.common.ResultSketch;
 import org.alfresco.bm.common.util.junit.tools.MongoDBForTestsFactory;
 import org.alfresco.bm.common.mongo.MongoResultService;
+import org.alfresco.bm.manager.report.TimeSeriesHandler;
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -120,6 +132,41 @@ public class MongoResultServiceTest
         assertEquals("Incorrect indexes: " + indexes, 5, indexes.size());
     }
     
+    /**
+     * Collections left by earlier runs get the paging indexes even though this service did not create them
+     */
+    @Test
+    public void migrateExistingIndexes() throws Exception
+    {
+        DBCollection old = db.createCollection("rsOld", new BasicDBObject());
+        old.createIndex(
+                new BasicDBObject(EventRecord.FIELD_START_TIME, Integer.valueOf(1)),
+                new BasicDBObject("name", "IDX_START"));
+        old.createIndex(
+                BasicDBObjectBuilder.start(EventRecord.FIELD_EVENT_NAME, Integer.valueOf(1)).add(EventRecord.FIELD_START_TIME, Integer.valueOf(1)).get(),
+                new BasicDBObject("name", "IDX_EVENT_NAME_START"));
+        
+        MongoResultService oldService = new MongoResultService(db, "rsOld");
+        oldService.start();
+        try
+        {
+            Set<String> indexNames = new HashSet<String>();
+            for (DBObject idxInfo : old.getIndexInfo())
+            {
+                indexNames.add((String) idxInfo.get("name"));
+            }
+            assertTrue("Old index not dropped: " + indexNames, !indexNames.contains("IDX_START"));
+            assertTrue("Old index not dropped: " + indexNames, !indexNames.contains("IDX_EVENT_NAME_START"));
+            assertTrue("Index missing: " + indexNames, indexNames.contains("IDX_START_ID"));
+            assertTrue("Index missing: " + indexNames, indexNames.contains("IDX_EVENT_NAME_START_ID"));
+            assertTrue("Index missing: " + indexNames, indexNames.contains("IDX_SUCCESS_START_ID"));
+        }
+        finally
+        {
+            oldService.stop();
+        }
+    }
+    
     @Test
     public void empty()
     {
@@ -136,7 +183,7 @@ public class MongoResultServiceTest
                     @Override
                     public boolean processResult(
                             long fromTime, long toTime,
-                            Map<String, DescriptiveStatistics> statsByEventName,
+                            Map<String, ResultSketch> statsByEventName,
                             Map<String, Integer> failuresByEventName)
                     {
                         fail("Should not have any results");
@@ -165,6 +212,109 @@ public class MongoResultServiceTest
         }
     }
     
+    @Test
+    public void recordResultsAsync() throws Exception
+    {
+        MongoResultService asyncResultService = new MongoResultService(db, "rs-async");
+        asyncResultService.setAsyncEnabled(true);
+        asyncResultService.setAsyncBatchSize(7);
+        asyncResultService.setAsyncFlushInterval(60000L);
+        asyncResultService.start();
+        try
+        {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < 100; i++)
+            {
+                asyncResultService.recordResult(createEventRecord(now + i));
+            }
+            assertEquals(0L, asyncResultService.getAsyncDroppedCount());
+        }
+        finally
+        {
+            // Stopping must write everything buffered
+            asyncResultService.stop();
+        }
+        assertEquals(0, asyncResultService.getAsyncQueueDepth());
+        assertEquals(100L, asyncResultService.getAsyncWrittenCount());
+        assertEquals(100L, asyncResultService.countResults());
+        
+        // Further results are written directly
+        asyncResultService.recordResult(createEventRecord(System.currentTimeMillis()));
+        assertEquals(101L, asyncResultService.countResults());
+    }
+    
+    /**
+     * Statistics read from the rollups must match those calculated from the results
+     */
+    @Test
+    public void rollups() throws Exception
+    {
+        MongoResultService rollupResultService = new MongoResultService(db, "rollup.results");
+        rollupResultService.setRollupsEnabled(true);
+        rollupResultService.start();
+        // Another service that reads the results directly
+        MongoResultService plainResultService = new MongoResultService(db, "rollup.results");
+        plainResultService.start();
+        try
+        {
+            assertTrue(db.collectionExists("rollup.rollups"));
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < 200; i++)
+            {
+                rollupResultService.recordResult(createEventRecord(now + i * 10L));
+            }
+            
+            assertEquals(plainResultService.countResultsBySuccess(), rollupResultService.countResultsBySuccess());
+            assertEquals(plainResultService.countResultsByFailure(), rollupResultService.countResultsByFailure());
+            String eventName = plainResultService.getEventNames().get(0);
+            assertEquals(plainResultService.countResultsByEventName(eventName), rollupResultService.countResultsByEventName(eventName));
+            
+            assertAggregatesEqual(
+                    plainResultService.getResultAggregates(true),
+                    rollupResultService.getResultAggregates(true));
+            long startTime = now - (now % 1000L);
+            long endTime = startTime + 5000L;
+            assertAggregatesEqual(
+                    plainResultService.getResultAggregates(startTime, endTime, 1000L, false),
+                    rollupResultService.getResultAggregates(startTime, endTime, 1000L, false));
+            // Rollups include histograms
+            for (ResultAggregate aggregate : rollupResultService.getResultAggregates(startTime, endTime, 1000L, false))
+            {
+                assertNotNull(aggregate.getHistogram());
+            }
+            // Periods that do not fall on whole seconds are read from the results
+            assertAggregatesEqual(
+                    plainResultService.getResultAggregates(startTime + 250L, endTime, 1500L, false),
+                    rollupResultService.getResultAggregates(startTime + 250L, endTime, 1500L, false));
+            assertAggregatesEqual(
+                    plainResultService.getResultAggregates(startTime + 250L, endTime, 1000L, false),
+                    rollupResultService.getResultAggregates(startTime + 250L, endTime, 1000L, false));
+        }
+        finally
+        {
+            rollupResultService.stop();
+            plainResultService.stop();
+        }
+    }
+    
+    private void assertAggregatesEqual(List<ResultAggregate> expected, List<ResultAggregate> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            ResultAggregate expectedAggregate = expected.get(i);
+            ResultAggregate actualAggregate = actual.get(i);
+            assertEquals(expectedAggregate.getEventName(), actualAggregate.getEventName());
+            assertEquals(expectedAggregate.getSuccess(), actualAggregate.getSuccess());
+            assertEquals(expectedAggregate.getPeriodStartTime(), actualAggregate.getPeriodStartTime());
+            assertEquals(expectedAggregate.getN(), actualAggregate.getN());
+            assertEquals(expectedAggregate.getFailures(), actualAggregate.getFailures());
+            assertEquals(expectedAggregate.getMin(), actualAggregate.getMin());
+            assertEquals(expectedAggregate.getMax(), actualAggregate.getMax());
+            assertEquals(expectedAggregate.getMean(), actualAggregate.getMean(), 0.001);
+        }
+    }
+    
     /**
      * Create a sample set of results
      */
@@ -339,6 +489,70 @@ public class MongoResultServiceTest
         assertEquals(0, resultService.getResults("BOB", 0, 1).size());
     }
     
+    /**
+     * Keyset paging must visit every result exactly once, even when many results share a start time
+     */
+    @Test
+    public void getResultsPagedAfter()
+    {
+        long testStartTime = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++)
+        {
+            resultService.recordResult(createEventRecord(testStartTime + (i / 7) * 10L));
+        }
+        Set<String> ids = new HashSet<String>();
+        long lastStartTime = Long.MIN_VALUE;
+        String after = null;
+        int pages = 0;
+        do
+        {
+            Page<EventRecord> page = resultService.getResults(null, after, 6);
+            for (EventRecord record : page.getItems())
+            {
+                assertTrue("Results out of order. ", record.getStartTime() >= lastStartTime);
+                lastStartTime = record.getStartTime();
+                assertTrue("Result repeated: " + record, ids.add(record.getId()));
+            }
+            after = page.getNext();
+            pages++;
+        }
+        while (after != null);
+        assertEquals(100, ids.size());
+        assertEquals(17, pages);
+        
+        // Newest first for the event details
+        int total = 0;
+        long lastTime = Long.MAX_VALUE;
+        after = null;
+        do
+        {
+            Page<EventDetails> page = resultService.getEventDetails(EventResultFilter.All, null, after, 9);
+            for (EventDetails details : page.getItems())
+            {
+                assertTrue("Details out of order. ", details.getEventTime().getTime() <= lastTime);
+                lastTime = details.getEventTime().getTime();
+            }
+            total += page.getItems().size();
+            after = page.getNext();
+        }
+        while (after != null);
+        assertEquals(100, total);
+        
+        // Check that invalid event name returns nothing
+        Page<EventRecord> emptyPage = resultService.getResults("BOB", null, 1);
+        assertEquals(0, emptyPage.getItems().size());
+        assertNull(emptyPage.getNext());
+        try
+        {
+            resultService.getResults(null, "BOB", 1);
+            fail("Invalid continuation token not detected.");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+    }
+    
     @Test
     public void getResultsAfterTime()
     {
@@ -377,7 +591,7 @@ public class MongoResultServiceTest
                     @Override
                     public boolean processResult(
                             long fromTime, long toTime,
-                            Map<String, DescriptiveStatistics> statsByEventName,
+                            Map<String, ResultSketch> statsByEventName,
                             Map<String, Integer> failuresByEventName)
                     {
                         // Check that we have a failure count for each event
@@ -415,7 +629,7 @@ public class MongoResultServiceTest
                     @Override
                     public boolean processResult(
                             long fromTime, long toTime,
-                            Map<String, DescriptiveStatistics> statsByEventName,
+                            Map<String, ResultSketch> statsByEventName,
                             Map<String, Integer> failuresByEventName)
                     {
                         if (toTime <= firstEventTime)
@@ -454,7 +668,7 @@ public class MongoResultServiceTest
         pumpRecords(10);
         
         final AtomicInteger count = new AtomicInteger();
-        final Map<String, DescriptiveStatistics> lastStatsByEventName = new HashMap<String, DescriptiveStatistics>(17);
+        final Map<String, ResultSketch> lastStatsByEventName = new HashMap<String, ResultSketch>(17);
         
         resultService.getResults(
                 new ResultHandler()
@@ -462,7 +676,7 @@ public class MongoResultServiceTest
                     @Override
                     public boolean processResult(
                             long fromTime, long toTime,
-                            Map<String, DescriptiveStatistics> statsByEventName,
+                            Map<String, ResultSketch> statsByEventName,
                             Map<String, Integer> failuresByEventName)
                     {
                         // Always keep the last stats
@@ -488,7 +702,7 @@ public class MongoResultServiceTest
             {
                 eventStats.addValue(eventRecord.getTime());
             }
-            DescriptiveStatistics lastEventStats = lastStatsByEventName.get(eventName);
+            ResultSketch lastEventStats = lastStatsByEventName.get(eventName);
             assertNotNull("No last report for event '" + eventName  + "'.", lastEventStats);
             // Now check that this matched the last report exactly
             assertEquals(
@@ -496,4 +710,268 @@ public class MongoResultServiceTest
                     (long) Math.floor(eventStats.getMean()), (long) Math.floor(lastStatsByEventName.get(eventName).getMean()));
         }
     }
+    
+    /**
+     * Check the statistics calculated by MongoDB against those from the individual results
+     */
+    @Test
+    public void getResultAggregates()
+    {
+        pumpRecords(100);
+        
+        List<ResultAggregate> aggregates = resultService.getResultAggregates(false);
+        long total = 0L;
+        for (ResultAggregate aggregate : aggregates)
+        {
+            assertNotNull(aggregate.getSuccess());
+            assertEquals(-1L, aggregate.getPeriodStartTime());
+            DescriptiveStatistics expected = new DescriptiveStatistics();
+            for (EventRecord eventRecord : resultService.getResults(aggregate.getEventName(), 0, 1000))
+            {
+                if (eventRecord.isSuccess() == aggregate.getSuccess().booleanValue())
+                {
+                    expected.addValue(eventRecord.getTime());
+                }
+            }
+            assertEquals(expected.getN(), aggregate.getN());
+            assertEquals(aggregate.getSuccess() ? 0L : aggregate.getN(), aggregate.getFailures());
+            assertEquals(expected.getMin(), aggregate.getMin(), 0.0);
+            assertEquals(expected.getMax(), aggregate.getMax(), 0.0);
+            assertEquals(expected.getMean(), aggregate.getMean(), 0.001);
+            assertEquals(expected.getStandardDeviation(), aggregate.getStandardDeviation(), 0.001);
+            // The histogram gives the same percentiles as sketching the raw results
+            ResultSketch expectedSketch = new ResultSketch();
+            for (double value : expected.getValues())
+            {
+                expectedSketch.add((long) value);
+            }
+            ResultSketch sketch = new ResultSketch();
+            sketch.merge(aggregate);
+            assertEquals(expectedSketch.getPercentile(50.0), sketch.getPercentile(50.0), 0.0);
+            assertEquals(expectedSketch.getPercentile(99.9), sketch.getPercentile(99.9), 0.0);
+            total += aggregate.getN();
+        }
+        assertEquals(100L, total);
+    }
+    
+    @Test
+    public void getResultAggregatesByPeriod()
+    {
+        pumpRecords(100);
+        long firstEventTime = resultService.getFirstResult().getStartTime();
+        long lastEventTime = resultService.getLastResult().getStartTime();
+        
+        List<ResultAggregate> aggregates = resultService.getResultAggregates(firstEventTime, lastEventTime + 1L, 100L, true);
+        long total = 0L;
+        long lastPeriodStartTime = Long.MIN_VALUE;
+        for (ResultAggregate aggregate : aggregates)
+        {
+            long periodStartTime = aggregate.getPeriodStartTime();
+            assertEquals("Period not on a multiple of the report period. ", 0L, periodStartTime % 100L);
+            assertTrue("Periods out of order. ", periodStartTime >= lastPeriodStartTime);
+            lastPeriodStartTime = periodStartTime;
+            assertNull(aggregate.getSuccess());
+            assertNotNull("Period aggregates need a histogram for percentiles. ", aggregate.getHistogram());
+            total += aggregate.getN();
+        }
+        // Only chartable results are included
+        assertEquals(resultService.getResults(firstEventTime, lastEventTime + 1L, true, 0, 1000).size(), total);
+    }
+    
+    /**
+     * Percentiles must survive aggregation by period
+     */
+    @Test
+    public void getPercentilesByPeriodUsingHandler()
+    {
+        long now = System.currentTimeMillis();
+        long periodStart = now - (now % 1000L) - 1000L;
+        for (int i = 1; i <= 100; i++)
+        {
+            resultService.recordResult(new EventRecord("D1", true, periodStart + i, i, null, new Event("timed", null)));
+        }
+        final Map<String, ResultSketch> lastStatsByEventName = new HashMap<String, ResultSketch>();
+        ResultHandler handler = new ResultHandler()
+        {
+            @Override
+            public boolean processResult(
+                    long fromTime, long toTime,
+                    Map<String, ResultSketch> statsByEventName,
+                    Map<String, Integer> failuresByEventName) throws Throwable
+            {
+                lastStatsByEventName.putAll(statsByEventName);
+                return true;
+            }
+        };
+        resultService.getResults(handler, periodStart, 1000L, 1000L, false);
+        ResultSketch stats = lastStatsByEventName.get("timed");
+        assertNotNull(stats);
+        assertEquals(100L, stats.getN());
+        // Estimates are within the histogram's bucket precision
+        assertEquals(50.0, stats.getPercentile(50.0), 50.0 * 0.07);
+        assertEquals(90.0, stats.getPercentile(90.0), 90.0 * 0.07);
+        assertEquals(99.0, stats.getPercentile(99.0), 99.0 * 0.07);
+    }
+    
+    /**
+     * Windows in a gap between results must not produce statistics without values
+     */
+    @Test
+    public void getTimeSeriesAcrossGap() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        long periodStart = now - (now % 1000L) - 10000L;
+        resultService.recordResult(new EventRecord("D1", true, periodStart, 10L, null, new Event("early", null)));
+        resultService.recordResult(new EventRecord("D1", true, periodStart + 8000L, 20L, null, new Event("late", null)));
+        
+        final List<Map<String, ResultSketch>> windows = new ArrayList<Map<String, ResultSketch>>();
+        resultService.getResults(
+                new ResultHandler()
+                {
+                    @Override
+                    public boolean processResult(
+                            long fromTime, long toTime,
+                            Map<String, ResultSketch> statsByEventName,
+                            Map<String, Integer> failuresByEventName)
+                    {
+                        windows.add(statsByEventName);
+                        return true;
+                    }
+                },
+                periodStart, 2000L, 1000L, false);
+        // The first result is in two windows, the gap is not reported and the last window is reported once
+        assertEquals(3, windows.size());
+        assertEquals(Collections.singleton("early"), windows.get(1).keySet());
+        assertEquals(Collections.singleton("late"), windows.get(2).keySet());
+        for (Map<String, ResultSketch> window : windows)
+        {
+            assertEquals(1, window.size());
+            for (ResultSketch stats : window.values())
+            {
+                assertEquals(1L, stats.getN());
+            }
+        }
+        
+        // The time series must be valid JSON
+        TimeSeriesHandler handler = new TimeSeriesHandler();
+        resultService.getResults(handler, periodStart, 2000L, 1000L, false);
+        String json = handler.getEvents().toString();
+        JsonNode eventsNode = new ObjectMapper().readTree(json);
+        assertEquals(3, eventsNode.size());
+    }
+    
+    @Test
+    public void getPhaseAggregates()
+    {
+        long now = System.currentTimeMillis();
+        long periodStart = now - (now % 1000L);
+        Map<String, Long> phases = new LinkedHashMap<String, Long>();
+        phases.put("lease", 2L);
+        phases.put("ttfb", 10L);
+        EventRecord eventRecord = new EventRecord("D1", true, periodStart, 20L, null, new Event("http", null));
+        eventRecord.setPhases(phases);
+        resultService.recordResult(eventRecord);
+        phases.put("lease", 6L);
+        phases.put("ttfb", 30L);
+        eventRecord = new EventRecord("D1", true, periodStart + 10L, 50L, null, new Event("http", null));
+        eventRecord.setPhases(phases);
+        resultService.recordResult(eventRecord);
+        // No phases
+        resultService.recordResult(new EventRecord("D1", true, periodStart + 20L, 5L, null, new Event("other", null)));
+        
+        // Phases survive the round trip in order
+        EventRecord firstResult = resultService.getFirstResult();
+        assertEquals("[lease, ttfb]", firstResult.getPhases().keySet().toString());
+        assertEquals(Long.valueOf(10L), firstResult.getPhases().get("ttfb"));
+        assertNull(resultService.getLastResult().getPhases());
+        
+        List<PhaseAggregate> aggregates = resultService.getPhaseAggregates(periodStart, periodStart + 1000L, 1000L, true);
+        assertEquals(2, aggregates.size());
+        PhaseAggregate lease = aggregates.get(0);
+        assertEquals("http", lease.getEventName());
+        assertEquals("lease", lease.getPhase());
+        assertEquals(periodStart, lease.getPeriodStartTime());
+        assertEquals(2L, lease.getN());
+        assertEquals(6L, lease.getMax());
+        assertEquals(4.0, lease.getMean(), 0.0);
+        PhaseAggregate ttfb = aggregates.get(1);
+        assertEquals("ttfb", ttfb.getPhase());
+        assertEquals(20.0, ttfb.getMean(), 0.0);
+    }
+    
+    @Test
+    public void getResultAggregatesByResponseTime()
+    {
+        long now = System.currentTimeMillis();
+        long periodStart = now - (now % 1000L);
+        // Scheduled 100ms before starting and dispatched 40ms before starting
+        EventRecord eventRecord = new EventRecord("D1", true, periodStart + 100L, 20L, null, new Event("late", periodStart, null));
+        eventRecord.setDispatchTime(periodStart + 60L);
+        resultService.recordResult(eventRecord);
+        
+        EventRecord result = resultService.getFirstResult();
+        assertEquals(100L, result.getStartDelay());
+        assertEquals(periodStart + 60L, result.getDispatchTime());
+        assertEquals(120L, result.getResponseTime());
+        
+        // The event details show where the time went
+        EventDetails eventDetails = resultService.getEventDetails(EventResultFilter.All, null, 0, 1).get(0);
+        assertEquals(100L, eventDetails.getEventStartDelay());
+        assertEquals(40L, eventDetails.getEventQueueTime());
+        assertEquals(40L, eventDetails.toDBObject().get("eventQueueTime"));
+        
+        List<ResultAggregate> serviceAggregates = resultService.getResultAggregates(periodStart, periodStart + 1000L, 1000L, true, false);
+        assertEquals(1, serviceAggregates.size());
+        assertEquals(20L, serviceAggregates.get(0).getMax());
+        List<ResultAggregate> responseAggregates = resultService.getResultAggregates(periodStart, periodStart + 1000L, 1000L, true, true);
+        assertEquals(1, responseAggregates.size());
+        assertEquals(120L, responseAggregates.get(0).getMax());
+        
+        // Results without a stored response time fall back to the service time
+        rs.update(new BasicDBObject(), new BasicDBObject("$unset", new BasicDBObject(EventRecord.FIELD_RESPONSE_TIME, "")));
+        responseAggregates = resultService.getResultAggregates(periodStart, periodStart + 1000L, 1000L, true, true);
+        assertEquals(20L, responseAggregates.get(0).getMax());
+    }
+    
+    @Test
+    public void getResponseTimePercentilesUsingHandler()
+    {
+        long now = System.currentTimeMillis();
+        long periodStart = now - (now % 1000L) - 1000L;
+        // All scheduled together and each started a millisecond after the last
+        long scheduledTime = periodStart + 200L;
+        for (int i = 0; i < 100; i++)
+        {
+            resultService.recordResult(new EventRecord("D1", true, scheduledTime + i, 10L, null, new Event("queued", scheduledTime, null)));
+        }
+        final Map<String, ResultSketch> lastStatsByEventName = new HashMap<String, ResultSketch>();
+        ResultHandler handler = new ResultHandler()
+        {
+            @Override
+            public boolean processResult(
+                    long fromTime, long toTime,
+                    Map<String, ResultSketch> statsByEventName,
+                    Map<String, Integer> failuresByEventName) throws Throwable
+            {
+                lastStatsByEventName.putAll(statsByEventName);
+                return true;
+            }
+        };
+        // Service times are all the same
+        resultService.getResults(handler, periodStart, 1000L, 1000L, false, false);
+        ResultSketch stats = lastStatsByEventName.get("queued");
+        assertEquals(100L, stats.getN());
+        assertEquals(10.0, stats.getPercentile(50.0), 10.0 * 0.07);
+        assertEquals(10.0, stats.getPercentile(99.0), 10.0 * 0.07);
+        // Response times include the start delays of 0 to 99ms
+        lastStatsByEventName.clear();
+        resultService.getResults(handler, periodStart, 1000L, 1000L, false, true);
+        stats = lastStatsByEventName.get("queued");
+        assertEquals(100L, stats.getN());
+        assertEquals(10.0, stats.getMin(), 0.0);
+        assertEquals(109.0, stats.getMax(), 0.0);
+        assertEquals(60.0, stats.getPercentile(50.0), 60.0 * 0.07);
+        assertEquals(100.0, stats.getPercentile(90.0), 100.0 * 0.07);
+        assertEquals(109.0, stats.getPercentile(99.0), 109.0 * 0.07);
+    }
 }
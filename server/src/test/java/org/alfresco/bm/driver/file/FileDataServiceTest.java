@@ -40,8 +40,16 @@ import org.springframework.core.env.PropertiesPropertySource;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @see FileDataService
@@ -176,6 +184,85 @@ public class FileDataServiceTest
         Assert.assertNotNull("There are results but random file was not selected", fileData);
     }
     
+    @Test
+    public void testRandomFetchConcurrent() throws Exception
+    {
+        FileDataServiceImpl fileDataServiceImpl = (FileDataServiceImpl) fileDataService;
+        // Drop the local files so that the threads all find them missing
+        fileDataServiceImpl.setFilesetIndexTTL(FileDataServiceImpl.DEFAULT_FILESET_INDEX_TTL);
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try
+        {
+            List<Future<FileData>> futures = new ArrayList<Future<FileData>>();
+            for (int i = 0; i < 50; i++)
+            {
+                futures.add(executor.submit(new Callable<FileData>()
+                {
+                    @Override
+                    public FileData call() throws Exception
+                    {
+                        return fileDataService.getRandomFile(FILESET_TEST);
+                    }
+                }));
+            }
+            for (Future<FileData> future : futures)
+            {
+                Assert.assertNotNull("Threads waiting for the files to load must get one", future.get());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testRandomFetchSeesChanges()
+    {
+        String fileset = "RANDOM";
+        Assert.assertNull(fileDataService.getRandomFile(fileset));
+        
+        FileData fileDataTxt = createFileData("random.txt");
+        fileDataTxt.setFileset(fileset);
+        fileDataService.createNewFileData(fileDataTxt);
+        FileData fileDataPdf = createFileData("random.pdf");
+        fileDataPdf.setFileset(fileset);
+        fileDataService.createNewFileData(fileDataPdf);
+        
+        // Both the local index and the randomizer index must give the same answers
+        FileDataServiceImpl fileDataServiceImpl = (FileDataServiceImpl) fileDataService;
+        for (int maxSize : new int[] {FileDataServiceImpl.DEFAULT_FILESET_INDEX_MAX_SIZE, 0})
+        {
+            fileDataServiceImpl.setFilesetIndexMaxSize(maxSize);
+            try
+            {
+                Assert.assertEquals("random.txt", fileDataService.getRandomFile(fileset, "txt").getRemoteName());
+                Assert.assertEquals("random.pdf", fileDataService.getRandomFile(fileset, "pdf").getRemoteName());
+                Assert.assertNull(fileDataService.getRandomFile(fileset, "doc"));
+                Set<String> remoteNames = new HashSet<String>();
+                for (int i = 0; i < 100; i++)
+                {
+                    remoteNames.add(fileDataService.getRandomFile(fileset).getRemoteName());
+                }
+                Assert.assertEquals("Random selection must find all files", 2, remoteNames.size());
+            }
+            finally
+            {
+                fileDataServiceImpl.setFilesetIndexMaxSize(FileDataServiceImpl.DEFAULT_FILESET_INDEX_MAX_SIZE);
+            }
+        }
+        
+        // Removed files must not be selected
+        fileDataService.removeFile(fileset, "random.txt");
+        Assert.assertNull(fileDataService.getRandomFile(fileset, "txt"));
+        for (int i = 0; i < 20; i++)
+        {
+            Assert.assertEquals("random.pdf", fileDataService.getRandomFile(fileset).getRemoteName());
+        }
+        fileDataService.removeFile(fileset, "random.pdf");
+        Assert.assertNull(fileDataService.getRandomFile(fileset));
+    }
+    
     @Test
     public void testFetchByRemoteName()
     {
@@ -198,6 +285,45 @@ public class FileDataServiceTest
         Assert.assertNull("Did not remove file by remote name", fileData);
     }
     
+    /**
+     * Ensure that many threads can fetch the same missing file at once
+     */
+    @Test
+    public void testGetFileConcurrently() throws Exception
+    {
+        File file = localTestFileService.getFileByName("test.txt");
+        Assert.assertNotNull("(LOCAL) Expected to find a named file.", file);
+        Assert.assertTrue("Failed to remove local copy", file.delete());
+        
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<File>> futures = new ArrayList<Future<File>>();
+            for (int i = 0; i < 32; i++)
+            {
+                futures.add(executor.submit(new Callable<File>()
+                {
+                    @Override
+                    public File call() throws Exception
+                    {
+                        return localTestFileService.getFileByName("test.txt");
+                    }
+                }));
+            }
+            for (Future<File> future : futures)
+            {
+                File fetched = future.get();
+                Assert.assertEquals(file, fetched);
+                Assert.assertEquals("(LOCAL) File must never be seen partially written.", "SOME TEXT".length(), fetched.length());
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        Assert.assertNotNull("(LOCAL) File must still be indexed.", localTestFileService.getFileByName("test.txt"));
+    }
+    
     // TODO: FTP needs access to remote FTP server. This needs to be reimplemented
     /**
      * Ensure that a test file can be retrieved
@@ -0,0 +1,418 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.driver.file;
+
+import com.google.common.io.Files;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link FtpTestFileService} connection pooling and resumed downloads against an
+ * in-process FTP stand-in.
+ * 
+ * @see FtpTestFileService
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class FtpTestFileServiceTest
+{
+    private static final String FTP_PATH = "/files";
+    
+    private File localDir;
+    private Map<String, byte[]> remoteFiles;
+    private AtomicInteger connectionsCreated;
+    private AtomicInteger connectionsOpen;
+    private AtomicInteger maxConnectionsOpen;
+    /** Number of downloads that will fail half-way through */
+    private AtomicInteger failuresToInject;
+    private List<Long> restartOffsets;
+    private FileDataService fileDataService;
+    private StandInFtpTestFileService ftpTestFileService;
+    
+    @Before
+    public void setUp() throws IOException
+    {
+        localDir = Files.createTempDir();
+        remoteFiles = new ConcurrentHashMap<String, byte[]>();
+        for (int i = 0; i < 10; i++)
+        {
+            byte[] bytes = new byte[1000 + i];
+            for (int j = 0; j < bytes.length; j++)
+            {
+                bytes[j] = (byte) (i + j);
+            }
+            remoteFiles.put("file-" + i + ".bin", bytes);
+        }
+        connectionsCreated = new AtomicInteger();
+        connectionsOpen = new AtomicInteger();
+        maxConnectionsOpen = new AtomicInteger();
+        failuresToInject = new AtomicInteger();
+        restartOffsets = new ArrayList<Long>();
+        fileDataService = new InMemoryFileDataService();
+        ftpTestFileService = new StandInFtpTestFileService();
+    }
+    
+    @After
+    public void tearDown()
+    {
+        ftpTestFileService.destroy();
+    }
+    
+    @Test
+    public void connectionsAreReused()
+    {
+        ftpTestFileService.afterPropertiesSet();
+        for (String remoteName : remoteFiles.keySet())
+        {
+            File file = ftpTestFileService.getFileByName(remoteName);
+            Assert.assertNotNull(file);
+            Assert.assertEquals(remoteFiles.get(remoteName).length, file.length());
+        }
+        Assert.assertEquals("Listing and all downloads must share one connection", 1, connectionsCreated.get());
+    }
+    
+    @Test
+    public void interruptedDownloadIsResumed() throws Exception
+    {
+        ftpTestFileService.afterPropertiesSet();
+        failuresToInject.set(1);
+        File file = ftpTestFileService.getFileByName("file-3.bin");
+        Assert.assertNotNull(file);
+        Assert.assertArrayEquals(remoteFiles.get("file-3.bin"), Files.toByteArray(file));
+        Assert.assertEquals("Expected a failed attempt and a resumed attempt", 2, restartOffsets.size());
+        Assert.assertEquals(0L, (long) restartOffsets.get(0));
+        Assert.assertEquals(remoteFiles.get("file-3.bin").length / 2, (long) restartOffsets.get(1));
+        // The failed connection is discarded
+        Assert.assertEquals(2, connectionsCreated.get());
+    }
+    
+    @Test
+    public void parallelPrefetchIsBoundedAndVerified() throws Exception
+    {
+        ftpTestFileService.setMaxConnections(2);
+        ftpTestFileService.setPrefetchThreads(5);
+        failuresToInject.set(3);
+        ftpTestFileService.afterPropertiesSet();
+        
+        // Wait for the manifest
+        File manifestFile = new File(new File(localDir, ftpTestFileService.getMirrorPath()), "TestFileService.manifest");
+        for (int i = 0; i < 100 && !manifestFile.exists(); i++)
+        {
+            Thread.sleep(50L);
+        }
+        Assert.assertTrue("Manifest not written", manifestFile.exists());
+        Properties manifest = new Properties();
+        FileReader reader = new FileReader(manifestFile);
+        try
+        {
+            manifest.load(reader);
+        }
+        finally
+        {
+            reader.close();
+        }
+        Assert.assertEquals(remoteFiles.keySet(), manifest.stringPropertyNames());
+        Assert.assertTrue("Too many connections: " + maxConnectionsOpen.get(), maxConnectionsOpen.get() <= 2);
+        
+        // No further downloads are required
+        int retrieved = restartOffsets.size();
+        for (String remoteName : remoteFiles.keySet())
+        {
+            File file = ftpTestFileService.getFileByName(remoteName);
+            Assert.assertArrayEquals(remoteFiles.get(remoteName), Files.toByteArray(file));
+        }
+        Assert.assertEquals(retrieved, restartOffsets.size());
+    }
+    
+    @Test
+    public void cacheQuotaEvictsLeastRecentlyUsed() throws Exception
+    {
+        ftpTestFileService.setCacheQuota(3500L);
+        ftpTestFileService.setCacheEvictionGracePeriod(0L);
+        ftpTestFileService.afterPropertiesSet();
+        File mirrorDir = new File(localDir, ftpTestFileService.getMirrorPath());
+        for (int i = 0; i < 10; i++)
+        {
+            File file = ftpTestFileService.getFileByName("file-" + i + ".bin");
+            Assert.assertTrue("Most recent file must be kept", file.exists());
+            Assert.assertTrue("Quota exceeded after file " + i, getMirroredBytes(mirrorDir) <= 3500L);
+        }
+        // Use an old file so that it is kept in favour of a more recent one
+        Thread.sleep(10L);
+        File file7 = ftpTestFileService.getFileByName("file-7.bin");
+        ftpTestFileService.getFileByName("file-0.bin");
+        Assert.assertTrue("Recently used file must be kept", file7.exists());
+        Assert.assertTrue(getMirroredBytes(mirrorDir) <= 3500L);
+        
+        // A restart must keep the local files without downloading them again
+        ftpTestFileService.destroy();
+        Assert.assertTrue("Cache index not written", new File(mirrorDir, "TestFileService.cache").exists());
+        ftpTestFileService = new StandInFtpTestFileService();
+        ftpTestFileService.setCacheQuota(3500L);
+        ftpTestFileService.setCacheEvictionGracePeriod(0L);
+        ftpTestFileService.afterPropertiesSet();
+        int retrieved = restartOffsets.size();
+        Assert.assertEquals(file7, ftpTestFileService.getFileByName("file-7.bin"));
+        ftpTestFileService.getFileByName("file-0.bin");
+        Assert.assertEquals(retrieved, restartOffsets.size());
+    }
+    
+    @Test
+    public void cacheQuotaKeepsFilesInUse() throws Exception
+    {
+        ftpTestFileService.setCacheQuota(3500L);
+        ftpTestFileService.afterPropertiesSet();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 10; i++)
+        {
+            files.add(ftpTestFileService.getFileByName("file-" + i + ".bin"));
+        }
+        // Every file was handed out within the grace period, so none of them can be deleted
+        for (File file : files)
+        {
+            Assert.assertTrue("File in use was deleted: " + file, file.exists());
+        }
+    }
+    
+    /**
+     * @return                  the number of bytes in mirrored test files
+     */
+    private static long getMirroredBytes(File mirrorDir)
+    {
+        long bytes = 0L;
+        for (File file : mirrorDir.listFiles())
+        {
+            if (file.getName().endsWith(".bin"))
+            {
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+    
+    /**
+     * Service that talks to the in-process FTP stand-in
+     */
+    private class StandInFtpTestFileService extends FtpTestFileService
+    {
+        private StandInFtpTestFileService()
+        {
+            super(fileDataService, localDir.getAbsolutePath(), "localhost", 21, "user", "password", FTP_PATH);
+        }
+        
+        @Override
+        protected FTPClient createFTPClient()
+        {
+            connectionsCreated.incrementAndGet();
+            return new StandInFTPClient();
+        }
+    }
+    
+    /**
+     * Serves the {@link FtpTestFileServiceTest#remoteFiles} without any network access
+     */
+    private class StandInFTPClient extends FTPClient
+    {
+        private boolean connected;
+        private String workingDirectory = "/";
+        
+        @Override
+        public void connect(String hostname, int port) throws IOException
+        {
+            connected = true;
+            int open = connectionsOpen.incrementAndGet();
+            while (true)
+            {
+                int max = maxConnectionsOpen.get();
+                if (open <= max || maxConnectionsOpen.compareAndSet(max, open))
+                {
+                    break;
+                }
+            }
+        }
+        
+        @Override
+        public boolean isConnected()
+        {
+            return connected;
+        }
+        
+        @Override
+        public void disconnect() throws IOException
+        {
+            if (connected)
+            {
+                connected = false;
+                connectionsOpen.decrementAndGet();
+            }
+        }
+        
+        @Override
+        public int getReplyCode()
+        {
+            return 230;
+        }
+        
+        @Override
+        public boolean login(String username, String password) throws IOException
+        {
+            return true;
+        }
+        
+        @Override
+        public boolean logout() throws IOException
+        {
+            return true;
+        }
+        
+        @Override
+        public boolean setFileType(int fileType) throws IOException
+        {
+            return true;
+        }
+        
+        @Override
+        public boolean sendNoOp() throws IOException
+        {
+            return connected;
+        }
+        
+        @Override
+        public String printWorkingDirectory() throws IOException
+        {
+            return workingDirectory;
+        }
+        
+        @Override
+        public boolean changeWorkingDirectory(String pathname) throws IOException
+        {
+            workingDirectory = pathname;
+            return true;
+        }
+        
+        @Override
+        public FTPFile[] listFiles() throws IOException
+        {
+            List<FTPFile> ftpFiles = new ArrayList<FTPFile>();
+            for (Map.Entry<String, byte[]> entry : remoteFiles.entrySet())
+            {
+                FTPFile ftpFile = new FTPFile();
+                ftpFile.setName(entry.getKey());
+                ftpFile.setSize(entry.getValue().length);
+                ftpFiles.add(ftpFile);
+            }
+            return ftpFiles.toArray(new FTPFile[ftpFiles.size()]);
+        }
+        
+        @Override
+        public boolean retrieveFile(String remote, OutputStream local) throws IOException
+        {
+            byte[] bytes = remoteFiles.get(remote.substring(FTP_PATH.length() + 1));
+            if (bytes == null)
+            {
+                return false;
+            }
+            int offset = (int) getRestartOffset();
+            synchronized (restartOffsets)
+            {
+                restartOffsets.add((long) offset);
+            }
+            if (failuresToInject.getAndDecrement() > 0)
+            {
+                // Drop the connection half-way through
+                int half = bytes.length / 2;
+                local.write(bytes, offset, half - offset);
+                local.flush();
+                throw new IOException("Connection reset");
+            }
+            local.write(bytes, offset, bytes.length - offset);
+            return true;
+        }
+    }
+    
+    /**
+     * Holds file data in memory
+     */
+    private static class InMemoryFileDataService implements FileDataService
+    {
+        private final Map<String, FileData> fileDatas = new ConcurrentHashMap<String, FileData>();
+        
+        @Override
+        public void createNewFileData(FileData fileData)
+        {
+            fileDatas.put(fileData.getRemoteName(), fileData);
+        }
+        
+        @Override
+        public long fileCount(String fileset)
+        {
+            return fileDatas.size();
+        }
+        
+        @Override
+        public FileData findFile(String fileset, String remoteName)
+        {
+            return fileDatas.get(remoteName);
+        }
+        
+        @Override
+        public void removeFile(String fileset, String remoteName)
+        {
+            fileDatas.remove(remoteName);
+        }
+        
+        @Override
+        public FileData getRandomFile(String fileset)
+        {
+            return fileDatas.isEmpty() ? null : fileDatas.values().iterator().next();
+        }
+        
+        @Override
+        public FileData getRandomFile(String fileset, String extension)
+        {
+            return getRandomFile(fileset);
+        }
+    }
+}
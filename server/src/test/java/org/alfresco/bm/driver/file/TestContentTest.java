@@ -0,0 +1,139 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.driver.file;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @see FileTestContent
+ * @see SyntheticTestContent
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class TestContentTest
+{
+    /**
+     * Check that every way of reading the content gives the expected bytes
+     */
+    private static void checkContent(byte[] expected, TestContent content) throws IOException
+    {
+        Assert.assertEquals(expected.length, content.getLength());
+        
+        ByteArrayOutputStream channelTarget = new ByteArrayOutputStream();
+        content.writeTo(Channels.newChannel(channelTarget));
+        Assert.assertArrayEquals("Channel content is incorrect", expected, channelTarget.toByteArray());
+        
+        ByteArrayOutputStream streamTarget = new ByteArrayOutputStream();
+        content.writeTo(streamTarget);
+        Assert.assertArrayEquals("Stream content is incorrect", expected, streamTarget.toByteArray());
+        
+        InputStream is = content.getInputStream();
+        try
+        {
+            Assert.assertArrayEquals("Input stream content is incorrect", expected, ByteStreams.toByteArray(is));
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+    
+    @Test
+    public void fileContent() throws Exception
+    {
+        byte[] bytes = new byte[200000];
+        new Random(42L).nextBytes(bytes);
+        File file = File.createTempFile("TestContentTest", ".bin");
+        file.deleteOnExit();
+        Files.write(bytes, file);
+        
+        TestContent content = new FileTestContent(file);
+        Assert.assertEquals(file.getName(), content.getName());
+        checkContent(bytes, content);
+        
+        TestContent slice = content.slice(1000L, 70000L);
+        checkContent(Arrays.copyOfRange(bytes, 1000, 71000), slice);
+        checkContent(Arrays.copyOfRange(bytes, 1100, 1200), slice.slice(100L, 100L));
+        checkContent(new byte[0], content.slice(200000L, 0L));
+        try
+        {
+            content.slice(199999L, 2L);
+            Assert.fail("Slice beyond the end of the content must fail");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+    }
+    
+    @Test
+    public void syntheticContent() throws Exception
+    {
+        TestContent content = new SyntheticTestContent("synthetic.bin", 123L, 150000L);
+        Assert.assertEquals("synthetic.bin", content.getName());
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        content.writeTo(target);
+        byte[] bytes = target.toByteArray();
+        checkContent(bytes, content);
+        
+        // The same seed gives the same content
+        checkContent(bytes, new SyntheticTestContent("other.bin", 123L, 150000L));
+        // A different seed does not
+        target = new ByteArrayOutputStream();
+        new SyntheticTestContent("synthetic.bin", 124L, 150000L).writeTo(target);
+        Assert.assertFalse(Arrays.equals(bytes, target.toByteArray()));
+        
+        // Slices match the whole, including across the repeating blocks
+        checkContent(Arrays.copyOfRange(bytes, 60000, 140000), content.slice(60000L, 80000L));
+        checkContent(Arrays.copyOfRange(bytes, 65535, 65537), content.slice(65535L, 2L));
+    }
+    
+    @Test
+    public void syntheticContentService()
+    {
+        TestContentService service = new SyntheticTestContentService(1000L, "txt");
+        TestContent content = service.getContent();
+        Assert.assertTrue(content.getName().endsWith(".txt"));
+        Assert.assertEquals(1000L, content.getLength());
+        Assert.assertTrue(service.getContent("pdf").getName().endsWith(".pdf"));
+        Assert.assertEquals("named.doc", service.getContentByName("named.doc").getName());
+    }
+}
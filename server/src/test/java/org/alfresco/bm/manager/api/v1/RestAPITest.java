@@ -47,6 +47,7 @@ import org.alfresco.bm.common.util.junit.tools.MongoDBForTestsFactory;
 import org.alfresco.bm.common.util.log.LogService;
 import org.alfresco.bm.driver.test.TestRun;
 import org.alfresco.bm.manager.report.DataReportService;
+import org.alfresco.bm.manager.report.TimeSeriesStreams;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.poi.POIXMLProperties;
@@ -1020,7 +1021,7 @@ public class RestAPITest
 
         executeTestRun("T07", "A test for scenario 07.", "01", "Scenario 07 - Run 01");
 
-        ResultsRestAPI resultsAPI = new ResultsRestAPI(testRunServicesCache);
+        ResultsRestAPI resultsAPI = new ResultsRestAPI(testRunServicesCache, ctx.getBean(TimeSeriesStreams.class));
         // Get report for test run that does not exist
         try
         {
@@ -1045,7 +1046,7 @@ public class RestAPITest
         assertTrue(csvResults.contains("Duration"));
 
         // Get the JSON results
-        String chartJson = resultsAPI.getTimeSeriesResults("T07", "01", 0L, "seconds", 1, 5, false);
+        String chartJson = resultsAPI.getTimeSeriesResults("T07", "01", 0L, "seconds", 1, 5, false, ResultsRestAPI.LATENCY_SERVICE);
         assertTrue(chartJson.startsWith("[ { \"time\" : "));
         assertTrue(chartJson.contains("[ { \"time\" : "));
         assertTrue(chartJson.contains("000 , \"name\" : \"start\" , \"mean\" : "));
@@ -1184,7 +1185,7 @@ public class RestAPITest
         reportService.setDescription(driver, test, run, sheet3, fieldNames, descriptions);
 
         // create and download an XSLX
-        ResultsRestAPI resultsAPI = new ResultsRestAPI(testRunServicesCache);
+        ResultsRestAPI resultsAPI = new ResultsRestAPI(testRunServicesCache, ctx.getBean(TimeSeriesStreams.class));
         StreamingResponseBody xlsxOutput = resultsAPI.getReportXLSX(test, run);
         ByteArrayOutputStream xlsxBos = new ByteArrayOutputStream();
         xlsxOutput.writeTo(xlsxBos);
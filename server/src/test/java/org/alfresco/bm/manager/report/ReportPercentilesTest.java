@@ -0,0 +1,266 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.manager.report;
+
+import com.mongodb.DB;
+import org.alfresco.bm.common.EventRecord;
+import org.alfresco.bm.common.ResultService;
+import org.alfresco.bm.common.mongo.MongoResultService;
+import org.alfresco.bm.common.mongo.MongoTestDAO;
+import org.alfresco.bm.common.spring.TestRunServicesCache;
+import org.alfresco.bm.common.util.junit.tools.MongoDBForTestsFactory;
+import org.alfresco.bm.driver.event.Event;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Check the percentile columns and phase summaries of the {@link CSVReporter CSV} and {@link XLSXReporter XLSX} reports
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class ReportPercentilesTest
+{
+    private static final String TEST = "T1";
+    private static final String RUN = "R1";
+    
+    private MongoDBForTestsFactory mongoFactory;
+    private MongoResultService resultService;
+    private TestRunServicesCache services;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        mongoFactory = new MongoDBForTestsFactory();
+        DB db = mongoFactory.getObject();
+        MongoTestDAO dao = new MongoTestDAO(db);
+        dao.start();
+        dao.createTest(TEST, null, null, null);
+        dao.createTestRun(TEST, RUN, null);
+        services = new TestRunServicesCache(dao);
+        resultService = new MongoResultService(db, TEST + "." + RUN + ".results");
+        resultService.start();
+        // Successful results taking 1 to 100ms and failures that must not be counted
+        long startTime = System.currentTimeMillis() - 10000L;
+        for (int i = 1; i <= 100; i++)
+        {
+            EventRecord success = new EventRecord("D1", true, startTime + i * 10L, i, null, new Event("timed", null));
+            // Phases: 'lease' averages 3ms and 'ttfb' takes the whole time
+            Map<String, Long> phases = new HashMap<String, Long>();
+            phases.put("lease", i % 2 == 0 ? 2L : 4L);
+            phases.put("ttfb", (long) i);
+            success.setPhases(phases);
+            resultService.recordResult(success);
+            resultService.recordResult(new EventRecord("D1", false, startTime + i * 10L, 5000L, null, new Event("timed", null)));
+        }
+    }
+    
+    @After
+    public void tearDown() throws Exception
+    {
+        resultService.stop();
+        mongoFactory.destroy();
+    }
+    
+    /**
+     * Estimates are within the histogram's bucket precision
+     */
+    private static void assertPercentiles(double p50, double p90, double p95, double p99, double p999)
+    {
+        assertEquals(50.0, p50, 50.0 * 0.07);
+        assertEquals(90.0, p90, 90.0 * 0.07);
+        assertEquals(95.0, p95, 95.0 * 0.07);
+        assertEquals(99.0, p99, 99.0 * 0.07);
+        assertEquals(100.0, p999, 100.0 * 0.07);
+    }
+    
+    @Test
+    public void csvPercentiles() throws Exception
+    {
+        CSVReporter reporter = new CSVReporter(services, TEST, RUN)
+        {
+            @Override
+            protected ResultService getResultService()
+            {
+                return resultService;
+            }
+        };
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        reporter.export(os);
+        String csv = new String(os.toByteArray(), "UTF8");
+        
+        for (String line : csv.split("\n"))
+        {
+            String[] columns = line.split(",", -1);
+            if (columns.length < 3 || !columns[2].equals("timed"))
+            {
+                continue;
+            }
+            // Two blank columns, nine statistics and five percentiles
+            assertEquals(16, columns.length);
+            assertEquals(200L, Long.parseLong(columns[3].trim()));
+            assertPercentiles(
+                    Double.parseDouble(columns[11].trim()),
+                    Double.parseDouble(columns[12].trim()),
+                    Double.parseDouble(columns[13].trim()),
+                    Double.parseDouble(columns[14].trim()),
+                    Double.parseDouble(columns[15].trim()));
+            return;
+        }
+        fail("No summary for 'timed' in CSV report: \n" + csv);
+    }
+    
+    @Test
+    public void xlsxPercentiles() throws Exception
+    {
+        XLSXReporter reporter = new XLSXReporter(services, TEST, RUN)
+        {
+            @Override
+            protected ResultService getResultService()
+            {
+                return resultService;
+            }
+        };
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        reporter.export(os);
+        XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(os.toByteArray()));
+        try
+        {
+            XSSFSheet sheet = workbook.getSheet("Summary");
+            assertNotNull(sheet);
+            for (int i = 0; i <= sheet.getLastRowNum(); i++)
+            {
+                XSSFRow row = sheet.getRow(i);
+                if (row == null || row.getCell(0) == null || !"timed".equals(row.getCell(0).getStringCellValue()))
+                {
+                    continue;
+                }
+                assertEquals(200.0, row.getCell(1).getNumericCellValue(), 0.0);
+                assertPercentiles(
+                        row.getCell(9).getNumericCellValue(),
+                        row.getCell(10).getNumericCellValue(),
+                        row.getCell(11).getNumericCellValue(),
+                        row.getCell(12).getNumericCellValue(),
+                        row.getCell(13).getNumericCellValue());
+                return;
+            }
+            fail("No summary for 'timed' in XLSX report.");
+        }
+        finally
+        {
+            workbook.close();
+        }
+    }
+    
+    @Test
+    public void csvPhases() throws Exception
+    {
+        CSVReporter reporter = new CSVReporter(services, TEST, RUN)
+        {
+            @Override
+            protected ResultService getResultService()
+            {
+                return resultService;
+            }
+        };
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        reporter.export(os);
+        String csv = new String(os.toByteArray(), "UTF8");
+        
+        Map<String, String[]> phaseRows = new HashMap<String, String[]>();
+        for (String line : csv.split("\n"))
+        {
+            String[] columns = line.split(",", -1);
+            if (columns.length == 7 && columns[2].equals("timed"))
+            {
+                phaseRows.put(columns[3], columns);
+            }
+        }
+        assertEquals("Expected 'lease' and 'ttfb' phases in CSV report: \n" + csv, 2, phaseRows.size());
+        String[] lease = phaseRows.get("lease");
+        assertEquals(100L, Long.parseLong(lease[4].trim()));
+        assertEquals(3L, Long.parseLong(lease[5].trim()));
+        assertEquals(4L, Long.parseLong(lease[6].trim()));
+        String[] ttfb = phaseRows.get("ttfb");
+        assertEquals(100L, Long.parseLong(ttfb[4].trim()));
+        assertEquals(50L, Long.parseLong(ttfb[5].trim()));
+        assertEquals(100L, Long.parseLong(ttfb[6].trim()));
+    }
+    
+    @Test
+    public void xlsxPhases() throws Exception
+    {
+        XLSXReporter reporter = new XLSXReporter(services, TEST, RUN)
+        {
+            @Override
+            protected ResultService getResultService()
+            {
+                return resultService;
+            }
+        };
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        reporter.export(os);
+        XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(os.toByteArray()));
+        try
+        {
+            XSSFSheet sheet = workbook.getSheet("Phases");
+            assertNotNull(sheet);
+            // Header and one row for each phase, in phase order
+            assertEquals(2, sheet.getLastRowNum());
+            XSSFRow lease = sheet.getRow(1);
+            assertEquals("timed", lease.getCell(0).getStringCellValue());
+            assertEquals("lease", lease.getCell(1).getStringCellValue());
+            assertEquals(100.0, lease.getCell(2).getNumericCellValue(), 0.0);
+            assertEquals(3.0, lease.getCell(3).getNumericCellValue(), 0.0);
+            assertEquals(4.0, lease.getCell(4).getNumericCellValue(), 0.0);
+            XSSFRow ttfb = sheet.getRow(2);
+            assertEquals("ttfb", ttfb.getCell(1).getStringCellValue());
+            assertEquals(100.0, ttfb.getCell(2).getNumericCellValue(), 0.0);
+            assertEquals(50.0, ttfb.getCell(3).getNumericCellValue(), 0.0);
+            assertEquals(100.0, ttfb.getCell(4).getNumericCellValue(), 0.0);
+        }
+        finally
+        {
+            workbook.close();
+        }
+    }
+}
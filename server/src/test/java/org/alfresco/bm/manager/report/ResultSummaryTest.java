@@ -91,4 +91,22 @@ public class ResultSummaryTest
         Assert.assertEquals(2, summary.getStats(false).getN());
         Assert.assertEquals(30.0, summary.getStats(false).getMean(), 0.001);
     }
+
+    @Test
+    public void percentiles()
+    {
+        ResultSummary summary = new ResultSummary("A");
+        Assert.assertTrue(Double.isNaN(summary.getPercentile(true, 50.0)));
+        for (long time = 1L; time <= 1000L; time++)
+        {
+            summary.addSample(true, time);
+        }
+        summary.addSample(false, 5000L);
+        // Estimates are within the histogram's bucket precision
+        Assert.assertEquals(500.0, summary.getPercentile(true, 50.0), 500.0 * 0.07);
+        Assert.assertEquals(990.0, summary.getPercentile(true, 99.0), 990.0 * 0.07);
+        Assert.assertEquals(5000.0, summary.getPercentile(false, 99.9), 5000.0 * 0.07);
+        Assert.assertEquals("P50", ResultSummary.getPercentileTitle(50.0));
+        Assert.assertEquals("P99.9", ResultSummary.getPercentileTitle(99.9));
+    }
 }
@@ -0,0 +1,92 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.manager.report;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.alfresco.bm.common.ResultSketch;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+
+/**
+ * @see TimeSeriesHandler
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class TimeSeriesHandlerTest
+{
+    private static boolean process(TimeSeriesHandler handler, long fromTime, long toTime, int failures, double ... times)
+    {
+        ResultSketch sketch = new ResultSketch();
+        for (double time : times)
+        {
+            sketch.add((long) time);
+        }
+        Map<String, ResultSketch> stats = Collections.singletonMap("A", sketch);
+        Map<String, Integer> failuresByEventName = Collections.singletonMap("A", failures);
+        return handler.processResult(fromTime, toTime, stats, failuresByEventName);
+    }
+    
+    @Test
+    public void all()
+    {
+        TimeSeriesHandler handler = new TimeSeriesHandler();
+        Assert.assertTrue(process(handler, 0L, 2000L, 1, 10.0, 20.0, 30.0, 40.0));
+        Assert.assertTrue(process(handler, 1000L, 3000L, 0, 10.0));
+        Assert.assertEquals(2, handler.getEvents().size());
+        Assert.assertEquals(3000L, handler.getLastTime());
+        
+        DBObject eventObj = (DBObject) handler.getEvents().get(0);
+        Assert.assertEquals(2000L, eventObj.get("time"));
+        Assert.assertEquals("A", eventObj.get("name"));
+        Assert.assertEquals(25.0, (Double) eventObj.get("mean"), 0.001);
+        Assert.assertEquals(4L, eventObj.get("num"));
+        Assert.assertEquals(2.0, (Double) eventObj.get("numPerSec"), 0.001);
+        Assert.assertEquals(0.5, (Double) eventObj.get("failPerSec"), 0.001);
+    }
+    
+    @Test
+    public void range()
+    {
+        TimeSeriesHandler handler = new TimeSeriesHandler(2000L, 3000L);
+        Assert.assertEquals(2000L, handler.getLastTime());
+        // Already collected
+        Assert.assertTrue(process(handler, 1000L, 2000L, 0, 10.0));
+        Assert.assertEquals(0, handler.getEvents().size());
+        // New
+        Assert.assertTrue(process(handler, 2000L, 3000L, 0, 10.0));
+        Assert.assertEquals(1, handler.getEvents().size());
+        Assert.assertEquals(3000L, handler.getLastTime());
+        // Still open
+        Assert.assertFalse(process(handler, 3000L, 4000L, 0, 10.0));
+        Assert.assertEquals(1, handler.getEvents().size());
+        Assert.assertEquals(3000L, handler.getLastTime());
+    }
+}
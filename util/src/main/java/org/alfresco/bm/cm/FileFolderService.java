@@ -26,13 +26,34 @@
 package org.alfresco.bm.cm;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
+import org.alfresco.bm.common.mongo.RandomSample;
+import org.alfresco.bm.common.mongo.RandomSampleCache;
+import org.alfresco.bm.common.mongo.RandomSampleCache.SampleLoader;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
@@ -43,11 +64,16 @@ import com.mongodb.WriteResult;
 
 /**
  * Service to keep track of files and folders.
+ * <p/>
+ * Folder and file counts are normally updated one call at a time.  When a
+ * {@link #setCounterFlushInterval(long) flush interval} is set, increments are combined in memory
+ * and written periodically as a single bulk update; folders read through this service include
+ * any increments that have not been written yet.
  *
  * @author Derek Hulley
  * @since 4.0.4
  */
-public class FileFolderService implements InitializingBean
+public class FileFolderService implements InitializingBean, DisposableBean
 {
     public static final String FIELD_ID = "_id";
     public static final String FIELD_CONTEXT = "context";
@@ -57,21 +83,152 @@ public class FileFolderService implements InitializingBean
     public static final String FIELD_NAME = "name";
     public static final String FIELD_FOLDER_COUNT = "folderCount";
     public static final String FIELD_FILE_COUNT = "fileCount";
+    public static final String FIELD_RANDOMIZER = "randomizer";
+    
+    /** Counter increments are written immediately by default */
+    public static final long DEFAULT_COUNTER_FLUSH_INTERVAL = 0L;
+    public static final int DEFAULT_RANDOM_SAMPLE_SIZE = 1000;
+    public static final long DEFAULT_RANDOM_SAMPLE_TTL = 10000L;
+    
+    private static final int COUNTER_STRIPES = 64;
+    private static final int DELTA_FOLDERS = 0;
+    private static final int DELTA_FILES = 1;
+    /** Level ranges up to this size are queried as a list of levels so that the randomizer index gives the order */
+    private static final int MAX_LEVELS_IN = 32;
+    /** Random picks made again when the picked folder is no longer in range */
+    private static final int MAX_RANDOM_ATTEMPTS = 10;
+    /** Limit the index entries and documents examined when loading a random sample */
+    private static final int MAX_RANDOM_SCAN = 100000;
+    /** Limit the number of combinations of criteria that are sampled */
+    private static final int MAX_RANDOM_SAMPLES = 1000;
+    private static final String[] FOLDER_ID_FIELDS = new String[] {FIELD_ID};
     
     private static Log logger = LogFactory.getLog(FileFolderService.class);
 
     /** The collection of users, which can be reused by derived extensions. */
     protected final DBCollection collection;
     
+    private long counterFlushInterval;
+    /** Counter increments not yet written, striped by folder to reduce contention */
+    private final CounterStripe[] counterStripes;
+    /** Only one flush may run at a time */
+    private final Object flushLock = new Object();
+    /** Writes the combined counter increments; <tt>null</tt> when increments are written immediately */
+    private volatile ScheduledExecutorService counterFlusher;
+    private int randomSampleSize;
+    private long randomSampleTTL;
+    /** Folders held for random selection, keyed by criteria */
+    private final RandomSampleCache randomSamples;
+    
     public FileFolderService(DB db, String collection)
     {
         this.collection = db.getCollection(collection);
+        this.counterFlushInterval = DEFAULT_COUNTER_FLUSH_INTERVAL;
+        this.counterStripes = new CounterStripe[COUNTER_STRIPES];
+        for (int i = 0; i < COUNTER_STRIPES; i++)
+        {
+            counterStripes[i] = new CounterStripe();
+        }
+        this.randomSampleSize = DEFAULT_RANDOM_SAMPLE_SIZE;
+        this.randomSampleTTL = DEFAULT_RANDOM_SAMPLE_TTL;
+        this.randomSamples = new RandomSampleCache(MAX_RANDOM_SAMPLES, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Override the {@link #DEFAULT_RANDOM_SAMPLE_SIZE default} number of folders held for each combination
+     * of criteria used to {@link #getRandomFolder pick random folders}.  If more match, a random run of
+     * them is held until the sample is reloaded.
+     * 
+     * @since 3.0
+     */
+    public void setRandomSampleSize(int randomSampleSize)
+    {
+        if (randomSampleSize < 1)
+        {
+            throw new IllegalArgumentException("'randomSampleSize' must be 1 or more.");
+        }
+        this.randomSampleSize = randomSampleSize;
+        randomSamples.clear();
+    }
+    
+    /**
+     * Override the {@link #DEFAULT_RANDOM_SAMPLE_TTL default} time (milliseconds) for which the folders
+     * used to {@link #getRandomFolder pick random folders} are held before being reloaded.
+     * 
+     * @since 3.0
+     */
+    public void setRandomSampleTTL(long randomSampleTTL)
+    {
+        this.randomSampleTTL = randomSampleTTL;
+        randomSamples.clear();
+    }
+    
+    /**
+     * Override the {@link #DEFAULT_COUNTER_FLUSH_INTERVAL default} time (milliseconds) between writes
+     * of combined folder and file count increments.  Any value greater than zero switches on
+     * write-combining: increments are added up in memory per folder and written in bulk, which avoids
+     * contended updates to the same hot parent folders.
+     * <p/>
+     * In this mode, an increment for a folder that does not exist is only reported in the logs when
+     * it is written.  This must be set before the service is initialized.
+     * 
+     * @since 3.0
+     */
+    public void setCounterFlushInterval(long counterFlushInterval)
+    {
+        if (counterFlushInterval < 0L)
+        {
+            throw new IllegalArgumentException("'counterFlushInterval' cannot be negative.");
+        }
+        this.counterFlushInterval = counterFlushInterval;
     }
     
     @Override
     public void afterPropertiesSet() throws Exception
     {
         checkIndexes();
+        
+        if (counterFlushInterval > 0L)
+        {
+            CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("FileFolderService-flush-");
+            threadFactory.setDaemon(true);
+            ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(threadFactory);
+            flusher.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        flush();
+                    }
+                    catch (Throwable e)
+                    {
+                        // Keep the schedule going
+                        logger.error("Failed to flush folder counts.", e);
+                    }
+                }
+            }, counterFlushInterval, counterFlushInterval, TimeUnit.MILLISECONDS);
+            counterFlusher = flusher;
+        }
+    }
+    
+    /**
+     * Stops combining counter increments and writes any that are still pending
+     */
+    @Override
+    public void destroy() throws Exception
+    {
+        ScheduledExecutorService flusher = counterFlusher;
+        if (flusher == null)
+        {
+            return;
+        }
+        // Further increments are written immediately
+        counterFlusher = null;
+        flusher.shutdown();
+        flusher.awaitTermination(counterFlushInterval, TimeUnit.MILLISECONDS);
+        flush();
     }
 
     /**
@@ -134,6 +291,17 @@ public class FileFolderService implements InitializingBean
                 .add("unique", Boolean.FALSE)
                 .get();
         collection.createIndex(idxCtxFolderCount, optCtxFolderCount);
+
+        DBObject idxCtxLevelRand = BasicDBObjectBuilder.start()
+                .add(FIELD_CONTEXT, 1)
+                .add(FIELD_LEVEL, 1)
+                .add(FIELD_RANDOMIZER, 1)
+                .get();
+        DBObject optCtxLevelRand = BasicDBObjectBuilder.start()
+                .add("name", "idxCtxLevelRand")
+                .add("unique", Boolean.FALSE)
+                .get();
+        collection.createIndex(idxCtxLevelRand, optCtxLevelRand);
     }
     
     /**
@@ -153,6 +321,13 @@ public class FileFolderService implements InitializingBean
         String path = (String) folderDataObj.get(FIELD_PATH);
         Long folderCount = (Long) folderDataObj.get(FIELD_FOLDER_COUNT);
         Long fileCount = (Long) folderDataObj.get(FIELD_FILE_COUNT);
+        // Include any increments that have not been written yet
+        long[] deltas = getPendingDeltas(context, path);
+        if (deltas != null)
+        {
+            folderCount += deltas[DELTA_FOLDERS];
+            fileCount += deltas[DELTA_FILES];
+        }
         FolderData folderData = new FolderData(id, context, path, folderCount, fileCount);
         // Done
         return folderData;
@@ -194,7 +369,9 @@ public class FileFolderService implements InitializingBean
     }
 
     /**
-     * Create a new folder entry with the given data
+     * Create a new folder entry with the given data.
+     * <p/>
+     * The folder is given a {@link #FIELD_RANDOMIZER random} value to support {@link #getRandomFolder random selection}.
      */
     public void createNewFolder(FolderData data)
     {
@@ -206,7 +383,8 @@ public class FileFolderService implements InitializingBean
                 .add(FIELD_PARENT_PATH, data.getParentPath())
                 .add(FIELD_NAME, data.getName())
                 .add(FIELD_FOLDER_COUNT, data.getFolderCount())
-                .add(FIELD_FILE_COUNT, data.getFileCount());
+                .add(FIELD_FILE_COUNT, data.getFileCount())
+                .add(FIELD_RANDOMIZER, (int) (Math.random() * 1E6));
         DBObject insertObj = insertObjBuilder.get();
         
         try
@@ -249,6 +427,7 @@ public class FileFolderService implements InitializingBean
             WriteResult wr = collection.remove(queryObj);
             deleted += wr.getN();
         }
+        discardPendingDeltas(context, path, cascade);
         // Done
         if (logger.isDebugEnabled())
         {
@@ -298,6 +477,8 @@ public class FileFolderService implements InitializingBean
     
     /**
      * Increment the count of the subfolders in a folder.
+     * <p/>
+     * The increment is deferred when {@link #setCounterFlushInterval(long) write-combining} is on.
      * 
      * @param context           the context in which the folder path is valid (mandatory)
      * @param path              the folder path relative to the given context
@@ -305,6 +486,11 @@ public class FileFolderService implements InitializingBean
      */
     public void incrementFolderCount(String context, String path, long folderCountInc)
     {
+        if (counterFlusher != null)
+        {
+            addPendingDelta(context, path, DELTA_FOLDERS, folderCountInc);
+            return;
+        }
         DBObject queryObj = BasicDBObjectBuilder.start()
                 .add(FIELD_CONTEXT, context)
                 .add(FIELD_PATH, path)
@@ -332,6 +518,8 @@ public class FileFolderService implements InitializingBean
     
     /**
      * Increment the count of the files in a folder.
+     * <p/>
+     * The increment is deferred when {@link #setCounterFlushInterval(long) write-combining} is on.
      * 
      * @param context           the context in which the folder path is valid (mandatory)
      * @param path              the folder path relative to the given context
@@ -339,6 +527,11 @@ public class FileFolderService implements InitializingBean
      */
     public void incrementFileCount(String context, String path, long fileCountInc)
     {
+        if (counterFlusher != null)
+        {
+            addPendingDelta(context, path, DELTA_FILES, fileCountInc);
+            return;
+        }
         DBObject queryObj = BasicDBObjectBuilder.start()
                 .add(FIELD_CONTEXT, context)
                 .add(FIELD_PATH, path)
@@ -488,9 +681,71 @@ public class FileFolderService implements InitializingBean
         
         BasicDBObjectBuilder queryObjBuilder = BasicDBObjectBuilder.start();
         BasicDBObjectBuilder sortObjBuilder = BasicDBObjectBuilder.start();
+        buildCountsQuery(
+                queryObjBuilder, sortObjBuilder, false,
+                context, minLevel, maxLevel, minFolders, maxFolders, minFiles, maxFiles);
+        DBObject queryObj = queryObjBuilder.get();
+        DBObject sortObj = sortObjBuilder.get();
         
+        DBCursor cursor = collection.find(queryObj).sort(sortObj).skip(skip).limit(limit);
+        List<FolderData> results = fromDBCursor(cursor);
+        if (counterFlusher != null)
+        {
+            // The query matched the written counts; drop folders that pending increments have moved out of range
+            Iterator<FolderData> iterator = results.iterator();
+            while (iterator.hasNext())
+            {
+                FolderData folderData = iterator.next();
+                if (!isInRange(folderData.getFolderCount(), minFolders, maxFolders) ||
+                        !isInRange(folderData.getFileCount(), minFiles, maxFiles))
+                {
+                    iterator.remove();
+                }
+            }
+        }
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(
+                    "Found " + results.size() + " results for file counts: \n" +
+                    "   context:    " + context + "\n" +
+                    "   minLevel:   " + minLevel + "\n" +
+                    "   maxLevel:   " + maxLevel + "\n" +
+                    "   minFiles:   " + minFiles + "\n" +
+                    "   maxFiles:   " + maxFiles + "\n" +
+                    "   skip:       " + skip + "\n" +
+                    "   limit:      " + limit);
+        }
+        return results;
+    }
+    
+    /**
+     * Add the context, level and count restrictions to a query along with the sort order
+     * that uses the count indexes.
+     * 
+     * @param levelsIn          <tt>true</tt> to query a small level range as a list of levels
+     */
+    private void buildCountsQuery(
+            BasicDBObjectBuilder queryObjBuilder,
+            BasicDBObjectBuilder sortObjBuilder,
+            boolean levelsIn,
+            String context,
+            Long minLevel, Long maxLevel,
+            Long minFolders, Long maxFolders,
+            Long minFiles, Long maxFiles)
+    {
         queryObjBuilder.add(FIELD_CONTEXT, context);
-        if (minLevel != null || maxLevel != null)
+        if (levelsIn && minLevel != null && maxLevel != null && maxLevel - minLevel < MAX_LEVELS_IN)
+        {
+            // Each level can be read from the index in randomizer order
+            List<Long> levels = new ArrayList<Long>();
+            for (long level = minLevel; level <= maxLevel; level++)
+            {
+                levels.add(level);
+            }
+            queryObjBuilder.push(FIELD_LEVEL).add("$in", levels).pop();
+        }
+        else if (minLevel != null || maxLevel != null)
         {
             queryObjBuilder.push(FIELD_LEVEL);
             {
@@ -540,24 +795,412 @@ public class FileFolderService implements InitializingBean
             }
             queryObjBuilder.pop();
         }
+    }
+    
+    /**
+     * Pick a random folder from those matching the level and count ranges.  Unlike
+     * {@link #getFoldersByCounts paging with a random skip}, this does not sort or skip over the matching
+     * folders: the IDs of up to {@link #setRandomSampleSize(int) sample size} matching folders are held for
+     * each combination of ranges and a folder is picked from them with equal chance.  The folders are read
+     * starting at a random point in the {@link #FIELD_RANDOMIZER randomizer} order, wrapping around to the
+     * lowest values, and no more than {@value #MAX_RANDOM_SCAN} entries are examined; so every match is held
+     * unless there are too many or they are too sparse, in which case a random run of them is held.
+     * <p/>
+     * A picked folder is read again and dropped from the sample if its counts have moved out of range.
+     * The samples are reloaded after the {@link #setRandomSampleTTL(long) TTL} or when half of their folders
+     * have been dropped.
+     * Queries with an exact level, or a small level range, are fully supported by the index.
+     * Folders created before randomizer values were assigned are never picked.
+     * 
+     * @param context           the context in which the folder path is valid (mandatory)
+     * @param minLevel          the minimum folder level to consider (inclusive, optional)
+     * @param maxLevel          the maximum folder level to consider (inclusive, optional)
+     * @param minFolders        the minimum number of subfolders in the folder (inclusive, optional)
+     * @param maxFolders        the maximum number of subfolders in the folder (inclusive, optional)
+     * @param minFiles          the minimum number of files in the folder (inclusive, optional)
+     * @param maxFiles          the maximum number of files in the folder (inclusive, optional)
+     * @return                  a random matching folder or <tt>null</tt> if none were found
+     * 
+     * @since 3.0
+     */
+    public FolderData getRandomFolder(
+            String context,
+            Long minLevel, Long maxLevel,
+            Long minFolders, Long maxFolders,
+            Long minFiles, Long maxFiles)
+    {
+        if (context == null)
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        BasicDBObjectBuilder queryObjBuilder = BasicDBObjectBuilder.start();
+        buildCountsQuery(
+                queryObjBuilder, BasicDBObjectBuilder.start(), true,
+                context, minLevel, maxLevel, minFolders, maxFolders, minFiles, maxFiles);
         DBObject queryObj = queryObjBuilder.get();
-        DBObject sortObj = sortObjBuilder.get();
+        String key = queryObj.toString();
         
-        DBCursor cursor = collection.find(queryObj).sort(sortObj).skip(skip).limit(limit);
-        List<FolderData> results = fromDBCursor(cursor);
+        FolderData folderData = null;
+        for (int attempt = 0; attempt < MAX_RANDOM_ATTEMPTS; attempt++)
+        {
+            RandomSample sample = getRandomSample(key, queryObj);
+            DBObject idObj = sample.pick(ThreadLocalRandom.current());
+            if (idObj == null)
+            {
+                // Nothing matches
+                break;
+            }
+            folderData = getFolder((String) idObj.get(FIELD_ID));
+            if (folderData != null &&
+                    isInRange(folderData.getFolderCount(), minFolders, maxFolders) &&
+                    isInRange(folderData.getFileCount(), minFiles, maxFiles))
+            {
+                break;
+            }
+            // Deleted or the counts have changed
+            sample.remove(idObj);
+            folderData = null;
+        }
         // Done
         if (logger.isDebugEnabled())
         {
             logger.debug(
-                    "Found " + results.size() + " results for file counts: \n" +
+                    "Picked random folder for counts: \n" +
                     "   context:    " + context + "\n" +
                     "   minLevel:   " + minLevel + "\n" +
                     "   maxLevel:   " + maxLevel + "\n" +
+                    "   minFolders: " + minFolders + "\n" +
+                    "   maxFolders: " + maxFolders + "\n" +
                     "   minFiles:   " + minFiles + "\n" +
                     "   maxFiles:   " + maxFiles + "\n" +
-                    "   skip:       " + skip + "\n" +
-                    "   limit:      " + limit);
+                    "   folder:     " + folderData);
         }
-        return results;
+        return folderData;
+    }
+    
+    /**
+     * Get the sample of folders matching the query, loading it if it is not held or is stale.
+     * Only the IDs are held as picked folders are read again.  Folders are never added to a sample,
+     * so an empty sample is reloaded when next used and new folders are picked up as soon as they appear.
+     */
+    private RandomSample getRandomSample(String key, final DBObject queryObj)
+    {
+        return randomSamples.getSample(key, new SampleLoader()
+        {
+            @Override
+            public RandomSample load(long now)
+            {
+                // Read a run of matching folders, starting at a random point and wrapping around
+                int maxSize = randomSampleSize;
+                int start = (int) (Math.random() * 1E6);
+                List<DBObject> idObjs = new ArrayList<DBObject>(Math.min(maxSize, 1024));
+                DBObject fieldsObj = new BasicDBObject(FIELD_ID, 1);
+                RandomSample.readRun(collection, queryObj, fieldsObj, FIELD_RANDOMIZER, start, maxSize, MAX_RANDOM_SCAN, idObjs);
+                // Done
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Loaded " + idObjs.size() + " random folders matching " + queryObj);
+                }
+                return new RandomSample(Collections.<String, Collection<String>>emptyMap(), FOLDER_ID_FIELDS, idObjs, false, now + randomSampleTTL);
+            }
+        });
+    }
+    
+    private static boolean isInRange(long value, Long min, Long max)
+    {
+        return (min == null || value >= min) && (max == null || value <= max);
+    }
+    
+    /**
+     * Write all combined counter increments to the collection as a single bulk update.
+     * <p/>
+     * This is done periodically when {@link #setCounterFlushInterval(long) write-combining} is on
+     * but can be called at any time e.g. at the end of a data load.
+     * 
+     * @since 3.0
+     */
+    public void flush()
+    {
+        synchronized (flushLock)
+        {
+            Map<FolderKey, long[]> deltas = new HashMap<FolderKey, long[]>();
+            for (CounterStripe stripe : counterStripes)
+            {
+                synchronized (stripe)
+                {
+                    if (stripe.pending.isEmpty())
+                    {
+                        continue;
+                    }
+                    // Keep the deltas visible to readers until they have been written
+                    stripe.flushing = stripe.pending;
+                    stripe.pending = new HashMap<FolderKey, long[]>();
+                    deltas.putAll(stripe.flushing);
+                }
+            }
+            if (deltas.isEmpty())
+            {
+                return;
+            }
+            
+            // Nothing is known to be written until the bulk update reports back
+            Set<FolderKey> failed = deltas.keySet();
+            try
+            {
+                failed = writeDeltas(deltas);
+            }
+            finally
+            {
+                for (CounterStripe stripe : counterStripes)
+                {
+                    synchronized (stripe)
+                    {
+                        // Put the failed deltas back to be tried again, unless the folders were deleted meanwhile
+                        for (Map.Entry<FolderKey, long[]> entry : stripe.flushing.entrySet())
+                        {
+                            if (!failed.contains(entry.getKey()))
+                            {
+                                continue;
+                            }
+                            long[] flushing = entry.getValue();
+                            long[] pending = getOrCreateDeltas(stripe, entry.getKey());
+                            pending[DELTA_FOLDERS] += flushing[DELTA_FOLDERS];
+                            pending[DELTA_FILES] += flushing[DELTA_FILES];
+                        }
+                        stripe.flushing = Collections.emptyMap();
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Send the given counter increments as one unordered bulk update
+     * 
+     * @return                  the folders whose increments were not written
+     */
+    private Set<FolderKey> writeDeltas(Map<FolderKey, long[]> deltas)
+    {
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        // The folder updated by each request, in request order
+        List<FolderKey> updated = new ArrayList<FolderKey>(deltas.size());
+        for (Map.Entry<FolderKey, long[]> entry : deltas.entrySet())
+        {
+            FolderKey key = entry.getKey();
+            long[] delta = entry.getValue();
+            BasicDBObject incObj = new BasicDBObject();
+            if (delta[DELTA_FOLDERS] != 0L)
+            {
+                incObj.put(FIELD_FOLDER_COUNT, delta[DELTA_FOLDERS]);
+            }
+            if (delta[DELTA_FILES] != 0L)
+            {
+                incObj.put(FIELD_FILE_COUNT, delta[DELTA_FILES]);
+            }
+            if (incObj.isEmpty())
+            {
+                // The increments cancelled out
+                continue;
+            }
+            DBObject queryObj = BasicDBObjectBuilder.start()
+                    .add(FIELD_CONTEXT, key.context)
+                    .add(FIELD_PATH, key.path)
+                    .get();
+            bulk.find(queryObj).updateOne(new BasicDBObject("$inc", incObj));
+            updated.add(key);
+        }
+        int updates = updated.size();
+        if (updates == 0)
+        {
+            return Collections.emptySet();
+        }
+        BulkWriteResult result;
+        try
+        {
+            result = bulk.execute();
+        }
+        catch (BulkWriteException e)
+        {
+            // The bulk update is unordered, so only the requests reported were not applied
+            Set<FolderKey> failed = new HashSet<FolderKey>();
+            for (BulkWriteError error : e.getWriteErrors())
+            {
+                failed.add(updated.get(error.getIndex()));
+            }
+            logger.error(
+                    "Failed to update the counts of some folders.  They will be tried again: \n" +
+                    "   Updates:  " + updates + "\n" +
+                    "   Failed:   " + failed.size() + "\n" +
+                    "   Errors:   " + e.getWriteErrors() + "\n" +
+                    "   Concern:  " + e.getWriteConcernError());
+            return failed;
+        }
+        if (result.getMatchedCount() != updates)
+        {
+            logger.error(
+                    "Failed to update the counts of some folders: \n" +
+                    "   Updates:  " + updates + "\n" +
+                    "   Result:   " + result);
+        }
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Flushed the counts of " + updates + " folders.");
+        }
+        return Collections.emptySet();
+    }
+    
+    private CounterStripe getStripe(FolderKey key)
+    {
+        return counterStripes[(key.hashCode() & 0x7FFFFFFF) % COUNTER_STRIPES];
+    }
+    
+    /**
+     * Call while holding the stripe's lock
+     */
+    private static long[] getOrCreateDeltas(CounterStripe stripe, FolderKey key)
+    {
+        long[] deltas = stripe.pending.get(key);
+        if (deltas == null)
+        {
+            deltas = new long[2];
+            stripe.pending.put(key, deltas);
+        }
+        return deltas;
+    }
+    
+    private void addPendingDelta(String context, String path, int counter, long delta)
+    {
+        FolderKey key = new FolderKey(context, path);
+        CounterStripe stripe = getStripe(key);
+        synchronized (stripe)
+        {
+            getOrCreateDeltas(stripe, key)[counter] += delta;
+        }
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(
+                    "Deferred the " + (counter == DELTA_FOLDERS ? "subfolder" : "file") + " count increment on " +
+                    context + "/" + path + " by " + delta);
+        }
+    }
+    
+    /**
+     * @return                  the folder and file count increments not yet written or <tt>null</tt> if there are none
+     */
+    private long[] getPendingDeltas(String context, String path)
+    {
+        if (counterFlusher == null)
+        {
+            return null;
+        }
+        FolderKey key = new FolderKey(context, path);
+        CounterStripe stripe = getStripe(key);
+        synchronized (stripe)
+        {
+            long[] pending = stripe.pending.get(key);
+            long[] flushing = stripe.flushing.get(key);
+            if (pending == null && flushing == null)
+            {
+                return null;
+            }
+            long[] deltas = new long[2];
+            for (long[] source : new long[][] {pending, flushing})
+            {
+                if (source != null)
+                {
+                    deltas[DELTA_FOLDERS] += source[DELTA_FOLDERS];
+                    deltas[DELTA_FILES] += source[DELTA_FILES];
+                }
+            }
+            return deltas;
+        }
+    }
+    
+    /**
+     * Drop increments for deleted folders so that they are not written or, if they are being written,
+     * not put back to be written again should the write fail
+     */
+    private void discardPendingDeltas(String context, String path, boolean cascade)
+    {
+        if (counterFlusher == null)
+        {
+            return;
+        }
+        String childPrefix = cascade ? path + "/" : null;
+        for (CounterStripe stripe : counterStripes)
+        {
+            synchronized (stripe)
+            {
+                discardDeltas(stripe.pending, context, path, childPrefix);
+                discardDeltas(stripe.flushing, context, path, childPrefix);
+            }
+        }
+    }
+    
+    /**
+     * @param childPrefix       the prefix of child folder paths to discard or <tt>null</tt> to keep them
+     */
+    private static void discardDeltas(Map<FolderKey, long[]> deltas, String context, String path, String childPrefix)
+    {
+        Iterator<FolderKey> iterator = deltas.keySet().iterator();
+        while (iterator.hasNext())
+        {
+            FolderKey key = iterator.next();
+            if (key.context.equals(context) &&
+                    (key.path.equals(path) || (childPrefix != null && key.path.startsWith(childPrefix))))
+            {
+                iterator.remove();
+            }
+        }
+    }
+    
+    /**
+     * Identifies a folder whose counts are being combined
+     */
+    private static final class FolderKey
+    {
+        private final String context;
+        private final String path;
+        
+        private FolderKey(String context, String path)
+        {
+            this.context = context;
+            this.path = path;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return context.hashCode() * 31 + path.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+            if (!(obj instanceof FolderKey))
+            {
+                return false;
+            }
+            FolderKey other = (FolderKey) obj;
+            return context.equals(other.context) && path.equals(other.path);
+        }
+    }
+    
+    /**
+     * One stripe of combined counter increments, guarded by its own monitor
+     */
+    private static final class CounterStripe
+    {
+        /** Increments not yet picked up by a flush */
+        private Map<FolderKey, long[]> pending = new HashMap<FolderKey, long[]>();
+        /** Increments being written by the current flush */
+        private Map<FolderKey, long[]> flushing = Collections.emptyMap();
     }
 }
@@ -0,0 +1,115 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.http;
+
+import java.util.concurrent.Future;
+
+import org.alfresco.http.AsyncHttpClientProvider;
+import org.alfresco.http.AuthenticationDetailsProvider;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+
+/**
+ * A variant of {@link AuthenticatedHttpEventProcessor} that can also execute HTTP-calls
+ * without blocking.  The calls return immediately with a {@link Future} and the responses
+ * are handled by the provider's I/O threads, so a single event can have many requests in
+ * flight without holding a thread for each.
+ * <p/>
+ * Responses are read into memory before the future completes; there is no need to release
+ * resources afterwards.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public abstract class AsyncAuthenticatedHttpEventProcessor extends AuthenticatedHttpEventProcessor
+{
+    private final AsyncHttpClientProvider asyncHttpClientProvider;
+
+    /**
+     * @param httpClientProvider    provider class for blocking and non-blocking http-clients
+     * @param authDetailProvider    provider for authentication details
+     * @param baseUrl               the URL to append to
+     */
+    public AsyncAuthenticatedHttpEventProcessor(
+            AsyncHttpClientProvider httpClientProvider,
+            AuthenticationDetailsProvider authDetailProvider,
+            String baseUrl)
+    {
+        super(httpClientProvider, authDetailProvider, baseUrl);
+        this.asyncHttpClientProvider = httpClientProvider;
+    }
+
+    /**
+     * Start executing the given request, authenticated as the given user.
+     * 
+     * @param request       request to execute
+     * @param username      name of user to authenticate as
+     * @param callback      called when the request completes, fails or is cancelled (<tt>null</tt> allowed)
+     * @return              the future response
+     */
+    protected Future<HttpResponse> executeHttpMethodAsUserAsync(
+            HttpUriRequest request,
+            String username,
+            FutureCallback<HttpResponse> callback)
+    {
+        return executeWithBasicAuthenticationAsync(
+                request,
+                username,
+                getAuthDetailProvider().getPasswordForUser(username),
+                callback);
+    }
+
+    /**
+     * Start executing the given request, authenticated as the Alfresco Administrator.
+     * 
+     * @param request       request to execute
+     * @param callback      called when the request completes, fails or is cancelled (<tt>null</tt> allowed)
+     * @return              the future response
+     */
+    protected Future<HttpResponse> executeHttpMethodAsAdminAsync(
+            HttpUriRequest request,
+            FutureCallback<HttpResponse> callback)
+    {
+        return executeWithBasicAuthenticationAsync(
+                request,
+                getAuthDetailProvider().getAdminUsername(),
+                getAuthDetailProvider().getAdminPassword(),
+                callback);
+    }
+
+    /**
+     * Start executing the given request with a preemptive basic authentication header
+     */
+    private Future<HttpResponse> executeWithBasicAuthenticationAsync(
+            HttpUriRequest request,
+            String username, String password,
+            FutureCallback<HttpResponse> callback)
+    {
+        request.setHeader(asyncHttpClientProvider.getBasicAuthenticationHeader(username, password));
+        return asyncHttpClientProvider.getAsyncHttpClient().execute(request, callback);
+    }
+}
@@ -29,14 +29,17 @@ import java.io.IOException;
 
 import org.alfresco.bm.driver.event.AbstractEventProcessor;
 import org.alfresco.bm.driver.event.EventProcessor;
+import org.alfresco.bm.driver.file.TestContent;
 import org.alfresco.http.AuthenticationDetailsProvider;
 import org.alfresco.http.HttpClientProvider;
 import org.alfresco.http.HttpRequestCallback;
+import org.alfresco.http.TestContentEntity;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
 
 /**
@@ -109,6 +112,21 @@ public abstract class AuthenticatedHttpEventProcessor extends AbstractEventProce
     }
 
 
+    /**
+     * Create an entity to upload test content.  The content is written straight to the
+     * connection without being copied into per-request buffers.
+     * 
+     * @param content       the content to upload
+     * @param contentType   the type of the content (<tt>null</tt> allowed)
+     * @return              a repeatable entity for the content
+     * 
+     * @since 3.0
+     */
+    protected HttpEntity createContentEntity(TestContent content, ContentType contentType)
+    {
+        return new TestContentEntity(content, contentType);
+    }
+
     /**
      * Execute the given method, authenticated as the given user. Automatically
      * closes the response-stream to release the connection. If response should
@@ -26,8 +26,19 @@
 package org.alfresco.bm.site;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.alfresco.bm.common.mongo.RandomSample;
+import org.alfresco.bm.common.mongo.RandomSampleCache;
+import org.alfresco.bm.common.mongo.RandomSampleCache.SampleLoader;
 import org.alfresco.bm.data.DataCreationState;
 import org.alfresco.bm.publicapi.factory.SiteException;
 import org.apache.commons.logging.Log;
@@ -40,7 +51,6 @@ import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
-import com.mongodb.QueryBuilder;
 import com.mongodb.WriteConcern;
 
 /**
@@ -48,6 +58,12 @@ import com.mongodb.WriteConcern;
  * storage. All {@link SiteData} and {@link SiteMemberData} returned from and
  * persisted with this service will be test-run-specific. The
  * test-run-identifier is set in the constructor.
+ * <p/>
+ * Random sites and site members are picked from {@link RandomSample samples} held locally for each
+ * combination of criteria.  Writes made through this service update the samples immediately;
+ * writes made elsewhere are seen when the samples are reloaded after the {@link #setSampleTTL(long) TTL}.
+ * Site members of a given site or user are picked straight from the collection as there would
+ * otherwise be a sample for every site and user.
  * 
  * Note: code moved and modified from public API benchmark
  * 
@@ -59,14 +75,87 @@ import com.mongodb.WriteConcern;
  */
 public class SiteDataServiceImpl implements SiteDataService, InitializingBean
 {
+    public static final int DEFAULT_SAMPLE_SIZE = 10000;
+    public static final long DEFAULT_SAMPLE_TTL = 60000L;
+    public static final int DEFAULT_SAMPLE_CACHE_SIZE = 100000;
+    /** Limit the number of combinations of criteria that are sampled */
+    private static final int MAX_SAMPLES = 1000;
+    private static final String[] SITE_ID_FIELDS = new String[] {SiteData.FIELD_SITE_ID};
+    private static final String[] SITE_MEMBER_ID_FIELDS = new String[] {SiteMemberData.FIELD_SITE_ID, SiteMemberData.FIELD_USERNAME};
+
     private static Log logger = LogFactory.getLog(SiteDataServiceImpl.class);
     private DBCollection sitesCollection;
     private DBCollection siteMembersCollection;
+    private int sampleSize;
+    private long sampleTTL;
+    /** Sites held locally for random selection, keyed by criteria */
+    private final RandomSampleCache siteSamples;
+    /** Site members held locally for random selection, keyed by criteria */
+    private final RandomSampleCache siteMemberSamples;
+    private volatile RandomizerBounds siteBounds;
+    private volatile RandomizerBounds siteMemberBounds;
 
     public SiteDataServiceImpl(DB db, String sites, String siteMembers)
     {
         this.sitesCollection = db.getCollection(sites);
         this.siteMembersCollection = db.getCollection(siteMembers);
+        this.sampleSize = DEFAULT_SAMPLE_SIZE;
+        this.sampleTTL = DEFAULT_SAMPLE_TTL;
+        this.siteSamples = new RandomSampleCache(MAX_SAMPLES, DEFAULT_SAMPLE_CACHE_SIZE);
+        this.siteMemberSamples = new RandomSampleCache(MAX_SAMPLES, DEFAULT_SAMPLE_CACHE_SIZE);
+    }
+
+    /**
+     * Override the {@link #DEFAULT_SAMPLE_SIZE default} number of sites or site members held locally
+     * for each combination of criteria used to pick them at random.  If more match, a random run of
+     * them is held until the sample is reloaded.
+     * 
+     * @since 3.0
+     */
+    public void setSampleSize(int sampleSize)
+    {
+        if (sampleSize < 1)
+        {
+            throw new IllegalArgumentException("'sampleSize' must be 1 or more.");
+        }
+        this.sampleSize = sampleSize;
+        clearSamples();
+    }
+
+    /**
+     * Override the {@link #DEFAULT_SAMPLE_TTL default} time (milliseconds) for which samples of sites
+     * and site members, and the randomizer bounds, are held before being reloaded.
+     * 
+     * @since 3.0
+     */
+    public void setSampleTTL(long sampleTTL)
+    {
+        this.sampleTTL = sampleTTL;
+        clearSamples();
+    }
+
+    /**
+     * Override the {@link #DEFAULT_SAMPLE_CACHE_SIZE default} number of sites, and of site members,
+     * held locally in all samples.  The least recently used samples are dropped to stay within the limit.
+     * 
+     * @since 3.0
+     */
+    public void setSampleCacheSize(int sampleCacheSize)
+    {
+        if (sampleCacheSize < 1)
+        {
+            throw new IllegalArgumentException("'sampleCacheSize' must be 1 or more.");
+        }
+        siteSamples.setMaxDocuments(sampleCacheSize);
+        siteMemberSamples.setMaxDocuments(sampleCacheSize);
+    }
+
+    private void clearSamples()
+    {
+        siteSamples.clear();
+        siteMemberSamples.clear();
+        siteBounds = null;
+        siteMemberBounds = null;
     }
 
     @Override
@@ -296,6 +385,12 @@ public class SiteDataServiceImpl implements SiteDataService, InitializingBean
     {
         DBObject data = convertSiteData(newSite);
         sitesCollection.insert(data);
+        siteSamples.update(data, sampleSize);
+        RandomizerBounds bounds = siteBounds;
+        if (bounds != null)
+        {
+            siteBounds = bounds.include(newSite.getRandomizer());
+        }
     }
 
     @Override
@@ -312,6 +407,10 @@ public class SiteDataServiceImpl implements SiteDataService, InitializingBean
                 .get();
         DBObject newObj = sitesCollection.findAndModify(findObj, null, null,
                 false, updateObj, true, false);
+        if (newObj != null)
+        {
+            siteSamples.update(newObj, sampleSize);
+        }
         // Done
         if (logger.isDebugEnabled())
         {
@@ -352,68 +451,163 @@ public class SiteDataServiceImpl implements SiteDataService, InitializingBean
         return sites;
     }
 
-    private Integer getMaxSiteRandomizer()
+    /**
+     * The lowest and highest randomizer values in a collection
+     */
+    private static class RandomizerBounds
     {
-        return getSiteDataRandomizer(false);
+        private final int min;
+        private final int max;
+        private final long expiry;
+        
+        private RandomizerBounds(int min, int max, long expiry)
+        {
+            this.min = min;
+            this.max = max;
+            this.expiry = expiry;
+        }
+        
+        /**
+         * @return          bounds that include the given randomizer value
+         */
+        private RandomizerBounds include(int randomizer)
+        {
+            if (randomizer >= min && randomizer <= max)
+            {
+                return this;
+            }
+            return new RandomizerBounds(Math.min(min, randomizer), Math.max(max, randomizer), expiry);
+        }
+        
+        /**
+         * @return          a random value within the bounds
+         */
+        private int random(Random random)
+        {
+            return min + (int) (random.nextDouble() * ((double) max - (double) min));
+        }
     }
 
-    private Integer getMinSiteRandomizer()
+    /**
+     * Gets the cached lowest and highest randomizer values of a collection, querying for them if necessary
+     * 
+     * @param bounds        the bounds currently held or <tt>null</tt>
+     * @return              the bounds or <tt>null</tt> if the collection has no randomizer values
+     */
+    private RandomizerBounds getRandomizerBounds(DBCollection collection, RandomizerBounds bounds)
     {
-        return getSiteDataRandomizer(true);
+        long now = System.currentTimeMillis();
+        if (bounds != null && now < bounds.expiry)
+        {
+            return bounds;
+        }
+        Integer min = getRandomizer(collection, true);
+        Integer max = getRandomizer(collection, false);
+        if (min == null || max == null)
+        {
+            return null;
+        }
+        return new RandomizerBounds(min, max, now + sampleTTL);
     }
 
     /**
-     * Gets max or minimum value of randomizer value of SiteData in collection.
-     * To get highest query pass 1 or -1 for lowest.
+     * Gets max or minimum value of randomizer value in a collection.
      * 
-     * @param direction
-     *        ascend or descend
+     * @param ascending
+     *        <tt>true</tt> for the lowest value or <tt>false</tt> for the highest
      * @return {@link Integer} randomizer value
      */
-    private Integer getSiteDataRandomizer(boolean ascending)
+    private static Integer getRandomizer(DBCollection collection, boolean ascending)
     {
         int direction = ascending ? 1 : -1;
+        DBObject queryObj = new BasicDBObject(SiteData.FIELD_RANDOMIZER, new BasicDBObject("$exists", Boolean.TRUE));
         DBObject fieldsObj = new BasicDBObject(SiteData.FIELD_RANDOMIZER, true);
         DBObject sortObj = new BasicDBObject(SiteData.FIELD_RANDOMIZER,
                 direction);
-        DBObject resultObj = sitesCollection.findOne(null, fieldsObj, sortObj);
+        DBObject resultObj = collection.findOne(queryObj, fieldsObj, sortObj);
         return resultObj == null ? null
                 : (Integer) resultObj.get(SiteData.FIELD_RANDOMIZER);
     }
 
+    /**
+     * Get the sample for the given criteria, loading it if it is not held or has expired.
+     * Empty samples are held as well so that criteria matching nothing are not queried repeatedly;
+     * matches written through this service are added to them straight away.
+     * 
+     * @param samples       the samples held for the collection
+     * @param bounds        the randomizer bounds of the collection
+     */
+    private RandomSample getSample(
+            RandomSampleCache samples,
+            final DBCollection collection,
+            final RandomizerBounds bounds,
+            final Map<String, Collection<String>> criteria,
+            final String[] idFields)
+    {
+        return samples.getSample(criteria.toString(), new SampleLoader()
+        {
+            @Override
+            public RandomSample load(long now)
+            {
+                // Read a run of matching documents, starting at a random point and wrapping around
+                int maxSize = sampleSize;
+                int start = (bounds == null) ? 0 : bounds.random(ThreadLocalRandom.current());
+                List<DBObject> docs = new ArrayList<DBObject>(Math.min(maxSize, 1024));
+                RandomSample.readRun(collection, RandomSample.toQuery(criteria), null, SiteData.FIELD_RANDOMIZER, start, maxSize, 0, docs);
+                // We have seen every match if we could have read more
+                boolean complete = docs.size() < maxSize;
+                // Done
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Loaded " + docs.size() + " documents from " + collection.getName() + " matching " + criteria + " (complete: " + complete + ")");
+                }
+                return new RandomSample(criteria, idFields, docs, complete, now + sampleTTL);
+            }
+        });
+    }
+
+    /**
+     * Pick a random document matching the criteria straight from the collection, starting at a
+     * random point on the randomizer index and wrapping around
+     * 
+     * @param bounds        the randomizer bounds of the collection
+     * @return              a matching document or <tt>null</tt> if there are none
+     */
+    private static DBObject pickDirect(
+            DBCollection collection,
+            RandomizerBounds bounds,
+            Map<String, Collection<String>> criteria)
+    {
+        int start = (bounds == null) ? 0 : bounds.random(ThreadLocalRandom.current());
+        BasicDBObject query = RandomSample.toQuery(criteria);
+        DBObject sortObj = new BasicDBObject(SiteData.FIELD_RANDOMIZER, 1);
+        query.put(SiteData.FIELD_RANDOMIZER, new BasicDBObject("$gte", start));
+        DBObject result = collection.findOne(query, null, sortObj);
+        if (result == null)
+        {
+            query.put(SiteData.FIELD_RANDOMIZER, new BasicDBObject("$lt", start));
+            result = collection.findOne(query, null, sortObj);
+        }
+        return result;
+    }
+
     @Override
     public SiteData randomSite(String domain, DataCreationState state)
     {
-        SiteData site = null;
-
-        BasicDBObject query = new BasicDBObject();
+        Map<String, Collection<String>> criteria = new LinkedHashMap<String, Collection<String>>(5);
         if (domain != null)
         {
-            query.append(SiteData.FIELD_DOMAIN, domain);
+            criteria.put(SiteData.FIELD_DOMAIN, Collections.singleton(domain));
         }
         if (state != null)
         {
-            query.append(SiteData.FIELD_CREATION_STATE, state.toString());
-        }
-
-        Integer max = getMaxSiteRandomizer();
-        Integer min = getMinSiteRandomizer();
-        if (min != null && max != null)
-        {
-            int r = (int) (Math.random() * (max - min)) + min;
-            query.append(SiteData.FIELD_RANDOMIZER,
-                    new BasicDBObject("$gt", r));
-            DBObject result = sitesCollection.findOne(query);
-            site = convertSiteDataDBObject(result);
-            if (site == null)
-            {
-                query.put(SiteData.FIELD_RANDOMIZER,
-                        new BasicDBObject("$lt", r));
-                result = sitesCollection.findOne(query);
-                site = convertSiteDataDBObject(result);
-            }
+            criteria.put(SiteData.FIELD_CREATION_STATE, Collections.singleton(state.toString()));
         }
-        return site;
+        RandomizerBounds bounds = getRandomizerBounds(sitesCollection, siteBounds);
+        siteBounds = bounds;
+        RandomSample sample = getSample(siteSamples, sitesCollection, bounds, criteria, SITE_ID_FIELDS);
+        DBObject result = sample.pick(ThreadLocalRandom.current());
+        return convertSiteDataDBObject(result);
     }
 
     @Override
@@ -445,6 +639,12 @@ public class SiteDataServiceImpl implements SiteDataService, InitializingBean
             throw new RuntimeException(
                     "Failed to insert site member: " + siteMember, e);
         }
+        siteMemberSamples.update(data, sampleSize);
+        RandomizerBounds bounds = siteMemberBounds;
+        if (bounds != null)
+        {
+            siteMemberBounds = bounds.include(siteMember.getRandomizer());
+        }
     }
 
     @Override
@@ -493,42 +693,36 @@ public class SiteDataServiceImpl implements SiteDataService, InitializingBean
     public SiteMemberData randomSiteMember(String siteId,
             DataCreationState state, String username, String... roles)
     {
-        QueryBuilder queryObjBuilder = QueryBuilder
-                .start(SiteMemberData.FIELD_SITE_ID).exists(Boolean.TRUE);
+        Map<String, Collection<String>> criteria = new LinkedHashMap<String, Collection<String>>(7);
         if (siteId != null)
         {
-            queryObjBuilder.and(SiteMemberData.FIELD_SITE_ID).is(siteId);
+            criteria.put(SiteMemberData.FIELD_SITE_ID, Collections.singleton(siteId));
         }
         if (state != null)
         {
-            queryObjBuilder.and(SiteMemberData.FIELD_CREATION_STATE)
-                    .is(state.toString());
+            criteria.put(SiteMemberData.FIELD_CREATION_STATE, Collections.singleton(state.toString()));
         }
         if (username != null)
         {
-            queryObjBuilder.and(SiteMemberData.FIELD_USERNAME).is(username);
+            criteria.put(SiteMemberData.FIELD_USERNAME, Collections.singleton(username));
         }
         if (roles != null && roles.length > 0)
         {
-            queryObjBuilder.and(SiteMemberData.FIELD_ROLE).in(roles);
+            // Sorted so that the order of the roles does not matter
+            criteria.put(SiteMemberData.FIELD_ROLE, new TreeSet<String>(Arrays.asList(roles)));
         }
-        BasicDBObject query = (BasicDBObject) queryObjBuilder.get();    // Need
-                                                                        // to
-                                                                        // cast
-                                                                        // for
-                                                                        // later
-                                                                        // puts
-        int random = (int) (Math.random() * (double) 1e6);
-        query.put(SiteData.FIELD_RANDOMIZER,
-                new BasicDBObject("$gte", Integer.valueOf(random)));
-
-        DBObject result = siteMembersCollection.findOne(query);
-        if (result == null)
+        RandomizerBounds bounds = getRandomizerBounds(siteMembersCollection, siteMemberBounds);
+        siteMemberBounds = bounds;
+        DBObject result;
+        if (siteId != null || username != null)
+        {
+            // Don't hold a sample for every site and user
+            result = pickDirect(siteMembersCollection, bounds, criteria);
+        }
+        else
         {
-            result = siteMembersCollection.findOne();
-            query.put(SiteData.FIELD_RANDOMIZER,
-                    new BasicDBObject("$lt", random));
-            result = siteMembersCollection.findOne(query);
+            RandomSample sample = getSample(siteMemberSamples, siteMembersCollection, bounds, criteria, SITE_MEMBER_ID_FIELDS);
+            result = sample.pick(ThreadLocalRandom.current());
         }
         return convertSiteMemberDBObject(result);
     }
@@ -563,8 +757,12 @@ public class SiteDataServiceImpl implements SiteDataService, InitializingBean
                 .add(SiteMemberData.FIELD_CREATION_STATE, state.toString())
                 .pop()
                 .get();
-        siteMembersCollection.findAndModify(findObj, null, null, false,
-                updateObj, false, false);
+        DBObject newObj = siteMembersCollection.findAndModify(findObj, null, null, false,
+                updateObj, true, false);
+        if (newObj != null)
+        {
+            siteMemberSamples.update(newObj, sampleSize);
+        }
     }
 
     @Override
@@ -158,6 +158,7 @@ public class CreateUsers extends AbstractEventProcessor
         }
         
         long lastEventTime = System.currentTimeMillis();
+        List<String> scheduledUsernames = new ArrayList<String>(pendingUsers.size());
         for (UserData user : pendingUsers)
         {
             // Schedule it and mark the user
@@ -165,7 +166,7 @@ public class CreateUsers extends AbstractEventProcessor
             Event nextEvent = new Event(EVENT_NAME_CREATE_USER, username);
             nextEvents.add(nextEvent);
             toCreate--;
-            userDataService.setUserCreationState(username, DataCreationState.Scheduled);
+            scheduledUsernames.add(username);
             // Check if we still need to do more
             if (toCreate <= 0)
             {
@@ -175,6 +176,9 @@ public class CreateUsers extends AbstractEventProcessor
             lastEventTime += creationDelay;
         }
         
+        // Mark all the users in one go
+        userDataService.setUsersCreationState(scheduledUsernames, DataCreationState.Scheduled);
+        
         // Either reschedule or we are done
         int scheduled = nextEvents.size();
         long rescheduleTime = lastEventTime + creationDelay;
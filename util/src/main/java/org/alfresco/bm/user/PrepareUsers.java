@@ -25,12 +25,19 @@
  */
 package org.alfresco.bm.user;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import org.alfresco.bm.data.DataCreationState;
 import org.alfresco.bm.driver.event.AbstractEventProcessor;
 import org.alfresco.bm.driver.event.Event;
 import org.alfresco.bm.common.EventResult;
 
-import com.mongodb.DuplicateKeyException;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
 
 /**
  * <p>Prepare a specific number of users for interaction with Alfresco.
@@ -93,8 +100,17 @@ import com.mongodb.DuplicateKeyException;
  * 
  * Users data objects are created.  This data is local only.
  * 
+ * <h1>Chunking</h1>
+ * 
+ * When an {@link #setEventNameSelf(String) event name for self} is given, the users are split
+ * into {@link #setChunkSize(long) chunks} that are prepared by separate events, allowing the
+ * work to be shared by all drivers.  A final event periodically counts the users in each chunk's
+ * range and raises the completion event once every chunk is complete.  If no users are added for
+ * {@link #setMaxStalledChecks(int) several checks} in a row, preparation is reported as failed.
+ * 
  * <h1>Output</h1>
- * {@link #EVENT_NAME_USERS_PREPARED}: Marker indicating completion
+ * {@link #EVENT_NAME_USERS_PREPARED}: Marker indicating completion<br/>
+ * <i>event name for self</i>: The chunks of users to prepare and the check for completion
  *
  * @author Derek Hulley
  * @since 1.1
@@ -106,7 +122,21 @@ public class PrepareUsers extends AbstractEventProcessor
     private static final String PATTERN_LAST_NAME = "[lastName]";
     private static final String PATTERN_EMAIL_ADDRESS = "[emailAddress]";
     
+    private static final String FIELD_START = "start";
+    private static final String FIELD_END = "end";
+    private static final String FIELD_NEXT = "next";
+    private static final String FIELD_COUNT = "count";
+    private static final String FIELD_STALLED = "stalled";
+    
+    /** A pattern with a single decimal counter and no other format specifiers */
+    private static final Pattern SIMPLE_NUMBER_PATTERN = Pattern.compile("([^%]*)%(0?)([0-9]*)d([^%]*)");
+    /** The number of users written to the user data service at once */
+    private static final int INSERT_BATCH_SIZE = 1000;
+    
     public static final long DEFAULT_USERS_PER_DOMAIN = 100L;
+    public static final long DEFAULT_CHUNK_SIZE = 10000L;
+    public static final long DEFAULT_DELAY_RESCHEDULE_SELF = 5000L;
+    public static final int DEFAULT_MAX_STALLED_CHECKS = 60;
     public static final String EVENT_NAME_USERS_PREPARED = "usersPrepared";
     public static final String DEFAULT_DOMAIN_PATTERN = UserDataService.DEFAULT_DOMAIN;
     public static final String DEFAULT_EMAIL_DOMAIN_PATTERN = "%05d.example.com";
@@ -128,6 +158,10 @@ public class PrepareUsers extends AbstractEventProcessor
     private String usernamePattern;
     private String passwordPattern;
     private boolean assumeCreated;
+    private String eventNameSelf;
+    private long chunkSize;
+    private long delayRescheduleSelf;
+    private int maxStalledChecks;
     
     /**
      * @param userDataService       service for {@link UserData} operations
@@ -147,6 +181,10 @@ public class PrepareUsers extends AbstractEventProcessor
         this.usernamePattern = DEFAULT_USERNAME_PATTERN;
         this.passwordPattern = DEFAULT_PASSWORD_PATTERN;
         this.assumeCreated = false;
+        this.eventNameSelf = null;
+        this.chunkSize = DEFAULT_CHUNK_SIZE;
+        this.delayRescheduleSelf = DEFAULT_DELAY_RESCHEDULE_SELF;
+        this.maxStalledChecks = DEFAULT_MAX_STALLED_CHECKS;
     }
 
     /**
@@ -258,110 +296,366 @@ public class PrepareUsers extends AbstractEventProcessor
         this.assumeCreated = assumeCreated;
     }
 
+    /**
+     * Set the name of the event that this processor handles, which allows the preparation
+     * to be split into chunks that are processed in parallel.
+     * 
+     * @param eventNameSelf         the event name or <tt>null</tt> to prepare all users in one event
+     * 
+     * @since 3.0
+     */
+    public void setEventNameSelf(String eventNameSelf)
+    {
+        this.eventNameSelf = eventNameSelf;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_CHUNK_SIZE default} number of users prepared by each event
+     * when {@link #setEventNameSelf(String) chunking} is used.
+     * 
+     * @since 3.0
+     */
+    public void setChunkSize(long chunkSize)
+    {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_DELAY_RESCHEDULE_SELF default} time between checks for the
+     * completion of {@link #setEventNameSelf(String) chunks}.
+     * 
+     * @since 3.0
+     */
+    public void setDelayRescheduleSelf(long delayRescheduleSelf)
+    {
+        this.delayRescheduleSelf = delayRescheduleSelf;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MAX_STALLED_CHECKS default} number of consecutive checks that
+     * may find no new users before the preparation of {@link #setEventNameSelf(String) chunks}
+     * is considered to have failed.
+     * 
+     * @since 3.0
+     */
+    public void setMaxStalledChecks(int maxStalledChecks)
+    {
+        if (maxStalledChecks < 1)
+        {
+            throw new IllegalArgumentException("'maxStalledChecks' must be 1 or more.");
+        }
+        this.maxStalledChecks = maxStalledChecks;
+    }
+
     public EventResult processEvent(Event event) throws Exception
     {
+        Object data = event.getData();
+        if (data instanceof DBObject && ((DBObject) data).containsField(FIELD_START))
+        {
+            // Prepare a chunk of users
+            DBObject chunkObj = (DBObject) data;
+            long start = ((Number) chunkObj.get(FIELD_START)).longValue();
+            long end = ((Number) chunkObj.get(FIELD_END)).longValue();
+            long count = prepareUsers(start, end);
+            return new EventResult("Created " + count + " users from " + start + " to " + end + ".", Collections.<Event>emptyList());
+        }
+        else if (data instanceof DBObject && ((DBObject) data).containsField(FIELD_NEXT))
+        {
+            // Check for completion of the chunks
+            DBObject checkObj = (DBObject) data;
+            long next = ((Number) checkObj.get(FIELD_NEXT)).longValue();
+            long lastCount = ((Number) checkObj.get(FIELD_COUNT)).longValue();
+            int stalled = ((Number) checkObj.get(FIELD_STALLED)).intValue();
+            return checkUsers(next, lastCount, stalled);
+        }
+        
         // First wipe out any users that were not created
         userDataService.deleteUsers(DataCreationState.Unknown);
         userDataService.deleteUsers(DataCreationState.NotScheduled);
         userDataService.deleteUsers(DataCreationState.Scheduled);
         userDataService.deleteUsers(DataCreationState.Failed);
         
-        // How many domains must we create?
-        long domainsToCreate = (long) (Math.ceil((double)numberOfUsers/(double)usersPerDomain));
+        if (eventNameSelf != null && chunkSize > 0L && numberOfUsers > chunkSize)
+        {
+            // Split the work into events that can be processed in parallel
+            List<Event> nextEvents = new ArrayList<Event>((int) (numberOfUsers / chunkSize) + 2);
+            for (long start = 0L; start < numberOfUsers; start += chunkSize)
+            {
+                DBObject chunkObj = BasicDBObjectBuilder.start()
+                        .add(FIELD_START, start)
+                        .add(FIELD_END, Math.min(start + chunkSize, numberOfUsers))
+                        .get();
+                nextEvents.add(new Event(eventNameSelf, chunkObj));
+            }
+            int chunks = nextEvents.size();
+            DBObject checkObj = BasicDBObjectBuilder.start()
+                    .add(FIELD_NEXT, 0L)
+                    .add(FIELD_COUNT, -1L)
+                    .add(FIELD_STALLED, 0)
+                    .get();
+            nextEvents.add(new Event(eventNameSelf, System.currentTimeMillis() + delayRescheduleSelf, checkObj));
+            return new EventResult("Scheduled " + chunks + " events to prepare " + numberOfUsers + " users.", nextEvents);
+        }
+        
+        long count = prepareUsers(0L, numberOfUsers);
+        // Raise an event saying we're done
+        Event doneEvent = new Event(eventNameUsersPrepared, null);
+        // Done
+        String msg = "Created " + count + " users.";
+        EventResult result = new EventResult(msg, doneEvent);
+        return result;
+    }
+    
+    /**
+     * Reschedule the check until every chunk has all its users or until users are no longer being added
+     * 
+     * @param next                  the index of the first user in the first chunk that was not complete
+     * @param lastCount             the number of users found by the previous check or <tt>-1</tt>
+     * @param stalled               the number of previous checks in a row that found no new users
+     */
+    private EventResult checkUsers(long next, long lastCount, int stalled)
+    {
+        // Chunks already found to be complete are not counted again
+        UserFactory userFactory = new UserFactory();
+        while (next < numberOfUsers)
+        {
+            long end = Math.min(next + chunkSize, numberOfUsers);
+            if (countUsers(userFactory, next, end) < end - next)
+            {
+                break;
+            }
+            next = end;
+        }
+        Event doneEvent = new Event(eventNameUsersPrepared, null);
+        if (next >= numberOfUsers)
+        {
+            return new EventResult("Prepared " + numberOfUsers + " users.", doneEvent);
+        }
         
+        long count = userDataService.countUsers(null, null);
+        stalled = (count > lastCount) ? 0 : stalled + 1;
+        if (stalled >= maxStalledChecks)
+        {
+            String msg = "User preparation stopped with " + count + " users and user " + next + " onwards incomplete.";
+            return new EventResult(msg, Collections.singletonList(doneEvent), false);
+        }
+        DBObject checkObj = BasicDBObjectBuilder.start()
+                .add(FIELD_NEXT, next)
+                .add(FIELD_COUNT, count)
+                .add(FIELD_STALLED, stalled)
+                .get();
+        Event checkEvent = new Event(eventNameSelf, System.currentTimeMillis() + delayRescheduleSelf, checkObj);
+        return new EventResult("Found " + count + " users; users from " + next + " are incomplete.  Checking again.", checkEvent);
+    }
+    
+    /**
+     * Count the users of a range that exist, whether prepared now or kept from a previous run
+     * 
+     * @param start                 the index of the first user (inclusive)
+     * @param end                   the index of the last user (exclusive)
+     * @return                      the number of users in the range that exist
+     */
+    private long countUsers(UserFactory userFactory, long start, long end)
+    {
+        List<String> usernames = new ArrayList<String>((int) Math.min(end - start, INSERT_BATCH_SIZE));
+        long count = 0L;
+        for (long i = start; i < end; i++)
+        {
+            usernames.add(userFactory.createUser(i).getUsername());
+            if (usernames.size() == INSERT_BATCH_SIZE)
+            {
+                count += userDataService.countUsers(usernames);
+                usernames.clear();
+            }
+        }
+        count += userDataService.countUsers(usernames);
+        return count;
+    }
+    
+    /**
+     * Prepare users, skipping any that already exist.  The user index determines the user's
+     * email domain as well as all values generated from the numerical patterns.
+     * 
+     * @param start                 the index of the first user (inclusive)
+     * @param end                   the index of the last user (exclusive)
+     * @return                      the number of users created
+     */
+    private long prepareUsers(long start, long end)
+    {
+        UserFactory userFactory = new UserFactory();
+        List<UserData> users = new ArrayList<UserData>((int) Math.min(end - start, INSERT_BATCH_SIZE));
         long count = 0L;
-        // Loop over domains and users and make sure they exist
-        for (long i = 0L; i < domainsToCreate; i++)
+        for (long i = start; i < end; i++)
+        {
+            users.add(userFactory.createUser(i));
+            if (users.size() == INSERT_BATCH_SIZE)
+            {
+                count += userDataService.createNewUsers(users);
+                users.clear();
+            }
+        }
+        count += userDataService.createNewUsers(users);
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Created " + count + " users from " + start + " to " + end + ".");
+        }
+        return count;
+    }
+    
+    /**
+     * Generates the user for each user index using patterns that are compiled once
+     */
+    private class UserFactory
+    {
+        private final NumberPattern emailDomainFormat = new NumberPattern(emailDomainPattern);
+        private final NumberPattern firstNameFormat = new NumberPattern(firstNamePattern);
+        private final NumberPattern lastNameFormat = new NumberPattern(lastNamePattern);
+        private final Template domainTemplate = new Template(domainPattern);
+        private final Template emailTemplate = new Template(emailAddressPattern);
+        private final Template usernameTemplate = new Template(usernamePattern);
+        private final Template passwordTemplate = new Template(passwordPattern);
+        private final DataCreationState creationState = assumeCreated ? DataCreationState.Created : DataCreationState.NotScheduled;
+        private long domainIndex = -1L;
+        private String emailDomain = null;
+        private String domain = null;
+        
+        private UserData createUser(long i)
+        {
+            if (i / usersPerDomain != domainIndex)
+            {
+                domainIndex = i / usersPerDomain;
+                emailDomain = emailDomainFormat.format(domainIndex);
+                domain = domainTemplate.render(null, null, null, emailDomain);
+            }
+            String firstName = firstNameFormat.format(i);
+            String lastName = lastNameFormat.format(i);
+            String email = emailTemplate.render(null, firstName, lastName, emailDomain);
+            
+            UserData user = new UserData();
+            user.setCreationState(creationState);
+            user.setDomain(domain);
+            user.setEmail(email);
+            user.setFirstName(firstName);
+            user.setLastName(lastName);
+            user.setPassword(passwordTemplate.render(email, firstName, lastName, emailDomain));
+            user.setUsername(usernameTemplate.render(email, firstName, lastName, emailDomain));
+            return user;
+        }
+    }
+    
+    /**
+     * A pattern that may contain a numerical counter e.g. <code>%05d</code>.  Simple zero-padded
+     * decimal counters are formatted directly; anything else is passed to {@link String#format(String, Object...)}.
+     */
+    private static class NumberPattern
+    {
+        private final String pattern;
+        private final boolean numerical;
+        private final String prefix;
+        private final String suffix;
+        private final int width;
+        private final boolean zeroPad;
+        
+        private NumberPattern(String pattern)
         {
-            // Numerical pattern for email domain
-            String emailDomain = emailDomainPattern;
-            if (emailDomain.contains("%"))
+            this.pattern = pattern;
+            this.numerical = pattern.contains("%");
+            Matcher matcher = SIMPLE_NUMBER_PATTERN.matcher(pattern);
+            if (numerical && matcher.matches())
             {
-                emailDomain = String.format(emailDomainPattern, i);
+                prefix = matcher.group(1);
+                zeroPad = matcher.group(2).length() > 0;
+                width = matcher.group(3).length() > 0 ? Integer.parseInt(matcher.group(3)) : 0;
+                suffix = matcher.group(4);
             }
-            // Substitutions for email
-            String domain = domainPattern;
-            domain = domain.replace(PATTERN_EMAIL_DOMAIN, emailDomain);
-            // Build users for the domain
-            for (int j = 0; count < numberOfUsers && j < usersPerDomain; j++)
+            else
             {
-                // Numerical pattern for first name
-                String firstName = firstNamePattern;
-                if (firstName.contains("%"))
-                {
-                    firstName = String.format(firstNamePattern, count);
-                }
-                // Numerical pattern for last name
-                String lastName = lastNamePattern;
-                if (lastName.contains("%"))
-                {
-                    lastName = String.format(lastNamePattern, count);
-                }
-                // Substitutions for email
-                String email = emailAddressPattern;
-                email = email.replace(PATTERN_FIRST_NAME, firstName);
-                email = email.replace(PATTERN_LAST_NAME, lastName);
-                email = email.replace(PATTERN_EMAIL_DOMAIN, emailDomain);
-                // Substitutions for username
-                String username = usernamePattern;
-                username = username.replace(PATTERN_EMAIL_ADDRESS, email);
-                username = username.replace(PATTERN_FIRST_NAME, firstName);
-                username = username.replace(PATTERN_LAST_NAME, lastName);
-                username = username.replace(PATTERN_EMAIL_DOMAIN, emailDomain);
-                // Substitutions for password
-                String password = passwordPattern;
-                password = password.replace(PATTERN_EMAIL_ADDRESS, email);
-                password = password.replace(PATTERN_FIRST_NAME, firstName);
-                password = password.replace(PATTERN_LAST_NAME, lastName);
-                password = password.replace(PATTERN_EMAIL_DOMAIN, emailDomain);
-                // Does the user exist (by email)
-                UserData user = userDataService.findUserByUsername(username);
-                if (user != null)
+                prefix = null;
+                zeroPad = false;
+                width = 0;
+                suffix = null;
+            }
+        }
+        
+        private String format(long value)
+        {
+            if (!numerical)
+            {
+                return pattern;
+            }
+            else if (prefix == null || value < 0L)
+            {
+                return String.format(pattern, value);
+            }
+            String digits = Long.toString(value);
+            StringBuilder sb = new StringBuilder(prefix.length() + Math.max(width, digits.length()) + suffix.length());
+            sb.append(prefix);
+            for (int i = digits.length(); i < width; i++)
+            {
+                sb.append(zeroPad ? '0' : ' ');
+            }
+            sb.append(digits).append(suffix);
+            return sb.toString();
+        }
+    }
+    
+    /**
+     * A pattern split into literal text and value placeholders so that values can be substituted
+     * without searching the pattern each time.  The values are given in the order:
+     * <b>[emailAddress]</b>, <b>[firstName]</b>, <b>[lastName]</b>, <b>[emailDomain]</b>.
+     */
+    private static class Template
+    {
+        private static final String[] PLACEHOLDERS = new String[] {
+                PATTERN_EMAIL_ADDRESS, PATTERN_FIRST_NAME, PATTERN_LAST_NAME, PATTERN_EMAIL_DOMAIN};
+        
+        /** Literal text alternating with placeholder indexes, starting and ending with text */
+        private final List<String> texts = new ArrayList<String>(4);
+        private final List<Integer> placeholders = new ArrayList<Integer>(4);
+        
+        private Template(String pattern)
+        {
+            int pos = 0;
+            while (true)
+            {
+                int next = -1;
+                int placeholder = -1;
+                for (int i = 0; i < PLACEHOLDERS.length; i++)
                 {
-                    switch (user.getCreationState())
+                    int index = pattern.indexOf(PLACEHOLDERS[i], pos);
+                    if (index >= 0 && (next < 0 || index < next))
                     {
-                        case Created:
-                            // These are acceptable cases, which we ignore
-                            break;
-                        default:
-                            logger.warn("Found a user that was NOT created even though we cleared those out: " + user);
+                        next = index;
+                        placeholder = i;
                     }
-                    // User already exists
-                    continue;
-                }
-                // Create data
-                user = new UserData();
-                user.setCreationState(DataCreationState.NotScheduled);
-                user.setDomain(domain);
-                user.setEmail(email);
-                user.setFirstName(firstName);
-                user.setLastName(lastName);
-                user.setPassword(password);
-                user.setUsername(username);
-                // Check if the user must be assumed to exist
-                if (assumeCreated)
-                {
-                    user.setCreationState(DataCreationState.Created);
-                }
-                // Persist
-                try
-                {
-                    userDataService.createNewUser(user);
                 }
-                catch (DuplicateKeyException e)
+                if (next < 0)
                 {
-                    // We checked if the user existed and it didn't ... but now it does
-                    logger.warn("User data has been created by a separate process.  Ignoring: " + username);
-                    continue;
+                    texts.add(pattern.substring(pos));
+                    break;
                 }
-                count++;
+                texts.add(pattern.substring(pos, next));
+                placeholders.add(placeholder);
+                pos = next + PLACEHOLDERS[placeholder].length();
             }
         }
-        // Raise an event saying we're done
-        Event doneEvent = new Event(eventNameUsersPrepared, null);
-        // Done
-        String msg = "Created " + count + " users.";
-        EventResult result = new EventResult(msg, doneEvent);
-        return result;
+        
+        private String render(String... values)
+        {
+            if (placeholders.size() == 0)
+            {
+                return texts.get(0);
+            }
+            StringBuilder sb = new StringBuilder(64);
+            for (int i = 0; i < placeholders.size(); i++)
+            {
+                sb.append(texts.get(i));
+                String value = values[placeholders.get(i)];
+                sb.append(value == null ? PLACEHOLDERS[placeholders.get(i)] : value);
+            }
+            sb.append(texts.get(placeholders.size()));
+            return sb.toString();
+        }
     }
 }
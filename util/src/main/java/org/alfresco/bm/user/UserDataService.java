@@ -57,6 +57,17 @@ public interface UserDataService
      * @throws DuplicateKeyException    if the username is already used
      */
     void createNewUser(UserData data);
+    
+    /**
+     * Create many users at once.  Users whose username or email address is already
+     * used are skipped and the rest are still created.
+     * 
+     * @param users                 the users to create
+     * @return                      the number of users created
+     * 
+     * @since 3.0
+     */
+    long createNewUsers(List<UserData> users);
 
     /**
      * Update a user's password
@@ -68,11 +79,30 @@ public interface UserDataService
      */
     void setUserCreationState(String username, DataCreationState creationState);
     
+    /**
+     * Change the 'created' state of many users at once
+     * 
+     * @param usernames             the users to change
+     * @param creationState         the new creation state
+     * @return                      the number of users found and changed
+     * 
+     * @since 3.0
+     */
+    long setUsersCreationState(List<String> usernames, DataCreationState creationState);
+    
     /**
      * @param domain                the domain to search or <tt>null</tt> for all domains
      * @param creationState         optional creation state to filter the count or <tt>null</tt> for all 
      */
     long countUsers(String domain, DataCreationState creationState);
+    
+    /**
+     * @param usernames             the users to look for
+     * @return                      the number of the given users that exist, in any creation state
+     * 
+     * @since 3.0
+     */
+    long countUsers(List<String> usernames);
 
     /**
      * Delete users by create state
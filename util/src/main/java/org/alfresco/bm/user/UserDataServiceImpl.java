@@ -26,10 +26,19 @@
 package org.alfresco.bm.user;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
+import org.alfresco.bm.common.mongo.RandomSample;
+import org.alfresco.bm.common.mongo.RandomSampleCache;
+import org.alfresco.bm.common.mongo.RandomSampleCache.SampleLoader;
 import org.alfresco.bm.data.DataCreationState;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -37,6 +46,10 @@ import org.springframework.beans.factory.InitializingBean;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
@@ -69,14 +82,59 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
     public static final String FIELD_ID = "id";
     public static final String FIELD_KEY = "key";
     
+    public static final int DEFAULT_RANDOM_USER_SAMPLE_SIZE = 1000;
+    public static final long DEFAULT_RANDOM_USER_SAMPLE_TTL = 10000L;
+    /** The number of distinct domain lists for which random user samples are kept */
+    private static final int MAX_RANDOM_USER_SAMPLES = 1000;
+    /** The number of random points in the {@link #FIELD_RANDOMIZER randomizer} order that a sample is drawn from */
+    private static final int RANDOM_USER_SAMPLE_POINTS = 10;
+    private static final String[] USER_ID_FIELDS = new String[] {FIELD_USERNAME};
+    
     private static Log logger = LogFactory.getLog(UserDataServiceImpl.class);
 
     /** The collection of users, which can be reused by derived extensions. */
     protected final DBCollection collection;
     
+    private int randomUserSampleSize;
+    private long randomUserSampleTTL;
+    /** Samples of created users keyed by the domains they were drawn from */
+    private final RandomSampleCache randomUserSamples;
+    
     public UserDataServiceImpl(DB db, String collection)
     {
         this.collection = db.getCollection(collection);
+        this.randomUserSampleSize = DEFAULT_RANDOM_USER_SAMPLE_SIZE;
+        this.randomUserSampleTTL = DEFAULT_RANDOM_USER_SAMPLE_TTL;
+        this.randomUserSamples = new RandomSampleCache(MAX_RANDOM_USER_SAMPLES, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Override the {@link #DEFAULT_RANDOM_USER_SAMPLE_SIZE default} number of created users
+     * held locally for each domain (or combination of domains) when selecting random users.
+     * 
+     * @param randomUserSampleSize      the number of users to hold or <tt>0</tt> to always query
+     *                                  the collection for random users
+     * 
+     * @since 3.0
+     */
+    public void setRandomUserSampleSize(int randomUserSampleSize)
+    {
+        this.randomUserSampleSize = randomUserSampleSize;
+        randomUserSamples.clear();
+    }
+    
+    /**
+     * Override the {@link #DEFAULT_RANDOM_USER_SAMPLE_TTL default} time (milliseconds) for which
+     * a sample of random users is used before another sample is drawn.  Changes made through
+     * this service are applied to the samples immediately; changes made elsewhere are seen once
+     * the sample expires.
+     * 
+     * @since 3.0
+     */
+    public void setRandomUserSampleTTL(long randomUserSampleTTL)
+    {
+        this.randomUserSampleTTL = randomUserSampleTTL;
+        randomUserSamples.clear();
     }
     
     @Override
@@ -197,10 +255,9 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
     }
 
     /**
-     * {@inheritDoc}
+     * Helper to convert the API object into a Mongo DBObject for insertion
      */
-    @Override
-    public void createNewUser(UserData data)
+    protected DBObject toDBObject(UserData data)
     {
         BasicDBObjectBuilder insertObjBuilder = BasicDBObjectBuilder.start()
                 .add(FIELD_RANDOMIZER, data.getRandomizer())
@@ -212,11 +269,21 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
                 .add(FIELD_EMAIL, data.getEmail())
                 .add(FIELD_DOMAIN, data.getDomain())
                 .add(FIELD_GROUPS, data.getGroups());
-        DBObject insertObj = insertObjBuilder.get();
+        return insertObjBuilder.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void createNewUser(UserData data)
+    {
+        DBObject insertObj = toDBObject(data);
         
         try
         {
             collection.insert(insertObj);
+            updateSamples(insertObj);
         }
         catch (DuplicateKeyException e)
         {
@@ -225,6 +292,63 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
         }
     }
     
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The users are written using a single unordered bulk insert; duplicate key
+     * errors are counted and ignored but any other error is rethrown.
+     */
+    @Override
+    public long createNewUsers(List<UserData> users)
+    {
+        if (users.size() == 0)
+        {
+            return 0L;
+        }
+        List<DBObject> insertObjs = new ArrayList<DBObject>(users.size());
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (UserData user : users)
+        {
+            DBObject insertObj = toDBObject(user);
+            insertObjs.add(insertObj);
+            bulk.insert(insertObj);
+        }
+        try
+        {
+            BulkWriteResult result = bulk.execute();
+            for (DBObject insertObj : insertObjs)
+            {
+                updateSamples(insertObj);
+            }
+            return result.getInsertedCount();
+        }
+        catch (BulkWriteException e)
+        {
+            Set<Integer> failedIndexes = new HashSet<Integer>(e.getWriteErrors().size() * 2);
+            for (BulkWriteError error : e.getWriteErrors())
+            {
+                if (error.getCode() != 11000)
+                {
+                    throw e;
+                }
+                failedIndexes.add(Integer.valueOf(error.getIndex()));
+            }
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Ignored " + e.getWriteErrors().size() + " users that already exist.");
+            }
+            // The users that already existed are left as they were
+            for (int i = 0; i < insertObjs.size(); i++)
+            {
+                if (!failedIndexes.contains(Integer.valueOf(i)))
+                {
+                    updateSamples(insertObjs.get(i));
+                }
+            }
+            return e.getWriteResult().getInsertedCount();
+        }
+    }
+    
     /**
      * {@inheritDoc}
      */
@@ -240,6 +364,7 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
                 .pop()
                 .get();
         WriteResult result = collection.update(queryObj, updateObj);
+        refreshSamples(username);
         if (result.getN() != 1)
         {
             throw new RuntimeException(
@@ -265,6 +390,7 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
                 .pop()
                 .get();
         WriteResult result = collection.update(queryObj, updateObj);
+        refreshSamples(username);
         if (result.getN() != 1)
         {
             throw new RuntimeException(
@@ -275,6 +401,46 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
         }
     }
     
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long setUsersCreationState(List<String> usernames, DataCreationState creationState)
+    {
+        if (usernames.size() == 0)
+        {
+            return 0L;
+        }
+        DBObject queryObj = BasicDBObjectBuilder.start()
+                .push(FIELD_USERNAME)
+                    .add("$in", usernames)
+                .pop()
+                .get();
+        DBObject updateObj = BasicDBObjectBuilder.start()
+                .push("$set")
+                    .add(FIELD_CREATION_STATE, creationState.toString())
+                .pop()
+                .get();
+        WriteResult result = collection.updateMulti(queryObj, updateObj);
+        if (randomUserSamples.size() > 0)
+        {
+            // Read the users back so that they are added to, or removed from, the samples
+            DBCursor cursor = collection.find(queryObj);
+            try
+            {
+                while (cursor.hasNext())
+                {
+                    updateSamples(cursor.next());
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+        }
+        return result.getN();
+    }
+    
     @Override
     public long countUsers(String domain, DataCreationState creationState)
     {
@@ -291,6 +457,22 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
         
         return collection.count(queryObj);
     }
+    
+    @Override
+    public long countUsers(List<String> usernames)
+    {
+        if (usernames.size() == 0)
+        {
+            return 0L;
+        }
+        DBObject queryObj = BasicDBObjectBuilder.start()
+                .push(FIELD_USERNAME)
+                    .add("$in", usernames)
+                .pop()
+                .get();
+        
+        return collection.count(queryObj);
+    }
 
     @Override
     public long deleteUsers(DataCreationState creationState)
@@ -303,6 +485,11 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
         DBObject queryObj = queryObjBuilder.get();
         
         WriteResult result = collection.remove(queryObj);
+        if (creationState == null || creationState == DataCreationState.Created)
+        {
+            // The samples only hold created users
+            randomUserSamples.clear();
+        }
         return result.getN();
     }
 
@@ -348,6 +535,10 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
     @Override
     public UserData getRandomUser()
     {
+        if (randomUserSampleSize > 0)
+        {
+            return getRandomUserFromSample(Collections.<String>emptyList());
+        }
         int random = (int) (Math.random() * (double) 1e6);
         DBObject queryObj = BasicDBObjectBuilder.start()
                 .add(FIELD_CREATION_STATE, DataCreationState.Created.toString())
@@ -432,6 +623,10 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
     @Override
     public UserData getRandomUserFromDomains(List<String> domains)
     {
+        if (randomUserSampleSize > 0)
+        {
+            return getRandomUserFromSample(domains);
+        }
         Range range = getRandomizerRange(domains);
         int upper = range.getMax();
         int lower = range.getMin();
@@ -455,6 +650,128 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
         return fromDBObject(userDataObj);
     }
     
+    /**
+     * Select a random user from the locally-held sample for the domains, drawing a new
+     * sample if there is none or if it has expired.  Only one thread draws a sample at a time;
+     * other threads keep selecting from the expired sample while it is replaced.
+     * 
+     * @param domains           the domains or an empty list for all domains
+     */
+    private UserData getRandomUserFromSample(List<String> domains)
+    {
+        final Map<String, Collection<String>> criteria = new LinkedHashMap<String, Collection<String>>(5);
+        criteria.put(FIELD_CREATION_STATE, Collections.singleton(DataCreationState.Created.toString()));
+        if (domains.size() > 0)
+        {
+            criteria.put(FIELD_DOMAIN, new ArrayList<String>(domains));
+        }
+        RandomSample sample = randomUserSamples.getSample(criteria.toString(), new SampleLoader()
+        {
+            @Override
+            public RandomSample load(long now)
+            {
+                return loadRandomUserSample(criteria, now);
+            }
+        });
+        DBObject userDataObj = sample.pick(ThreadLocalRandom.current());
+        return fromDBObject(userDataObj);
+    }
+    
+    /**
+     * Draw a new sample of created users.
+     * <p/>
+     * If there are no more matching users than the sample size then all of them are held and
+     * users created later are added to the sample.  Otherwise the sample is drawn from runs of
+     * users starting at {@link #RANDOM_USER_SAMPLE_POINTS several} random points in the
+     * {@link #FIELD_RANDOMIZER randomizer} order.  The randomizer values are randomly assigned,
+     * so each run is a random selection of users, and drawing from several points keeps any
+     * one region of the order from dominating the sample.
+     */
+    private RandomSample loadRandomUserSample(Map<String, Collection<String>> criteria, long now)
+    {
+        DBObject queryObj = RandomSample.toQuery(criteria);
+        Map<String, DBObject> userDataObjsByUsername = new LinkedHashMap<String, DBObject>(randomUserSampleSize * 2);
+        boolean complete = collection.count(queryObj) <= randomUserSampleSize;
+        if (complete)
+        {
+            addRandomUsers(queryObj, 0, randomUserSampleSize, userDataObjsByUsername);
+        }
+        else
+        {
+            int points = Math.min(RANDOM_USER_SAMPLE_POINTS, randomUserSampleSize);
+            int limit = (randomUserSampleSize + points - 1) / points;
+            for (int i = 0; i < points && userDataObjsByUsername.size() < randomUserSampleSize; i++)
+            {
+                addRandomUsers(queryObj, (int) (Math.random() * (double) 1e6), limit, userDataObjsByUsername);
+            }
+            if (userDataObjsByUsername.size() < randomUserSampleSize)
+            {
+                // The runs overlapped, so fill up from one run that holds enough distinct users
+                addRandomUsers(queryObj, (int) (Math.random() * (double) 1e6), randomUserSampleSize, userDataObjsByUsername);
+            }
+        }
+        List<DBObject> userDataObjs = new ArrayList<DBObject>(userDataObjsByUsername.values());
+        RandomSample sample = new RandomSample(criteria, USER_ID_FIELDS, userDataObjs, complete, now + randomUserSampleTTL);
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Loaded " + sample.size() + " random users matching " + criteria);
+        }
+        return sample;
+    }
+    
+    /**
+     * Add users in {@link #FIELD_RANDOMIZER randomizer} order from a starting point, wrapping around to
+     * the lowest values if necessary, until the sample is full or the limit is reached
+     * 
+     * @param random            the randomizer value to start from
+     * @param limit             the maximum number of users to read
+     */
+    private void addRandomUsers(DBObject queryObj, int random, int limit, Map<String, DBObject> userDataObjsByUsername)
+    {
+        List<DBObject> userDataObjs = new ArrayList<DBObject>(Math.min(limit, 1024));
+        RandomSample.readRun(collection, queryObj, null, FIELD_RANDOMIZER, random, limit, 0, userDataObjs);
+        for (DBObject userDataObj : userDataObjs)
+        {
+            if (userDataObjsByUsername.size() >= randomUserSampleSize)
+            {
+                break;
+            }
+            userDataObjsByUsername.put((String) userDataObj.get(FIELD_USERNAME), userDataObj);
+        }
+    }
+    
+    /**
+     * Apply a user written through this service to the samples
+     */
+    private void updateSamples(DBObject userDataObj)
+    {
+        randomUserSamples.update(userDataObj, randomUserSampleSize);
+    }
+    
+    /**
+     * Read a changed user back and apply it to the samples, if any of them could be affected
+     */
+    private void refreshSamples(String username)
+    {
+        DBObject queryObj = BasicDBObjectBuilder.start()
+                .add(FIELD_USERNAME, username)
+                .get();
+        if (!randomUserSamples.isAffectedBy(queryObj))
+        {
+            return;
+        }
+        DBObject userDataObj = collection.findOne(queryObj);
+        if (userDataObj == null)
+        {
+            randomUserSamples.remove(queryObj);
+        }
+        else
+        {
+            updateSamples(userDataObj);
+        }
+    }
+    
     /*
      * USER GROUP SERVICES
      */
@@ -473,6 +790,7 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
                 .pop()
                 .get();
         collection.update(queryObj, updateObj);
+        refreshSamples(username);
     }
     
     @Override
@@ -487,6 +805,7 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
                 .pop()
                 .get();
         collection.update(queryObj, updateObj);
+        refreshSamples(username);
     }
     
     /*
@@ -0,0 +1,54 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.http;
+
+import org.apache.http.Header;
+import org.apache.http.nio.client.HttpAsyncClient;
+
+/**
+ * Provides a non-blocking {@link HttpAsyncClient} alongside the blocking clients so that
+ * many requests can be in flight without a thread waiting on each one.
+ *
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public interface AsyncHttpClientProvider extends HttpClientProvider
+{
+    /**
+     * @return the shared, started {@link HttpAsyncClient} to use for the next HTTP call.
+     */
+    HttpAsyncClient getAsyncHttpClient();
+    
+    /**
+     * Get a header that authenticates the request using basic authentication without
+     * waiting for the server to challenge.
+     * 
+     * @param username  the username
+     * @param password  the password for the user
+     * @return          the <tt>Authorization</tt> header to set on a request
+     */
+    Header getBasicAuthenticationHeader(String username, String password);
+}
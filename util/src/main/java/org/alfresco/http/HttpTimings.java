@@ -0,0 +1,94 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.http;
+
+import org.alfresco.bm.driver.event.EventTimings;
+
+/**
+ * The phases of an HTTP request that are timed by the blocking clients of the
+ * {@link SharedHttpClientProvider} and the {@link PooledHttpClientProvider}.  The times are added to the
+ * {@link EventTimings phases} of the event being processed so that they are recorded with the
+ * event result; a request that is not executed on the event processing thread is not timed.
+ * <ul>
+ *   <li><b>lease:</b> waiting for a connection from the pool</li>
+ *   <li><b>connect:</b> opening a new connection, excluding any TLS handshake that is timed on its own</li>
+ *   <li><b>tls:</b> the TLS handshake for a new connection (the {@link PooledHttpClientProvider} only)</li>
+ *   <li><b>ttfb:</b> sending the request and waiting for the response headers</li>
+ *   <li><b>transfer:</b> reading the response body</li>
+ * </ul>
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public final class HttpTimings
+{
+    public static final String PHASE_LEASE = "lease";
+    public static final String PHASE_CONNECT = "connect";
+    public static final String PHASE_TLS = "tls";
+    public static final String PHASE_TTFB = "ttfb";
+    public static final String PHASE_TRANSFER = "transfer";
+    
+    private HttpTimings()
+    {
+    }
+    
+    /**
+     * @return              <tt>true</tt> if phases are being timed on the current thread
+     */
+    static boolean isTiming()
+    {
+        return EventTimings.isStarted();
+    }
+    
+    /**
+     * @param phase         the phase
+     * @return              the time recorded against the phase so far for the current event (nanoseconds)
+     */
+    static long get(String phase)
+    {
+        return EventTimings.get(phase);
+    }
+    
+    /**
+     * Add the time since the given start to a phase
+     * 
+     * @param phase         the phase
+     * @param startNanos    the {@link System#nanoTime() time} that the phase started
+     */
+    static void record(String phase, long startNanos)
+    {
+        EventTimings.add(phase, System.nanoTime() - startNanos);
+    }
+    
+    /**
+     * @param phase         the phase
+     * @param nanos         the time to add to the phase (nanoseconds)
+     */
+    static void add(String phase, long nanos)
+    {
+        EventTimings.add(phase, nanos);
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.http;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.http.ssl.TrustStrategy;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Provides HTTP clients built on the current HttpComponents connection pools, including a
+ * non-blocking client for requests that must not hold a thread while they are in flight.
+ * <p/>
+ * Compared to {@link SharedHttpClientProvider}:
+ * <ul>
+ *   <li>The clients are built once and shared; nothing is constructed per call.</li>
+ *   <li>Connections are limited per route as well as in total and are kept alive for a
+ *       configurable time when the server does not say otherwise.</li>
+ *   <li>Basic authentication is sent with the first request using a header that is
+ *       built once per user, avoiding the challenge round-trip.</li>
+ *   <li>{@link #getPoolStats() Pool statistics} show leased, pending and available connections.</li>
+ *   <li>The blocking clients time the {@link HttpTimings phases} of each request made while an event
+ *       is processed, so that pool starvation can be told apart from a slow server.</li>
+ * </ul>
+ * Like {@link SharedHttpClientProvider}, any server certificate is trusted.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class PooledHttpClientProvider implements AsyncHttpClientProvider, DisposableBean
+{
+    /** Keep idle connections for 30s unless the server says otherwise */
+    public static final int DEFAULT_KEEP_ALIVE_MILLISEC = 30000;
+    /** Check connections that have been idle for longer than 2s before reuse */
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLISEC = 2000;
+    /** Limit the number of authenticated clients held */
+    private static final int MAX_USER_CLIENTS = 10000;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final PoolingNHttpClientConnectionManager asyncConnectionManager;
+    private final CloseableHttpClient httpClient;
+    private final CloseableHttpAsyncClient asyncHttpClient;
+    /** Clients that add a basic authentication header, keyed by username and password */
+    private final ConcurrentMap<String, PreemptiveBasicAuthHttpClient> userClients;
+
+    /**
+     * Constructs with {@link SharedHttpClientProvider#DEFAULT_CONNECTION_TIMEOUT_MILLISEC},
+     * {@link SharedHttpClientProvider#DEFAULT_SOCKET_TIMEOUT_MILLISEC},
+     * {@link SharedHttpClientProvider#DEFAULT_SOCKET_TTL_MILLISEC} and {@link #DEFAULT_KEEP_ALIVE_MILLISEC}.
+     */
+    public PooledHttpClientProvider(int maxNumberOfConnections, int maxConnectionsPerRoute)
+    {
+        this(
+                maxNumberOfConnections, maxConnectionsPerRoute,
+                SharedHttpClientProvider.DEFAULT_CONNECTION_TIMEOUT_MILLISEC,
+                SharedHttpClientProvider.DEFAULT_SOCKET_TIMEOUT_MILLISEC,
+                SharedHttpClientProvider.DEFAULT_SOCKET_TTL_MILLISEC,
+                DEFAULT_KEEP_ALIVE_MILLISEC);
+    }
+
+    /**
+     * @param maxNumberOfConnections        the maximum number of Http connections in each pool
+     * @param maxConnectionsPerRoute        the maximum number of Http connections in each pool to a single host and port
+     * @param connectionTimeoutMs           the time to wait for a connection to open or for a connection from the pool before failure
+     * @param socketTimeoutMs               the time to wait for data activity on a connection before failure
+     * @param socketTtlMs                   the time for a socket to remain alive before being forcibly closed (0 for infinite)
+     * @param keepAliveMs                   the longest time that an idle connection is kept for reuse
+     */
+    public PooledHttpClientProvider(
+            int maxNumberOfConnections,
+            int maxConnectionsPerRoute,
+            int connectionTimeoutMs,
+            int socketTimeoutMs,
+            int socketTtlMs,
+            int keepAliveMs)
+    {
+        SSLContext sslContext = null;
+        try
+        {
+            sslContext = SSLContexts.custom().loadTrustMaterial(null, new TrustAnyTrustStrategy()).build();
+        }
+        catch (Throwable e)
+        {
+            throw new RuntimeException("Unable to construct HttpClientProvider.", e);
+        }
+        
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectionTimeoutMs)
+                .setConnectionRequestTimeout(connectionTimeoutMs)
+                .setSocketTimeout(socketTimeoutMs)
+                .build();
+        ConnectionKeepAliveStrategy keepAliveStrategy = new CappedKeepAliveStrategy(keepAliveMs);
+        
+        // Blocking
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new TimedSSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE))
+                .build();
+        connectionManager = new PoolingHttpClientConnectionManager(
+                socketFactoryRegistry, null, null, null,
+                socketTtlMs > 0 ? socketTtlMs : -1L, TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxNumberOfConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLISEC);
+        connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+                .setSoTimeout(socketTimeoutMs)
+                .setTcpNoDelay(true)
+                .setSoKeepAlive(true)
+                .build());
+        httpClient = HttpClients.custom()
+                .setConnectionManager(new TimedHttpClientConnectionManager(connectionManager))
+                .setRequestExecutor(new TimedHttpRequestExecutor())
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .build();
+        
+        // Non-blocking
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(Runtime.getRuntime().availableProcessors())
+                .setConnectTimeout(connectionTimeoutMs)
+                .setSoTimeout(socketTimeoutMs)
+                .setTcpNoDelay(true)
+                .setSoKeepAlive(true)
+                .build();
+        Registry<SchemeIOSessionStrategy> sessionStrategyRegistry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", new SSLIOSessionStrategy(sslContext, NoopHostnameVerifier.INSTANCE))
+                .build();
+        try
+        {
+            asyncConnectionManager = new PoolingNHttpClientConnectionManager(
+                    new DefaultConnectingIOReactor(ioReactorConfig),
+                    sessionStrategyRegistry);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Unable to construct HttpClientProvider.", e);
+        }
+        asyncConnectionManager.setMaxTotal(maxNumberOfConnections);
+        asyncConnectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        asyncHttpClient = HttpAsyncClients.custom()
+                .setConnectionManager(asyncConnectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .build();
+        asyncHttpClient.start();
+        
+        userClients = new ConcurrentHashMap<String, PreemptiveBasicAuthHttpClient>();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "PooledHttpClientProvider [pool=" + getPoolStats() + ", asyncPool=" + getAsyncPoolStats() + "]";
+    }
+
+    /**
+     * Close the clients and all pooled connections
+     */
+    @Override
+    public void destroy() throws Exception
+    {
+        try
+        {
+            asyncHttpClient.close();
+        }
+        finally
+        {
+            httpClient.close();
+        }
+    }
+
+    /**
+     * @return          the leased, pending and available connections of the blocking clients
+     */
+    public PoolStats getPoolStats()
+    {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * @return          the leased, pending and available connections of the {@link #getAsyncHttpClient() async client}
+     */
+    public PoolStats getAsyncPoolStats()
+    {
+        return asyncConnectionManager.getTotalStats();
+    }
+
+    @Override
+    public HttpClient getHttpClient()
+    {
+        return httpClient;
+    }
+
+    @Override
+    public HttpClient getHttpClient(String username, String password)
+    {
+        String key = username + '\u0000' + password;
+        PreemptiveBasicAuthHttpClient client = userClients.get(key);
+        if (client == null)
+        {
+            if (userClients.size() >= MAX_USER_CLIENTS)
+            {
+                userClients.clear();
+            }
+            client = new PreemptiveBasicAuthHttpClient(httpClient, getBasicAuthenticationHeader(username, password));
+            PreemptiveBasicAuthHttpClient existing = userClients.putIfAbsent(key, client);
+            if (existing != null)
+            {
+                client = existing;
+            }
+        }
+        return client;
+    }
+
+    @Override
+    public HttpAsyncClient getAsyncHttpClient()
+    {
+        return asyncHttpClient;
+    }
+
+    @Override
+    public Header getBasicAuthenticationHeader(String username, String password)
+    {
+        PreemptiveBasicAuthHttpClient client = userClients.get(username + '\u0000' + password);
+        if (client != null)
+        {
+            return client.authHeader;
+        }
+        String credentials = username + ":" + password;
+        String encoded = Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+        return new BasicHeader(HttpHeaders.AUTHORIZATION, "Basic " + encoded);
+    }
+
+    /**
+     * Keeps connections alive for as long as the server allows but no longer than a given time
+     */
+    private static class CappedKeepAliveStrategy extends DefaultConnectionKeepAliveStrategy
+    {
+        private final long keepAliveMs;
+        
+        private CappedKeepAliveStrategy(long keepAliveMs)
+        {
+            this.keepAliveMs = keepAliveMs;
+        }
+        
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+        {
+            long duration = super.getKeepAliveDuration(response, context);
+            return duration > 0L ? Math.min(duration, keepAliveMs) : keepAliveMs;
+        }
+    }
+
+    /**
+     * A shared client that adds a basic authentication header to every request.
+     * Closing it does nothing as the underlying client is shared.
+     */
+    @SuppressWarnings("deprecation")
+    private static class PreemptiveBasicAuthHttpClient extends CloseableHttpClient
+    {
+        private final CloseableHttpClient httpClient;
+        private final Header authHeader;
+        
+        private PreemptiveBasicAuthHttpClient(CloseableHttpClient httpClient, Header authHeader)
+        {
+            this.httpClient = httpClient;
+            this.authHeader = authHeader;
+        }
+
+        @Override
+        protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+                throws IOException, ClientProtocolException
+        {
+            request.setHeader(authHeader);
+            return httpClient.execute(target, request, context);
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        public HttpParams getParams()
+        {
+            return httpClient.getParams();
+        }
+
+        @Override
+        public ClientConnectionManager getConnectionManager()
+        {
+            return httpClient.getConnectionManager();
+        }
+    }
+    
+    /**
+     * A {@link TrustStrategy} that trusts any certificate.
+     */
+    private static class TrustAnyTrustStrategy implements TrustStrategy
+    {
+        /**
+         * @return          Returns <tt>true</tt> always
+         */
+        @Override
+        public boolean isTrusted(X509Certificate[] chain, String authType) throws CertificateException
+        {
+            return true;
+        }
+    }
+}
@@ -25,6 +25,8 @@
  */
 package org.alfresco.http;
 
+import java.io.IOException;
+import java.net.InetAddress;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.concurrent.TimeUnit;
@@ -32,10 +34,17 @@ import java.util.concurrent.TimeUnit;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
+import org.apache.http.HttpHost;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
@@ -43,10 +52,13 @@ import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.conn.ssl.TrustStrategy;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
 
 /**
  * A class responsible for managing shared {@link HttpClient HTTP} connections. This uses a
@@ -64,6 +76,8 @@ import org.apache.http.params.HttpParams;
  *   setup and additional server round-trips, raising the overall throughput of http-calls (Browsers use 
  *   this mechanism all the time to lower loading-times).</li>
  * </ul>
+ * The {@link HttpTimings phases} of requests made on the event processing thread are timed.  The
+ * legacy socket factories do any TLS handshake while connecting, so it is counted as connection time.
  * 
  * @author Frederik Heremans
  * @author Derek Hulley
@@ -125,7 +139,7 @@ public final class SharedHttpClientProvider implements HttpClientProvider
         schemeRegistry.register(
                 new Scheme("https", 80, sslSf));
 
-        httpClientCM = new PoolingClientConnectionManager(schemeRegistry, (long) socketTtlMs, TimeUnit.MILLISECONDS);
+        httpClientCM = new TimedPoolingClientConnectionManager(schemeRegistry, (long) socketTtlMs, TimeUnit.MILLISECONDS);
         // Increase max total connections
         httpClientCM.setMaxTotal(maxNumberOfConnections);
         // Ensure that we don't throttle on a per-scheme basis (BENCH-45)
@@ -143,7 +157,14 @@ public final class SharedHttpClientProvider implements HttpClientProvider
     @Override
     public HttpClient getHttpClient()
     {
-        return new DefaultHttpClient(httpClientCM, httpParams);
+        return new DefaultHttpClient(httpClientCM, httpParams)
+        {
+            @Override
+            protected HttpRequestExecutor createRequestExecutor()
+            {
+                return new TimedHttpRequestExecutor();
+            }
+        };
     }
 
     @Override
@@ -160,6 +181,85 @@ public final class SharedHttpClientProvider implements HttpClientProvider
         return client;
     }
 
+    /**
+     * Times the {@link HttpTimings#PHASE_LEASE lease} of connections from the pool and the
+     * {@link HttpTimings#PHASE_CONNECT connection} of new ones.
+     * 
+     * @author Derek Hulley
+     * @since 3.0
+     */
+    private static class TimedPoolingClientConnectionManager extends PoolingClientConnectionManager
+    {
+        private TimedPoolingClientConnectionManager(SchemeRegistry schemeRegistry, long timeToLive, TimeUnit tunit)
+        {
+            super(schemeRegistry, timeToLive, tunit);
+        }
+
+        /**
+         * Called by the super class constructor
+         */
+        @Override
+        protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schemeRegistry)
+        {
+            return new DefaultClientConnectionOperator(schemeRegistry)
+            {
+                @Override
+                public void openConnection(
+                        OperatedClientConnection conn, HttpHost target, InetAddress local,
+                        HttpContext context, HttpParams params) throws IOException
+                {
+                    if (!HttpTimings.isTiming())
+                    {
+                        super.openConnection(conn, target, local, context, params);
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    try
+                    {
+                        super.openConnection(conn, target, local, context, params);
+                    }
+                    finally
+                    {
+                        HttpTimings.record(HttpTimings.PHASE_CONNECT, start);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state)
+        {
+            final ClientConnectionRequest connectionRequest = super.requestConnection(route, state);
+            return new ClientConnectionRequest()
+            {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit tunit)
+                        throws InterruptedException, ConnectionPoolTimeoutException
+                {
+                    if (!HttpTimings.isTiming())
+                    {
+                        return connectionRequest.getConnection(timeout, tunit);
+                    }
+                    long start = System.nanoTime();
+                    try
+                    {
+                        return connectionRequest.getConnection(timeout, tunit);
+                    }
+                    finally
+                    {
+                        HttpTimings.record(HttpTimings.PHASE_LEASE, start);
+                    }
+                }
+
+                @Override
+                public void abortRequest()
+                {
+                    connectionRequest.abortRequest();
+                }
+            };
+        }
+    }
+    
     /**
      * A {@link TrustManager} that trusts any certificate.
      * 
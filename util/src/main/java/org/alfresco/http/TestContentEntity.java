@@ -0,0 +1,108 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.alfresco.bm.driver.file.TestContent;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * An HTTP entity that writes {@link TestContent} directly to the connection.
+ * <p/>
+ * Unlike a <tt>FileEntity</tt>, no buffer is allocated for each request: file content is read
+ * using a buffer held by the thread and synthetic content is written straight from memory.
+ * The entity is repeatable so requests can be retried.
+ *
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class TestContentEntity extends AbstractHttpEntity
+{
+    private final TestContent content;
+    
+    /**
+     * @param content           the content to send
+     * @param contentType       the type of the content (<tt>null</tt> allowed)
+     */
+    public TestContentEntity(TestContent content, ContentType contentType)
+    {
+        if (content == null)
+        {
+            throw new IllegalArgumentException("Content may not be null.");
+        }
+        this.content = content;
+        if (contentType != null)
+        {
+            setContentType(contentType.toString());
+        }
+    }
+
+    /**
+     * @return                  the content sent by this entity
+     */
+    public TestContent getTestContent()
+    {
+        return content;
+    }
+
+    @Override
+    public boolean isRepeatable()
+    {
+        return true;
+    }
+
+    @Override
+    public long getContentLength()
+    {
+        return content.getLength();
+    }
+
+    @Override
+    public InputStream getContent() throws IOException
+    {
+        return content.getInputStream();
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException
+    {
+        if (outstream == null)
+        {
+            throw new IllegalArgumentException("Output stream may not be null.");
+        }
+        content.writeTo(outstream);
+    }
+
+    @Override
+    public boolean isStreaming()
+    {
+        return false;
+    }
+}
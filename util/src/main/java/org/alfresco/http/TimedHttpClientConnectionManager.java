@@ -0,0 +1,156 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.http;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Times the {@link HttpTimings#PHASE_LEASE lease} of connections from an underlying manager and
+ * the {@link HttpTimings#PHASE_CONNECT connection} of new ones.  Any {@link HttpTimings#PHASE_TLS TLS}
+ * handshake timed by a {@link TimedSSLConnectionSocketFactory} while connecting is not counted as
+ * connection time.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class TimedHttpClientConnectionManager implements HttpClientConnectionManager
+{
+    private final HttpClientConnectionManager connectionManager;
+    
+    /**
+     * @param connectionManager     the manager that does the work
+     */
+    public TimedHttpClientConnectionManager(HttpClientConnectionManager connectionManager)
+    {
+        this.connectionManager = connectionManager;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TimedHttpClientConnectionManager [connectionManager=" + connectionManager + "]";
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state)
+    {
+        final ConnectionRequest connectionRequest = connectionManager.requestConnection(route, state);
+        return new ConnectionRequest()
+        {
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit tunit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException
+            {
+                if (!HttpTimings.isTiming())
+                {
+                    return connectionRequest.get(timeout, tunit);
+                }
+                long start = System.nanoTime();
+                try
+                {
+                    return connectionRequest.get(timeout, tunit);
+                }
+                finally
+                {
+                    HttpTimings.record(HttpTimings.PHASE_LEASE, start);
+                }
+            }
+
+            @Override
+            public boolean cancel()
+            {
+                return connectionRequest.cancel();
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(HttpClientConnection conn, Object newState, long validDuration, TimeUnit timeUnit)
+    {
+        connectionManager.releaseConnection(conn, newState, validDuration, timeUnit);
+    }
+
+    @Override
+    public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout, HttpContext context) throws IOException
+    {
+        if (!HttpTimings.isTiming())
+        {
+            connectionManager.connect(conn, route, connectTimeout, context);
+            return;
+        }
+        long tlsBefore = HttpTimings.get(HttpTimings.PHASE_TLS);
+        long start = System.nanoTime();
+        try
+        {
+            connectionManager.connect(conn, route, connectTimeout, context);
+        }
+        finally
+        {
+            // Take out the handshake, which is timed on its own
+            long tls = HttpTimings.get(HttpTimings.PHASE_TLS) - tlsBefore;
+            HttpTimings.record(HttpTimings.PHASE_CONNECT, start + tls);
+        }
+    }
+
+    @Override
+    public void upgrade(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException
+    {
+        connectionManager.upgrade(conn, route, context);
+    }
+
+    @Override
+    public void routeComplete(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException
+    {
+        connectionManager.routeComplete(conn, route, context);
+    }
+
+    @Override
+    public void closeIdleConnections(long idletime, TimeUnit tunit)
+    {
+        connectionManager.closeIdleConnections(idletime, tunit);
+    }
+
+    @Override
+    public void closeExpiredConnections()
+    {
+        connectionManager.closeExpiredConnections();
+    }
+
+    @Override
+    public void shutdown()
+    {
+        connectionManager.shutdown();
+    }
+}
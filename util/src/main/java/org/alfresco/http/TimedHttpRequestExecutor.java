@@ -0,0 +1,186 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+/**
+ * Times the {@link HttpTimings#PHASE_TTFB time to first byte}, which is the time taken to send
+ * the request and receive the response headers, and the {@link HttpTimings#PHASE_TRANSFER transfer}
+ * of the response body.
+ * <p/>
+ * Only the time spent reading the body is counted as transfer time; the time that the caller
+ * spends working between reads is not.  The transfer time is recorded when the end of the body
+ * is reached or the body is closed, whichever happens first.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class TimedHttpRequestExecutor extends HttpRequestExecutor
+{
+    @Override
+    public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws IOException, HttpException
+    {
+        if (!HttpTimings.isTiming())
+        {
+            return super.execute(request, conn, context);
+        }
+        long start = System.nanoTime();
+        HttpResponse response;
+        try
+        {
+            response = super.execute(request, conn, context);
+        }
+        finally
+        {
+            HttpTimings.record(HttpTimings.PHASE_TTFB, start);
+        }
+        HttpEntity entity = response.getEntity();
+        if (entity != null)
+        {
+            response.setEntity(new TimedEntity(entity));
+        }
+        return response;
+    }
+    
+    /**
+     * Times the reading of a response body
+     */
+    private static class TimedEntity extends HttpEntityWrapper
+    {
+        private TimedEntity(HttpEntity wrappedEntity)
+        {
+            super(wrappedEntity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException
+        {
+            return new TimedInputStream(super.getContent());
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException
+        {
+            long start = System.nanoTime();
+            try
+            {
+                super.writeTo(outStream);
+            }
+            finally
+            {
+                HttpTimings.record(HttpTimings.PHASE_TRANSFER, start);
+            }
+        }
+    }
+    
+    /**
+     * Adds up the time spent in each read and records it once
+     */
+    private static class TimedInputStream extends FilterInputStream
+    {
+        private long nanos;
+        private boolean recorded;
+        
+        private TimedInputStream(InputStream in)
+        {
+            super(in);
+        }
+        
+        private void done()
+        {
+            if (!recorded)
+            {
+                recorded = true;
+                HttpTimings.add(HttpTimings.PHASE_TRANSFER, nanos);
+            }
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            long start = System.nanoTime();
+            int b = super.read();
+            nanos += System.nanoTime() - start;
+            if (b < 0)
+            {
+                done();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            long start = System.nanoTime();
+            int count = super.read(b, off, len);
+            nanos += System.nanoTime() - start;
+            if (count < 0)
+            {
+                done();
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long start = System.nanoTime();
+            long skipped = super.skip(n);
+            nanos += System.nanoTime() - start;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            long start = System.nanoTime();
+            try
+            {
+                // Closing consumes whatever remains of the body
+                super.close();
+            }
+            finally
+            {
+                nanos += System.nanoTime() - start;
+                done();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.http;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Times the {@link HttpTimings#PHASE_TLS TLS handshake} of new connections.
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+public class TimedSSLConnectionSocketFactory extends SSLConnectionSocketFactory
+{
+    public TimedSSLConnectionSocketFactory(SSLContext sslContext, HostnameVerifier hostnameVerifier)
+    {
+        super(sslContext, hostnameVerifier);
+    }
+
+    /**
+     * Layers TLS over a connected socket, which includes the handshake and verification of the host name
+     */
+    @Override
+    public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException
+    {
+        if (!HttpTimings.isTiming())
+        {
+            return super.createLayeredSocket(socket, target, port, context);
+        }
+        long start = System.nanoTime();
+        try
+        {
+            return super.createLayeredSocket(socket, target, port, context);
+        }
+        finally
+        {
+            HttpTimings.record(HttpTimings.PHASE_TLS, start);
+        }
+    }
+}
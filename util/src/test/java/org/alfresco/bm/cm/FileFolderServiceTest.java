@@ -28,9 +28,13 @@ package org.alfresco.bm.cm;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.alfresco.bm.common.util.junit.tools.MongoDBForTestsFactory;
@@ -40,6 +44,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
@@ -108,7 +113,7 @@ public class FileFolderServiceTest
         
         // Check indexes (includes implicit '_id_' index)
         List<DBObject> indexes = ffs.getIndexInfo();
-        assertEquals("Incorrect indexes: " + indexes, 6, indexes.size());
+        assertEquals("Incorrect indexes: " + indexes, 7, indexes.size());
     }
     
     @Test
@@ -179,6 +184,89 @@ public class FileFolderServiceTest
         assertEquals(20L, folderDataCheck.getFileCount());
     }
     
+    @Test
+    public void incrementWriteCombining() throws Exception
+    {
+        FileFolderService combiningService = new FileFolderService(db, "ffs");
+        combiningService.setCounterFlushInterval(3600000L);
+        combiningService.afterPropertiesSet();
+        try
+        {
+            combiningService.createNewFolder("A", "home", "/a");
+            combiningService.createNewFolder("B", "home", "/b");
+            for (int i = 0; i < 10; i++)
+            {
+                combiningService.incrementFolderCount("home", "/a", 1L);
+                combiningService.incrementFileCount("home", "/a", 2L);
+            }
+            combiningService.incrementFileCount("home", "/b", 5L);
+            
+            // Nothing written yet
+            assertEquals(0L, fileFolderService.getFolder("A").getFolderCount());
+            // ... but visible through the combining service
+            FolderData folderDataCheck = combiningService.getFolder("home", "/a");
+            assertEquals(10L, folderDataCheck.getFolderCount());
+            assertEquals(20L, folderDataCheck.getFileCount());
+            // Pending counts are considered when filtering
+            assertEquals(0, combiningService.getFoldersByCounts("home", null, null, null, null, null, 0L, 0, 10).size());
+            List<FolderData> folders = combiningService.getFoldersByCounts("home", null, null, null, null, 0L, 10L, 0, 10);
+            assertEquals(1, folders.size());
+            assertEquals("/b", folders.get(0).getPath());
+            
+            combiningService.flush();
+            folderDataCheck = fileFolderService.getFolder("A");
+            assertEquals(10L, folderDataCheck.getFolderCount());
+            assertEquals(20L, folderDataCheck.getFileCount());
+            assertEquals(5L, fileFolderService.getFolder("B").getFileCount());
+            // Nothing counted twice
+            assertEquals(20L, combiningService.getFolder("A").getFileCount());
+            
+            // Increments for deleted folders are dropped
+            combiningService.incrementFileCount("home", "/b", 1L);
+            combiningService.deleteFolder("home", "/b", false);
+            combiningService.flush();
+            assertNull(fileFolderService.getFolder("B"));
+        }
+        finally
+        {
+            combiningService.destroy();
+        }
+    }
+    
+    @Test
+    public void incrementWriteCombiningPartialFailure() throws Exception
+    {
+        FileFolderService combiningService = new FileFolderService(db, "ffs");
+        combiningService.setCounterFlushInterval(3600000L);
+        combiningService.afterPropertiesSet();
+        try
+        {
+            combiningService.createNewFolder("A", "home", "/a");
+            combiningService.createNewFolder("B", "home", "/b");
+            combiningService.incrementFileCount("home", "/a", 2L);
+            combiningService.incrementFileCount("home", "/b", 3L);
+            // The increment of B will be rejected
+            ffs.update(new BasicDBObject(FileFolderService.FIELD_ID, "B"), new BasicDBObject("$set", new BasicDBObject(FileFolderService.FIELD_FILE_COUNT, "bad")));
+            
+            combiningService.flush();
+            assertEquals(2L, fileFolderService.getFolder("A").getFileCount());
+            assertEquals("bad", ffs.findOne(new BasicDBObject(FileFolderService.FIELD_ID, "B")).get(FileFolderService.FIELD_FILE_COUNT));
+            
+            // Only the failed increment is tried again
+            ffs.update(new BasicDBObject(FileFolderService.FIELD_ID, "B"), new BasicDBObject("$set", new BasicDBObject(FileFolderService.FIELD_FILE_COUNT, 10L)));
+            assertEquals(13L, combiningService.getFolder("B").getFileCount());
+            combiningService.flush();
+            assertEquals(2L, fileFolderService.getFolder("A").getFileCount());
+            assertEquals(13L, fileFolderService.getFolder("B").getFileCount());
+            combiningService.flush();
+            assertEquals(13L, fileFolderService.getFolder("B").getFileCount());
+        }
+        finally
+        {
+            combiningService.destroy();
+        }
+    }
+    
     @Test
     public void childFolderCounts()
     {
@@ -267,4 +355,93 @@ public class FileFolderServiceTest
         // All
         assertEquals(1, fileFolderService.getFoldersByCounts("home", 2L, 2L, 2L, 2L, 30L, 30L, 0, 10).size());
     }
+    
+    /**
+     * Pick random folders and check that each expected folder is picked about as often as the others
+     */
+    private void assertRandomFoldersUniform(Set<String> expectedPaths, int picks,
+            Long minLevel, Long maxLevel, Long minFolders, Long maxFolders, Long minFiles, Long maxFiles)
+    {
+        Map<String, Integer> pickCounts = new HashMap<String, Integer>();
+        for (int i = 0; i < picks; i++)
+        {
+            FolderData folderData = fileFolderService.getRandomFolder("home", minLevel, maxLevel, minFolders, maxFolders, minFiles, maxFiles);
+            assertNotNull(folderData);
+            String path = folderData.getPath();
+            assertTrue("Unexpected folder picked: " + path, expectedPaths.contains(path));
+            Integer count = pickCounts.get(path);
+            pickCounts.put(path, count == null ? 1 : count + 1);
+        }
+        assertEquals("All matching folders must be picked: " + pickCounts, expectedPaths.size(), pickCounts.size());
+        // Allow five or more standard deviations either side of the expected count
+        double p = 1.0 / expectedPaths.size();
+        double expected = picks * p;
+        double tolerance = 5.0 * Math.sqrt(picks * p * (1.0 - p)) + 1.0;
+        for (Map.Entry<String, Integer> entry : pickCounts.entrySet())
+        {
+            assertEquals("Folder " + entry.getKey() + " picked unevenly: " + pickCounts, expected, entry.getValue(), tolerance);
+        }
+    }
+    
+    @Test
+    public void getRandomFolder()
+    {
+        assertNull(fileFolderService.getRandomFolder("home", null, null, null, null, null, null));
+        
+        Set<String> levelTwoPaths = new HashSet<String>();
+        Set<String> withFilesPaths = new HashSet<String>();
+        for (int i = 0; i < 20; i++)
+        {
+            fileFolderService.createNewFolder("a" + i, "home", "/a" + i);
+            fileFolderService.createNewFolder("a" + i + "b", "home", "/a" + i + "/b");
+            levelTwoPaths.add("/a" + i + "/b");
+            // A few sparse matches for the counts
+            if (i % 5 == 0)
+            {
+                fileFolderService.incrementFileCount("home", "/a" + i, 5L);
+                withFilesPaths.add("/a" + i);
+            }
+        }
+        fileFolderService.incrementFileCount("home", "/a7/b", 5L);
+        
+        // Levels
+        assertRandomFoldersUniform(levelTwoPaths, 4000, 2L, 2L, null, null, null, null);
+        // Counts with few matches
+        assertRandomFoldersUniform(withFilesPaths, 4000, 1L, 1L, null, null, 1L, 5L);
+        assertRandomFoldersUniform(Collections.singleton("/a7/b"), 20, null, null, null, null, 1L, null);
+        assertNull(fileFolderService.getRandomFolder("home", 3L, 5L, null, null, null, null));
+        assertNull(fileFolderService.getRandomFolder("home", null, null, null, null, 6L, null));
+        assertNotNull(fileFolderService.getRandomFolder("home", null, null, 0L, 0L, 5L, 5L));
+        
+        // Folders whose counts move out of range are no longer picked from the samples held
+        fileFolderService.incrementFileCount("home", "/a0", 10L);
+        withFilesPaths.remove("/a0");
+        assertRandomFoldersUniform(withFilesPaths, 3000, 1L, 1L, null, null, 1L, 5L);
+        // ... and deleted folders
+        fileFolderService.deleteFolder("home", "/a5", false);
+        withFilesPaths.remove("/a5");
+        assertRandomFoldersUniform(withFilesPaths, 2000, 1L, 1L, null, null, 1L, 5L);
+    }
+    
+    @Test
+    public void getRandomFolderFromPartialSample()
+    {
+        fileFolderService.setRandomSampleSize(5);
+        fileFolderService.setRandomSampleTTL(0L);
+        Set<String> paths = new HashSet<String>();
+        for (int i = 0; i < 20; i++)
+        {
+            fileFolderService.createNewFolder("a" + i, "home", "/a" + i);
+            paths.add("/a" + i);
+        }
+        // Each pick is from a new run of five folders, so all folders are picked in time
+        Set<String> pickedPaths = new HashSet<String>();
+        for (int i = 0; i < 1000; i++)
+        {
+            FolderData folderData = fileFolderService.getRandomFolder("home", 1L, 1L, null, null, null, null);
+            assertNotNull(folderData);
+            pickedPaths.add(folderData.getPath());
+        }
+        assertEquals(paths, pickedPaths);
+    }
 }
@@ -0,0 +1,283 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.driver.event.Event;
+import org.alfresco.http.AuthenticationDetailsProvider;
+import org.alfresco.http.PooledHttpClientProvider;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests {@link AsyncAuthenticatedHttpEventProcessor} against a local HTTP server
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class AsyncAuthenticatedHttpEventProcessorTest
+{
+    private static final byte[] RESPONSE_BODY = "OK".getBytes(StandardCharsets.UTF_8);
+    
+    private ExecutorService serverExecutor;
+    private HttpServer server;
+    private String baseUrl;
+    /** The <b>Authorization</b> header of every request received */
+    private List<String> authHeaders;
+    private PooledHttpClientProvider provider;
+    private TestAsyncEventProcessor processor;
+    
+    /**
+     * Exposes the async calls; events are not processed
+     */
+    private static class TestAsyncEventProcessor extends AsyncAuthenticatedHttpEventProcessor
+    {
+        private TestAsyncEventProcessor(PooledHttpClientProvider provider, String baseUrl)
+        {
+            super(provider, new AuthenticationDetailsProvider()
+            {
+                @Override
+                public String getPasswordForUser(String username)
+                {
+                    return username + "-pwd";
+                }
+                @Override
+                public String getAdminUsername()
+                {
+                    return "admin";
+                }
+                @Override
+                public String getAdminPassword()
+                {
+                    return "admin-pwd";
+                }
+            }, baseUrl);
+        }
+        
+        @Override
+        protected EventResult processEvent(Event event) throws Exception
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    /**
+     * Counts the callbacks and keeps the last result or failure
+     */
+    private static class RecordingCallback implements FutureCallback<HttpResponse>
+    {
+        private final CountDownLatch latch;
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        
+        private RecordingCallback(int count)
+        {
+            this.latch = new CountDownLatch(count);
+        }
+        @Override
+        public void completed(HttpResponse result)
+        {
+            completed.incrementAndGet();
+            latch.countDown();
+        }
+        @Override
+        public void failed(Exception ex)
+        {
+            failed.incrementAndGet();
+            failure.set(ex);
+            latch.countDown();
+        }
+        @Override
+        public void cancelled()
+        {
+            latch.countDown();
+        }
+        private void await() throws InterruptedException
+        {
+            assertTrue("Callbacks not all called", latch.await(10, TimeUnit.SECONDS));
+        }
+    }
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        authHeaders = Collections.synchronizedList(new ArrayList<String>());
+        
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                authHeaders.add(exchange.getRequestHeaders().getFirst("Authorization"));
+                exchange.sendResponseHeaders(200, RESPONSE_BODY.length);
+                OutputStream os = exchange.getResponseBody();
+                try
+                {
+                    os.write(RESPONSE_BODY);
+                }
+                finally
+                {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(serverExecutor);
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort() + "/";
+        
+        provider = new PooledHttpClientProvider(4, 4);
+        processor = new TestAsyncEventProcessor(provider, baseUrl);
+    }
+    
+    @After
+    public void tearDown() throws Exception
+    {
+        try
+        {
+            provider.destroy();
+        }
+        finally
+        {
+            server.stop(0);
+            serverExecutor.shutdownNow();
+        }
+    }
+    
+    private static String basic(String username, String password)
+    {
+        return "Basic " + Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    @Test
+    public void userRequestsCompleteWithCallbacks() throws Exception
+    {
+        RecordingCallback callback = new RecordingCallback(10);
+        List<Future<HttpResponse>> futures = new ArrayList<Future<HttpResponse>>();
+        for (int i = 0; i < 10; i++)
+        {
+            HttpGet get = new HttpGet(processor.getFullUrlForPath("/user"));
+            futures.add(processor.executeHttpMethodAsUserAsync(get, "user" + (i % 2), callback));
+        }
+        callback.await();
+        assertEquals(10, callback.completed.get());
+        assertEquals(0, callback.failed.get());
+        for (Future<HttpResponse> future : futures)
+        {
+            assertTrue(future.isDone());
+            assertEquals(200, future.get().getStatusLine().getStatusCode());
+        }
+        assertEquals(10, authHeaders.size());
+        assertEquals(5, Collections.frequency(authHeaders, basic("user0", "user0-pwd")));
+        assertEquals(5, Collections.frequency(authHeaders, basic("user1", "user1-pwd")));
+    }
+    
+    @Test
+    public void adminRequestsComplete() throws Exception
+    {
+        RecordingCallback callback = new RecordingCallback(1);
+        Future<HttpResponse> future = processor.executeHttpMethodAsAdminAsync(new HttpGet(baseUrl + "admin"), callback);
+        callback.await();
+        assertEquals(1, callback.completed.get());
+        assertEquals(200, future.get().getStatusLine().getStatusCode());
+        assertEquals(Collections.singletonList(basic("admin", "admin-pwd")), authHeaders);
+    }
+    
+    @Test
+    public void requestsWithoutCallbackComplete() throws Exception
+    {
+        Future<HttpResponse> future = processor.executeHttpMethodAsUserAsync(new HttpGet(baseUrl + "user"), "fred", null);
+        assertEquals(200, future.get(10, TimeUnit.SECONDS).getStatusLine().getStatusCode());
+        assertEquals(Collections.singletonList(basic("fred", "fred-pwd")), authHeaders);
+    }
+    
+    @Test
+    public void failuresReachTheCallback() throws Exception
+    {
+        // Find a port that nothing listens on
+        int port;
+        ServerSocket socket = new ServerSocket(0);
+        try
+        {
+            port = socket.getLocalPort();
+        }
+        finally
+        {
+            socket.close();
+        }
+        RecordingCallback callback = new RecordingCallback(1);
+        Future<HttpResponse> future = processor.executeHttpMethodAsUserAsync(new HttpGet("http://localhost:" + port + "/user"), "fred", callback);
+        callback.await();
+        assertEquals(0, callback.completed.get());
+        assertEquals(1, callback.failed.get());
+        assertNotNull(callback.failure.get());
+        try
+        {
+            future.get();
+            fail("Expected the future to fail");
+        }
+        catch (ExecutionException e)
+        {
+            // Expected
+        }
+    }
+}
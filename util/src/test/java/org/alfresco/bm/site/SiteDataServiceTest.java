@@ -0,0 +1,227 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.alfresco.bm.common.util.junit.tools.MongoDBForTestsFactory;
+import org.alfresco.bm.data.DataCreationState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+
+/**
+ * @see SiteDataServiceImpl
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class SiteDataServiceTest
+{
+    private static MongoDBForTestsFactory mongoFactory;
+    private SiteDataServiceImpl siteDataService;
+    private DB db;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        mongoFactory = new MongoDBForTestsFactory();
+        db = mongoFactory.getObject();
+        siteDataService = new SiteDataServiceImpl(db, "sites", "siteMembers");
+        siteDataService.afterPropertiesSet();
+    }
+    
+    @After
+    public void tearDown() throws Exception
+    {
+        mongoFactory.destroy();
+    }
+    
+    private static SiteData createSite(String siteId, String domain, int randomizer)
+    {
+        SiteData site = new SiteData();
+        site.setSiteId(siteId);
+        site.setDomain(domain);
+        site.setRandomizer(randomizer);
+        site.setCreationState(DataCreationState.Scheduled);
+        return site;
+    }
+    
+    private static SiteMemberData createSiteMember(String siteId, String username, String role, int randomizer)
+    {
+        SiteMemberData siteMember = new SiteMemberData();
+        siteMember.setSiteId(siteId);
+        siteMember.setUsername(username);
+        siteMember.setRole(role);
+        siteMember.setRandomizer(randomizer);
+        siteMember.setCreationState(DataCreationState.Scheduled);
+        return siteMember;
+    }
+    
+    @Test
+    public void randomSiteSeesWrites()
+    {
+        assertNull(siteDataService.randomSite(null, null));
+        for (int i = 0; i < 10; i++)
+        {
+            siteDataService.addSite(createSite("site" + i, i % 2 == 0 ? "even" : "odd", i * 100));
+        }
+        Set<String> siteIds = new HashSet<String>();
+        for (int i = 0; i < 500; i++)
+        {
+            SiteData site = siteDataService.randomSite("even", DataCreationState.Scheduled);
+            assertEquals("even", site.getDomain());
+            siteIds.add(site.getSiteId());
+        }
+        assertEquals("All matching sites must be picked. ", 5, siteIds.size());
+        
+        // Sites that are added or change state are seen without waiting for the samples to expire
+        siteDataService.addSite(createSite("site10", "even", 50));
+        siteDataService.setSiteCreationState("site0", "guid0", DataCreationState.Created);
+        siteIds.clear();
+        for (int i = 0; i < 500; i++)
+        {
+            siteIds.add(siteDataService.randomSite("even", DataCreationState.Scheduled).getSiteId());
+        }
+        assertEquals(5, siteIds.size());
+        assertEquals(false, siteIds.contains("site0"));
+        assertEquals(true, siteIds.contains("site10"));
+        SiteData created = siteDataService.randomSite(null, DataCreationState.Created);
+        assertEquals("site0", created.getSiteId());
+        assertEquals("guid0", created.getGuid());
+    }
+    
+    @Test
+    public void randomSiteFromPartialSample()
+    {
+        siteDataService.setSampleSize(3);
+        for (int i = 0; i < 20; i++)
+        {
+            siteDataService.addSite(createSite("site" + i, "example.com", i));
+        }
+        for (int i = 0; i < 50; i++)
+        {
+            assertNotNull(siteDataService.randomSite("example.com", DataCreationState.Scheduled));
+        }
+        assertNull(siteDataService.randomSite("other.com", null));
+    }
+    
+    @Test
+    public void randomSiteMember()
+    {
+        siteDataService.addSiteMember(createSiteMember("site0", "fsmith", "SiteManager", 10));
+        siteDataService.addSiteMember(createSiteMember("site0", "jblogg", "SiteConsumer", 20));
+        siteDataService.addSiteMember(createSiteMember("site1", "fsmith", "SiteConsumer", 30));
+        
+        for (int i = 0; i < 50; i++)
+        {
+            SiteMemberData member = siteDataService.randomSiteMember("site0", null, null, "SiteConsumer", "SiteCollaborator");
+            assertEquals("jblogg", member.getUsername());
+            member = siteDataService.randomSiteMember(null, DataCreationState.Scheduled, "fsmith");
+            assertEquals("fsmith", member.getUsername());
+        }
+        assertNull(siteDataService.randomSiteMember("site2", null, null));
+        
+        siteDataService.setSiteMemberCreationState("site0", "jblogg", DataCreationState.Created);
+        assertNull(siteDataService.randomSiteMember("site0", DataCreationState.Scheduled, null, "SiteConsumer"));
+        assertEquals("jblogg", siteDataService.randomSiteMember("site0", DataCreationState.Created, null).getUsername());
+    }
+    
+    @Test
+    public void samplesExpire() throws Exception
+    {
+        siteDataService.setSampleTTL(10L);
+        siteDataService.addSite(createSite("site0", "example.com", 1));
+        assertEquals("site0", siteDataService.randomSite(null, null).getSiteId());
+        // Changes made elsewhere are seen once the sample has expired
+        db.getCollection("sites").remove(new BasicDBObject(SiteData.FIELD_SITE_ID, "site0"));
+        Thread.sleep(20L);
+        assertNull(siteDataService.randomSite(null, null));
+    }
+    
+    @Test
+    public void samplesAreDroppedLeastRecentlyUsedFirst()
+    {
+        siteDataService.setSampleCacheSize(6);
+        for (int i = 0; i < 9; i++)
+        {
+            siteDataService.addSite(createSite("site" + i, "d" + (i % 3), i));
+        }
+        assertNotNull(siteDataService.randomSite("d0", null));
+        assertNotNull(siteDataService.randomSite("d1", null));
+        assertNotNull(siteDataService.randomSite("d0", null));
+        // Holding 'd2' as well exceeds the limit, so 'd1' is dropped
+        assertNotNull(siteDataService.randomSite("d2", null));
+        
+        db.getCollection("sites").remove(new BasicDBObject());
+        assertNotNull("Sample must still be held", siteDataService.randomSite("d0", null));
+        assertNotNull("Sample must still be held", siteDataService.randomSite("d2", null));
+        assertNull("Sample must have been reloaded", siteDataService.randomSite("d1", null));
+    }
+    
+    @Test
+    public void emptySamplesAreHeldUntilExpiry() throws Exception
+    {
+        siteDataService.setSampleTTL(200L);
+        assertNull(siteDataService.randomSite("example.com", null));
+        // A site written elsewhere is not seen until the empty sample expires ...
+        SiteDataServiceImpl otherSiteDataService = new SiteDataServiceImpl(db, "sites", "siteMembers");
+        otherSiteDataService.addSite(createSite("site0", "example.com", 1));
+        assertNull(siteDataService.randomSite("example.com", null));
+        Thread.sleep(250L);
+        assertEquals("site0", siteDataService.randomSite("example.com", null).getSiteId());
+        // ... but a site written through the service is seen straight away
+        assertNull(siteDataService.randomSite("other.com", null));
+        siteDataService.addSite(createSite("site1", "other.com", 2));
+        assertEquals("site1", siteDataService.randomSite("other.com", null).getSiteId());
+    }
+    
+    @Test
+    public void siteMembersOfOneSiteOrUserAreNotSampled()
+    {
+        siteDataService.addSiteMember(createSiteMember("site0", "fsmith", "SiteManager", 10));
+        assertEquals("fsmith", siteDataService.randomSiteMember("site0", DataCreationState.Scheduled, null).getUsername());
+        assertEquals("site0", siteDataService.randomSiteMember(null, DataCreationState.Scheduled, "fsmith").getSiteId());
+        
+        // Changes made elsewhere are seen straight away
+        SiteDataServiceImpl otherSiteDataService = new SiteDataServiceImpl(db, "sites", "siteMembers");
+        otherSiteDataService.setSiteMemberCreationState("site0", "fsmith", DataCreationState.Created);
+        assertNull(siteDataService.randomSiteMember("site0", DataCreationState.Scheduled, null));
+        assertNull(siteDataService.randomSiteMember(null, DataCreationState.Scheduled, "fsmith"));
+        assertEquals("fsmith", siteDataService.randomSiteMember("site0", DataCreationState.Created, null).getUsername());
+    }
+}
@@ -30,7 +30,9 @@ import static org.junit.Assert.assertNotNull;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
 
 import org.alfresco.bm.data.DataCreationState;
 import org.junit.After;
@@ -152,6 +154,28 @@ public class UserDataServiceTest
         }
     }
     
+    @Test
+    public void testBulkCreateAndSchedule()
+    {
+        // One of the users already exists and the batch contains its own duplicate
+        UserData existing = createUserData(USERS[0]);
+        UserData userA = createUserData("testBulkCreateAndSchedule.A" + System.nanoTime());
+        UserData userB = createUserData("testBulkCreateAndSchedule.B" + System.nanoTime());
+        UserData userDup = createUserData("testBulkCreateAndSchedule.C" + System.nanoTime());
+        userDup.setUsername(userA.getUsername());
+        long created = userDataService.createNewUsers(Arrays.asList(existing, userA, userDup, userB));
+        Assert.assertEquals("Duplicates should be skipped.", 2L, created);
+        Assert.assertEquals(USERS.length + 2, userDataService.countUsers(null, null));
+        Assert.assertEquals(0L, userDataService.createNewUsers(Collections.<UserData>emptyList()));
+        
+        long changed = userDataService.setUsersCreationState(
+                Arrays.asList(userA.getUsername(), userB.getUsername(), "missing"),
+                DataCreationState.Scheduled);
+        Assert.assertEquals(2L, changed);
+        Assert.assertEquals(2, userDataService.countUsers(null, DataCreationState.Scheduled));
+        Assert.assertEquals(DataCreationState.Scheduled, userDataService.findUserByUsername(userB.getUsername()).getCreationState());
+    }
+    
     @Test
     public void testDeletedByCreated()
     {
@@ -221,6 +245,72 @@ public class UserDataServiceTest
         Assert.assertEquals("fblogs", userData.getUsername());
     }
     
+    @Test
+    public void testRandomUserSample()
+    {
+        UserDataServiceImpl userDataServiceImpl = (UserDataServiceImpl) userDataService;
+        userDataServiceImpl.setRandomUserSampleSize(3);
+        userDataServiceImpl.setRandomUserSampleTTL(60000L);
+        for (String username : USERS)
+        {
+            userDataService.setUserCreationState(username, DataCreationState.Created);
+        }
+        // Only the sampled users are selected until the sample is invalidated
+        Set<String> usernames = new HashSet<String>();
+        for (int i = 0; i < 1000; i++)
+        {
+            usernames.add(userDataService.getRandomUser().getUsername());
+        }
+        Assert.assertEquals("Expected all of the sample to be selected.", 3, usernames.size());
+        
+        // Changing a user's state must be seen immediately
+        for (String username : usernames)
+        {
+            userDataService.setUserCreationState(username, DataCreationState.Failed);
+        }
+        for (int i = 0; i < 1000; i++)
+        {
+            UserData user = userDataService.getRandomUser();
+            Assert.assertFalse("User is no longer created: " + user, usernames.contains(user.getUsername()));
+        }
+        Assert.assertNull(userDataService.getRandomUserFromDomain("example.net"));
+    }
+    
+    @Test
+    public void testRandomUserSampleUpdates()
+    {
+        UserDataServiceImpl userDataServiceImpl = (UserDataServiceImpl) userDataService;
+        userDataServiceImpl.setRandomUserSampleSize(10);
+        userDataServiceImpl.setRandomUserSampleTTL(60000L);
+        for (String username : USERS)
+        {
+            userDataService.setUserCreationState(username, DataCreationState.Created);
+        }
+        Assert.assertNotNull(userDataService.getRandomUser());
+        
+        // The sample holds all users, so new users are added to it
+        UserData newUser = createUserData("newuser");
+        newUser.setCreationState(DataCreationState.Created);
+        userDataService.createNewUser(newUser);
+        // Changes are applied to the users held
+        userDataService.setUserPassword("fsmith", "newpassword");
+        Set<String> usernames = new HashSet<String>();
+        for (int i = 0; i < 1000; i++)
+        {
+            UserData user = userDataService.getRandomUser();
+            usernames.add(user.getUsername());
+            if (user.getUsername().equals("fsmith"))
+            {
+                Assert.assertEquals("newpassword", user.getPassword());
+            }
+        }
+        Assert.assertEquals("Expected the new user to be selected.", USERS.length + 1, usernames.size());
+        
+        // Deleted users are removed
+        userDataService.deleteUsers(DataCreationState.Created);
+        Assert.assertNull(userDataService.getRandomUser());
+    }
+    
     @Test
     public void testUsernameDoesNotExist()
     {
@@ -25,6 +25,8 @@
  */
 package org.alfresco.bm.user;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 
 import org.alfresco.bm.data.DataCreationState;
@@ -148,6 +150,80 @@ public class UserEventHandlingTest
         Assert.assertEquals("Found 1 created users.  Minimum was 1.", result.getData().toString());
     }
     
+    @Test
+    public void prepareUsersInChunks() throws Exception
+    {
+        PrepareUsers prep = new PrepareUsers(userDataService, 205);
+        prep.setUsersPerDomain(20);
+        prep.setDomainPattern("[emailDomain]");
+        prep.setEventNameSelf("prepareUsers");
+        prep.setChunkSize(50);
+        prep.setDelayRescheduleSelf(0L);
+        
+        Event event = new Event("X", null);
+        EventResult result = prep.processEvent(event);
+        // Five chunks and the completion check
+        Assert.assertEquals(6, result.getNextEvents().size());
+        List<Event> chunkEvents = result.getNextEvents().subList(0, 5);
+        Event checkEvent = result.getNextEvents().get(5);
+        
+        // The check waits for chunks that have not started
+        result = prep.processEvent(checkEvent);
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertEquals(1, result.getNextEvents().size());
+        checkEvent = result.getNextEvents().get(0);
+        Assert.assertEquals("prepareUsers", checkEvent.getName());
+        
+        // Process the chunks out of order
+        Collections.reverse(chunkEvents);
+        for (Event chunkEvent : chunkEvents)
+        {
+            Assert.assertEquals("prepareUsers", chunkEvent.getName());
+            result = prep.processEvent(chunkEvent);
+            Assert.assertEquals(0, result.getNextEvents().size());
+        }
+        Assert.assertEquals(205,  userDataService.countUsers(null, null));
+        Assert.assertNotNull(userDataService.findUserByUsername("0000000.Test@00000.example.com"));
+        Assert.assertNotNull(userDataService.findUserByUsername("0000204.Test@00010.example.com"));
+        Assert.assertEquals(5,  userDataService.countUsers("00010.example.com", null));
+        
+        // Repeating a chunk creates nothing
+        result = prep.processEvent(chunkEvents.get(0));
+        Assert.assertTrue(result.getData().toString().startsWith("Created 0 users"));
+        
+        // The check finishes once every chunk has its users
+        result = prep.processEvent(checkEvent);
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertEquals(PrepareUsers.EVENT_NAME_USERS_PREPARED, result.getNextEvents().get(0).getName());
+    }
+    
+    @Test
+    public void prepareUsersInChunksStalled() throws Exception
+    {
+        PrepareUsers prep = new PrepareUsers(userDataService, 100);
+        prep.setEventNameSelf("prepareUsers");
+        prep.setChunkSize(50);
+        prep.setDelayRescheduleSelf(0L);
+        prep.setMaxStalledChecks(2);
+        
+        Event event = new Event("X", null);
+        EventResult result = prep.processEvent(event);
+        Assert.assertEquals(3, result.getNextEvents().size());
+        Event checkEvent = result.getNextEvents().get(2);
+        
+        // Only the second chunk is processed
+        prep.processEvent(result.getNextEvents().get(1));
+        
+        // The first check sees new users and the next ones see no progress
+        result = prep.processEvent(checkEvent);
+        Assert.assertEquals("prepareUsers", result.getNextEvents().get(0).getName());
+        result = prep.processEvent(result.getNextEvents().get(0));
+        Assert.assertEquals("prepareUsers", result.getNextEvents().get(0).getName());
+        result = prep.processEvent(result.getNextEvents().get(0));
+        Assert.assertFalse(result.isSuccess());
+        Assert.assertEquals(PrepareUsers.EVENT_NAME_USERS_PREPARED, result.getNextEvents().get(0).getName());
+    }
+    
     @Test
     public void createUsers() throws Exception
     {
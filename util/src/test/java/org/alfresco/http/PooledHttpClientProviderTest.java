@@ -0,0 +1,208 @@
+/*
+ * #%L
+ * Alfresco Benchmark Manager
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software. 
+ * If the software was purchased under a paid Alfresco license, the terms of 
+ * the paid license agreement will prevail.  Otherwise, the software is 
+ * provided under the following open source license terms:
+ * 
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests {@link PooledHttpClientProvider} against a local HTTP server
+ * 
+ * @author Derek Hulley
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class PooledHttpClientProviderTest
+{
+    private static final byte[] RESPONSE_BODY = "OK".getBytes(StandardCharsets.UTF_8);
+    
+    private ExecutorService serverExecutor;
+    private HttpServer server;
+    private String url;
+    /** The client port of every request received */
+    private List<Integer> clientPorts;
+    /** The <b>Authorization</b> header of every request received */
+    private List<String> authHeaders;
+    private PooledHttpClientProvider provider;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        clientPorts = Collections.synchronizedList(new ArrayList<Integer>());
+        authHeaders = Collections.synchronizedList(new ArrayList<String>());
+        
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
+                authHeaders.add(authHeader == null ? "" : authHeader);
+                exchange.sendResponseHeaders(200, RESPONSE_BODY.length);
+                OutputStream os = exchange.getResponseBody();
+                try
+                {
+                    os.write(RESPONSE_BODY);
+                }
+                finally
+                {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(serverExecutor);
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/test";
+        
+        provider = new PooledHttpClientProvider(4, 4);
+    }
+    
+    @After
+    public void tearDown() throws Exception
+    {
+        try
+        {
+            provider.destroy();
+        }
+        finally
+        {
+            server.stop(0);
+            serverExecutor.shutdownNow();
+        }
+    }
+    
+    private void executeAndConsume(HttpClient client) throws Exception
+    {
+        HttpResponse response = client.execute(new HttpGet(url));
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("OK", EntityUtils.toString(response.getEntity()));
+    }
+    
+    @Test
+    public void connectionsAreReused() throws Exception
+    {
+        for (int i = 0; i < 10; i++)
+        {
+            executeAndConsume(provider.getHttpClient());
+        }
+        assertEquals(10, clientPorts.size());
+        assertEquals("All requests must use the same connection: " + clientPorts, 1, new HashSet<Integer>(clientPorts).size());
+        assertEquals(0, provider.getPoolStats().getLeased());
+        assertEquals(1, provider.getPoolStats().getAvailable());
+    }
+    
+    @Test
+    public void basicAuthenticationIsPreemptive() throws Exception
+    {
+        HttpClient client = provider.getHttpClient("bob", "secret");
+        assertSame("Clients must be reused for the same user", client, provider.getHttpClient("bob", "secret"));
+        
+        executeAndConsume(client);
+        String expected = "Basic " + Base64.getEncoder().encodeToString("bob:secret".getBytes(StandardCharsets.UTF_8));
+        assertEquals(1, authHeaders.size());
+        assertEquals("The header must be sent without a challenge", expected, authHeaders.get(0));
+        assertEquals(expected, provider.getBasicAuthenticationHeader("bob", "secret").getValue());
+        
+        // Authenticated clients share the pool
+        executeAndConsume(provider.getHttpClient());
+        assertEquals(1, new HashSet<Integer>(clientPorts).size());
+    }
+    
+    @Test
+    public void asyncRequestsCompleteAndReuseConnections() throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(20);
+        final List<Integer> statuses = Collections.synchronizedList(new ArrayList<Integer>());
+        FutureCallback<HttpResponse> callback = new FutureCallback<HttpResponse>()
+        {
+            @Override
+            public void completed(HttpResponse result)
+            {
+                statuses.add(result.getStatusLine().getStatusCode());
+                latch.countDown();
+            }
+            @Override
+            public void failed(Exception ex)
+            {
+                latch.countDown();
+            }
+            @Override
+            public void cancelled()
+            {
+                latch.countDown();
+            }
+        };
+        List<Future<HttpResponse>> futures = new ArrayList<Future<HttpResponse>>();
+        for (int i = 0; i < 20; i++)
+        {
+            futures.add(provider.getAsyncHttpClient().execute(new HttpGet(url), callback));
+        }
+        assertTrue("Callbacks not all called", latch.await(10, TimeUnit.SECONDS));
+        for (Future<HttpResponse> future : futures)
+        {
+            assertEquals(200, future.get().getStatusLine().getStatusCode());
+        }
+        assertEquals(20, statuses.size());
+        assertEquals(Collections.nCopies(20, 200), statuses);
+        // No more connections than the route allows
+        assertTrue("Too many connections: " + clientPorts, new HashSet<Integer>(clientPorts).size() <= 4);
+        assertEquals(0, provider.getAsyncPoolStats().getLeased());
+    }
+}